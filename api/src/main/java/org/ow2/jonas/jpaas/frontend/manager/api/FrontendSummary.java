@@ -0,0 +1,79 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.api;
+
+import java.io.Serializable;
+
+/**
+ * Compact description of a frontend returned by the read operations
+ */
+public class FrontendSummary implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Name of the frontend
+     */
+    private final String name;
+
+    /**
+     * Url of the agent API
+     */
+    private final String apiUrl;
+
+    /**
+     * Number of vhosts of the frontend
+     */
+    private final int vhostCount;
+
+    /**
+     * Constructor
+     * @param name Name of the frontend
+     * @param apiUrl Url of the agent API
+     * @param vhostCount Number of vhosts of the frontend
+     */
+    public FrontendSummary(String name, String apiUrl, int vhostCount) {
+        this.name = name;
+        this.apiUrl = apiUrl;
+        this.vhostCount = vhostCount;
+    }
+
+    /**
+     * @return Name of the frontend
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Url of the agent API
+     */
+    public String getApiUrl() {
+        return apiUrl;
+    }
+
+    /**
+     * @return Number of vhosts of the frontend
+     */
+    public int getVhostCount() {
+        return vhostCount;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + apiUrl + ", " + vhostCount + " vhost(s))";
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.api;
+
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Asynchronous variant of {@link IFrontendManager}. The operations are run on
+ * a bounded pool of the frontend manager and don't hold the calling thread.
+ * An operation which doesn't complete in time is cancelled; cancelling the
+ * returned Future interrupts the operation before its next agent request.
+ * The Future fails with an ExecutionException caused by a
+ * {@link FrontendManagerBeanException} if the operation fails.
+ *
+ * When the operation journal is enabled, an operation is durably recorded
+ * before the method returns and is applied even if the frontend manager
+ * stops before completing it. The journaled operations of a frontend are
+ * applied in call order; they are not cancelled by a timeout nor by
+ * cancelling the returned Future.
+ */
+public interface IAsyncFrontendManager {
+
+    /**
+     * Create a PaasFrontend
+     * @param frontendName Name of the frontend to create
+     * @param apiUrl Url of the agent API
+     * @return the completion of the operation
+     */
+    public Future<Void> createFrontend(String frontendName, String apiUrl);
+
+    /**
+     * Remove a PaasFrontend
+     * @param frontendName Name of the frontend to create
+     * @return the completion of the operation
+     */
+    public Future<Void> removeFrontend(String frontendName);
+
+    /**
+     * Create a vhost
+     * @param frontendName         Name of the Frontend
+     * @param vhostName Name of the vhost to create
+     * @param targetRouterNameList Target router list
+     * @return the completion of the operation
+     */
+    public Future<Void> createVhost(String frontendName, String vhostName, List<String> targetRouterNameList);
+
+    /**
+     * Remove a vhost
+     * @param frontendName         Name of the Frontend
+     * @param vhostName Name of the vhost to create
+     * @return the completion of the operation
+     */
+    public Future<Void> removeVhost(String frontendName, String vhostName);
+
+}
@@ -15,7 +15,9 @@
  */
 package org.ow2.jonas.jpaas.frontend.manager.api;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 public interface IFrontendManager {
 
@@ -52,4 +54,104 @@ public interface IFrontendManager {
      */
     public void removeVhost(String frontendName, String vhostName) throws FrontendManagerBeanException;
 
+    /**
+     * Change the routers of a vhost. Only the routes to the added and removed
+     * routers are sent to the agent: the members of the balancer of the
+     * vhost, or its ProxyPass directives if it has no balancer.
+     * @param frontendName         Name of the Frontend
+     * @param vhostName            Name of the vhost
+     * @param targetRouterNameList New target router list
+     * @throws FrontendManagerBeanException if the vhost doesn't exist or cannot be updated
+     */
+    public void updateVhostRouters(String frontendName, String vhostName, List<String> targetRouterNameList)
+            throws FrontendManagerBeanException;
+
+    /**
+     * Create several vhosts on a frontend. The frontend is updated once in SR
+     * and reloaded once. A failure on a vhost doesn't abort the others.
+     * @param frontendName   Name of the Frontend
+     * @param vhostToRouters Target router list of each vhost to create
+     * @return the result of each vhost creation
+     * @throws FrontendManagerBeanException if the frontend cannot be updated
+     */
+    public List<OperationResult> createVhosts(String frontendName, Map<String, List<String>> vhostToRouters)
+            throws FrontendManagerBeanException;
+
+    /**
+     * Remove several vhosts from a frontend. The frontend is updated once in SR
+     * and reloaded once. A failure on a vhost doesn't abort the others.
+     * @param frontendName Name of the Frontend
+     * @param vhostNames   Names of the vhosts to remove
+     * @return the result of each vhost removal
+     * @throws FrontendManagerBeanException if the frontend cannot be updated
+     */
+    public List<OperationResult> removeVhosts(String frontendName, Collection<String> vhostNames)
+            throws FrontendManagerBeanException;
+
+    /**
+     * Create a vhost on several frontends in parallel, e.g. the frontends of a
+     * redundant group. The operation returns once the quorum of frontends
+     * succeeded or cannot be reached anymore; the other frontends keep being
+     * updated in the background and their outcome is reported by the metrics
+     * of the frontend manager.
+     * @param frontendNames        Names of the Frontends
+     * @param vhostName            Name of the vhost to create
+     * @param targetRouterNameList Target router list
+     * @param quorum               Number of frontends which must succeed, 0 for a majority
+     * @return the result of each completed frontend and the frontends still in progress
+     * @throws FrontendManagerBeanException if the frontend set or the quorum is not valid
+     */
+    public QuorumResult createVhostOnFrontends(Collection<String> frontendNames, String vhostName,
+            List<String> targetRouterNameList, int quorum) throws FrontendManagerBeanException;
+
+    /**
+     * Remove a vhost from several frontends in parallel, with the same
+     * completion rules as {@link #createVhostOnFrontends}.
+     * @param frontendNames Names of the Frontends
+     * @param vhostName     Name of the vhost to remove
+     * @param quorum        Number of frontends which must succeed, 0 for a majority
+     * @return the result of each completed frontend and the frontends still in progress
+     * @throws FrontendManagerBeanException if the frontend set or the quorum is not valid
+     */
+    public QuorumResult removeVhostFromFrontends(Collection<String> frontendNames, String vhostName, int quorum)
+            throws FrontendManagerBeanException;
+
+    /**
+     * Reconcile the proxypass directives of the frontend agent with the ones
+     * recorded in SR: the missing directives are created again, the extra
+     * ones are removed, and the frontend is reloaded once.
+     * @param frontendName Name of the Frontend
+     * @return the result of the reconciliation
+     * @throws FrontendManagerBeanException if the frontend doesn't exist
+     */
+    public OperationResult reconcileFrontend(String frontendName) throws FrontendManagerBeanException;
+
+    /**
+     * List the frontends. The reads are served from the in-memory view of
+     * the frontend manager and don't wait for the operations in progress.
+     * @return the frontends, in name order
+     * @throws FrontendManagerBeanException if the frontends cannot be read
+     */
+    public List<FrontendSummary> listFrontends() throws FrontendManagerBeanException;
+
+    /**
+     * List the vhosts of a frontend, one page at a time
+     * @param frontendName Name of the Frontend
+     * @param cursor Cursor returned with the previous page, null for the first page
+     * @param pageSize Maximum number of vhosts of the page
+     * @return the page of vhost names
+     * @throws FrontendManagerBeanException if the frontend doesn't exist
+     */
+    public VhostPage listVhosts(String frontendName, String cursor, int pageSize)
+            throws FrontendManagerBeanException;
+
+    /**
+     * Get the routing of a vhost
+     * @param frontendName Name of the Frontend
+     * @param vhostName Name of the vhost
+     * @return the routing of the vhost, null if the vhost doesn't exist
+     * @throws FrontendManagerBeanException if the frontend doesn't exist
+     */
+    public VhostRouting getVhostRouting(String frontendName, String vhostName) throws FrontendManagerBeanException;
+
 }
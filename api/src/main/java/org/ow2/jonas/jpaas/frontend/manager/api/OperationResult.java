@@ -0,0 +1,96 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.api;
+
+import java.io.Serializable;
+
+/**
+ * Result of an operation on one element (vhost, frontend) of a bulk request
+ */
+public class OperationResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Name of the element
+     */
+    private final String name;
+
+    /**
+     * True if the operation succeeded
+     */
+    private final boolean success;
+
+    /**
+     * Error message, null if the operation succeeded
+     */
+    private final String message;
+
+    /**
+     * Constructor
+     * @param name Name of the element
+     * @param success True if the operation succeeded
+     * @param message Error message, null if the operation succeeded
+     */
+    public OperationResult(String name, boolean success, String message) {
+        this.name = name;
+        this.success = success;
+        this.message = message;
+    }
+
+    /**
+     * @param name Name of the element
+     * @return a successful result
+     */
+    public static OperationResult success(String name) {
+        return new OperationResult(name, true, null);
+    }
+
+    /**
+     * @param name Name of the element
+     * @param message Error message
+     * @return a failed result
+     */
+    public static OperationResult failure(String name, String message) {
+        return new OperationResult(name, false, message);
+    }
+
+    /**
+     * @return Name of the element
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return True if the operation succeeded
+     */
+    public boolean isSuccess() {
+        return success;
+    }
+
+    /**
+     * @return Error message, null if the operation succeeded
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return name + (success ? " : OK" : " : " + message);
+    }
+}
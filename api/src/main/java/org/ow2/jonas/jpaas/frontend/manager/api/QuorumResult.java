@@ -0,0 +1,100 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.api;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Result of an operation applied in parallel to a set of frontends. The
+ * operation completes once a quorum of frontends succeeded, or once the quorum
+ * cannot be reached anymore; the frontends which were still being updated at
+ * that time keep being updated in the background.
+ */
+public class QuorumResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Number of successful frontends required
+     */
+    private final int quorum;
+
+    /**
+     * True if the quorum was reached
+     */
+    private final boolean quorumReached;
+
+    /**
+     * Result of each frontend completed before the operation returned
+     */
+    private final List<OperationResult> results;
+
+    /**
+     * Names of the frontends still being updated in the background
+     */
+    private final List<String> pendingFrontends;
+
+    /**
+     * Constructor
+     * @param quorum Number of successful frontends required
+     * @param quorumReached True if the quorum was reached
+     * @param results Result of each frontend completed before the operation returned
+     * @param pendingFrontends Names of the frontends still being updated in the background
+     */
+    public QuorumResult(int quorum, boolean quorumReached, List<OperationResult> results,
+            List<String> pendingFrontends) {
+        this.quorum = quorum;
+        this.quorumReached = quorumReached;
+        this.results = results;
+        this.pendingFrontends = pendingFrontends;
+    }
+
+    /**
+     * @return Number of successful frontends required
+     */
+    public int getQuorum() {
+        return quorum;
+    }
+
+    /**
+     * @return True if the quorum was reached
+     */
+    public boolean isQuorumReached() {
+        return quorumReached;
+    }
+
+    /**
+     * @return Result of each frontend completed before the operation returned,
+     *         the name of a result is the name of its frontend
+     */
+    public List<OperationResult> getResults() {
+        return results;
+    }
+
+    /**
+     * @return Names of the frontends still being updated in the background
+     */
+    public List<String> getPendingFrontends() {
+        return pendingFrontends;
+    }
+
+    @Override
+    public String toString() {
+        return (quorumReached ? "quorum " : "no quorum ") + quorum + " " + results
+                + (pendingFrontends.isEmpty() ? "" : " pending " + pendingFrontends);
+    }
+}
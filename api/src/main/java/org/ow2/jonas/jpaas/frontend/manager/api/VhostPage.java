@@ -0,0 +1,75 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.api;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * A page of the vhost names of a frontend, in name order. The cursor of the
+ * page gives the next page; it stays valid while vhosts are created or
+ * removed.
+ */
+public class VhostPage implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Names of the vhosts of the page
+     */
+    private final List<String> vhostNames;
+
+    /**
+     * Cursor of the next page, null if this page is the last one
+     */
+    private final String nextCursor;
+
+    /**
+     * Constructor
+     * @param vhostNames Names of the vhosts of the page
+     * @param nextCursor Cursor of the next page, null if this page is the last one
+     */
+    public VhostPage(List<String> vhostNames, String nextCursor) {
+        this.vhostNames = vhostNames;
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * @return Names of the vhosts of the page
+     */
+    public List<String> getVhostNames() {
+        return vhostNames;
+    }
+
+    /**
+     * @return Cursor of the next page, null if this page is the last one
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * @return true if there is a next page
+     */
+    public boolean hasNext() {
+        return nextCursor != null;
+    }
+
+    @Override
+    public String toString() {
+        return vhostNames + (nextCursor != null ? " next=" + nextCursor : "");
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.api;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Routing of a vhost: the routers it targets and its proxypass directives
+ */
+public class VhostRouting implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Name of the vhost
+     */
+    private final String vhostName;
+
+    /**
+     * Addresses of the routers targeted by the vhost
+     */
+    private final List<String> routerAddresses;
+
+    /**
+     * Proxypass directives of the vhost, "path url"
+     */
+    private final List<String> proxyPasses;
+
+    /**
+     * Constructor
+     * @param vhostName Name of the vhost
+     * @param routerAddresses Addresses of the routers targeted by the vhost
+     * @param proxyPasses Proxypass directives of the vhost, "path url"
+     */
+    public VhostRouting(String vhostName, List<String> routerAddresses, List<String> proxyPasses) {
+        this.vhostName = vhostName;
+        this.routerAddresses = routerAddresses;
+        this.proxyPasses = proxyPasses;
+    }
+
+    /**
+     * @return Name of the vhost
+     */
+    public String getVhostName() {
+        return vhostName;
+    }
+
+    /**
+     * @return Addresses of the routers targeted by the vhost
+     */
+    public List<String> getRouterAddresses() {
+        return routerAddresses;
+    }
+
+    /**
+     * @return Proxypass directives of the vhost, "path url"
+     */
+    public List<String> getProxyPasses() {
+        return proxyPasses;
+    }
+
+    @Override
+    public String toString() {
+        return vhostName + " -> " + routerAddresses;
+    }
+}
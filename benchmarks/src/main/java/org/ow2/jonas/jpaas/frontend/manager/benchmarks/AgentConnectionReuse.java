@@ -0,0 +1,134 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.benchmarks;
+
+import org.ow2.jonas.jpaas.frontend.manager.api.IFrontendManager;
+import org.ow2.jonas.jpaas.sr.facade.vo.PaasFrontendVO;
+import org.ow2.jonas.jpaas.sr.facade.vo.VirtualHostVO;
+
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.core.util.MultivaluedMapImpl;
+
+import javax.ws.rs.core.MultivaluedMap;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Measure the reuse of the agent connections: vhosts are created through the
+ * frontend manager, whose agent transport keeps one client per agent, and
+ * the same number of agent requests is then sent the way the frontend
+ * manager used to, with one Jersey client created and destroyed per request.
+ * For both, the stub agent counts the requests and the connections they
+ * were sent on.
+ *
+ * Configuration (system properties):
+ * <ul>
+ *   <li>reuse.operations: number of vhosts created (200)</li>
+ *   <li>reuse.routers: number of routers of a vhost (4)</li>
+ *   <li>reuse.latency: latency of the stub agent, in milliseconds (1)</li>
+ * </ul>
+ *
+ * Run with: java -cp benchmarks/target/benchmarks.jar
+ *           org.ow2.jonas.jpaas.frontend.manager.benchmarks.AgentConnectionReuse
+ */
+public class AgentConnectionReuse {
+
+    /**
+     * Name of the measured frontend
+     */
+    private static final String FRONTEND_NAME = "reuse";
+
+    /**
+     * Run the measure
+     * @param args unused
+     * @throws Exception if the measure cannot run
+     */
+    public static void main(String[] args) throws Exception {
+        int operations = Integer.getInteger("reuse.operations", 200);
+        int routerCount = Integer.getInteger("reuse.routers", 4);
+        long latency = Long.getLong("reuse.latency", 1L);
+        // one ProxyPass per router
+        System.setProperty("frontend.manager.balancer", "false");
+
+        InMemorySr sr = new InMemorySr();
+        List<String> routerNames = new ArrayList<String>();
+        for (int i = 0; i < routerCount; i++) {
+            sr.addRouter("router-" + i, "10.0.0." + (i + 1));
+            routerNames.add("router-" + i);
+        }
+        StubAgent agent = new StubAgent(latency, 32);
+        sr.addFrontend(new PaasFrontendVO(FRONTEND_NAME, agent.getApiUrl(), new LinkedList<VirtualHostVO>()));
+        FrontendManagerHarness harness = new FrontendManagerHarness(sr);
+        System.out.println("client              | requests | connections | requests/connection | ms/request");
+        try {
+            IFrontendManager frontendManager = harness.getFrontendManager();
+            // the Apache vhost of the frontend
+            frontendManager.createVhost(FRONTEND_NAME, "first.jpaas.org", routerNames);
+            agent.resetCalls();
+            long start = System.nanoTime();
+            for (int i = 0; i < operations; i++) {
+                frontendManager.createVhost(FRONTEND_NAME, "reuse-" + i + ".jpaas.org", routerNames);
+            }
+            long requests = agent.getTotalCalls();
+            print("agent transport", requests, agent.getConnectionCount(), System.nanoTime() - start);
+
+            agent.resetCalls();
+            start = System.nanoTime();
+            for (long i = 0; i < requests; i++) {
+                sendWithNewClient(agent.getApiUrl() + "proxymanager/vhost/1/proxypass", i);
+            }
+            print("client per request", agent.getTotalCalls(), agent.getConnectionCount(),
+                    System.nanoTime() - start);
+        } finally {
+            harness.stop();
+            agent.stop();
+        }
+    }
+
+    /**
+     * Create a proxypass directive with a Jersey client of its own, as the
+     * frontend manager used to
+     * @param url Url of the proxypass directives
+     * @param index Index of the directive
+     */
+    private static void sendWithNewClient(String url, long index) {
+        Client client = Client.create();
+        try {
+            MultivaluedMap<String, String> params = new MultivaluedMapImpl();
+            params.add("path", "/reuse-" + index + "/");
+            params.add("url", "http://10.0.0.1/reuse-" + index + "/");
+            ClientResponse clientResponse = client.resource(url).queryParams(params).post(ClientResponse.class);
+            clientResponse.getEntity(String.class);
+        } finally {
+            client.destroy();
+        }
+    }
+
+    /**
+     * Print a row of the result table
+     * @param name Name of the client
+     * @param requests Number of requests
+     * @param connections Number of connections
+     * @param duration Duration of the requests, in nanoseconds
+     */
+    private static void print(String name, long requests, int connections, long duration) {
+        System.out.println(String.format("%-19s | %8d | %11d | %19.1f | %10.3f", name, requests, connections,
+                (double) requests / Math.max(1, connections), duration / 1e6 / Math.max(1, requests)));
+    }
+}
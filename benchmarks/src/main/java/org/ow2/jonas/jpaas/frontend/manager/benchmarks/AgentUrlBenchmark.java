@@ -0,0 +1,147 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.ow2.jonas.jpaas.frontend.manager.bean.AgentTransport;
+import org.ow2.jonas.jpaas.frontend.manager.bean.ApacheManagerClient;
+import org.ow2.jonas.jpaas.frontend.manager.bean.CircuitBreaker;
+import org.ow2.jonas.jpaas.frontend.manager.bean.OperationMetrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building the url of an agent request: the typed client, which
+ * appends the ids to the prefixes built once per frontend, against the
+ * previous path, which concatenated the agent url and the path and removed
+ * the redundant slashes with two regular expressions on every request.
+ * Run with: java -jar benchmarks/target/benchmarks.jar AgentUrlBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@State(Scope.Thread)
+public class AgentUrlBenchmark {
+
+    /**
+     * Url of the agent API, as registered in the SR
+     */
+    @Param({"http://10.0.0.1:9000", "http://10.0.0.1:9000//apache-manager/"})
+    public String apiUrl;
+
+    /**
+     * Id of the Apache vhost
+     */
+    public String vhostId = "42";
+
+    /**
+     * Id of the directive
+     */
+    public String directiveId = "1337";
+
+    /**
+     * Transport creating the typed client
+     */
+    private AgentTransport agentTransport;
+
+    /**
+     * The typed client of the agent
+     */
+    private ApacheManagerClient apacheManagerClient;
+
+    /**
+     * Create the typed client, once per frontend as the frontend manager does
+     */
+    @Setup
+    public void setUp() {
+        agentTransport = new AgentTransport(1, 0, 0, CircuitBreaker.DEFAULT_FAILURE_THRESHOLD,
+                CircuitBreaker.DEFAULT_OPEN_DURATION, new OperationMetrics());
+        apacheManagerClient = agentTransport.getClient("bench", apiUrl);
+    }
+
+    /**
+     * Close the typed client
+     */
+    @TearDown
+    public void tearDown() {
+        agentTransport.close();
+    }
+
+    /**
+     * @return the url of the proxypass directives of a vhost, typed client
+     */
+    @Benchmark
+    public String typedProxyPass() {
+        return apacheManagerClient.getProxyPassUrl(vhostId, null);
+    }
+
+    /**
+     * @return the url of the proxypass directives of a vhost, previous path
+     */
+    @Benchmark
+    public String legacyProxyPass() {
+        return removeRedundantForwardSlash(getUrl(apiUrl, "/proxymanager/vhost/" + vhostId + "/proxypass"));
+    }
+
+    /**
+     * @return the url of a proxypass directive, typed client
+     */
+    @Benchmark
+    public String typedDirective() {
+        return apacheManagerClient.getProxyPassUrl(vhostId, directiveId);
+    }
+
+    /**
+     * @return the url of a proxypass directive, previous path
+     */
+    @Benchmark
+    public String legacyDirective() {
+        return removeRedundantForwardSlash(getUrl(apiUrl,
+                "/proxymanager/vhost/" + vhostId + "/proxypass/" + directiveId));
+    }
+
+    /**
+     * Previous url concatenation of the bean
+     * @param agentApi Url of the agent API
+     * @param path Path of the resource
+     * @return the url of the resource
+     */
+    private static String getUrl(final String agentApi, final String path) {
+        return agentApi + "/" + path;
+    }
+
+    /**
+     * Previous slash removal of the bean
+     * @param s a String url
+     * @return The String url without redundant forward slash
+     */
+    private static String removeRedundantForwardSlash(String s) {
+        return s.replaceAll("/+", "/").replaceAll(":/", "://");
+    }
+}
@@ -0,0 +1,287 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.benchmarks;
+
+import org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException;
+import org.ow2.jonas.jpaas.frontend.manager.api.IFrontendManager;
+import org.ow2.jonas.jpaas.sr.facade.vo.PaasFrontendVO;
+import org.ow2.jonas.jpaas.sr.facade.vo.VirtualHostVO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency of the frontend manager operations against an in-memory SR and an
+ * embedded stub agent, depending on the size of the frontend, on the number
+ * of routers of a vhost, on the latency of the agent and on the apply mode:
+ * one request per directive (rest) or whole-configuration push (push).
+ * Run with: java -jar benchmarks/target/benchmarks.jar FrontendManagerBenchmark
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Dfrontend.manager.reload.window=0"})
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class FrontendManagerBenchmark {
+
+    /**
+     * Name of the benchmarked frontend
+     */
+    private static final String FRONTEND_NAME = "bench";
+
+    /**
+     * A frontend manager, its SR and its agent
+     */
+    @State(Scope.Benchmark)
+    public static class FrontendState {
+
+        /**
+         * Number of vhosts of the frontend
+         */
+        @Param({"10", "1000", "10000"})
+        public int frontendSize;
+
+        /**
+         * Number of routers of a vhost
+         */
+        @Param({"1", "4"})
+        public int routerCount;
+
+        /**
+         * Latency of the agent, in milliseconds
+         */
+        @Param({"0", "2"})
+        public long agentLatency;
+
+        /**
+         * Apply mode of the frontend, rest or push
+         */
+        @Param({"rest", "push"})
+        public String applyMode;
+
+        /**
+         * The in-memory SR
+         */
+        InMemorySr sr;
+
+        /**
+         * The stub agent
+         */
+        StubAgent agent;
+
+        /**
+         * The frontend manager
+         */
+        FrontendManagerHarness harness;
+
+        /**
+         * Names of the routers of a vhost
+         */
+        List<String> routerNames;
+
+        /**
+         * Vhost name generator
+         */
+        final AtomicLong vhostNames = new AtomicLong();
+
+        /**
+         * Vhosts created by the current iteration
+         */
+        final List<String> createdVhosts = new ArrayList<String>();
+
+        /**
+         * Create the frontend
+         * @throws IOException if the agent cannot be started
+         */
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            sr = new InMemorySr();
+            routerNames = new ArrayList<String>();
+            for (int i = 0; i < routerCount; i++) {
+                sr.addRouter("router-" + i, "10.0.0." + (i + 1));
+                routerNames.add("router-" + i);
+            }
+            agent = new StubAgent(agentLatency, 32);
+            sr.addFrontend(newFrontend(FRONTEND_NAME, agent.getApiUrl(), frontendSize, routerCount));
+            harness = new FrontendManagerHarness(sr);
+            harness.getRuntime().getConfigurationPusher().setPushMode(FRONTEND_NAME, "push".equals(applyMode));
+        }
+
+        /**
+         * Remove the vhosts created by the iteration
+         * @throws FrontendManagerBeanException if a vhost cannot be removed
+         */
+        @TearDown(Level.Iteration)
+        public void removeCreatedVhosts() throws FrontendManagerBeanException {
+            if (!createdVhosts.isEmpty()) {
+                harness.getFrontendManager().removeVhosts(FRONTEND_NAME, createdVhosts);
+                createdVhosts.clear();
+            }
+        }
+
+        /**
+         * Stop the frontend manager and the agent
+         */
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            harness.stop();
+            agent.stop();
+        }
+
+        /**
+         * @return the frontend manager
+         */
+        IFrontendManager getFrontendManager() {
+            return harness.getFrontendManager();
+        }
+
+        /**
+         * @return a new vhost name
+         */
+        String nextVhostName() {
+            return "bench-" + vhostNames.incrementAndGet() + ".jpaas.org";
+        }
+    }
+
+    /**
+     * A vhost created before each removeVhost invocation
+     */
+    @State(Scope.Benchmark)
+    public static class VhostState {
+
+        /**
+         * Name of the vhost
+         */
+        String vhostName;
+
+        /**
+         * Create the vhost
+         * @param frontend the frontend
+         * @throws FrontendManagerBeanException if the vhost cannot be created
+         */
+        @Setup(Level.Invocation)
+        public void createVhost(FrontendState frontend) throws FrontendManagerBeanException {
+            vhostName = frontend.nextVhostName();
+            frontend.getFrontendManager().createVhost(FRONTEND_NAME, vhostName, frontend.routerNames);
+        }
+    }
+
+    /**
+     * A frontend stored in SR before each removeFrontend invocation
+     */
+    @State(Scope.Benchmark)
+    public static class RemovedFrontendState {
+
+        /**
+         * Frontend name generator
+         */
+        private final AtomicLong frontendNames = new AtomicLong();
+
+        /**
+         * Name of the frontend
+         */
+        String frontendName;
+
+        /**
+         * Store the frontend
+         * @param frontend the benchmarked frontend, giving the size of the new one
+         */
+        @Setup(Level.Invocation)
+        public void createFrontend(FrontendState frontend) {
+            frontendName = "removed-" + frontendNames.incrementAndGet();
+            frontend.sr.addFrontend(newFrontend(frontendName, frontend.agent.getApiUrl(), frontend.frontendSize,
+                    frontend.routerCount));
+        }
+    }
+
+    /**
+     * Create a vhost on all the routers
+     * @param frontend the frontend
+     * @throws FrontendManagerBeanException if the vhost cannot be created
+     */
+    @Benchmark
+    public void createVhost(FrontendState frontend) throws FrontendManagerBeanException {
+        String vhostName = frontend.nextVhostName();
+        frontend.getFrontendManager().createVhost(FRONTEND_NAME, vhostName, frontend.routerNames);
+        frontend.createdVhosts.add(vhostName);
+    }
+
+    /**
+     * Remove a vhost
+     * @param frontend the frontend
+     * @param vhost the vhost
+     * @throws FrontendManagerBeanException if the vhost cannot be removed
+     */
+    @Benchmark
+    public void removeVhost(FrontendState frontend, VhostState vhost) throws FrontendManagerBeanException {
+        frontend.getFrontendManager().removeVhost(FRONTEND_NAME, vhost.vhostName);
+    }
+
+    /**
+     * Remove a frontend
+     * @param frontend the benchmarked frontend
+     * @param removed the removed frontend
+     * @throws FrontendManagerBeanException if the frontend cannot be removed
+     */
+    @Benchmark
+    public void removeFrontend(FrontendState frontend, RemovedFrontendState removed)
+            throws FrontendManagerBeanException {
+        frontend.getFrontendManager().removeFrontend(removed.frontendName);
+    }
+
+    /**
+     * Build a frontend holding vhosts
+     * @param frontendName Name of the frontend
+     * @param apiUrl Url of the agent API
+     * @param size Number of vhosts
+     * @param routerCount Number of proxypass directives of each vhost
+     * @return the frontend
+     */
+    static PaasFrontendVO newFrontend(String frontendName, String apiUrl, int size, int routerCount) {
+        PaasFrontendVO paasFrontend = new PaasFrontendVO(frontendName, apiUrl, new LinkedList<VirtualHostVO>());
+        for (int i = 0; i < size; i++) {
+            String vhostName = "existing-" + i + ".jpaas.org";
+            VirtualHostVO virtualHost = new VirtualHostVO(vhostName, "1");
+            Map<String, String> proxyList = new Hashtable<String, String>();
+            for (int j = 0; j < routerCount; j++) {
+                proxyList.put(frontendName + "-" + i + "-" + j, "/existing-" + i + "/ http://10.0.0." + (j + 1) + "/");
+            }
+            virtualHost.setProxypassDirectives(proxyList);
+            paasFrontend.getVirtualHosts().add(virtualHost);
+        }
+        return paasFrontend;
+    }
+}
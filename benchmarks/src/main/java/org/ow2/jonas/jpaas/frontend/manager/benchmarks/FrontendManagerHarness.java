@@ -0,0 +1,172 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.benchmarks;
+
+import org.ow2.jonas.jpaas.frontend.manager.api.IFrontendManager;
+import org.ow2.jonas.jpaas.frontend.manager.bean.DaemonThreadFactory;
+import org.ow2.jonas.jpaas.frontend.manager.bean.FrontendManagerBean;
+import org.ow2.jonas.jpaas.frontend.manager.bean.FrontendRuntimeBean;
+import org.ow2.jonas.jpaas.frontend.manager.bean.IFrontendRuntime;
+import org.ow2.jonas.jpaas.frontend.manager.bean.ILocalFrontendManager;
+import org.ow2.jonas.jpaas.sr.facade.api.ISrPaasApacheJkRouterFacade;
+import org.ow2.jonas.jpaas.sr.facade.api.ISrPaasFrontendFacade;
+import org.ow2.jonas.jpaas.sr.facade.api.ISrPaasResourceIaasComputeLink;
+
+import javax.ejb.SessionContext;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Run the EJB frontend manager out of its container: the beans are
+ * instantiated and their resources injected the way EasyBeans would do it,
+ * against an in-memory SR.
+ */
+public class FrontendManagerHarness {
+
+    /**
+     * The runtime singleton
+     */
+    private final FrontendRuntimeBean runtime;
+
+    /**
+     * The frontend manager
+     */
+    private final FrontendManagerBean frontendManager;
+
+    /**
+     * Threads of the asynchronous invocations, standing for the container ones
+     */
+    private final ExecutorService asyncExecutor = Executors.newCachedThreadPool(
+            new DaemonThreadFactory("frontend-manager-harness-async"));
+
+    /**
+     * Local business object of the frontend manager
+     */
+    private final ILocalFrontendManager localView;
+
+    /**
+     * Constructor. The runtime is configured by the frontend.manager.* system
+     * properties, as in the container.
+     * @param sr the in-memory SR
+     */
+    public FrontendManagerHarness(InMemorySr sr) {
+        runtime = new FrontendRuntimeBean();
+        frontendManager = new FrontendManagerBean();
+        localView = newLocalView();
+        inject(runtime, ISrPaasFrontendFacade.class, sr.getFrontendFacade());
+        inject(runtime, ISrPaasApacheJkRouterFacade.class, sr.getRouterFacade());
+        inject(runtime, ISrPaasResourceIaasComputeLink.class, sr.getComputeLink());
+        // the journal applier calls the local view of the frontend manager
+        inject(runtime, ILocalFrontendManager.class, localView);
+        runtime.start();
+
+        inject(frontendManager, ISrPaasFrontendFacade.class, sr.getFrontendFacade());
+        inject(frontendManager, IFrontendRuntime.class, runtime);
+        inject(frontendManager, SessionContext.class, newSessionContext());
+    }
+
+    /**
+     * @return a local view calling the frontend manager, asynchronous invocations on the harness threads
+     */
+    private ILocalFrontendManager newLocalView() {
+        return (ILocalFrontendManager) Proxy.newProxyInstance(ILocalFrontendManager.class.getClassLoader(),
+                new Class<?>[] {ILocalFrontendManager.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if ("runAsynchronously".equals(method.getName())) {
+                            asyncExecutor.execute((Runnable) args[0]);
+                            return null;
+                        }
+                        try {
+                            return method.invoke(frontendManager, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+
+    /**
+     * @return a session context whose business object is the local view of the frontend manager
+     */
+    private SessionContext newSessionContext() {
+        return (SessionContext) Proxy.newProxyInstance(SessionContext.class.getClassLoader(),
+                new Class<?>[] {SessionContext.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if ("getBusinessObject".equals(method.getName())) {
+                            return localView;
+                        }
+                        throw new UnsupportedOperationException(method.getName()
+                                + " is not implemented by the harness");
+                    }
+                });
+    }
+
+    /**
+     * @return the frontend manager
+     */
+    public IFrontendManager getFrontendManager() {
+        return frontendManager;
+    }
+
+    /**
+     * @return the runtime singleton
+     */
+    public IFrontendRuntime getRuntime() {
+        return runtime;
+    }
+
+    /**
+     * Stop the runtime
+     */
+    public void stop() {
+        runtime.stop();
+        asyncExecutor.shutdownNow();
+    }
+
+    /**
+     * Set the fields of a given type of a bean
+     * @param bean the bean
+     * @param type the type of the fields
+     * @param value the injected value
+     */
+    private static <T> void inject(Object bean, Class<T> type, T value) {
+        boolean injected = false;
+        for (Class<?> c = bean.getClass(); c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (field.getType() == type) {
+                    field.setAccessible(true);
+                    try {
+                        field.set(bean, value);
+                    } catch (IllegalAccessException e) {
+                        throw new IllegalStateException("Cannot inject " + field, e);
+                    }
+                    injected = true;
+                }
+            }
+        }
+        if (!injected) {
+            throw new IllegalStateException("No field of type " + type.getName() + " in " + bean.getClass());
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.benchmarks;
+
+import org.ow2.jonas.jpaas.sr.facade.api.ISrPaasApacheJkRouterFacade;
+import org.ow2.jonas.jpaas.sr.facade.api.ISrPaasFrontendFacade;
+import org.ow2.jonas.jpaas.sr.facade.api.ISrPaasResourceIaasComputeLink;
+import org.ow2.jonas.jpaas.sr.facade.vo.ApacheJkVO;
+import org.ow2.jonas.jpaas.sr.facade.vo.IaasComputeVO;
+import org.ow2.jonas.jpaas.sr.facade.vo.PaasFrontendVO;
+import org.ow2.jonas.jpaas.sr.facade.vo.VirtualHostVO;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory implementation of the SR facades used by the frontend manager.
+ * The facades are dynamic proxies: the methods used by the frontend manager
+ * are implemented, the other ones throw an UnsupportedOperationException.
+ * Like the real SR, the frontends are copied when they are read or written.
+ * The writes are counted.
+ */
+public class InMemorySr {
+
+    /**
+     * Frontends by id
+     */
+    private final Map<String, PaasFrontendVO> frontends = new ConcurrentHashMap<String, PaasFrontendVO>();
+
+    /**
+     * Routers by name
+     */
+    private final Map<String, ApacheJkVO> routers = new ConcurrentHashMap<String, ApacheJkVO>();
+
+    /**
+     * IaaS computes by paas resource id
+     */
+    private final Map<String, IaasComputeVO> computes = new ConcurrentHashMap<String, IaasComputeVO>();
+
+    /**
+     * Id generator
+     */
+    private final AtomicLong ids = new AtomicLong();
+
+    /**
+     * Number of calls by facade method name
+     */
+    private final ConcurrentMap<String, AtomicLong> calls = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * Names of the facade methods writing to SR
+     */
+    private static final List<String> WRITE_METHODS = Arrays.asList("createFrontend", "updateFrontend",
+            "deleteFrontend", "removeVirtualHost");
+
+    /**
+     * Number of writes
+     */
+    private final AtomicLong writes = new AtomicLong();
+
+    /**
+     * @return the number of writes
+     */
+    public long getWrites() {
+        return writes.get();
+    }
+
+    /**
+     * Add a router hosted by a compute
+     * @param routerName Name of the router
+     * @param ipAddress IP address of the compute
+     */
+    public void addRouter(String routerName, String ipAddress) {
+        ApacheJkVO apacheJk = new ApacheJkVO();
+        apacheJk.setId(nextId());
+        apacheJk.setName(routerName);
+        IaasComputeVO iaasCompute = new IaasComputeVO();
+        iaasCompute.setIpAddress(ipAddress);
+        routers.put(routerName, apacheJk);
+        computes.put(apacheJk.getId(), iaasCompute);
+    }
+
+    /**
+     * Add a frontend directly to SR
+     * @param paasFrontend the frontend
+     * @return the stored frontend
+     */
+    public PaasFrontendVO addFrontend(PaasFrontendVO paasFrontend) {
+        PaasFrontendVO stored = copy(paasFrontend);
+        stored.setId(nextId());
+        frontends.put(stored.getId(), stored);
+        return copy(stored);
+    }
+
+    /**
+     * @param frontendName Name of a frontend
+     * @return the names of the stored vhosts of the frontend
+     */
+    public Set<String> getVhostNames(String frontendName) {
+        Set<String> vhostNames = new TreeSet<String>();
+        for (PaasFrontendVO paasFrontend : frontends.values()) {
+            if (paasFrontend.getName().equals(frontendName)) {
+                for (VirtualHostVO virtualHost : copy(paasFrontend).getVirtualHosts()) {
+                    vhostNames.add(virtualHost.getName());
+                }
+            }
+        }
+        return vhostNames;
+    }
+
+    /**
+     * @param methodName Name of a facade method
+     * @return the number of calls of the method
+     */
+    public long getCalls(String methodName) {
+        AtomicLong count = calls.get(methodName);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * @return the frontend facade
+     */
+    public ISrPaasFrontendFacade getFrontendFacade() {
+        return newFacade(ISrPaasFrontendFacade.class);
+    }
+
+    /**
+     * @return the router facade
+     */
+    public ISrPaasApacheJkRouterFacade getRouterFacade() {
+        return newFacade(ISrPaasApacheJkRouterFacade.class);
+    }
+
+    /**
+     * @return the paasResource - iaasCompute link facade
+     */
+    public ISrPaasResourceIaasComputeLink getComputeLink() {
+        return newFacade(ISrPaasResourceIaasComputeLink.class);
+    }
+
+    /**
+     * @param facadeClass Interface of the facade
+     * @return a facade backed by this SR
+     */
+    private <T> T newFacade(Class<T> facadeClass) {
+        return facadeClass.cast(Proxy.newProxyInstance(facadeClass.getClassLoader(), new Class<?>[] {facadeClass},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getDeclaringClass() == Object.class) {
+                            return method.invoke(this, args);
+                        }
+                        count(method.getName());
+                        if (WRITE_METHODS.contains(method.getName())) {
+                            writes.incrementAndGet();
+                        }
+                        return dispatch(method.getName(), args);
+                    }
+                }));
+    }
+
+    /**
+     * Run a facade method
+     * @param methodName Name of the method
+     * @param args Arguments of the method
+     * @return the result of the method
+     */
+    private Object dispatch(String methodName, Object[] args) {
+        if ("findFrontends".equals(methodName)) {
+            List<PaasFrontendVO> result = new ArrayList<PaasFrontendVO>();
+            for (PaasFrontendVO paasFrontend : frontends.values()) {
+                result.add(copy(paasFrontend));
+            }
+            return result;
+        } else if ("createFrontend".equals(methodName)) {
+            return addFrontend((PaasFrontendVO) args[0]);
+        } else if ("updateFrontend".equals(methodName)) {
+            PaasFrontendVO stored = copy((PaasFrontendVO) args[0]);
+            frontends.put(stored.getId(), stored);
+            return copy(stored);
+        } else if ("deleteFrontend".equals(methodName)) {
+            frontends.remove((String) args[0]);
+            return null;
+        } else if ("removeVirtualHost".equals(methodName)) {
+            // the stored frontends are replaced, not modified, so that they can be read concurrently
+            PaasFrontendVO stored = copy(getStoredFrontend((String) args[0]));
+            for (Iterator<VirtualHostVO> it = stored.getVirtualHosts().iterator(); it.hasNext(); ) {
+                if (it.next().getName().equals(args[1])) {
+                    it.remove();
+                }
+            }
+            frontends.put(stored.getId(), stored);
+            return null;
+        } else if ("findApacheJkRouters".equals(methodName)) {
+            return new ArrayList<ApacheJkVO>(routers.values());
+        } else if ("findIaasComputeByPaasResource".equals(methodName)) {
+            return computes.get((String) args[0]);
+        }
+        throw new UnsupportedOperationException(methodName + " is not implemented by the in-memory SR");
+    }
+
+    /**
+     * @param frontendId Id of a frontend
+     * @return the stored frontend
+     */
+    private PaasFrontendVO getStoredFrontend(String frontendId) {
+        PaasFrontendVO stored = frontends.get(frontendId);
+        if (stored == null) {
+            throw new IllegalArgumentException("Frontend " + frontendId + " doesn't exist");
+        }
+        return stored;
+    }
+
+    /**
+     * @param methodName Name of a facade method
+     */
+    private void count(String methodName) {
+        AtomicLong count = calls.get(methodName);
+        if (count == null) {
+            count = new AtomicLong();
+            AtomicLong existing = calls.putIfAbsent(methodName, count);
+            if (existing != null) {
+                count = existing;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * @return a new id
+     */
+    private String nextId() {
+        return String.valueOf(ids.incrementAndGet());
+    }
+
+    /**
+     * @param paasFrontend a frontend
+     * @return a copy of the frontend, of its vhosts and of their directives, as a remote SR would return
+     */
+    private static PaasFrontendVO copy(PaasFrontendVO paasFrontend) {
+        List<VirtualHostVO> virtualHosts = new LinkedList<VirtualHostVO>();
+        for (VirtualHostVO virtualHost : paasFrontend.getVirtualHosts()) {
+            virtualHosts.add(copy(virtualHost));
+        }
+        PaasFrontendVO copy = new PaasFrontendVO(paasFrontend.getName(), paasFrontend.getApiUrl(), virtualHosts);
+        copy.setId(paasFrontend.getId());
+        return copy;
+    }
+
+    /**
+     * @param virtualHost a vhost
+     * @return a copy of the vhost and of its directives
+     */
+    private static VirtualHostVO copy(VirtualHostVO virtualHost) {
+        VirtualHostVO copy = new VirtualHostVO(virtualHost.getName(), virtualHost.getVhostId());
+        if (virtualHost.getProxypassDirectives() != null) {
+            copy.setProxypassDirectives(new Hashtable<String, String>(virtualHost.getProxypassDirectives()));
+        }
+        return copy;
+    }
+}
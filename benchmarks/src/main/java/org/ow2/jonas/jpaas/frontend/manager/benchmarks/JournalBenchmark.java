@@ -0,0 +1,164 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.benchmarks;
+
+import org.ow2.jonas.jpaas.frontend.manager.bean.OperationJournal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput of the operation journal: durable appends of createVhost
+ * operations, alone and followed by their completion, from one thread and
+ * from several threads sharing the forces of the journal file. With sync
+ * disabled the appends are only written to the mapped pages.
+ * Run with: java -jar benchmarks/target/benchmarks.jar JournalBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class JournalBenchmark {
+
+    /**
+     * Target router list of the journaled vhosts
+     */
+    private static final List<String> ROUTER_NAMES = Arrays.asList("router-0", "router-1");
+
+    /**
+     * A journal in a temporary directory
+     */
+    @State(Scope.Benchmark)
+    public static class JournalState {
+
+        /**
+         * True if the appends are forced to the disk
+         */
+        @Param({"true", "false"})
+        public boolean sync;
+
+        /**
+         * Size of the journal file, in bytes
+         */
+        @Param({"16777216"})
+        public int size;
+
+        /**
+         * Directory of the journal
+         */
+        File directory;
+
+        /**
+         * The journal
+         */
+        OperationJournal journal;
+
+        /**
+         * Vhost name generator
+         */
+        final AtomicLong vhostNames = new AtomicLong();
+
+        /**
+         * Open the journal
+         * @throws IOException if the journal cannot be created
+         */
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            directory = File.createTempFile("journal", "");
+            if (!directory.delete() || !directory.mkdir()) {
+                throw new IOException("Cannot create the directory " + directory);
+            }
+            journal = new OperationJournal(directory, size, sync);
+        }
+
+        /**
+         * Report the forces and delete the journal
+         */
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            journal.close();
+            System.out.println("appended=" + journal.getAppendedEntries() + " forces=" + journal.getForces()
+                    + " compactions=" + journal.getCompactions());
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+
+        /**
+         * @return a new vhost name
+         */
+        String nextVhostName() {
+            return "bench-" + vhostNames.incrementAndGet() + ".jpaas.org";
+        }
+    }
+
+    /**
+     * Append an operation, left pending
+     * @param state the journal
+     * @return the journaled operation
+     * @throws IOException if the operation cannot be written
+     */
+    @Benchmark
+    public OperationJournal.Entry append(JournalState state) throws IOException {
+        return state.journal.append(OperationJournal.Type.CREATE_VHOST, "bench", state.nextVhostName(),
+                ROUTER_NAMES);
+    }
+
+    /**
+     * Append an operation and complete it, as the applier does
+     * @param state the journal
+     * @throws IOException if the operation cannot be written
+     */
+    @Benchmark
+    public void appendAndComplete(JournalState state) throws IOException {
+        state.journal.complete(append(state));
+    }
+
+    /**
+     * Append and complete operations from several threads
+     * @param state the journal
+     * @throws IOException if the operation cannot be written
+     */
+    @Benchmark
+    @Threads(8)
+    public void appendAndCompleteConcurrent(JournalState state) throws IOException {
+        state.journal.complete(append(state));
+    }
+}
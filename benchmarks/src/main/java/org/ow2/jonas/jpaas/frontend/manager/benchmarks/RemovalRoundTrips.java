@@ -0,0 +1,102 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.benchmarks;
+
+import org.ow2.jonas.jpaas.frontend.manager.api.IFrontendManager;
+import org.ow2.jonas.jpaas.sr.facade.vo.PaasFrontendVO;
+import org.ow2.jonas.jpaas.sr.facade.vo.VirtualHostVO;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Measure the duration of removeVhost, in agent round trips, as the number
+ * of directives of the vhost grows: each vhost targets as many routers as it
+ * has proxypass directives, and the stub agent answers every request after
+ * a fixed latency. The directive deletions of a vhost are sent concurrently,
+ * so a removal takes about one round trip whatever its number of directives,
+ * instead of one round trip per directive.
+ *
+ * Configuration (system properties):
+ * <ul>
+ *   <li>removal.directives: comma separated directive counts (1,2,4,8,16,32)</li>
+ *   <li>removal.operations: number of vhosts removed for each directive count (10)</li>
+ *   <li>removal.latency: latency of the stub agent, in milliseconds (50)</li>
+ * </ul>
+ *
+ * Run with: java -cp benchmarks/target/benchmarks.jar
+ *           org.ow2.jonas.jpaas.frontend.manager.benchmarks.RemovalRoundTrips
+ */
+public class RemovalRoundTrips {
+
+    /**
+     * Name of the measured frontend
+     */
+    private static final String FRONTEND_NAME = "removal";
+
+    /**
+     * Run the measure
+     * @param args unused
+     * @throws Exception if the measure cannot run
+     */
+    public static void main(String[] args) throws Exception {
+        List<String> directiveCounts = Arrays.asList(System.getProperty("removal.directives", "1,2,4,8,16,32")
+                .split(","));
+        int operations = Integer.getInteger("removal.operations", 10);
+        long latency = Long.getLong("removal.latency", 50L);
+        // one ProxyPass per router, no wait for the reload, enough connections for the largest vhost
+        System.setProperty("frontend.manager.balancer", "false");
+        System.setProperty("frontend.manager.reload.wait", "false");
+        System.setProperty("frontend.manager.agent.connections", "32");
+        System.setProperty("frontend.manager.agent.threads", "32");
+
+        System.out.println("directives | DELETEs/op | ms/op | round trips/op | sequential round trips");
+        for (String directiveCount : directiveCounts) {
+            int count = Integer.parseInt(directiveCount.trim());
+            InMemorySr sr = new InMemorySr();
+            List<String> routerNames = new ArrayList<String>();
+            for (int i = 0; i < count; i++) {
+                sr.addRouter("router-" + i, "10.0." + (i / 250) + "." + (i % 250 + 1));
+                routerNames.add("router-" + i);
+            }
+            StubAgent agent = new StubAgent(0, 64);
+            sr.addFrontend(new PaasFrontendVO(FRONTEND_NAME, agent.getApiUrl(), new LinkedList<VirtualHostVO>()));
+            FrontendManagerHarness harness = new FrontendManagerHarness(sr);
+            try {
+                IFrontendManager frontendManager = harness.getFrontendManager();
+                for (int i = 0; i < operations; i++) {
+                    frontendManager.createVhost(FRONTEND_NAME, "removal-" + i + ".jpaas.org", routerNames);
+                }
+
+                agent.setLatency(latency);
+                agent.resetCalls();
+                long start = System.nanoTime();
+                for (int i = 0; i < operations; i++) {
+                    frontendManager.removeVhost(FRONTEND_NAME, "removal-" + i + ".jpaas.org");
+                }
+                double millis = (System.nanoTime() - start) / 1e6 / operations;
+                System.out.println(String.format("%10d | %10.2f | %5.1f | %14.2f | %22d", count,
+                        (double) agent.getCalls(StubAgent.Call.REMOVE_PROXYPASS) / operations, millis,
+                        millis / latency, count));
+            } finally {
+                harness.stop();
+                agent.stop();
+            }
+        }
+    }
+}
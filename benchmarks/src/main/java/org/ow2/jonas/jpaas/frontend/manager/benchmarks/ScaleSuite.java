@@ -0,0 +1,279 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.benchmarks;
+
+import org.ow2.jonas.jpaas.frontend.manager.api.IFrontendManager;
+import org.ow2.jonas.jpaas.frontend.manager.api.OperationResult;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scale test of the EJB frontend manager: thousands of vhosts are created
+ * then removed concurrently across many frontends, each frontend having its
+ * own stub agent. The suite reports the throughput, the p50/p99 latencies
+ * and the number of agent and SR calls of each phase.
+ *
+ * Configuration (system properties):
+ * <ul>
+ *   <li>scale.frontends: number of frontends (10)</li>
+ *   <li>scale.vhosts: number of vhosts over all the frontends (5000)</li>
+ *   <li>scale.routers: number of routers of a vhost (2)</li>
+ *   <li>scale.threads: number of concurrent clients (32)</li>
+ *   <li>scale.agent.latency: latency of an agent request in milliseconds (2)</li>
+ *   <li>scale.agent.errorRate: ratio of failing agent requests (0)</li>
+ *   <li>scale.agent.reloadDuration: duration of a reload in milliseconds (50)</li>
+ * </ul>
+ * The frontend.manager.* properties configure the frontend manager as in the container.
+ *
+ * Run with: java -cp benchmarks/target/benchmarks.jar
+ *           org.ow2.jonas.jpaas.frontend.manager.benchmarks.ScaleSuite
+ */
+public class ScaleSuite {
+
+    /**
+     * Number of frontends
+     */
+    private final int frontendCount = Integer.getInteger("scale.frontends", 10);
+
+    /**
+     * Number of vhosts over all the frontends
+     */
+    private final int vhostCount = Integer.getInteger("scale.vhosts", 5000);
+
+    /**
+     * Number of routers of a vhost
+     */
+    private final int routerCount = Integer.getInteger("scale.routers", 2);
+
+    /**
+     * Number of concurrent clients
+     */
+    private final int threads = Integer.getInteger("scale.threads", 32);
+
+    /**
+     * The in-memory SR
+     */
+    private final InMemorySr sr = new InMemorySr();
+
+    /**
+     * The stub agents, one per frontend
+     */
+    private final List<StubAgent> agents = new ArrayList<StubAgent>();
+
+    /**
+     * Names of the routers of a vhost
+     */
+    private final List<String> routerNames = new ArrayList<String>();
+
+    /**
+     * The frontend manager
+     */
+    private FrontendManagerHarness harness;
+
+    /**
+     * Run the suite
+     * @param args unused
+     * @throws Exception if the suite cannot run
+     */
+    public static void main(String[] args) throws Exception {
+        new ScaleSuite().run();
+    }
+
+    /**
+     * Run the suite
+     * @throws Exception if the suite cannot run
+     */
+    public void run() throws Exception {
+        setUp();
+        ExecutorService clients = Executors.newFixedThreadPool(threads);
+        try {
+            System.out.println("Scale suite: " + frontendCount + " frontend(s), " + vhostCount + " vhost(s), "
+                    + routerCount + " router(s) per vhost, " + threads + " client(s)");
+            runPhase("createVhost", clients, new VhostOperation() {
+                @Override
+                public OperationResult run(IFrontendManager frontendManager, String frontendName, String vhostName)
+                        throws Exception {
+                    frontendManager.createVhost(frontendName, vhostName, routerNames);
+                    return OperationResult.success(vhostName);
+                }
+            });
+            runPhase("removeVhost", clients, new VhostOperation() {
+                @Override
+                public OperationResult run(IFrontendManager frontendManager, String frontendName, String vhostName)
+                        throws Exception {
+                    frontendManager.removeVhost(frontendName, vhostName);
+                    return OperationResult.success(vhostName);
+                }
+            });
+        } finally {
+            clients.shutdownNow();
+            tearDown();
+        }
+    }
+
+    /**
+     * Create the routers, the agents and the frontends
+     * @throws Exception if an agent or a frontend cannot be created
+     */
+    private void setUp() throws Exception {
+        for (int i = 0; i < routerCount; i++) {
+            sr.addRouter("router-" + i, "10.0.0." + (i + 1));
+            routerNames.add("router-" + i);
+        }
+        harness = new FrontendManagerHarness(sr);
+        for (int i = 0; i < frontendCount; i++) {
+            StubAgent agent = new StubAgent(Long.getLong("scale.agent.latency", 2L), 8);
+            agent.setErrorRate(Double.parseDouble(System.getProperty("scale.agent.errorRate", "0")));
+            agent.setReloadDuration(Long.getLong("scale.agent.reloadDuration", 50L));
+            agents.add(agent);
+            harness.getFrontendManager().createFrontend(getFrontendName(i), agent.getApiUrl());
+        }
+    }
+
+    /**
+     * Stop the frontend manager and the agents
+     */
+    private void tearDown() {
+        if (harness != null) {
+            harness.stop();
+        }
+        for (StubAgent agent : agents) {
+            agent.stop();
+        }
+    }
+
+    /**
+     * Run an operation on all the vhosts and report the results
+     * @param phaseName Name of the phase
+     * @param clients the concurrent clients
+     * @param operation the operation
+     * @throws Exception if the phase cannot run
+     */
+    private void runPhase(String phaseName, ExecutorService clients, final VhostOperation operation)
+            throws Exception {
+        for (StubAgent agent : agents) {
+            agent.resetCalls();
+        }
+        long srCalls = getSrCalls();
+
+        final long[] latencies = new long[vhostCount];
+        final AtomicLong failures = new AtomicLong();
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < vhostCount; i++) {
+            final int index = i;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    String frontendName = getFrontendName(index % frontendCount);
+                    String vhostName = "vhost-" + index + ".jpaas.org";
+                    long start = System.nanoTime();
+                    try {
+                        if (!operation.run(harness.getFrontendManager(), frontendName, vhostName).isSuccess()) {
+                            failures.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                    latencies[index] = System.nanoTime() - start;
+                    return null;
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        List<Future<Void>> results = clients.invokeAll(tasks);
+        long duration = System.nanoTime() - start;
+        for (Future<Void> result : results) {
+            result.get();
+        }
+
+        Arrays.sort(latencies);
+        System.out.println(String.format("%s: %d operation(s) in %.1f s, %.1f op/s, %d failure(s)", phaseName,
+                vhostCount, duration / 1e9, vhostCount / (duration / 1e9), failures.get()));
+        System.out.println(String.format("  latency p50=%.2f ms p99=%.2f ms max=%.2f ms",
+                percentile(latencies, 50) / 1e6, percentile(latencies, 99) / 1e6,
+                latencies[latencies.length - 1] / 1e6));
+        StringBuilder agentCalls = new StringBuilder("  agent calls:");
+        for (StubAgent.Call call : StubAgent.Call.values()) {
+            long count = 0;
+            for (StubAgent agent : agents) {
+                count += agent.getCalls(call);
+            }
+            agentCalls.append(' ').append(call.name()).append('=').append(count);
+        }
+        System.out.println(agentCalls);
+        System.out.println("  SR calls: " + (getSrCalls() - srCalls));
+        System.out.println(String.format("  reload coalescing ratio: %.1f",
+                harness.getRuntime().getReloadScheduler().getCoalescingRatio()));
+    }
+
+    /**
+     * @return the number of SR calls so far
+     */
+    private long getSrCalls() {
+        long count = 0;
+        for (String methodName : Arrays.asList("findFrontends", "findApacheJkRouters",
+                "findIaasComputeByPaasResource", "createFrontend", "updateFrontend", "deleteFrontend",
+                "removeVirtualHost")) {
+            count += sr.getCalls(methodName);
+        }
+        return count;
+    }
+
+    /**
+     * @param index Index of a frontend
+     * @return the name of the frontend
+     */
+    private static String getFrontendName(int index) {
+        return "frontend-" + index;
+    }
+
+    /**
+     * @param sorted sorted values
+     * @param percentile the percentile, between 0 and 100
+     * @return the value at the percentile
+     */
+    private static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(sorted.length * percentile / 100.0);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+
+    /**
+     * An operation on one vhost
+     */
+    private interface VhostOperation {
+
+        /**
+         * @param frontendManager the frontend manager
+         * @param frontendName Name of the frontend
+         * @param vhostName Name of the vhost
+         * @return the result of the operation
+         * @throws Exception if the operation fails
+         */
+        OperationResult run(IFrontendManager frontendManager, String frontendName, String vhostName)
+                throws Exception;
+    }
+}
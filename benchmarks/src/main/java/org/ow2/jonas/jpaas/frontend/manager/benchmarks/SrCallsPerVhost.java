@@ -0,0 +1,113 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.benchmarks;
+
+import org.ow2.jonas.jpaas.frontend.manager.api.IFrontendManager;
+import org.ow2.jonas.jpaas.sr.facade.vo.PaasFrontendVO;
+import org.ow2.jonas.jpaas.sr.facade.vo.VirtualHostVO;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Count the SR calls of createVhost as the number of target routers grows:
+ * for each router count, vhosts targeting all the routers are created one by
+ * one and the SR reads and writes are reported per operation. The first
+ * operation resolves the routers through the SR, the following ones are
+ * served by the topology view; in both cases the router list is read at most
+ * once per operation.
+ *
+ * Configuration (system properties):
+ * <ul>
+ *   <li>calls.routers: comma separated router counts (1,2,4,8,16,32)</li>
+ *   <li>calls.operations: number of vhosts created for each router count (50)</li>
+ * </ul>
+ *
+ * Run with: java -cp benchmarks/target/benchmarks.jar
+ *           org.ow2.jonas.jpaas.frontend.manager.benchmarks.SrCallsPerVhost
+ */
+public class SrCallsPerVhost {
+
+    /**
+     * Name of the measured frontend
+     */
+    private static final String FRONTEND_NAME = "calls";
+
+    /**
+     * SR methods reading the topology
+     */
+    private static final List<String> READ_METHODS = Arrays.asList("findFrontends", "findApacheJkRouters",
+            "findIaasComputeByPaasResource");
+
+    /**
+     * Run the measure
+     * @param args unused
+     * @throws Exception if the measure cannot run
+     */
+    public static void main(String[] args) throws Exception {
+        List<String> routerCounts = Arrays.asList(System.getProperty("calls.routers", "1,2,4,8,16,32").split(","));
+        int operations = Integer.getInteger("calls.operations", 50);
+
+        System.out.println("routers | first op: router lists | compute reads | steady: SR reads/op | SR writes/op");
+        for (String routerCount : routerCounts) {
+            int count = Integer.parseInt(routerCount.trim());
+            InMemorySr sr = new InMemorySr();
+            List<String> routerNames = new ArrayList<String>();
+            for (int i = 0; i < count; i++) {
+                sr.addRouter("router-" + i, "10.0." + (i / 250) + "." + (i % 250 + 1));
+                routerNames.add("router-" + i);
+            }
+            StubAgent agent = new StubAgent(0, 4);
+            sr.addFrontend(new PaasFrontendVO(FRONTEND_NAME, agent.getApiUrl(), new LinkedList<VirtualHostVO>()));
+            FrontendManagerHarness harness = new FrontendManagerHarness(sr);
+            try {
+                IFrontendManager frontendManager = harness.getFrontendManager();
+
+                long routerLists = sr.getCalls("findApacheJkRouters");
+                long computeReads = sr.getCalls("findIaasComputeByPaasResource");
+                frontendManager.createVhost(FRONTEND_NAME, "first.jpaas.org", routerNames);
+                routerLists = sr.getCalls("findApacheJkRouters") - routerLists;
+                computeReads = sr.getCalls("findIaasComputeByPaasResource") - computeReads;
+
+                long reads = getReads(sr);
+                long writes = sr.getWrites();
+                for (int i = 0; i < operations; i++) {
+                    frontendManager.createVhost(FRONTEND_NAME, "calls-" + i + ".jpaas.org", routerNames);
+                }
+                System.out.println(String.format("%7d | %22d | %13d | %19.2f | %12.2f", count, routerLists,
+                        computeReads, (double) (getReads(sr) - reads) / operations,
+                        (double) (sr.getWrites() - writes) / operations));
+            } finally {
+                harness.stop();
+                agent.stop();
+            }
+        }
+    }
+
+    /**
+     * @param sr the in-memory SR
+     * @return the number of SR reads so far
+     */
+    private static long getReads(InMemorySr sr) {
+        long reads = 0;
+        for (String methodName : READ_METHODS) {
+            reads += sr.getCalls(methodName);
+        }
+        return reads;
+    }
+}
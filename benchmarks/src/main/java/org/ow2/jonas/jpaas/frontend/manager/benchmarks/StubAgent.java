@@ -0,0 +1,470 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.benchmarks;
+
+import org.ow2.jonas.jpaas.apache.manager.util.api.xml.Directive;
+import org.ow2.jonas.jpaas.apache.manager.vhost.manager.api.xml.Vhost;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Embedded HTTP stub of the apache-manager agent. It implements the vhost,
+ * proxypass (list, creation, removal), configuration and reload resources
+ * used by the frontend manager, answers with the real Vhost and Directive
+ * XML types and adds a configurable latency to each request. A configurable
+ * ratio of the requests fails with an HTTP 500 error, and a reload takes a
+ * configurable time. The requests are counted by type, and the connections
+ * by client port.
+ */
+public class StubAgent {
+
+    /**
+     * Types of agent requests
+     */
+    public enum Call {
+        /** vhost creation */
+        CREATE_VHOST,
+        /** vhost removal */
+        REMOVE_VHOST,
+        /** proxypass directive listing */
+        LIST_PROXYPASS,
+        /** proxypass directive creation */
+        ADD_PROXYPASS,
+        /** proxypass directive removal */
+        REMOVE_PROXYPASS,
+        /** whole-configuration push */
+        PUSH_CONFIGURATION,
+        /** Apache reload */
+        RELOAD,
+        /** request answered with an injected error */
+        ERROR
+    }
+
+    /**
+     * Path of the vhost resources
+     */
+    private static final String VHOST_PATH = "/vhostmanager/vhost";
+
+    /**
+     * Path of the proxy resources of the vhosts
+     */
+    private static final String PROXY_VHOST_PATH = "/proxymanager/vhost/";
+
+    /**
+     * Path of the proxypass directives, relative to a vhost
+     */
+    private static final String PROXYPASS_PATH = "/proxypass";
+
+    /**
+     * Path of the whole-configuration resource
+     */
+    private static final String CONFIGURATION_PATH = "/apache-manager/server/configuration";
+
+    /**
+     * Path of the server reload action
+     */
+    private static final String RELOAD_PATH = "/apache-manager/server/action/reload";
+
+    /**
+     * The HTTP server
+     */
+    private final HttpServer server;
+
+    /**
+     * Threads of the HTTP server
+     */
+    private final ExecutorService executor;
+
+    /**
+     * JAXB context of the replies
+     */
+    private final JAXBContext jaxbContext;
+
+    /**
+     * Latency added to each request, in milliseconds
+     */
+    private volatile long latency;
+
+    /**
+     * Ratio of the requests failing with an HTTP 500 error, between 0 and 1
+     */
+    private volatile double errorRate;
+
+    /**
+     * Duration of a reload, in milliseconds
+     */
+    private volatile long reloadDuration;
+
+    /**
+     * Random generator of the injected errors
+     */
+    private final Random random = new Random();
+
+    /**
+     * Number of requests by type
+     */
+    private final AtomicLongArray calls = new AtomicLongArray(Call.values().length);
+
+    /**
+     * Client ports of the connections which sent requests
+     */
+    private final Set<Integer> connectionPorts =
+            Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+    /**
+     * Id generator of the vhosts and directives
+     */
+    private final AtomicLong ids = new AtomicLong();
+
+    /**
+     * Value of the proxypass directives by id
+     */
+    private final Map<Long, String> directives = new ConcurrentHashMap<Long, String>();
+
+    /**
+     * Vhost id of the proxypass directives by id
+     */
+    private final Map<Long, String> directiveVhosts = new ConcurrentHashMap<Long, String>();
+
+    /**
+     * Size of the last pushed configuration, in bytes
+     */
+    private volatile int configurationSize;
+
+    /**
+     * Constructor
+     * @param latency Latency added to each request, in milliseconds
+     * @param threads Number of threads serving the requests
+     * @throws IOException if the server cannot be started
+     */
+    public StubAgent(long latency, int threads) throws IOException {
+        this.latency = latency;
+        try {
+            this.jaxbContext = JAXBContext.newInstance(Vhost.class, Directive.class);
+        } catch (JAXBException e) {
+            throw new IOException("Cannot create the JAXB context: " + e.getMessage());
+        }
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    StubAgent.this.handle(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * @return Url of the agent API
+     */
+    public String getApiUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    /**
+     * @param latency Latency added to each request, in milliseconds
+     */
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * @param errorRate Ratio of the requests failing with an HTTP 500 error, between 0 and 1
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * @param reloadDuration Duration of a reload, in milliseconds
+     */
+    public void setReloadDuration(long reloadDuration) {
+        this.reloadDuration = reloadDuration;
+    }
+
+    /**
+     * @param call a request type
+     * @return the number of requests of this type
+     */
+    public long getCalls(Call call) {
+        return calls.get(call.ordinal());
+    }
+
+    /**
+     * @return the number of requests of all types
+     */
+    public long getTotalCalls() {
+        long total = 0;
+        for (int i = 0; i < calls.length(); i++) {
+            total += calls.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * @return the number of connections which sent requests, i.e. of distinct client ports
+     */
+    public int getConnectionCount() {
+        return connectionPorts.size();
+    }
+
+    /**
+     * Reset the request and connection counters
+     */
+    public void resetCalls() {
+        for (int i = 0; i < calls.length(); i++) {
+            calls.set(i, 0);
+        }
+        connectionPorts.clear();
+    }
+
+    /**
+     * @return the number of proxypass directives on the agent
+     */
+    public int getDirectiveCount() {
+        return directives.size();
+    }
+
+    /**
+     * @return the size of the last pushed configuration, in bytes
+     */
+    public int getConfigurationSize() {
+        return configurationSize;
+    }
+
+    /**
+     * Stop the server
+     */
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Serve a request
+     * @param exchange the request
+     * @throws IOException if the reply cannot be sent
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        connectionPorts.add(exchange.getRemoteAddress().getPort());
+        sleep(latency);
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+
+        if (errorRate > 0 && random.nextDouble() < errorRate) {
+            calls.incrementAndGet(Call.ERROR.ordinal());
+            reply(exchange, 500, null);
+            return;
+        }
+
+        if (path.equals(VHOST_PATH) && "POST".equals(method)) {
+            calls.incrementAndGet(Call.CREATE_VHOST.ordinal());
+            Vhost vhost = new Vhost();
+            vhost.setId(ids.incrementAndGet());
+            reply(exchange, 201, vhost);
+        } else if (path.startsWith(VHOST_PATH + "/") && "DELETE".equals(method)) {
+            calls.incrementAndGet(Call.REMOVE_VHOST.ordinal());
+            reply(exchange, 204, null);
+        } else if (path.startsWith(PROXY_VHOST_PATH) && path.endsWith(PROXYPASS_PATH) && "GET".equals(method)) {
+            calls.incrementAndGet(Call.LIST_PROXYPASS.ordinal());
+            String vhostId = path.substring(PROXY_VHOST_PATH.length(), path.length() - PROXYPASS_PATH.length());
+            List<Directive> list = new ArrayList<Directive>();
+            for (Map.Entry<Long, String> directiveVhost : directiveVhosts.entrySet()) {
+                String value = directives.get(directiveVhost.getKey());
+                if (vhostId.equals(directiveVhost.getValue()) && value != null) {
+                    Directive directive = new Directive();
+                    directive.setId(directiveVhost.getKey());
+                    directive.setValue(value);
+                    list.add(directive);
+                }
+            }
+            replyList(exchange, list);
+        } else if (path.startsWith(PROXY_VHOST_PATH) && path.endsWith(PROXYPASS_PATH) && "POST".equals(method)) {
+            calls.incrementAndGet(Call.ADD_PROXYPASS.ordinal());
+            Directive directive = new Directive();
+            directive.setId(ids.incrementAndGet());
+            directive.setValue(params.get("path") + " " + params.get("url"));
+            directives.put(directive.getId(), directive.getValue());
+            directiveVhosts.put(directive.getId(),
+                    path.substring(PROXY_VHOST_PATH.length(), path.length() - PROXYPASS_PATH.length()));
+            reply(exchange, 201, directive);
+        } else if (path.startsWith(PROXY_VHOST_PATH) && path.contains(PROXYPASS_PATH + "/")
+                && "DELETE".equals(method)) {
+            calls.incrementAndGet(Call.REMOVE_PROXYPASS.ordinal());
+            String directiveId = path.substring(path.lastIndexOf('/') + 1);
+            directiveVhosts.remove(Long.valueOf(directiveId));
+            if (directives.remove(Long.valueOf(directiveId)) == null) {
+                reply(exchange, 404, null);
+            } else {
+                reply(exchange, 204, null);
+            }
+        } else if (path.equals(CONFIGURATION_PATH) && "PUT".equals(method)) {
+            calls.incrementAndGet(Call.PUSH_CONFIGURATION.ordinal());
+            configurationSize = readBody(exchange);
+            reply(exchange, 204, null);
+        } else if (path.equals(RELOAD_PATH) && "POST".equals(method)) {
+            calls.incrementAndGet(Call.RELOAD.ordinal());
+            sleep(reloadDuration);
+            reply(exchange, 204, null);
+        } else {
+            reply(exchange, 404, null);
+        }
+    }
+
+    /**
+     * Read the content of a request
+     * @param exchange the request
+     * @return the size of the content, in bytes
+     * @throws IOException if the content cannot be read
+     */
+    private static int readBody(HttpExchange exchange) throws IOException {
+        InputStream body = exchange.getRequestBody();
+        byte[] buffer = new byte[8192];
+        int size = 0;
+        try {
+            for (int read = body.read(buffer); read >= 0; read = body.read(buffer)) {
+                size += read;
+            }
+        } finally {
+            body.close();
+        }
+        return size;
+    }
+
+    /**
+     * Send a reply
+     * @param exchange the request
+     * @param status HTTP status of the reply
+     * @param entity entity of the reply, null for none
+     * @throws IOException if the reply cannot be sent
+     */
+    private void reply(HttpExchange exchange, int status, Object entity) throws IOException {
+        if (entity == null) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try {
+            jaxbContext.createMarshaller().marshal(entity, content);
+        } catch (JAXBException e) {
+            throw new IOException("Cannot marshal the reply: " + e.getMessage());
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(status, content.size());
+        OutputStream body = exchange.getResponseBody();
+        content.writeTo(body);
+        body.close();
+    }
+
+    /**
+     * Send a list of directives, in the format read by the Jersey JAXB list
+     * provider: the directives wrapped in a "directives" element
+     * @param exchange the request
+     * @param list the directives
+     * @throws IOException if the reply cannot be sent
+     */
+    private void replyList(HttpExchange exchange, List<Directive> list) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try {
+            Marshaller marshaller = jaxbContext.createMarshaller();
+            marshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
+            content.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?><directives>"
+                    .getBytes("UTF-8"));
+            for (Directive directive : list) {
+                marshaller.marshal(directive, content);
+            }
+            content.write("</directives>".getBytes("UTF-8"));
+        } catch (JAXBException e) {
+            throw new IOException("Cannot marshal the reply: " + e.getMessage());
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(200, content.size());
+        OutputStream body = exchange.getResponseBody();
+        content.writeTo(body);
+        body.close();
+    }
+
+    /**
+     * @param query raw query of a request
+     * @return the parameters of the query
+     */
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<String, String>();
+        if (query == null) {
+            return params;
+        }
+        try {
+            for (String param : query.split("&")) {
+                int separator = param.indexOf('=');
+                if (separator > 0) {
+                    params.put(URLDecoder.decode(param.substring(0, separator), "UTF-8"),
+                            URLDecoder.decode(param.substring(separator + 1), "UTF-8"));
+                }
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return params;
+    }
+
+    /**
+     * @param millis time to sleep, in milliseconds
+     */
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
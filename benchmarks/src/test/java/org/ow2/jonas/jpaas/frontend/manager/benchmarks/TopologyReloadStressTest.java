@@ -0,0 +1,224 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.benchmarks;
+
+import org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException;
+import org.ow2.jonas.jpaas.frontend.manager.api.IFrontendManager;
+import org.ow2.jonas.jpaas.frontend.manager.common.TopologyView;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrency stress test of the EJB frontend manager, run out of its
+ * container against an in-memory SR and a stub agent: many threads create
+ * and remove vhosts on a few frontends while the topology view is reloaded
+ * and invalidated continuously, and every vhost created and not removed must
+ * be in SR at the end.
+ */
+public class TopologyReloadStressTest {
+
+    /**
+     * Number of frontends
+     */
+    private static final int FRONTENDS = 4;
+
+    /**
+     * Number of concurrent callers
+     */
+    private static final int THREADS = 16;
+
+    /**
+     * Number of vhosts created by a caller
+     */
+    private static final int VHOSTS_PER_THREAD = 30;
+
+    /**
+     * Routers of the vhosts
+     */
+    private static final List<String> ROUTERS = Arrays.asList("router-0", "router-1");
+
+    /**
+     * System properties set by the test
+     */
+    private static final List<String> PROPERTIES = Arrays.asList("frontend.manager.topology.ttl",
+            "frontend.manager.reload.wait");
+
+    /**
+     * The in-memory SR
+     */
+    private InMemorySr sr;
+
+    /**
+     * The stub agent of the frontends
+     */
+    private StubAgent agent;
+
+    /**
+     * The EJB frontend manager out of its container
+     */
+    private FrontendManagerHarness harness;
+
+    /**
+     * The concurrent callers and the reloader
+     */
+    private ExecutorService executor;
+
+    /**
+     * Start a frontend manager whose topology expires after a millisecond
+     * @throws Exception if the frontend manager cannot start
+     */
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty("frontend.manager.topology.ttl", "1");
+        System.setProperty("frontend.manager.reload.wait", "false");
+        sr = new InMemorySr();
+        for (int i = 0; i < ROUTERS.size(); i++) {
+            sr.addRouter(ROUTERS.get(i), "10.0.0." + (i + 1));
+        }
+        agent = new StubAgent(0, THREADS);
+        harness = new FrontendManagerHarness(sr);
+        for (int i = 0; i < FRONTENDS; i++) {
+            harness.getFrontendManager().createFrontend(getFrontendName(i), agent.getApiUrl());
+        }
+        executor = Executors.newFixedThreadPool(THREADS + 1);
+    }
+
+    /**
+     * Stop the frontend manager, the agent and the callers
+     */
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        harness.stop();
+        agent.stop();
+        for (String property : PROPERTIES) {
+            System.clearProperty(property);
+        }
+    }
+
+    /**
+     * Creations and removals racing with the topology reloads must leave
+     * exactly the vhosts which were created and not removed
+     * @throws Exception if an operation fails
+     */
+    @Test(timeout = 180000L)
+    public void testReloadsDuringWritesLoseNoVhost() throws Exception {
+        final IFrontendManager frontendManager = harness.getFrontendManager();
+        final Map<String, Set<String>> expected = new HashMap<String, Set<String>>();
+        for (int i = 0; i < FRONTENDS; i++) {
+            expected.put(getFrontendName(i), Collections.synchronizedSet(new TreeSet<String>()));
+        }
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong reloads = new AtomicLong();
+        Future<Void> reloader = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                TopologyView topology = harness.getRuntime().getTopology();
+                for (int i = 0; running.get(); i++) {
+                    if (i % 2 == 0) {
+                        topology.invalidateAll();
+                        topology.getFrontendNames();
+                    } else {
+                        topology.invalidate(getFrontendName(i % FRONTENDS));
+                    }
+                    reloads.incrementAndGet();
+                }
+                return null;
+            }
+        });
+
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Void>> callers = new ArrayList<Future<Void>>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            callers.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    for (int i = 0; i < VHOSTS_PER_THREAD; i++) {
+                        String frontendName = getFrontendName((thread + i) % FRONTENDS);
+                        String vhostName = "app-" + thread + "-" + i + ".jpaas.org";
+                        frontendManager.createVhost(frontendName, vhostName, ROUTERS);
+                        if (i % 3 == 0) {
+                            frontendManager.removeVhost(frontendName, vhostName);
+                        } else {
+                            expected.get(frontendName).add(vhostName);
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        try {
+            for (Future<Void> caller : callers) {
+                caller.get(120, TimeUnit.SECONDS);
+            }
+        } finally {
+            running.set(false);
+        }
+        reloader.get(10, TimeUnit.SECONDS);
+
+        Assert.assertTrue("The topology was not reloaded during the writes", reloads.get() > 0);
+        for (Map.Entry<String, Set<String>> entry : expected.entrySet()) {
+            String frontendName = entry.getKey();
+            Assert.assertEquals("Vhosts of " + frontendName + " in SR", entry.getValue(),
+                    sr.getVhostNames(frontendName));
+            Assert.assertEquals("Vhosts of " + frontendName + " listed", entry.getValue(),
+                    listVhosts(frontendManager, frontendName));
+        }
+    }
+
+    /**
+     * @param frontendManager the frontend manager
+     * @param frontendName Name of a frontend
+     * @return the vhosts listed by the frontend manager
+     * @throws FrontendManagerBeanException if the vhosts cannot be listed
+     */
+    private static Set<String> listVhosts(IFrontendManager frontendManager, String frontendName)
+            throws FrontendManagerBeanException {
+        return new TreeSet<String>(frontendManager.listVhosts(frontendName, null, THREADS * VHOSTS_PER_THREAD)
+                .getVhostNames());
+    }
+
+    /**
+     * @param index index of a frontend
+     * @return the name of the frontend
+     */
+    private static String getFrontendName(int index) {
+        return "frontend-" + index;
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.common;
+
+import org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped locks linearizing the operations on a frontend. Operations on
+ * frontends mapped to different stripes run in parallel.
+ */
+public class FrontendLocks {
+
+    /**
+     * Default number of stripes
+     */
+    public static final int DEFAULT_STRIPES = 64;
+
+    /**
+     * The stripes
+     */
+    private final Lock[] locks;
+
+    /**
+     * Constructor
+     * @param stripes Number of stripes
+     */
+    public FrontendLocks(int stripes) {
+        locks = new Lock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Lock a frontend. The caller must unlock the returned lock.
+     * @param frontendName Name of the frontend
+     * @return the acquired lock
+     * @throws FrontendManagerBeanException if interrupted while waiting for the lock
+     */
+    public Lock lock(String frontendName) throws FrontendManagerBeanException {
+        Lock lock = locks[(frontendName.hashCode() & Integer.MAX_VALUE) % locks.length];
+        try {
+            lock.lockInterruptibly();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FrontendManagerBeanException("Interrupted while waiting for the frontend '"
+                    + frontendName + "'", e);
+        }
+        return lock;
+    }
+}
@@ -0,0 +1,952 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.common;
+
+import org.ow2.jonas.jpaas.sr.facade.api.ISrPaasApacheJkRouterFacade;
+import org.ow2.jonas.jpaas.sr.facade.api.ISrPaasFrontendFacade;
+import org.ow2.jonas.jpaas.sr.facade.api.ISrPaasResourceIaasComputeLink;
+import org.ow2.jonas.jpaas.sr.facade.vo.ApacheJkVO;
+import org.ow2.jonas.jpaas.sr.facade.vo.IaasComputeVO;
+import org.ow2.jonas.jpaas.sr.facade.vo.PaasFrontendVO;
+import org.ow2.jonas.jpaas.sr.facade.vo.VirtualHostVO;
+import org.ow2.util.log.Log;
+import org.ow2.util.log.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory view of the SR topology used by the frontend manager.
+ * Frontends, routers and computes are indexed by name (resp. resource id) so
+ * that the provisioning hot path does not need to list the whole SR content
+ * for each operation. The view is loaded once, kept up to date by the
+ * frontend manager own writes and reloaded when its TTL expires or when it is
+ * explicitly invalidated. The cached frontends are shared by the concurrent
+ * operations: a change is made on a copy, which replaces the cached frontend
+ * once written to SR.
+ *
+ * A reload is merged into the cached frontends: a frontend written, removed
+ * or invalidated while the SR content was read keeps its cached state, so that
+ * a reload never publishes a frontend older than a write of this manager. A
+ * missing or invalidated frontend is refreshed alone, and the callers waiting
+ * for a load don't load again once it is done.
+ */
+public class TopologyView {
+
+    /**
+     * Default time to live of the cached SR content, in milliseconds
+     */
+    public static final long DEFAULT_TTL = 60000L;
+
+    /**
+     * Default time to live of the cached IaaS computes, in milliseconds
+     */
+    public static final long DEFAULT_COMPUTE_TTL = 10000L;
+
+    /**
+     * Default time during which a missing frontend is not looked up again, in milliseconds
+     */
+    public static final long DEFAULT_MISS_TTL = 5000L;
+
+    /**
+     * SR calls made by the view
+     */
+    public enum SrCall {
+        /** SR findFrontends */
+        FIND_FRONTENDS,
+        /** SR findApacheJkRouters */
+        FIND_ROUTERS,
+        /** SR findIaasComputeByPaasResource */
+        FIND_COMPUTE
+    }
+
+    /**
+     * Observer of the SR calls made by the view
+     */
+    public interface SrCallListener {
+
+        /**
+         * A SR call completed
+         * @param call the SR call
+         * @param start Start of the call, from System.nanoTime()
+         * @param success true if the call succeeded
+         */
+        void called(SrCall call, long start, boolean success);
+    }
+
+    /**
+     * The logger
+     */
+    private Log logger = LogFactory.getLog(TopologyView.class);
+
+    /**
+     * SR facade Frontend
+     */
+    private final ISrPaasFrontendFacade srPaasFrontendFacade;
+
+    /**
+     * SR facade router
+     */
+    private final ISrPaasApacheJkRouterFacade srApacheJkEjb;
+
+    /**
+     * SR facade paasResource - iaasCompute link
+     */
+    private final ISrPaasResourceIaasComputeLink srPaasResourceIaasComputeLink;
+
+    /**
+     * Observer of the SR calls, null if they are not observed
+     */
+    private final SrCallListener listener;
+
+    /**
+     * Time to live of the cached content, in milliseconds
+     */
+    private final long ttl;
+
+    /**
+     * Time to live of the cached IaaS computes, in milliseconds
+     */
+    private final long computeTtl;
+
+    /**
+     * Time during which a missing frontend is not looked up again, in milliseconds
+     */
+    private final long missTtl;
+
+    /**
+     * Frontends by name
+     */
+    private final ConcurrentMap<String, FrontendEntry> frontends = new ConcurrentHashMap<String, FrontendEntry>();
+
+    /**
+     * Serializes the loads of the frontends
+     */
+    private final Object frontendsLoadLock = new Object();
+
+    /**
+     * Guards the changes of the cached frontends, the write sequence and the write stamps
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * Sequence of the frontend changes and of the load starts
+     */
+    private long writeSequence;
+
+    /**
+     * Sequence number of the last change of each frontend since the last load, by name
+     */
+    private final Map<String, Long> writeStamps = new HashMap<String, Long>();
+
+    /**
+     * Date of the last frontend load, 0 if never loaded
+     */
+    private volatile long frontendsLoadDate;
+
+    /**
+     * Date at which each missing frontend was looked up, by name
+     */
+    private final ConcurrentMap<String, Long> missingFrontends = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Routers by name
+     */
+    private volatile Map<String, ApacheJkVO> routers = Collections.emptyMap();
+
+    /**
+     * Date of the last router load, 0 if never loaded
+     */
+    private volatile long routersLoadDate;
+
+    /**
+     * Serializes the loads of the routers
+     */
+    private final Object routersLoadLock = new Object();
+
+    /**
+     * IaaS computes by paas resource id
+     */
+    private final ConcurrentMap<String, CachedCompute> computes = new ConcurrentHashMap<String, CachedCompute>();
+
+    /**
+     * Constructor
+     * @param srPaasFrontendFacade SR facade Frontend
+     * @param srApacheJkEjb SR facade router
+     * @param srPaasResourceIaasComputeLink SR facade paasResource - iaasCompute link
+     * @param ttl time to live of the cached content, in milliseconds
+     * @param computeTtl time to live of the cached IaaS computes, in milliseconds
+     * @param missTtl time during which a missing frontend is not looked up again, in milliseconds
+     * @param listener Observer of the SR calls, null if they are not observed
+     */
+    public TopologyView(ISrPaasFrontendFacade srPaasFrontendFacade, ISrPaasApacheJkRouterFacade srApacheJkEjb,
+            ISrPaasResourceIaasComputeLink srPaasResourceIaasComputeLink, long ttl, long computeTtl, long missTtl,
+            SrCallListener listener) {
+        this.srPaasFrontendFacade = srPaasFrontendFacade;
+        this.srApacheJkEjb = srApacheJkEjb;
+        this.srPaasResourceIaasComputeLink = srPaasResourceIaasComputeLink;
+        this.listener = listener;
+        this.ttl = ttl;
+        this.computeTtl = computeTtl;
+        this.missTtl = missTtl;
+    }
+
+    /**
+     * Load the frontends and the routers from SR
+     */
+    public void warm() {
+        loadFrontends(frontendsLoadDate);
+        loadRouters(routersLoadDate);
+    }
+
+    /**
+     * Get a frontend by its name. The SR is only queried if the view is stale
+     * or if the frontend is not known yet, in which case only this frontend is
+     * refreshed; a frontend found missing is not looked up again before the
+     * miss TTL expires.
+     * @param frontendName Name of the frontend
+     * @return the frontend entry or null if the frontend doesn't exist
+     */
+    public FrontendEntry getFrontend(String frontendName) {
+        long loadDate = frontendsLoadDate;
+        if (isStale(loadDate)) {
+            loadFrontends(loadDate);
+        }
+        FrontendEntry entry = frontends.get(frontendName);
+        if (entry == null && !isMissing(frontendName)) {
+            // may have been created by another node, or invalidated
+            entry = loadFrontend(frontendName, false);
+        }
+        return entry;
+    }
+
+    /**
+     * Read all the frontends from SR again, e.g. at the start of a pass over
+     * the frontends, and merge them into the cached ones
+     * @return the names of the known frontends
+     */
+    public List<String> reloadFrontends() {
+        loadFrontends(frontendsLoadDate);
+        return new ArrayList<String>(frontends.keySet());
+    }
+
+    /**
+     * Read a frontend from SR again, e.g. before writing changes to it, so
+     * that the changes are merged with the state written by the other nodes.
+     * The cached frontend is replaced by the one read, unless it was changed
+     * during the read.
+     * @param frontendName Name of the frontend
+     * @return the frontend entry or null if the frontend doesn't exist
+     */
+    public FrontendEntry refreshFrontend(String frontendName) {
+        return loadFrontend(frontendName, true);
+    }
+
+    /**
+     * @return the names of the known frontends, the SR is only queried if the view is stale
+     */
+    public List<String> getFrontendNames() {
+        long loadDate = frontendsLoadDate;
+        if (isStale(loadDate)) {
+            loadFrontends(loadDate);
+        }
+        return new ArrayList<String>(frontends.keySet());
+    }
+
+    /**
+     * Record the new state of a frontend written to SR
+     * @param paasFrontend the frontend returned by SR
+     * @return the up to date frontend entry
+     */
+    public FrontendEntry updateFrontend(PaasFrontendVO paasFrontend) {
+        FrontendEntry entry = new FrontendEntry(paasFrontend);
+        synchronized (writeLock) {
+            frontends.put(paasFrontend.getName(), entry);
+            stamp(paasFrontend.getName());
+            missingFrontends.remove(paasFrontend.getName());
+        }
+        return entry;
+    }
+
+    /**
+     * Record vhost changes written to SR. The written frontend, a copy of the
+     * one of the entry, replaces it; the indexes of the frontend are updated
+     * incrementally when the entry is still the cached one.
+     * @param entry the entry the written frontend was copied from
+     * @param paasFrontend the written frontend, holding the changes
+     * @param addedVhosts Vhosts added to the frontend
+     * @param removedVhosts Names of the vhosts removed from the frontend, a vhost both
+     *        removed and added is replaced
+     */
+    public void applyChanges(FrontendEntry entry, PaasFrontendVO paasFrontend, Collection<VirtualHostVO> addedVhosts,
+            Collection<String> removedVhosts) {
+        synchronized (writeLock) {
+            if (frontends.get(paasFrontend.getName()) != entry) {
+                updateFrontend(paasFrontend);
+                return;
+            }
+            entry.apply(paasFrontend, addedVhosts, removedVhosts);
+            stamp(paasFrontend.getName());
+        }
+    }
+
+    /**
+     * Forget a frontend removed from SR
+     * @param frontendName Name of the frontend
+     */
+    public void removeFrontend(String frontendName) {
+        synchronized (writeLock) {
+            frontends.remove(frontendName);
+            stamp(frontendName);
+        }
+    }
+
+    /**
+     * Get a router by its name
+     * @param routerName Name of the router
+     * @return the router or null if the router doesn't exist
+     */
+    public ApacheJkVO getRouter(String routerName) {
+        long loadDate = routersLoadDate;
+        if (isStale(loadDate)) {
+            loadRouters(loadDate);
+        }
+        loadDate = routersLoadDate;
+        ApacheJkVO apacheJk = routers.get(routerName);
+        if (apacheJk == null) {
+            loadRouters(loadDate);
+            apacheJk = routers.get(routerName);
+        }
+        return apacheJk;
+    }
+
+    /**
+     * Get several routers by name. The SR router list is read at most once.
+     * @param routerNames Names of the routers
+     * @return the routers by name, unknown routers are missing from the map
+     */
+    public Map<String, ApacheJkVO> getRouters(Collection<String> routerNames) {
+        long loadDate = routersLoadDate;
+        if (isStale(loadDate) || !routers.keySet().containsAll(routerNames)) {
+            loadRouters(loadDate);
+        }
+        Map<String, ApacheJkVO> current = routers;
+        Map<String, ApacheJkVO> result = new HashMap<String, ApacheJkVO>();
+        for (String routerName : routerNames) {
+            ApacheJkVO apacheJk = current.get(routerName);
+            if (apacheJk != null) {
+                result.put(routerName, apacheJk);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the IaaS compute hosting a paas resource
+     * @param paasResourceId Id of the paas resource
+     * @return the IaaS compute or null if there is none
+     */
+    public IaasComputeVO getCompute(String paasResourceId) {
+        IaasComputeVO iaasCompute = getCachedCompute(paasResourceId);
+        if (iaasCompute == null) {
+            iaasCompute = loadCompute(paasResourceId);
+        }
+        return iaasCompute;
+    }
+
+    /**
+     * Get the IaaS compute hosting a paas resource without querying SR
+     * @param paasResourceId Id of the paas resource
+     * @return the IaaS compute or null if it is not cached or has expired
+     */
+    public IaasComputeVO getCachedCompute(String paasResourceId) {
+        CachedCompute cached = computes.get(paasResourceId);
+        if (cached == null || System.currentTimeMillis() - cached.loadDate > computeTtl) {
+            return null;
+        }
+        return cached.compute;
+    }
+
+    /**
+     * Read the IaaS compute hosting a paas resource from SR and cache it
+     * @param paasResourceId Id of the paas resource
+     * @return the IaaS compute or null if there is none
+     */
+    public IaasComputeVO loadCompute(String paasResourceId) {
+        IaasComputeVO iaasCompute;
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            iaasCompute = srPaasResourceIaasComputeLink.findIaasComputeByPaasResource(paasResourceId);
+            success = true;
+        } finally {
+            called(SrCall.FIND_COMPUTE, start, success);
+        }
+        if (iaasCompute == null) {
+            computes.remove(paasResourceId);
+        } else {
+            computes.put(paasResourceId, new CachedCompute(iaasCompute, System.currentTimeMillis()));
+        }
+        return iaasCompute;
+    }
+
+    /**
+     * Invalidate a frontend: it will be read again from SR on next access
+     * @param frontendName Name of the frontend
+     */
+    public void invalidate(String frontendName) {
+        synchronized (writeLock) {
+            frontends.remove(frontendName);
+            stamp(frontendName);
+            missingFrontends.remove(frontendName);
+        }
+    }
+
+    /**
+     * Invalidate the whole view
+     */
+    public void invalidateAll() {
+        frontendsLoadDate = 0;
+        routersLoadDate = 0;
+        computes.clear();
+        missingFrontends.clear();
+    }
+
+    /**
+     * @param loadDate date of the load
+     * @return true if content loaded at the given date has expired
+     */
+    private boolean isStale(long loadDate) {
+        return loadDate == 0 || System.currentTimeMillis() - loadDate > ttl;
+    }
+
+    /**
+     * @param frontendName Name of a frontend
+     * @return true if the frontend was found missing less than the miss TTL ago
+     */
+    private boolean isMissing(String frontendName) {
+        Long missDate = missingFrontends.get(frontendName);
+        if (missDate == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - missDate > missTtl) {
+            missingFrontends.remove(frontendName, missDate);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Notify the observer of a SR call
+     * @param call the SR call
+     * @param start Start of the call, from System.nanoTime()
+     * @param success true if the call succeeded
+     */
+    private void called(SrCall call, long start, boolean success) {
+        if (listener != null) {
+            listener.called(call, start, success);
+        }
+    }
+
+    /**
+     * Record a change of a cached frontend, the caller holds the write lock
+     * @param frontendName Name of the frontend
+     */
+    private void stamp(String frontendName) {
+        writeStamps.put(frontendName, ++writeSequence);
+    }
+
+    /**
+     * @return the sequence number of a load starting, the changes recorded
+     *         after it are kept by the load
+     */
+    private long startLoad() {
+        synchronized (writeLock) {
+            return ++writeSequence;
+        }
+    }
+
+    /**
+     * @param frontendName Name of a frontend
+     * @param loadStart Sequence number of a load start
+     * @return true if the frontend was changed after the start of the load,
+     *         the caller holds the write lock
+     */
+    private boolean isChangedSince(String frontendName, long loadStart) {
+        Long stamp = writeStamps.get(frontendName);
+        return stamp != null && stamp > loadStart;
+    }
+
+    /**
+     * Forget the changes recorded before the start of a load, the loads being
+     * serialized no other load needs them. The caller holds the write lock.
+     * @param loadStart Sequence number of the load start
+     */
+    private void pruneStamps(long loadStart) {
+        for (Iterator<Long> it = writeStamps.values().iterator(); it.hasNext(); ) {
+            if (it.next() <= loadStart) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return all the frontends of SR
+     */
+    private List<PaasFrontendVO> findFrontends() {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            List<PaasFrontendVO> frontendVOList = srPaasFrontendFacade.findFrontends();
+            success = true;
+            return frontendVOList;
+        } finally {
+            called(SrCall.FIND_FRONTENDS, start, success);
+        }
+    }
+
+    /**
+     * Load all the frontends from SR and merge them into the cached ones
+     * @param observedLoadDate date of the load the caller found stale
+     */
+    private void loadFrontends(long observedLoadDate) {
+        synchronized (frontendsLoadLock) {
+            if (frontendsLoadDate != observedLoadDate && !isStale(frontendsLoadDate)) {
+                // loaded by another caller meanwhile
+                return;
+            }
+            long loadStart = startLoad();
+            Map<String, FrontendEntry> loaded = new HashMap<String, FrontendEntry>();
+            for (PaasFrontendVO tmp : findFrontends()) {
+                loaded.put(tmp.getName(), new FrontendEntry(tmp));
+            }
+            synchronized (writeLock) {
+                for (Map.Entry<String, FrontendEntry> entry : loaded.entrySet()) {
+                    if (!isChangedSince(entry.getKey(), loadStart)) {
+                        frontends.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                for (Iterator<String> it = frontends.keySet().iterator(); it.hasNext(); ) {
+                    String frontendName = it.next();
+                    if (!loaded.containsKey(frontendName) && !isChangedSince(frontendName, loadStart)) {
+                        // removed by another node
+                        it.remove();
+                    }
+                }
+                pruneStamps(loadStart);
+            }
+            frontendsLoadDate = System.currentTimeMillis();
+            // the misses are looked up in the loaded frontends again
+            missingFrontends.clear();
+            logger.debug("Topology: " + loaded.size() + " frontend(s) loaded");
+        }
+    }
+
+    /**
+     * Refresh one frontend from SR. SR has no lookup by name: the frontend is
+     * picked from the SR listing, the other cached frontends are left as is.
+     * @param frontendName Name of the frontend
+     * @param always false to only read a frontend still unknown
+     * @return the frontend entry or null if the frontend doesn't exist
+     */
+    private FrontendEntry loadFrontend(String frontendName, boolean always) {
+        synchronized (frontendsLoadLock) {
+            FrontendEntry entry = frontends.get(frontendName);
+            if (!always && (entry != null || isMissing(frontendName))) {
+                // resolved by another caller meanwhile
+                return entry;
+            }
+            long loadStart = startLoad();
+            PaasFrontendVO paasFrontend = null;
+            for (PaasFrontendVO tmp : findFrontends()) {
+                if (frontendName.equals(tmp.getName())) {
+                    paasFrontend = tmp;
+                    break;
+                }
+            }
+            FrontendEntry loaded = paasFrontend == null ? null : new FrontendEntry(paasFrontend);
+            synchronized (writeLock) {
+                if (!isChangedSince(frontendName, loadStart)) {
+                    if (loaded != null) {
+                        frontends.put(frontendName, loaded);
+                    } else {
+                        frontends.remove(frontendName);
+                    }
+                }
+                pruneStamps(loadStart);
+                entry = frontends.get(frontendName);
+                if (entry == null) {
+                    missingFrontends.put(frontendName, System.currentTimeMillis());
+                }
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Load all the routers from SR
+     * @param observedLoadDate date of the load the caller found stale or incomplete
+     */
+    private void loadRouters(long observedLoadDate) {
+        synchronized (routersLoadLock) {
+            if (routersLoadDate != observedLoadDate && !isStale(routersLoadDate)) {
+                // loaded by another caller meanwhile
+                return;
+            }
+            List<ApacheJkVO> apacheJkVOList;
+            long start = System.nanoTime();
+            boolean success = false;
+            try {
+                apacheJkVOList = srApacheJkEjb.findApacheJkRouters();
+                success = true;
+            } finally {
+                called(SrCall.FIND_ROUTERS, start, success);
+            }
+            Map<String, ApacheJkVO> loaded = new HashMap<String, ApacheJkVO>();
+            for (ApacheJkVO tmp : apacheJkVOList) {
+                loaded.put(tmp.getName(), tmp);
+            }
+            routers = loaded;
+            routersLoadDate = System.currentTimeMillis();
+            logger.debug("Topology: " + loaded.size() + " router(s) loaded");
+        }
+    }
+
+    /**
+     * A frontend, its vhosts indexed by name and the ownership of its proxypass
+     * directives. Each vhost records the directive it owns on each router
+     * (vhost -> router address -> directive id), and each directive id records
+     * its owner vhost. The vhosts routed to each router address are indexed
+     * as well. The indexes are updated incrementally so that the cost
+     * of a vhost operation doesn't depend on the size of the frontend. The
+     * vhosts are kept in name order, so that they can be listed page by page
+     * without locking the frontend.
+     */
+    public static class FrontendEntry {
+
+        /**
+         * Scheme of the mod_proxy_balancer urls
+         */
+        private static final String BALANCER_SCHEME = "balancer://";
+
+        /**
+         * The frontend
+         */
+        private volatile PaasFrontendVO frontend;
+
+        /**
+         * Vhosts by name, in name order
+         */
+        private final ConcurrentNavigableMap<String, VirtualHostVO> vhosts =
+                new ConcurrentSkipListMap<String, VirtualHostVO>();
+
+        /**
+         * Number of vhosts
+         */
+        private final AtomicInteger vhostCount = new AtomicInteger();
+
+        /**
+         * Id of the proxypass directive owned by each vhost on each router, by
+         * vhost name and router address
+         */
+        private final ConcurrentMap<String, Map<String, String>> routes =
+                new ConcurrentHashMap<String, Map<String, String>>();
+
+        /**
+         * Name of the vhost owning each proxypass directive, by directive id
+         */
+        private final ConcurrentMap<String, String> directiveOwners = new ConcurrentHashMap<String, String>();
+
+        /**
+         * Names of the vhosts having a route to each router, by router address
+         */
+        private final ConcurrentMap<String, Set<String>> addressVhosts = new ConcurrentHashMap<String, Set<String>>();
+
+        /**
+         * Constructor
+         * @param frontend the frontend
+         */
+        public FrontendEntry(PaasFrontendVO frontend) {
+            this.frontend = frontend;
+            for (VirtualHostVO tmp : frontend.getVirtualHosts()) {
+                addVhost(tmp);
+            }
+        }
+
+        /**
+         * @return the cached frontend. It is shared by the concurrent operations
+         *         and must not be modified, see {@link #copyFrontend()}.
+         */
+        public PaasFrontendVO getFrontend() {
+            return frontend;
+        }
+
+        /**
+         * @return a copy of the frontend, to be changed and written to SR. The
+         *         vhosts are shared with the cached frontend: a changed vhost is
+         *         replaced by a new one.
+         */
+        public PaasFrontendVO copyFrontend() {
+            PaasFrontendVO current = frontend;
+            PaasFrontendVO copy = new PaasFrontendVO(current.getName(), current.getApiUrl(),
+                    new LinkedList<VirtualHostVO>(current.getVirtualHosts()));
+            copy.setId(current.getId());
+            return copy;
+        }
+
+        /**
+         * @param vhostName Name of the vhost
+         * @return the vhost or null if it doesn't exist
+         */
+        public VirtualHostVO getVhost(String vhostName) {
+            return vhosts.get(vhostName);
+        }
+
+        /**
+         * @return the number of vhosts of the frontend
+         */
+        public int getVhostCount() {
+            return vhostCount.get();
+        }
+
+        /**
+         * List the vhost names in name order
+         * @param after Name after which the list starts, null to start with the first vhost
+         * @param max Maximum number of names
+         * @return the vhost names
+         */
+        public List<String> getVhostNames(String after, int max) {
+            Collection<String> names = after == null ? vhosts.keySet() : vhosts.tailMap(after, false).keySet();
+            List<String> page = new ArrayList<String>(Math.min(max, 1024));
+            for (String vhostName : names) {
+                if (page.size() >= max) {
+                    break;
+                }
+                page.add(vhostName);
+            }
+            return page;
+        }
+
+        /**
+         * @param directiveId Id of a proxypass directive
+         * @return Name of the vhost owning the directive, null if the directive is unknown
+         */
+        public String getDirectiveOwner(String directiveId) {
+            return directiveOwners.get(directiveId);
+        }
+
+        /**
+         * @param vhostName Name of the vhost
+         * @return the id of the directive owned by the vhost on each router, by
+         *         router address. Empty if the vhost is unknown.
+         */
+        public Map<String, String> getRoutes(String vhostName) {
+            Map<String, String> vhostRoutes = routes.get(vhostName);
+            if (vhostRoutes == null) {
+                return Collections.emptyMap();
+            }
+            synchronized (vhostRoutes) {
+                return new HashMap<String, String>(vhostRoutes);
+            }
+        }
+
+        /**
+         * @return the addresses of the routers targeted by at least one vhost
+         */
+        public Set<String> getRoutedAddresses() {
+            Set<String> addresses = new HashSet<String>();
+            for (Map.Entry<String, Set<String>> address : addressVhosts.entrySet()) {
+                if (!address.getValue().isEmpty()) {
+                    addresses.add(address.getKey());
+                }
+            }
+            return addresses;
+        }
+
+        /**
+         * @param routerAddress Address of a router
+         * @return the names of the vhosts having a route to the router
+         */
+        public List<String> getRoutedVhosts(String routerAddress) {
+            Set<String> vhostNames = addressVhosts.get(routerAddress);
+            return vhostNames == null ? Collections.<String>emptyList() : new ArrayList<String>(vhostNames);
+        }
+
+        /**
+         * Index a vhost added to the frontend
+         * @param virtualHost the vhost
+         */
+        void addVhost(VirtualHostVO virtualHost) {
+            String vhostName = virtualHost.getName();
+            if (vhosts.put(vhostName, virtualHost) == null) {
+                vhostCount.incrementAndGet();
+            }
+            Map<String, String> vhostRoutes = new HashMap<String, String>();
+            Map<String, String> proxyList = virtualHost.getProxypassDirectives();
+            if (proxyList != null) {
+                for (Map.Entry<String, String> directive : proxyList.entrySet()) {
+                    String routerAddress = getRouterAddress(directive.getValue());
+                    // a directive whose target cannot be read, or which targets an already routed
+                    // router, is its own route, it is still owned by the vhost
+                    String route = routerAddress != null && !vhostRoutes.containsKey(routerAddress)
+                            ? routerAddress : directive.getKey();
+                    vhostRoutes.put(route, directive.getKey());
+                    directiveOwners.put(directive.getKey(), vhostName);
+                    if (routerAddress != null) {
+                        getAddressVhosts(routerAddress).add(vhostName);
+                    }
+                }
+            }
+            routes.put(vhostName, vhostRoutes);
+        }
+
+        /**
+         * Replace the frontend by its written copy and index the vhost changes
+         * @param paasFrontend the written frontend
+         * @param addedVhosts Vhosts added to the frontend
+         * @param removedVhosts Names of the vhosts removed from the frontend
+         */
+        void apply(PaasFrontendVO paasFrontend, Collection<VirtualHostVO> addedVhosts,
+                Collection<String> removedVhosts) {
+            for (String vhostName : removedVhosts) {
+                removeVhost(vhostName);
+            }
+            for (VirtualHostVO virtualHost : addedVhosts) {
+                addVhost(virtualHost);
+            }
+            frontend = paasFrontend;
+        }
+
+        /**
+         * @param routerAddress Address of a router
+         * @return the set of the vhosts routed to the router, created if needed
+         */
+        private Set<String> getAddressVhosts(String routerAddress) {
+            Set<String> vhostNames = addressVhosts.get(routerAddress);
+            if (vhostNames == null) {
+                vhostNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                Set<String> existing = addressVhosts.putIfAbsent(routerAddress, vhostNames);
+                if (existing != null) {
+                    vhostNames = existing;
+                }
+            }
+            return vhostNames;
+        }
+
+        /**
+         * Forget a vhost removed from the frontend
+         * @param vhostName Name of the vhost
+         */
+        void removeVhost(String vhostName) {
+            if (vhosts.remove(vhostName) != null) {
+                vhostCount.decrementAndGet();
+            }
+            Map<String, String> vhostRoutes = routes.remove(vhostName);
+            if (vhostRoutes != null) {
+                synchronized (vhostRoutes) {
+                    for (Map.Entry<String, String> route : vhostRoutes.entrySet()) {
+                        directiveOwners.remove(route.getValue(), vhostName);
+                        Set<String> vhostNames = addressVhosts.get(route.getKey());
+                        if (vhostNames != null) {
+                            vhostNames.remove(vhostName);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Read the router address targeted by a proxypass directive, the value
+         * of the directive being "path url", or by a balancer member, the
+         * value being "balancer url". The balancer urls don't target a router.
+         * The port is kept: routers sharing a host on different ports are
+         * different routes.
+         * @param directiveValue Value of the directive
+         * @return the host and the port of the url, null if it cannot be read
+         */
+        static String getRouterAddress(String directiveValue) {
+            if (directiveValue == null) {
+                return null;
+            }
+            int start = directiveValue.indexOf("://");
+            while (start >= 0 && isBalancerScheme(directiveValue, start)) {
+                start = directiveValue.indexOf("://", start + 3);
+            }
+            if (start < 0) {
+                return null;
+            }
+            start += 3;
+            int end = start;
+            while (end < directiveValue.length()) {
+                char c = directiveValue.charAt(end);
+                if (c == '/' || c == ' ') {
+                    break;
+                }
+                end++;
+            }
+            return end > start ? directiveValue.substring(start, end) : null;
+        }
+
+        /**
+         * @param url a directive value or url
+         * @param index position of a "://" separator in the url
+         * @return true if the separator ends a balancer scheme
+         */
+        private static boolean isBalancerScheme(String url, int index) {
+            int length = BALANCER_SCHEME.length() - 3;
+            return index >= length && url.regionMatches(index - length, BALANCER_SCHEME, 0, length);
+        }
+    }
+
+    /**
+     * A compute and its load date
+     */
+    private static class CachedCompute {
+
+        /**
+         * The compute
+         */
+        private final IaasComputeVO compute;
+
+        /**
+         * Date of the load
+         */
+        private final long loadDate;
+
+        /**
+         * Constructor
+         * @param compute the compute
+         * @param loadDate date of the load
+         */
+        public CachedCompute(IaasComputeVO compute, long loadDate) {
+            this.compute = compute;
+            this.loadDate = loadDate;
+        }
+    }
+}
@@ -0,0 +1,373 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.bean;
+
+import org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException;
+
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.GenericType;
+import com.sun.jersey.api.client.WebResource;
+import com.sun.jersey.api.client.config.ClientConfig;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * REST client of one Apache agent. The underlying Jersey client is created
+ * once and shared by all the requests sent to the agent, so that the HTTP
+ * connections are kept alive between requests. The number of concurrent
+ * requests (and so of open connections) to the agent is bounded. A request
+ * never outlives the deadline of its operation, and fails fast while the
+ * circuit breaker of the agent is open. Once destroyed, the client refuses
+ * new requests and the Jersey client is released with the last request in
+ * progress.
+ */
+public class AgentClient {
+
+    /**
+     * Http accepted status
+     */
+    private static final int HTTP_STATUS_ACCEPTED = 202;
+
+    /**
+     * Http Ok status
+     */
+    private static final int HTTP_STATUS_OK = 200;
+
+    /**
+     * Http no content status
+     */
+    private static final int HTTP_STATUS_NO_CONTENT = 204;
+
+    /**
+     * Http Created status
+     */
+    private static final int HTTP_STATUS_CREATED = 201;
+
+    /**
+     * Lowest Http server error status
+     */
+    private static final int HTTP_STATUS_SERVER_ERROR = 500;
+
+    /**
+     * REST request type
+     */
+    public enum REST_TYPE {
+        PUT, POST, GET, DELETE
+    }
+
+    /**
+     * Url of the agent API
+     */
+    private final String apiUrl;
+
+    /**
+     * The Jersey client
+     */
+    private final Client client;
+
+    /**
+     * Permits to open a connection to the agent
+     */
+    private final Semaphore connections;
+
+    /**
+     * Maximum number of concurrent connections to the agent
+     */
+    private final int maxConnections;
+
+    /**
+     * True once the client is destroyed
+     */
+    private volatile boolean closed;
+
+    /**
+     * True once the Jersey client is released
+     */
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    /**
+     * Read timeout of the requests, in milliseconds
+     */
+    private final int readTimeout;
+
+    /**
+     * Circuit breaker of the agent
+     */
+    private final CircuitBreaker breaker;
+
+    /**
+     * Constructor
+     * @param apiUrl Url of the agent API
+     * @param client The Jersey client of the agent
+     * @param maxConnections Maximum number of concurrent connections to the agent
+     * @param readTimeout Read timeout of the requests in milliseconds, 0 for none
+     * @param breaker Circuit breaker of the agent
+     */
+    public AgentClient(String apiUrl, Client client, int maxConnections, int readTimeout, CircuitBreaker breaker) {
+        this.apiUrl = apiUrl;
+        this.client = client;
+        this.connections = new Semaphore(maxConnections, true);
+        this.maxConnections = maxConnections;
+        this.readTimeout = readTimeout;
+        this.breaker = breaker;
+    }
+
+    /**
+     * @return the circuit breaker of the agent
+     */
+    public CircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    /**
+     * @return Url of the agent API
+     */
+    public String getApiUrl() {
+        return apiUrl;
+    }
+
+    /**
+     * Release the Jersey client and its connections, once the requests in
+     * progress complete
+     */
+    public void destroy() {
+        closed = true;
+        releaseIfIdle();
+    }
+
+    /**
+     * Release the Jersey client of a destroyed client if no request is in
+     * progress. A request takes its connection permit before checking that
+     * the client is not closed, so no request uses the Jersey client once
+     * it is released.
+     */
+    private void releaseIfIdle() {
+        if (closed && connections.availablePermits() == maxConnections && released.compareAndSet(false, true)) {
+            client.destroy();
+        }
+    }
+
+    /**
+     * Send a REST request and get response
+     *
+     * @param type
+     *            Http type of the request
+     * @param url
+     *            request path
+     * @param params
+     *            XML content of the request
+     * @param responseClass
+     *            response class
+     * @param deadline
+     *            deadline of the operation sending the request
+     * @return ResponseClass response class
+     */
+    public <ResponseClass> ResponseClass sendRequestWithReply(REST_TYPE type,
+            String url, MultivaluedMap<String, String> params,
+            java.lang.Class<ResponseClass> responseClass, Deadline deadline)
+            throws FrontendManagerBeanException {
+        return sendRequest(type, url, params, null, responseClass, null, deadline);
+    }
+
+    /**
+     * Send a REST request and get a generic response, e.g. a list
+     *
+     * @param type
+     *            Http type of the request
+     * @param url
+     *            request path
+     * @param params
+     *            XML content of the request
+     * @param responseType
+     *            generic response type
+     * @param deadline
+     *            deadline of the operation sending the request
+     * @return the response
+     */
+    public <ResponseClass> ResponseClass sendRequestWithGenericReply(REST_TYPE type,
+            String url, MultivaluedMap<String, String> params,
+            GenericType<ResponseClass> responseType, Deadline deadline)
+            throws FrontendManagerBeanException {
+        return sendRequest(type, url, params, null, null, responseType, deadline);
+    }
+
+    /**
+     * Send a REST request with a text content, without reply
+     *
+     * @param type
+     *            Http type of the request, PUT or POST
+     * @param url
+     *            request path
+     * @param content
+     *            text content of the request
+     * @param deadline
+     *            deadline of the operation sending the request
+     */
+    public void sendRequestWithContent(REST_TYPE type, String url, String content, Deadline deadline)
+            throws FrontendManagerBeanException {
+        sendRequest(type, url, null, content, null, null, deadline);
+    }
+
+    /**
+     * Send a REST request and get response
+     * @param type Http type of the request
+     * @param url request path
+     * @param params XML content of the request
+     * @param content text content of the request, null for none
+     * @param responseClass response class, null if responseType is given
+     * @param responseType generic response type, null if responseClass is given
+     * @param deadline deadline of the operation sending the request
+     * @return the response
+     * @throws FrontendManagerBeanException if the request fails
+     */
+    private <ResponseClass> ResponseClass sendRequest(REST_TYPE type, String url,
+            MultivaluedMap<String, String> params, String content, Class<ResponseClass> responseClass,
+            GenericType<ResponseClass> responseType, Deadline deadline) throws FrontendManagerBeanException {
+
+        deadline.check("request " + type + " " + url);
+        if (closed) {
+            throw new FrontendManagerBeanException("The client of the agent " + apiUrl + " is closed");
+        }
+        try {
+            if (deadline == Deadline.NONE) {
+                connections.acquire();
+            } else if (!connections.tryAcquire(deadline.getRemaining(), TimeUnit.MILLISECONDS)) {
+                throw new FrontendManagerBeanException("Deadline exceeded while waiting for a connection to "
+                        + apiUrl);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FrontendManagerBeanException("Interrupted while waiting for a connection to " + apiUrl, e);
+        }
+        // checked again with the connection held: a destroy seeing no request in progress has set closed before
+        if (closed) {
+            connections.release();
+            releaseIfIdle();
+            throw new FrontendManagerBeanException("The client of the agent " + apiUrl + " is closed");
+        }
+        CircuitBreaker.Permit permit = breaker.allowRequest();
+        if (permit == CircuitBreaker.Permit.REJECTED) {
+            connections.release();
+            throw new FrontendManagerBeanException("Agent " + apiUrl + " is unavailable (circuit open)");
+        }
+
+        ClientResponse clientResponse = null;
+        boolean healthy = false;
+        // true if the read timeout is the remaining time of the operation rather than the agent's
+        boolean deadlineBound = false;
+        boolean deadlineTimeout = false;
+        try {
+            WebResource webResource = client.resource(url);
+
+            if (params != null) {
+                webResource = webResource.queryParams(params);
+            }
+            if (deadline != Deadline.NONE) {
+                // don't wait for the reply beyond the deadline of the operation
+                long timeout = deadline.getRemaining();
+                deadlineBound = readTimeout <= 0 || timeout < readTimeout;
+                if (readTimeout > 0) {
+                    timeout = Math.min(timeout, readTimeout);
+                }
+                webResource.setProperty(ClientConfig.PROPERTY_READ_TIMEOUT, (int) Math.max(1L, timeout));
+            }
+
+            if (content != null) {
+                WebResource.Builder builder = webResource.type(MediaType.TEXT_PLAIN);
+                if (type == REST_TYPE.POST) {
+                    clientResponse = builder.post(ClientResponse.class, content);
+                } else {
+                    clientResponse = builder.put(ClientResponse.class, content);
+                }
+            } else {
+                switch (type) {
+                    case PUT:
+                        clientResponse = webResource.put(ClientResponse.class);
+                        break;
+                    case GET:
+                        clientResponse = webResource.get(ClientResponse.class);
+                        break;
+                    case POST:
+                        clientResponse = webResource.post(ClientResponse.class);
+                        break;
+                    case DELETE:
+                        clientResponse = webResource.delete(ClientResponse.class);
+                        break;
+                    default:// put
+                        clientResponse = webResource.put(ClientResponse.class);
+                        break;
+                }
+            }
+
+            int status = clientResponse.getStatus();
+            healthy = status < HTTP_STATUS_SERVER_ERROR;
+
+            if (status != HTTP_STATUS_ACCEPTED && status != HTTP_STATUS_OK
+                    && status != HTTP_STATUS_NO_CONTENT && status != HTTP_STATUS_CREATED) {
+                throw new AgentStatusException(status);
+            }
+
+            ResponseClass r = null;
+
+            if (status != HTTP_STATUS_NO_CONTENT) {
+                //ToDo Apache-Manager REST interfaces need to be harmonized
+                if (responseClass != null)
+                    r = clientResponse.getEntity(responseClass);
+                else if (responseType != null)
+                    r = clientResponse.getEntity(responseType);
+            }
+
+            return r;
+        } catch (RuntimeException e) {
+            deadlineTimeout = deadlineBound && isTimeout(e);
+            throw new FrontendManagerBeanException("Error on JOnAS agent request " + type + " " + url, e);
+        } finally {
+            if (clientResponse != null) {
+                // give the connection back to the keep-alive cache
+                clientResponse.close();
+            }
+            connections.release();
+            if (deadlineTimeout) {
+                // the operation ran out of time, the agent isn't known to be unhealthy
+                breaker.release(permit);
+            } else {
+                breaker.record(permit, healthy);
+            }
+            releaseIfIdle();
+        }
+    }
+
+    /**
+     * @param e failure of a request
+     * @return true if the request failed because its read timed out
+     */
+    private static boolean isTimeout(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketTimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
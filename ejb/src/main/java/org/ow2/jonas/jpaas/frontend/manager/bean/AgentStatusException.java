@@ -0,0 +1,45 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.bean;
+
+import org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException;
+
+/**
+ * An agent request answered with an unexpected HTTP status.
+ */
+public class AgentStatusException extends FrontendManagerBeanException {
+
+    /**
+     * HTTP status of the reply
+     */
+    private final int status;
+
+    /**
+     * Constructor
+     * @param status HTTP status of the reply
+     */
+    public AgentStatusException(int status) {
+        super("Error on JOnAS agent request : " + status);
+        this.status = status;
+    }
+
+    /**
+     * @return the HTTP status of the reply
+     */
+    public int getStatus() {
+        return status;
+    }
+}
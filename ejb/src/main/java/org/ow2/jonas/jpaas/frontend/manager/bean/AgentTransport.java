@@ -0,0 +1,228 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.bean;
+
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.config.ClientConfig;
+import com.sun.jersey.api.client.config.DefaultClientConfig;
+
+import javax.xml.bind.JAXBException;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Long-lived REST clients of the Apache agents, one per agent API url,
+ * shared by the frontends served by the agent. Each frontend gets its own
+ * typed client over the shared one, so that the agent calls are recorded
+ * under the right frontend. A client is released when the last of its
+ * frontends is removed.
+ * The JDK keeps the HTTP connections of a client alive between requests
+ * (see the http.keepAlive and http.maxConnections system properties).
+ * The clients have connect and read timeouts and a circuit breaker per agent.
+ * They share one configuration and one JAXB context, which can be built in
+ * advance by {@link #warmUp()}.
+ */
+public class AgentTransport {
+
+    /**
+     * Default maximum number of concurrent connections to one agent
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS = 4;
+
+    /**
+     * Default connect timeout, in milliseconds
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+
+    /**
+     * Default read timeout, in milliseconds
+     */
+    public static final int DEFAULT_READ_TIMEOUT = 30000;
+
+    /**
+     * Maximum number of concurrent connections to one agent
+     */
+    private final int maxConnections;
+
+    /**
+     * Connect timeout in milliseconds, 0 for none
+     */
+    private final int connectTimeout;
+
+    /**
+     * Read timeout in milliseconds, 0 for none
+     */
+    private final int readTimeout;
+
+    /**
+     * Number of consecutive failures opening the circuit of an agent
+     */
+    private final int breakerFailures;
+
+    /**
+     * Time the circuit of an agent stays open before a probe, in milliseconds
+     */
+    private final long breakerOpenDuration;
+
+    /**
+     * Metrics of the agent calls
+     */
+    private final OperationMetrics metrics;
+
+    /**
+     * JAXB context of the agent replies
+     */
+    private final JaxbContextResolver contextResolver = new JaxbContextResolver();
+
+    /**
+     * Configuration shared by the Jersey clients
+     */
+    private final ClientConfig clientConfig = new DefaultClientConfig();
+
+    /**
+     * Agent clients by API url
+     */
+    private final ConcurrentMap<String, SharedClient> clients = new ConcurrentHashMap<String, SharedClient>();
+
+    /**
+     * Constructor
+     * @param maxConnections Maximum number of concurrent connections to one agent
+     * @param connectTimeout Connect timeout in milliseconds, 0 for none
+     * @param readTimeout Read timeout in milliseconds, 0 for none
+     * @param breakerFailures Number of consecutive failures opening the circuit of an agent
+     * @param breakerOpenDuration Time the circuit of an agent stays open before a probe, in milliseconds
+     * @param metrics Metrics of the agent calls
+     */
+    public AgentTransport(int maxConnections, int connectTimeout, int readTimeout, int breakerFailures,
+            long breakerOpenDuration, OperationMetrics metrics) {
+        this.maxConnections = maxConnections;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.breakerFailures = breakerFailures;
+        this.breakerOpenDuration = breakerOpenDuration;
+        this.metrics = metrics;
+        clientConfig.getSingletons().add(contextResolver);
+        clientConfig.getProperties().put(ClientConfig.PROPERTY_CONNECT_TIMEOUT, connectTimeout);
+        clientConfig.getProperties().put(ClientConfig.PROPERTY_READ_TIMEOUT, readTimeout);
+    }
+
+    /**
+     * Bootstrap Jersey and build the JAXB context of the agent replies, so
+     * that the first request to an agent doesn't pay for them
+     * @throws JAXBException if the JAXB context cannot be built
+     */
+    public void warmUp() throws JAXBException {
+        contextResolver.warmUp();
+        Client.create(clientConfig).destroy();
+    }
+
+    /**
+     * @param frontendName Name of the frontend served by the agent
+     * @param apiUrl Url of the agent API
+     * @return the client of the agent
+     */
+    public ApacheManagerClient getClient(String frontendName, String apiUrl) {
+        SharedClient sharedClient = clients.get(apiUrl);
+        if (sharedClient != null) {
+            ApacheManagerClient frontendClient = sharedClient.frontendClients.get(frontendName);
+            if (frontendClient != null) {
+                return frontendClient;
+            }
+        }
+        synchronized (this) {
+            sharedClient = clients.get(apiUrl);
+            if (sharedClient == null) {
+                Client client = Client.create(clientConfig);
+                sharedClient = new SharedClient(new AgentClient(apiUrl, client, maxConnections, readTimeout,
+                        new CircuitBreaker(breakerFailures, breakerOpenDuration)));
+                clients.put(apiUrl, sharedClient);
+            }
+            ApacheManagerClient frontendClient = sharedClient.frontendClients.get(frontendName);
+            if (frontendClient == null) {
+                frontendClient = new ApacheManagerClient(sharedClient.agentClient, metrics, frontendName);
+                sharedClient.frontendClients.put(frontendName, frontendClient);
+            }
+            return frontendClient;
+        }
+    }
+
+    /**
+     * @return the circuit breaker of each agent, by agent API url
+     */
+    public Map<String, CircuitBreaker> getBreakers() {
+        Map<String, CircuitBreaker> breakers = new TreeMap<String, CircuitBreaker>();
+        for (Map.Entry<String, SharedClient> client : clients.entrySet()) {
+            breakers.put(client.getKey(), client.getValue().agentClient.getBreaker());
+        }
+        return breakers;
+    }
+
+    /**
+     * Forget a removed frontend. The client of its agent is released if no
+     * other frontend uses it, once the requests in progress complete.
+     * @param frontendName Name of the frontend
+     * @param apiUrl Url of the agent API
+     */
+    public synchronized void removeClient(String frontendName, String apiUrl) {
+        SharedClient sharedClient = clients.get(apiUrl);
+        if (sharedClient == null) {
+            return;
+        }
+        sharedClient.frontendClients.remove(frontendName);
+        if (sharedClient.frontendClients.isEmpty()) {
+            clients.remove(apiUrl);
+            sharedClient.agentClient.destroy();
+        }
+    }
+
+    /**
+     * Release the clients and their connections
+     */
+    public synchronized void close() {
+        for (SharedClient sharedClient : clients.values()) {
+            sharedClient.agentClient.destroy();
+        }
+        clients.clear();
+    }
+
+    /**
+     * The client of an agent and the typed clients of the frontends using it
+     */
+    private static class SharedClient {
+
+        /**
+         * The client
+         */
+        private final AgentClient agentClient;
+
+        /**
+         * Typed client of each frontend using the client, by frontend name
+         */
+        private final ConcurrentMap<String, ApacheManagerClient> frontendClients =
+                new ConcurrentHashMap<String, ApacheManagerClient>();
+
+        /**
+         * Constructor
+         * @param agentClient the client
+         */
+        public SharedClient(AgentClient agentClient) {
+            this.agentClient = agentClient;
+        }
+    }
+}
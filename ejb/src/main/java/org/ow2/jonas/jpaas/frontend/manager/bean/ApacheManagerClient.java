@@ -0,0 +1,340 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.bean;
+
+import org.ow2.jonas.jpaas.apache.manager.util.api.xml.Directive;
+import org.ow2.jonas.jpaas.apache.manager.vhost.manager.api.xml.Vhost;
+import org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException;
+
+import com.sun.jersey.api.client.GenericType;
+import com.sun.jersey.core.util.MultivaluedMapImpl;
+
+import javax.ws.rs.core.MultivaluedMap;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Typed client of the apache-manager REST API of a frontend agent. The base
+ * url of the agent is normalized once; the request urls are built from
+ * prebuilt prefixes. There is one instance per frontend, over the REST
+ * client shared by the frontends of the agent, which is released by the
+ * AgentTransport.
+ */
+public class ApacheManagerClient {
+
+    /**
+     * Path of the vhost resources
+     */
+    private static final String VHOST_PATH = "/vhostmanager/vhost";
+
+    /**
+     * Path of the proxy resources of the vhosts
+     */
+    private static final String PROXY_VHOST_PATH = "/proxymanager/vhost/";
+
+    /**
+     * Path of the proxypass directives, relative to a vhost
+     */
+    private static final String PROXYPASS_PATH = "/proxypass";
+
+    /**
+     * Path of the server reload action
+     */
+    private static final String RELOAD_PATH = "/apache-manager/server/action/reload";
+
+    /**
+     * HTTP status of a missing resource
+     */
+    private static final int HTTP_STATUS_NOT_FOUND = 404;
+
+    /**
+     * HTTP status of an unsupported method
+     */
+    private static final int HTTP_STATUS_METHOD_NOT_ALLOWED = 405;
+
+    /**
+     * Generic type of a directive list
+     */
+    private static final GenericType<List<Directive>> DIRECTIVE_LIST = new GenericType<List<Directive>>() {
+    };
+
+    /**
+     * The REST client of the agent
+     */
+    private final AgentClient agentClient;
+
+    /**
+     * Metrics of the agent calls
+     */
+    private final OperationMetrics metrics;
+
+    /**
+     * Name of the frontend served by the agent, tag of the metrics
+     */
+    private final String frontendName;
+
+    /**
+     * Url of the vhost resources
+     */
+    private final String vhostUrl;
+
+    /**
+     * Url prefix of the proxy resources of the vhosts
+     */
+    private final String proxyVhostUrl;
+
+    /**
+     * Url of the server reload action
+     */
+    private final String reloadUrl;
+
+    /**
+     * Base url of the agent API
+     */
+    private final String baseUrl;
+
+    /**
+     * False once the agent answered that it has no configuration resource
+     */
+    private volatile boolean pushSupported = true;
+
+    /**
+     * Constructor
+     * @param agentClient The REST client of the agent
+     * @param metrics Metrics of the agent calls
+     * @param frontendName Name of the frontend served by the agent
+     */
+    public ApacheManagerClient(AgentClient agentClient, OperationMetrics metrics, String frontendName) {
+        this.agentClient = agentClient;
+        this.metrics = metrics;
+        this.frontendName = frontendName;
+        this.baseUrl = normalize(agentClient.getApiUrl());
+        this.vhostUrl = baseUrl + VHOST_PATH;
+        this.proxyVhostUrl = baseUrl + PROXY_VHOST_PATH;
+        this.reloadUrl = baseUrl + RELOAD_PATH;
+    }
+
+    /**
+     * @return Url of the agent API
+     */
+    public String getApiUrl() {
+        return agentClient.getApiUrl();
+    }
+
+    /**
+     * Create an Apache vhost
+     * @param address Address of the vhost, for instance *:80
+     * @param deadline Deadline of the operation
+     * @return the created vhost
+     * @throws FrontendManagerBeanException if the request fails
+     */
+    public Vhost createVhost(String address, Deadline deadline) throws FrontendManagerBeanException {
+        MultivaluedMap<String, String> params = new MultivaluedMapImpl();
+        params.add("address", address);
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            Vhost vhost = agentClient.sendRequestWithReply(AgentClient.REST_TYPE.POST, vhostUrl, params, Vhost.class,
+                    deadline);
+            success = true;
+            return vhost;
+        } finally {
+            metrics.record(OperationMetrics.Step.AGENT_CREATE_VHOST, frontendName, start, success);
+        }
+    }
+
+    /**
+     * Remove an Apache vhost
+     * @param vhostId Id of the Apache vhost
+     * @param deadline Deadline of the operation
+     * @throws FrontendManagerBeanException if the request fails
+     */
+    public void removeVhost(String vhostId, Deadline deadline) throws FrontendManagerBeanException {
+        StringBuilder url = new StringBuilder(vhostUrl.length() + 1 + vhostId.length());
+        url.append(vhostUrl).append('/').append(vhostId);
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            agentClient.sendRequestWithReply(AgentClient.REST_TYPE.DELETE, url.toString(), null, null, deadline);
+            success = true;
+        } finally {
+            metrics.record(OperationMetrics.Step.AGENT_REMOVE_VHOST, frontendName, start, success);
+        }
+    }
+
+    /**
+     * List the proxypass directives of a vhost
+     * @param vhostId Id of the Apache vhost
+     * @param deadline Deadline of the operation
+     * @return the directives of the vhost
+     * @throws FrontendManagerBeanException if the request fails
+     */
+    public List<Directive> getProxyPasses(String vhostId, Deadline deadline) throws FrontendManagerBeanException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            List<Directive> directives = agentClient.sendRequestWithGenericReply(AgentClient.REST_TYPE.GET,
+                    getProxyPassUrl(vhostId, null), null, DIRECTIVE_LIST, deadline);
+            success = true;
+            return directives == null ? Collections.<Directive>emptyList() : directives;
+        } finally {
+            metrics.record(OperationMetrics.Step.AGENT_LIST_PROXYPASS, frontendName, start, success);
+        }
+    }
+
+    /**
+     * Add a proxypass directive to a vhost
+     * @param vhostId Id of the Apache vhost
+     * @param path Path of the directive
+     * @param url Target url of the directive
+     * @param deadline Deadline of the operation
+     * @return the created directive
+     * @throws FrontendManagerBeanException if the request fails
+     */
+    public Directive addProxyPass(String vhostId, String path, String url, Deadline deadline)
+            throws FrontendManagerBeanException {
+        MultivaluedMap<String, String> params = new MultivaluedMapImpl();
+        params.add("path", path);
+        params.add("url", url);
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            Directive directive = agentClient.sendRequestWithReply(AgentClient.REST_TYPE.POST,
+                    getProxyPassUrl(vhostId, null), params, Directive.class, deadline);
+            success = true;
+            return directive;
+        } finally {
+            metrics.record(OperationMetrics.Step.AGENT_ADD_PROXYPASS, frontendName, start, success);
+        }
+    }
+
+    /**
+     * Remove a proxypass directive from a vhost
+     * @param vhostId Id of the Apache vhost
+     * @param directiveId Id of the directive
+     * @param deadline Deadline of the operation
+     * @throws FrontendManagerBeanException if the request fails
+     */
+    public void removeProxyPass(String vhostId, String directiveId, Deadline deadline)
+            throws FrontendManagerBeanException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            agentClient.sendRequestWithReply(AgentClient.REST_TYPE.DELETE, getProxyPassUrl(vhostId, directiveId),
+                    null, null, deadline);
+            success = true;
+        } finally {
+            metrics.record(OperationMetrics.Step.AGENT_REMOVE_PROXYPASS, frontendName, start, success);
+        }
+    }
+
+    /**
+     * Replace the vhost/proxy configuration of the Apache server
+     * @param path Path of the configuration resource of the agent
+     * @param configuration the complete configuration
+     * @param deadline Deadline of the operation
+     * @throws FrontendManagerBeanException if the request fails
+     */
+    public void pushConfiguration(String path, String configuration, Deadline deadline)
+            throws FrontendManagerBeanException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            agentClient.sendRequestWithContent(AgentClient.REST_TYPE.PUT, baseUrl + path, configuration, deadline);
+            success = true;
+        } catch (AgentStatusException e) {
+            if (e.getStatus() == HTTP_STATUS_NOT_FOUND || e.getStatus() == HTTP_STATUS_METHOD_NOT_ALLOWED) {
+                pushSupported = false;
+            }
+            throw e;
+        } finally {
+            metrics.record(OperationMetrics.Step.AGENT_PUSH_CONFIGURATION, frontendName, start, success);
+        }
+    }
+
+    /**
+     * @return false if the agent answered that it has no configuration resource
+     */
+    public boolean isPushSupported() {
+        return pushSupported;
+    }
+
+    /**
+     * Reload the Apache server
+     * @param deadline Deadline of the reload
+     * @throws FrontendManagerBeanException if the request fails
+     */
+    public void reload(Deadline deadline) throws FrontendManagerBeanException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            agentClient.sendRequestWithReply(AgentClient.REST_TYPE.POST, reloadUrl, null, null, deadline);
+            success = true;
+        } finally {
+            metrics.record(OperationMetrics.Step.AGENT_RELOAD, frontendName, start, success);
+        }
+    }
+
+    /**
+     * @return the circuit breaker of the agent
+     */
+    public CircuitBreaker getBreaker() {
+        return agentClient.getBreaker();
+    }
+
+    /**
+     * @param vhostId Id of the Apache vhost
+     * @param directiveId Id of the directive, null for the directive collection
+     * @return the url of the proxypass directive(s)
+     */
+    public String getProxyPassUrl(String vhostId, String directiveId) {
+        int length = proxyVhostUrl.length() + vhostId.length() + PROXYPASS_PATH.length();
+        if (directiveId != null) {
+            length += 1 + directiveId.length();
+        }
+        StringBuilder url = new StringBuilder(length);
+        url.append(proxyVhostUrl).append(vhostId).append(PROXYPASS_PATH);
+        if (directiveId != null) {
+            url.append('/').append(directiveId);
+        }
+        return url.toString();
+    }
+
+    /**
+     * Remove the redundant and trailing forward slashes of the path of an url
+     * @param apiUrl a String url
+     * @return The String url without redundant forward slash
+     */
+    static String normalize(String apiUrl) {
+        int scheme = apiUrl.indexOf("://");
+        int start = scheme < 0 ? 0 : scheme + 3;
+        StringBuilder url = new StringBuilder(apiUrl.length());
+        url.append(apiUrl, 0, start);
+        char previous = 0;
+        for (int i = start; i < apiUrl.length(); i++) {
+            char c = apiUrl.charAt(i);
+            if (c != '/' || previous != '/') {
+                url.append(c);
+            }
+            previous = c;
+        }
+        while (url.length() > start && url.charAt(url.length() - 1) == '/') {
+            url.setLength(url.length() - 1);
+        }
+        return url.toString();
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.bean;
+
+import org.ow2.jonas.jpaas.frontend.manager.api.IAsyncFrontendManager;
+
+import javax.ejb.EJB;
+import javax.ejb.Local;
+import javax.ejb.Stateless;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * Asynchronous frontend manager. The operations are delegated to the
+ * FrontendManagerBean on the bounded pool of the frontend manager, or through
+ * the operation journal when it is enabled. Only a local view is provided:
+ * the returned Future is not serializable.
+ */
+@Stateless(mappedName = "AsyncFrontendManagerBean")
+@Local(IAsyncFrontendManager.class)
+public class AsyncFrontendManagerBean implements IAsyncFrontendManager {
+
+    /**
+     * Local view of the synchronous frontend manager
+     */
+    @EJB(beanName = "FrontendManagerBean", beanInterface = ILocalFrontendManager.class)
+    private ILocalFrontendManager frontendManager;
+
+    /**
+     * Shared components
+     */
+    @EJB
+    private IFrontendRuntime runtime;
+
+    /**
+     * Constructor
+     */
+    public AsyncFrontendManagerBean() {
+    }
+
+    /**
+     * Create a PaasFrontend
+     *
+     * @param frontendName Name of the frontend to create
+     * @param apiUrl       Url of the agent API
+     * @return the completion of the operation
+     */
+    @Override
+    public Future<Void> createFrontend(final String frontendName, final String apiUrl) {
+        JournalApplier journalApplier = runtime.getJournalApplier();
+        if (journalApplier != null) {
+            return journalApplier.submit(OperationJournal.Type.CREATE_FRONTEND, frontendName, apiUrl, null);
+        }
+        return runtime.getOperationExecutor().submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                frontendManager.createFrontend(frontendName, apiUrl);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Remove a PaasFrontend
+     *
+     * @param frontendName Name of the frontend to create
+     * @return the completion of the operation
+     */
+    @Override
+    public Future<Void> removeFrontend(final String frontendName) {
+        JournalApplier journalApplier = runtime.getJournalApplier();
+        if (journalApplier != null) {
+            return journalApplier.submit(OperationJournal.Type.REMOVE_FRONTEND, frontendName, null, null);
+        }
+        return runtime.getOperationExecutor().submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                frontendManager.removeFrontend(frontendName);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Create a vhost
+     *
+     * @param frontendName         Name of the Frontend
+     * @param vhostName            Name of the vhost to create
+     * @param targetRouterNameList Target router list
+     * @return the completion of the operation
+     */
+    @Override
+    public Future<Void> createVhost(final String frontendName, final String vhostName,
+            final List<String> targetRouterNameList) {
+        JournalApplier journalApplier = runtime.getJournalApplier();
+        if (journalApplier != null) {
+            return journalApplier.submit(OperationJournal.Type.CREATE_VHOST, frontendName, vhostName,
+                    targetRouterNameList);
+        }
+        return runtime.getOperationExecutor().submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                frontendManager.createVhost(frontendName, vhostName, targetRouterNameList);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Remove a vhost
+     *
+     * @param frontendName  Name of the Frontend
+     * @param vhostName     Name of the vhost to create
+     * @return the completion of the operation
+     */
+    @Override
+    public Future<Void> removeVhost(final String frontendName, final String vhostName) {
+        JournalApplier journalApplier = runtime.getJournalApplier();
+        if (journalApplier != null) {
+            return journalApplier.submit(OperationJournal.Type.REMOVE_VHOST, frontendName, vhostName, null);
+        }
+        return runtime.getOperationExecutor().submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                frontendManager.removeVhost(frontendName, vhostName);
+                return null;
+            }
+        });
+    }
+
+}
@@ -0,0 +1,234 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.bean;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * mod_proxy_balancer layout of the vhosts. A vhost gets a single ProxyPass
+ * to its balancer, "balancer://instanceName/", and the balancer gets one
+ * member per router. Without balancer, a vhost gets one ProxyPass per router
+ * and Apache only sends traffic to the first one.
+ *
+ * The members are recorded in SR with the directives of their vhost: their
+ * id is prefixed with MEMBER_PREFIX and their value is
+ * "balancer://instanceName memberUrl loadfactor=weight". They are rendered as
+ * the BalancerMember directives of a Proxy section, so the balancers only
+ * apply to the frontends in push mode: the apache-manager REST API only
+ * creates ProxyPass directives, the vhosts created directive by directive
+ * always get one ProxyPass per router.
+ */
+public class BalancerConfiguration {
+
+    /**
+     * Default load balancing method
+     */
+    public static final String DEFAULT_LBMETHOD = "byrequests";
+
+    /**
+     * Default weight of a member
+     */
+    public static final int DEFAULT_WEIGHT = 1;
+
+    /**
+     * Prefix of the ids of the balancer members recorded in SR
+     */
+    public static final String MEMBER_PREFIX = "member:";
+
+    /**
+     * Scheme of the balancer urls
+     */
+    private static final String BALANCER_SCHEME = "balancer://";
+
+    /**
+     * True if the new vhosts are created with a balancer
+     */
+    private final boolean enabled;
+
+    /**
+     * Load balancing method of the balancers
+     */
+    private final String lbmethod;
+
+    /**
+     * Weight of the members, by router name
+     */
+    private final Map<String, Integer> weights;
+
+    /**
+     * Constructor
+     * @param enabled True if the new vhosts are created with a balancer
+     * @param lbmethod Load balancing method of the balancers
+     * @param weights Weight of the members, by router name
+     */
+    public BalancerConfiguration(boolean enabled, String lbmethod, Map<String, Integer> weights) {
+        this.enabled = enabled;
+        this.lbmethod = lbmethod;
+        this.weights = Collections.unmodifiableMap(new HashMap<String, Integer>(weights));
+    }
+
+    /**
+     * @return True if the new vhosts are created with a balancer
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return Load balancing method of the balancers
+     */
+    public String getLbmethod() {
+        return lbmethod;
+    }
+
+    /**
+     * @param routerName Name of a router
+     * @return the weight of the member of the router
+     */
+    public int getWeight(String routerName) {
+        Integer weight = weights.get(routerName);
+        return weight == null ? DEFAULT_WEIGHT : weight;
+    }
+
+    /**
+     * @param instanceName Name of the instance served by a vhost
+     * @return the target of the ProxyPass of the vhost, with its balancer parameters
+     */
+    public String getProxyUrl(String instanceName) {
+        return getBalancerName(instanceName) + "/ lbmethod=" + lbmethod;
+    }
+
+    /**
+     * @param instanceName Name of the instance served by a vhost
+     * @return the name of the balancer of the vhost
+     */
+    public static String getBalancerName(String instanceName) {
+        return BALANCER_SCHEME + instanceName;
+    }
+
+    /**
+     * @param balancerName Name of the balancer
+     * @return the name of the balancer without its scheme
+     */
+    public static String getBalancerId(String balancerName) {
+        return balancerName.startsWith(BALANCER_SCHEME) ? balancerName.substring(BALANCER_SCHEME.length())
+                : balancerName;
+    }
+
+    /**
+     * @param balancerName Name of the balancer
+     * @param memberUrl Url of the member
+     * @param weight Weight of the member
+     * @return the value of the member recorded in SR
+     */
+    public static String getMemberValue(String balancerName, String memberUrl, int weight) {
+        return balancerName + " " + memberUrl + " loadfactor=" + weight;
+    }
+
+    /**
+     * @param directiveId Id of a directive recorded in SR
+     * @return true if the directive is a balancer member
+     */
+    public static boolean isMember(String directiveId) {
+        return directiveId.startsWith(MEMBER_PREFIX);
+    }
+
+    /**
+     * @param directiveId Id of a balancer member recorded in SR
+     * @return the id of the member on the agent
+     */
+    public static String getMemberId(String directiveId) {
+        return directiveId.substring(MEMBER_PREFIX.length());
+    }
+
+    /**
+     * @param memberValue Value of a balancer member recorded in SR
+     * @return the name of the balancer of the member
+     */
+    public static String getMemberBalancer(String memberValue) {
+        int separator = memberValue.indexOf(' ');
+        return separator < 0 ? memberValue : memberValue.substring(0, separator);
+    }
+
+    /**
+     * @param memberValue Value of a balancer member recorded in SR
+     * @return the BalancerMember arguments of the member: its url and its parameters
+     */
+    public static String getMemberArguments(String memberValue) {
+        int separator = memberValue.indexOf(' ');
+        return separator < 0 ? "" : memberValue.substring(separator + 1);
+    }
+
+    /**
+     * @param memberValue Value of a balancer member recorded in SR
+     * @return the url of the member
+     */
+    public static String getMemberUrl(String memberValue) {
+        String arguments = getMemberArguments(memberValue);
+        int separator = arguments.indexOf(' ');
+        return separator < 0 ? arguments : arguments.substring(0, separator);
+    }
+
+    /**
+     * @param memberValue Value of a balancer member recorded in SR
+     * @return the value of the ProxyPass directive routing the vhost of the
+     *         balancer straight to the member, "/instanceName/ memberUrl"
+     */
+    public static String getMemberProxyPass(String memberValue) {
+        return "/" + getBalancerId(getMemberBalancer(memberValue)) + "/ " + getMemberUrl(memberValue);
+    }
+
+    /**
+     * @param directiveValue Value of a directive recorded in SR
+     * @return true if the directive is a ProxyPass to a balancer
+     */
+    public static boolean isBalancerProxyPass(String directiveValue) {
+        return directiveValue != null && !directiveValue.startsWith(BALANCER_SCHEME)
+                && directiveValue.contains(" " + BALANCER_SCHEME);
+    }
+
+    /**
+     * @param directives Directives of a vhost recorded in SR
+     * @return true if the vhost is served by a balancer
+     */
+    public static boolean hasBalancer(Map<String, String> directives) {
+        for (String directiveValue : directives.values()) {
+            if (isBalancerProxyPass(directiveValue)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parse the weights of the routers
+     * @param weights a comma separated list of routerName=weight
+     * @return the weight of each router
+     */
+    public static Map<String, Integer> parseWeights(String weights) {
+        Map<String, Integer> parsed = new HashMap<String, Integer>();
+        for (String weight : weights.split(",")) {
+            int separator = weight.indexOf('=');
+            if (separator > 0) {
+                parsed.put(weight.substring(0, separator).trim(),
+                        Integer.valueOf(weight.substring(separator + 1).trim()));
+            }
+        }
+        return parsed;
+    }
+}
@@ -0,0 +1,221 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.bean;
+
+/**
+ * Circuit breaker of one agent. After a number of consecutive failures the
+ * circuit opens and the requests fail fast. Once the open duration has
+ * elapsed the circuit is half-open: one probe request at a time is let
+ * through, its success closes the circuit and its failure opens it again.
+ * The outcome of a request granted before the circuit last opened is
+ * ignored: only the probe can close an open circuit.
+ */
+public class CircuitBreaker {
+
+    /**
+     * Default number of consecutive failures opening the circuit
+     */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+    /**
+     * Default time the circuit stays open before a probe, in milliseconds
+     */
+    public static final long DEFAULT_OPEN_DURATION = 30000L;
+
+    /**
+     * State of the circuit
+     */
+    public enum State {
+        /** requests are sent */
+        CLOSED,
+        /** requests fail fast */
+        OPEN,
+        /** one probe request at a time is sent */
+        HALF_OPEN
+    }
+
+    /**
+     * Permission to send a request
+     */
+    public static final class Permit {
+
+        /**
+         * The request fails fast
+         */
+        public static final Permit REJECTED = new Permit(false, -1L);
+
+        /**
+         * True if the request is the probe of a half-open circuit
+         */
+        private final boolean probe;
+
+        /**
+         * Generation of the circuit the request was granted in
+         */
+        private final long generation;
+
+        /**
+         * Constructor
+         * @param probe True if the request is the probe of a half-open circuit
+         * @param generation Generation of the circuit the request was granted in
+         */
+        private Permit(boolean probe, long generation) {
+            this.probe = probe;
+            this.generation = generation;
+        }
+
+        /**
+         * @return true if the request is the probe of a half-open circuit
+         */
+        public boolean isProbe() {
+            return probe;
+        }
+    }
+
+    /**
+     * Number of consecutive failures opening the circuit
+     */
+    private final int failureThreshold;
+
+    /**
+     * Time the circuit stays open before a probe, in milliseconds
+     */
+    private final long openDuration;
+
+    /**
+     * State of the circuit
+     */
+    private State state = State.CLOSED;
+
+    /**
+     * Number of consecutive failures
+     */
+    private int failures;
+
+    /**
+     * Number of times the circuit was opened
+     */
+    private long generation;
+
+    /**
+     * Date the circuit was opened
+     */
+    private long openDate;
+
+    /**
+     * True while a probe request is in flight
+     */
+    private boolean probing;
+
+    /**
+     * Number of requests rejected while the circuit was open
+     */
+    private long rejected;
+
+    /**
+     * Constructor
+     * @param failureThreshold Number of consecutive failures opening the circuit
+     * @param openDuration Time the circuit stays open before a probe, in milliseconds
+     */
+    public CircuitBreaker(int failureThreshold, long openDuration) {
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+    }
+
+    /**
+     * Ask for the permission to send a request. A granted request must be
+     * followed by a call to record() or release().
+     * @return the permission, REJECTED if the request cannot be sent
+     */
+    public synchronized Permit allowRequest() {
+        if (state == State.OPEN && System.currentTimeMillis() - openDate >= openDuration) {
+            state = State.HALF_OPEN;
+        }
+        if (state == State.CLOSED) {
+            return new Permit(false, generation);
+        }
+        if (state == State.HALF_OPEN && !probing) {
+            probing = true;
+            return new Permit(true, generation);
+        }
+        rejected++;
+        return Permit.REJECTED;
+    }
+
+    /**
+     * Record the outcome of a request
+     * @param permit the permission of the request
+     * @param success True if the agent answered properly
+     */
+    public synchronized void record(Permit permit, boolean success) {
+        if (permit.probe) {
+            // only the completion of the probe lets the next one through
+            probing = false;
+        }
+        if (permit.generation != generation) {
+            // granted before the circuit opened, tells nothing about the agent since
+            return;
+        }
+        if (success) {
+            if (state == State.CLOSED || permit.probe) {
+                failures = 0;
+                state = State.CLOSED;
+            }
+            return;
+        }
+        failures++;
+        if (permit.probe || (state == State.CLOSED && failures >= failureThreshold)) {
+            state = State.OPEN;
+            openDate = System.currentTimeMillis();
+            generation++;
+        }
+    }
+
+    /**
+     * Release the permission of a request whose outcome doesn't tell the
+     * health of the agent, e.g. a request cut by the deadline of its operation
+     * @param permit the permission of the request
+     */
+    public synchronized void release(Permit permit) {
+        if (permit.probe) {
+            probing = false;
+        }
+    }
+
+    /**
+     * @return the state of the circuit
+     */
+    public synchronized State getState() {
+        if (state == State.OPEN && System.currentTimeMillis() - openDate >= openDuration) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    /**
+     * @return the number of consecutive failures
+     */
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return the number of requests rejected while the circuit was open
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+}
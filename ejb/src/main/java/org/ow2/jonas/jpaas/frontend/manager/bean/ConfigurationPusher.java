@@ -0,0 +1,376 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.bean;
+
+import org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException;
+import org.ow2.jonas.jpaas.sr.facade.vo.PaasFrontendVO;
+import org.ow2.jonas.jpaas.sr.facade.vo.VirtualHostVO;
+import org.ow2.util.log.Log;
+import org.ow2.util.log.LogFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Whole-configuration apply mode. Instead of one agent request per proxypass
+ * directive, the complete vhost/proxy configuration of a frontend is
+ * rendered from its SR state and pushed to the agent in one request. The
+ * push and the reload are skipped when the rendered configuration has the
+ * same hash as the last one applied to the agent.
+ *
+ * The mode is selected per frontend; frontends without an explicit mode use
+ * the default one. The explicit modes are written to a properties file, if
+ * one is configured, so that they survive a restart.
+ *
+ * The configuration resource is not part of the stock apache-manager API:
+ * it is an agent extension, a PUT of the rendered configuration on
+ * DEFAULT_PUSH_PATH (or frontend.manager.push.path) replacing the vhost/proxy
+ * configuration the agent manages through its /vhostmanager and
+ * /proxymanager resources. The rendered configuration has the same layout
+ * as the one built directive by directive, so that a frontend can switch
+ * between the two modes.
+ */
+public class ConfigurationPusher {
+
+    /**
+     * Default path of the configuration resource of the agent, an extension
+     * of the apache-manager API
+     */
+    public static final String DEFAULT_PUSH_PATH = "/apache-manager/server/configuration";
+
+    /**
+     * Apache vhost id recorded in SR for the vhosts applied by a push: they
+     * have no Apache vhost of their own on the agent
+     */
+    public static final String PUSH_VHOST_ID = "push";
+
+    /**
+     * Name of the file of the explicit modes in the journal directory
+     */
+    public static final String MODES_FILE_NAME = "apply-modes.properties";
+
+    /**
+     * Prefix of the directive ids recorded in SR for the vhosts applied by a push
+     */
+    private static final String PUSH_DIRECTIVE_PREFIX = "push:";
+
+    /**
+     * The logger
+     */
+    private Log logger = LogFactory.getLog(ConfigurationPusher.class);
+
+    /**
+     * Path of the configuration resource of the agent
+     */
+    private final String pushPath;
+
+    /**
+     * File of the explicit modes, null if they are only kept in memory
+     */
+    private final File modesFile;
+
+    /**
+     * True if the frontends without an explicit mode are in push mode
+     */
+    private final boolean pushByDefault;
+
+    /**
+     * Explicit mode of the frontends, true for the push mode
+     */
+    private final ConcurrentMap<String, Boolean> modes = new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * Hash of the last configuration applied to the agent of each frontend
+     */
+    private final ConcurrentMap<String, String> appliedHashes = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Number of configurations pushed to the agents
+     */
+    private final AtomicLong pushedConfigurations = new AtomicLong();
+
+    /**
+     * Number of pushes skipped because the configuration was already applied
+     */
+    private final AtomicLong skippedPushes = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param pushPath Path of the configuration resource of the agent
+     * @param pushByDefault True if the frontends without an explicit mode are in push mode
+     * @param pushFrontends Frontends explicitly in push mode
+     * @param modesFile File of the explicit modes, null to only keep them in
+     *        memory. The modes it holds override pushFrontends.
+     */
+    public ConfigurationPusher(String pushPath, boolean pushByDefault, Collection<String> pushFrontends,
+            File modesFile) {
+        this.pushPath = pushPath;
+        this.pushByDefault = pushByDefault;
+        this.modesFile = modesFile;
+        for (String frontendName : pushFrontends) {
+            modes.put(frontendName, Boolean.TRUE);
+        }
+        if (modesFile != null && modesFile.exists()) {
+            loadModes();
+        }
+    }
+
+    /**
+     * @param frontendName Name of the frontend
+     * @return true if the configuration of the frontend is applied by pushes
+     */
+    public boolean isPushMode(String frontendName) {
+        Boolean mode = modes.get(frontendName);
+        return mode == null ? pushByDefault : mode.booleanValue();
+    }
+
+    /**
+     * Select the apply mode of a frontend. The next change of the frontend
+     * is applied with the new mode; the configuration already applied to the
+     * agent is moved to the new mode by a reconciliation of the frontend.
+     * @param frontendName Name of the frontend
+     * @param push true for the push mode, false for the per-directive mode
+     * @return true if the mode of the frontend changed
+     */
+    public boolean setPushMode(String frontendName, boolean push) {
+        boolean changed = isPushMode(frontendName) != push;
+        modes.put(frontendName, Boolean.valueOf(push));
+        appliedHashes.remove(frontendName);
+        storeModes();
+        return changed;
+    }
+
+    /**
+     * @return the explicit mode of the frontends, by frontend name
+     */
+    public Map<String, Boolean> getModes() {
+        return new TreeMap<String, Boolean>(modes);
+    }
+
+    /**
+     * Forget a removed frontend
+     * @param frontendName Name of the frontend
+     */
+    public void forget(String frontendName) {
+        appliedHashes.remove(frontendName);
+    }
+
+    /**
+     * Read the explicit modes from the modes file
+     */
+    private void loadModes() {
+        Properties properties = new Properties();
+        try {
+            InputStream in = new FileInputStream(modesFile);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.warn("Cannot read the apply modes from " + modesFile + ": " + e.getMessage());
+            return;
+        }
+        for (String frontendName : properties.stringPropertyNames()) {
+            modes.put(frontendName, Boolean.valueOf("push".equals(properties.getProperty(frontendName))));
+        }
+    }
+
+    /**
+     * Write the explicit modes to the modes file. The file is written aside
+     * and renamed over the previous one.
+     */
+    private synchronized void storeModes() {
+        if (modesFile == null) {
+            return;
+        }
+        Properties properties = new Properties();
+        for (Map.Entry<String, Boolean> mode : modes.entrySet()) {
+            properties.setProperty(mode.getKey(), mode.getValue() ? "push" : "rest");
+        }
+        File written = new File(modesFile.getPath() + ".tmp");
+        try {
+            OutputStream out = new FileOutputStream(written);
+            try {
+                properties.store(out, "Apply mode of the frontends");
+            } finally {
+                out.close();
+            }
+            if (!written.renameTo(modesFile) && !(modesFile.delete() && written.renameTo(modesFile))) {
+                throw new IOException("Cannot replace " + modesFile);
+            }
+        } catch (IOException e) {
+            logger.warn("Cannot write the apply modes to " + modesFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param vhostName Name of the vhost
+     * @param routerAddress Address of the router
+     * @return the directive id recorded in SR for the route of a pushed vhost
+     */
+    public String getDirectiveId(String vhostName, String routerAddress) {
+        return PUSH_DIRECTIVE_PREFIX + vhostName + ":" + routerAddress;
+    }
+
+    /**
+     * Push the configuration of a frontend to its agent unless it is already applied
+     * @param frontendName Name of the frontend
+     * @param paasFrontend the frontend, as written to SR
+     * @param agentClient Client of the frontend agent
+     * @param reloadScheduler Apache reload scheduler
+     * @param deadline Deadline of the operation
+     * @param force true to push even if the configuration seems to be applied
+     * @return the reload covering the pushed configuration, null if nothing was pushed
+     * @throws FrontendManagerBeanException if the configuration cannot be pushed. If the
+     *         agent has no configuration resource, the frontend is switched to the
+     *         per-directive mode and must be reconciled.
+     */
+    public Future<Void> push(String frontendName, PaasFrontendVO paasFrontend, ApacheManagerClient agentClient,
+            ReloadScheduler reloadScheduler, Deadline deadline, boolean force) throws FrontendManagerBeanException {
+        String configuration = render(paasFrontend);
+        String hash = hash(configuration);
+        if (!force && hash.equals(appliedHashes.get(frontendName))) {
+            skippedPushes.incrementAndGet();
+            return null;
+        }
+        // unknown state until the push succeeds
+        appliedHashes.remove(frontendName);
+        try {
+            agentClient.pushConfiguration(pushPath, configuration, deadline);
+        } catch (FrontendManagerBeanException e) {
+            if (!agentClient.isPushSupported()) {
+                // an agent without the extension falls back to the per-directive mode
+                logger.warn("The agent of the Frontend '" + frontendName + "' has no configuration resource, "
+                        + "the frontend is switched to the per-directive mode");
+                setPushMode(frontendName, false);
+            }
+            throw e;
+        }
+        appliedHashes.put(frontendName, hash);
+        pushedConfigurations.incrementAndGet();
+        return reloadScheduler.requestReload(frontendName, agentClient);
+    }
+
+    /**
+     * @return the number of configurations pushed to the agents
+     */
+    public long getPushedConfigurations() {
+        return pushedConfigurations.get();
+    }
+
+    /**
+     * @return the number of pushes skipped because the configuration was already applied
+     */
+    public long getSkippedPushes() {
+        return skippedPushes.get();
+    }
+
+    /**
+     * Render the vhost/proxy configuration of a frontend with the layout of
+     * the per-directive mode: a single name-less *:80 vhost in which every
+     * vhost of the frontend is routed by its "/instanceName/" path. The
+     * vhosts and their directives are sorted, so that the same SR state
+     * always gives the same configuration. The balancer members of a vhost
+     * are rendered as a Proxy section per balancer, the evicted routes are
+     * left out.
+     * @param paasFrontend the frontend
+     * @return the Apache configuration of the frontend
+     */
+    static String render(PaasFrontendVO paasFrontend) {
+        Map<String, VirtualHostVO> sortedVhosts = new TreeMap<String, VirtualHostVO>();
+        for (VirtualHostVO virtualHost : paasFrontend.getVirtualHosts()) {
+            sortedVhosts.put(virtualHost.getName(), virtualHost);
+        }
+        StringBuilder configuration = new StringBuilder(128 * sortedVhosts.size() + 64);
+        configuration.append("# Frontend ").append(paasFrontend.getName()).append('\n');
+        configuration.append("<VirtualHost *:80>\n");
+        for (VirtualHostVO virtualHost : sortedVhosts.values()) {
+            Map<String, String> proxyList = virtualHost.getProxypassDirectives();
+            if (proxyList == null || proxyList.isEmpty()) {
+                continue;
+            }
+            configuration.append("    # Vhost ").append(virtualHost.getName()).append('\n');
+            Map<String, Set<String>> balancers = new TreeMap<String, Set<String>>();
+            Set<String> proxyPasses = new TreeSet<String>();
+            for (Map.Entry<String, String> directive : proxyList.entrySet()) {
+                if (HealthMonitor.isEvicted(directive.getKey())) {
+                    continue;
+                }
+                if (BalancerConfiguration.isMember(directive.getKey())) {
+                    String balancerName = BalancerConfiguration.getMemberBalancer(directive.getValue());
+                    Set<String> members = balancers.get(balancerName);
+                    if (members == null) {
+                        members = new TreeSet<String>();
+                        balancers.put(balancerName, members);
+                    }
+                    members.add(BalancerConfiguration.getMemberArguments(directive.getValue()));
+                } else {
+                    proxyPasses.add(directive.getValue());
+                }
+            }
+            for (Map.Entry<String, Set<String>> balancer : balancers.entrySet()) {
+                configuration.append("    <Proxy ").append(balancer.getKey()).append(">\n");
+                for (String member : balancer.getValue()) {
+                    configuration.append("        BalancerMember ").append(member).append('\n');
+                }
+                configuration.append("    </Proxy>\n");
+            }
+            for (String directive : proxyPasses) {
+                configuration.append("    ProxyPass ").append(directive).append('\n');
+            }
+        }
+        configuration.append("</VirtualHost>\n");
+        return configuration.toString();
+    }
+
+    /**
+     * @param configuration a rendered configuration
+     * @return the SHA-1 hash of the configuration, in hexadecimal
+     */
+    static String hash(String configuration) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(configuration.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not available", e);
+        }
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.bean;
+
+import org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException;
+
+/**
+ * Deadline of an operation, shared by all the agent calls made by the
+ * operation so that the operation as a whole doesn't outlive it.
+ */
+public final class Deadline {
+
+    /**
+     * No deadline
+     */
+    public static final Deadline NONE = new Deadline(0L);
+
+    /**
+     * Expiry of the deadline, as given by System.nanoTime()
+     */
+    private final long expiry;
+
+    /**
+     * Constructor
+     * @param expiry Expiry of the deadline, as given by System.nanoTime()
+     */
+    private Deadline(long expiry) {
+        this.expiry = expiry;
+    }
+
+    /**
+     * @param timeout Time left to the operation in milliseconds, 0 or less for no deadline
+     * @return the deadline
+     */
+    public static Deadline after(long timeout) {
+        if (timeout <= 0) {
+            return NONE;
+        }
+        return new Deadline(System.nanoTime() + timeout * 1000000L);
+    }
+
+    /**
+     * @return the time left in milliseconds, Long.MAX_VALUE if there is no deadline
+     */
+    public long getRemaining() {
+        if (this == NONE) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0L, (expiry - System.nanoTime()) / 1000000L);
+    }
+
+    /**
+     * @return true if the deadline has passed
+     */
+    public boolean isExpired() {
+        return this != NONE && expiry - System.nanoTime() <= 0;
+    }
+
+    /**
+     * @param action the action about to be done
+     * @throws FrontendManagerBeanException if the deadline has passed
+     */
+    public void check(String action) throws FrontendManagerBeanException {
+        if (isExpired()) {
+            throw new FrontendManagerBeanException("Deadline exceeded before " + action);
+        }
+    }
+}
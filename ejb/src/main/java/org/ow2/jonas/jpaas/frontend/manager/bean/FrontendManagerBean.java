@@ -19,36 +19,49 @@ import org.ow2.easybeans.osgi.annotation.OSGiResource;
 import org.ow2.jonas.jpaas.apache.manager.util.api.xml.Directive;
 import org.ow2.jonas.jpaas.apache.manager.vhost.manager.api.xml.Vhost;
 import org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException;
-import org.ow2.jonas.jpaas.sr.facade.api.ISrPaasApacheJkRouterFacade;
+import org.ow2.jonas.jpaas.frontend.manager.api.FrontendSummary;
+import org.ow2.jonas.jpaas.frontend.manager.api.OperationResult;
+import org.ow2.jonas.jpaas.frontend.manager.api.QuorumResult;
+import org.ow2.jonas.jpaas.frontend.manager.api.VhostPage;
+import org.ow2.jonas.jpaas.frontend.manager.api.VhostRouting;
+import org.ow2.jonas.jpaas.frontend.manager.common.TopologyView;
 import org.ow2.jonas.jpaas.sr.facade.api.ISrPaasFrontendFacade;
-import org.ow2.jonas.jpaas.sr.facade.api.ISrPaasResourceIaasComputeLink;
-import org.ow2.jonas.jpaas.sr.facade.vo.ApacheJkVO;
-import org.ow2.jonas.jpaas.sr.facade.vo.IaasComputeVO;
 import org.ow2.jonas.jpaas.sr.facade.vo.PaasFrontendVO;
 import org.ow2.jonas.jpaas.sr.facade.vo.VirtualHostVO;
 import org.ow2.util.log.Log;
 import org.ow2.util.log.LogFactory;
 
-import com.sun.jersey.api.client.Client;
-import com.sun.jersey.api.client.ClientResponse;
-import com.sun.jersey.api.client.WebResource;
-import com.sun.jersey.core.util.MultivaluedMapImpl;
-
+import javax.annotation.Resource;
+import javax.ejb.Asynchronous;
+import javax.ejb.EJB;
 import javax.ejb.Local;
 import javax.ejb.Remote;
+import javax.ejb.SessionContext;
 import javax.ejb.Stateless;
-import javax.ws.rs.core.MultivaluedMap;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
 
 @Stateless(mappedName = "FrontendManagerBean")
-@Local(org.ow2.jonas.jpaas.frontend.manager.api.IFrontendManager.class)
+@Local(ILocalFrontendManager.class)
 @Remote(org.ow2.jonas.jpaas.frontend.manager.api.IFrontendManager.class)
-public class FrontendManagerBean implements org.ow2.jonas.jpaas.frontend.manager.api.IFrontendManager {
+public class FrontendManagerBean implements ILocalFrontendManager {
 
     /**
      * The logger
@@ -56,50 +69,32 @@ public class FrontendManagerBean implements org.ow2.jonas.jpaas.frontend.manager
     private Log logger = LogFactory.getLog(org.ow2.jonas.jpaas.frontend.manager.bean.FrontendManagerBean.class);
 
     /**
-     * Http accepted status
-     */
-    private static final int HTTP_STATUS_ACCEPTED = 202;
-
-    /**
-     * Http Ok status
-     */
-    private static final int HTTP_STATUS_OK = 200;
-
-    /**
-     * Http no content status
-     */
-    private static final int HTTP_STATUS_NO_CONTENT = 204;
-
-    /**
-     * Http Created status
+     * Number of attempts of a SR frontend write
      */
-    private static final int HTTP_STATUS_CREATED = 201;
-
+    private static final int SR_WRITE_ATTEMPTS = 3;
 
     /**
-     * REST request type
+     * Route name of the ProxyPass to the balancer of a pushed vhost
      */
-    private enum REST_TYPE {
-        PUT, POST, GET, DELETE
-    }
+    private static final String BALANCER_ROUTE = "balancer";
 
     /**
-     * SR facade router
+     * SR facade Frontend
      */
     @OSGiResource
-    private ISrPaasApacheJkRouterFacade srApacheJkEjb;
+    private ISrPaasFrontendFacade srPaasFrontendFacade;
 
     /**
-     * SR facade paasResource - iaasCompute link
+     * Shared components
      */
-    @OSGiResource
-    private ISrPaasResourceIaasComputeLink srPaasResourceIaasComputeLink;
+    @EJB
+    private IFrontendRuntime runtime;
 
     /**
-     * SR facade Frontend
+     * Context of the bean
      */
-    @OSGiResource
-    private ISrPaasFrontendFacade srPaasFrontendFacade;
+    @Resource
+    private SessionContext sessionContext;
 
     /**
      * Constructor
@@ -121,11 +116,19 @@ public class FrontendManagerBean implements org.ow2.jonas.jpaas.frontend.manager
 
         logger.info("Frontend '" + frontendName + "' creating ....");
         PaasFrontendVO paasFrontendVO = new PaasFrontendVO(frontendName, apiUrl, new LinkedList<VirtualHostVO>());
+        OperationMetrics metrics = runtime.getMetrics();
+        long start = System.nanoTime();
+        boolean success = false;
         try {
             srPaasFrontendFacade.createFrontend(paasFrontendVO);
+            success = true;
         } catch (Exception e) {
             throw new FrontendManagerBeanException("Cannot create the Frontend " + frontendName + ".", e);
+        } finally {
+            metrics.record(OperationMetrics.Step.SR_CREATE_FRONTEND, frontendName, start, success);
+            metrics.record(OperationMetrics.Step.CREATE_FRONTEND, frontendName, start, success);
         }
+        runtime.getTopology().invalidate(frontendName);
     }
 
     /**
@@ -140,24 +143,52 @@ public class FrontendManagerBean implements org.ow2.jonas.jpaas.frontend.manager
 
         logger.info("Frontend '" + frontendName + "' deleting ....");
 
-        // get the Frontend from SR
-        PaasFrontendVO paasFrontend = null;
-        List<PaasFrontendVO> frontendVOList = srPaasFrontendFacade.findFrontends();
-        for (PaasFrontendVO tmp : frontendVOList) {
-            if (tmp.getName().equals(frontendName)) {
-                paasFrontend = tmp;
-                break;
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            Lock lock = runtime.getFrontendLocks().lock(frontendName);
+            try {
+                doRemoveFrontend(frontendName);
+            } finally {
+                lock.unlock();
             }
+            success = true;
+        } finally {
+            // the metrics of a removed frontend are dropped, its removal is recorded for all the frontends
+            runtime.getMetrics().record(OperationMetrics.Step.REMOVE_FRONTEND,
+                    success ? OperationMetrics.ALL_FRONTENDS : frontendName, start, success);
         }
-        if (paasFrontend == null) {
+    }
+
+    /**
+     * Remove a locked PaasFrontend
+     *
+     * @param frontendName Name of the frontend to remove
+     * @throws FrontendManagerBeanException if the frontend cannot be removed
+     */
+    private void doRemoveFrontend(String frontendName) throws FrontendManagerBeanException {
+
+        // get the Frontend from the SR topology view
+        TopologyView.FrontendEntry frontendEntry = runtime.getTopology().getFrontend(frontendName);
+        if (frontendEntry == null) {
             throw new FrontendManagerBeanException("Frontend '" + frontendName + "' doesn't exist !");
         }
+        PaasFrontendVO paasFrontend = frontendEntry.getFrontend();
 
+        long start = System.nanoTime();
+        boolean success = false;
         try {
             srPaasFrontendFacade.deleteFrontend(paasFrontend.getId());
+            success = true;
         } catch (Exception e) {
             throw new FrontendManagerBeanException("Cannot delete the Frontend " + frontendName + ".", e);
+        } finally {
+            runtime.getMetrics().record(OperationMetrics.Step.SR_DELETE_FRONTEND, frontendName, start, success);
         }
+        runtime.getTopology().removeFrontend(frontendName);
+        runtime.getAgentTransport().removeClient(frontendName, paasFrontend.getApiUrl());
+        runtime.getConfigurationPusher().forget(frontendName);
+        runtime.getMetrics().remove(frontendName);
     }
 
     /**
@@ -173,302 +204,1029 @@ public class FrontendManagerBean implements org.ow2.jonas.jpaas.frontend.manager
     public void createVhost(String frontendName, String vhostName, List<String> targetRouterNameList)
             throws FrontendManagerBeanException {
 
-        logger.info("Vhost '" + vhostName + "' creating ....");
+        Map<String, List<String>> vhostToRouters = new HashMap<String, List<String>>();
+        vhostToRouters.put(vhostName, targetRouterNameList);
+        checkResult(createVhosts(frontendName, vhostToRouters).get(0));
+    }
 
-        // get the Frontend from SR
-        PaasFrontendVO paasFrontend = null;
-        List<PaasFrontendVO> frontendVOList = srPaasFrontendFacade.findFrontends();
-        for (PaasFrontendVO tmp : frontendVOList) {
-            if (tmp.getName().equals(frontendName)) {
-                paasFrontend = tmp;
-                break;
-            }
-        }
-        if (paasFrontend == null) {
-            throw new FrontendManagerBeanException("Frontend '" + frontendName + "' doesn't exist !");
-        }
-        // get the url of the Agent API
-        String apiUrl = paasFrontend.getApiUrl();
+    /**
+     * Remove a vhost
+     *
+     * @param frontendName  Name of the Frontend
+     * @param vhostName     Name of the vhost to create
+     * @throws org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException
+     *
+     */
+    @Override
+    public void removeVhost(String frontendName, String vhostName) throws FrontendManagerBeanException {
 
+        checkResult(removeVhosts(frontendName, Collections.singletonList(vhostName)).get(0));
+    }
 
-        VirtualHostVO virtualHost = null;
-        String vhostID;
-        //Temporary : Use the same vhost. Test if a vhost exists, use the same vhostID if it's the case,
-        // if not create the vhost on the Apache Server
-        List<VirtualHostVO> virtualHostVOList = paasFrontend.getVirtualHosts();
-        if (!virtualHostVOList.isEmpty()) {
-            vhostID = virtualHostVOList.get(0).getVhostId();
-        } else {
-            logger.debug("No vhost on the machine: create one");
-            MultivaluedMap<String, String> params = new MultivaluedMapImpl();
-            params.add("address", "*:80");
+    /**
+     * Change the routers of a vhost
+     *
+     * @param frontendName         Name of the Frontend
+     * @param vhostName            Name of the vhost
+     * @param targetRouterNameList New target router list
+     * @throws org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException
+     *
+     */
+    @Override
+    public void updateVhostRouters(String frontendName, String vhostName, List<String> targetRouterNameList)
+            throws FrontendManagerBeanException {
 
-            Vhost vhost = sendRequestWithReply(
-                    REST_TYPE.POST,
-                    getUrl(apiUrl, "/vhostmanager/vhost"),
-                    params,
-                    Vhost.class);
+        logger.info("Vhost '" + vhostName + "' routing to " + targetRouterNameList + " ....");
 
-            vhostID = String.valueOf(vhost.getId());
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            Deadline deadline = runtime.newDeadline();
+            Future<Void> reload;
+            Lock lock = runtime.getFrontendLocks().lock(frontendName);
+            try {
+                reload = doUpdateVhostRouters(frontendName, vhostName, targetRouterNameList, deadline);
+            } finally {
+                lock.unlock();
+            }
+            // wait for the reload out of the lock so that it covers the concurrent changes
+            if (reload != null) {
+                runtime.getReloadScheduler().awaitIfRequired(frontendName, reload);
+            }
+            success = true;
+        } finally {
+            runtime.getMetrics().record(OperationMetrics.Step.UPDATE_VHOST, frontendName, start, success);
         }
+    }
 
-        //Do nothing if there is already a vhost with the same name
-        boolean vhostExists = false;
-        for (VirtualHostVO vhostTmp : virtualHostVOList) {
-            if (vhostTmp.getName().equals(vhostName)) {
-                vhostExists = true;
-                break;
+    /**
+     * Change the routers of a vhost of a locked frontend. The routes to the
+     * routers which are kept are left untouched.
+     *
+     * @param frontendName         Name of the Frontend
+     * @param vhostName            Name of the vhost
+     * @param targetRouterNameList New target router list
+     * @param deadline             Deadline of the operation
+     * @return the reload covering the changes, null if nothing changed
+     * @throws FrontendManagerBeanException if the vhost cannot be updated
+     */
+    private Future<Void> doUpdateVhostRouters(String frontendName, String vhostName,
+            List<String> targetRouterNameList, Deadline deadline) throws FrontendManagerBeanException {
+
+        TopologyView.FrontendEntry frontendEntry = runtime.getTopology().getFrontend(frontendName);
+        if (frontendEntry == null) {
+            throw new FrontendManagerBeanException("Frontend '" + frontendName + "' doesn't exist !");
+        }
+        VirtualHostVO virtualHost = frontendEntry.getVhost(vhostName);
+        if (virtualHost == null) {
+            throw new FrontendManagerBeanException("Vhost '" + vhostName + "' doesn't exist !");
+        }
+        PaasFrontendVO paasFrontend = frontendEntry.getFrontend();
+        ApacheManagerClient agentClient = runtime.getAgentTransport().getClient(frontendName,
+                paasFrontend.getApiUrl());
+        ConfigurationPusher pusher = runtime.getConfigurationPusher();
+        boolean push = pusher.isPushMode(frontendName);
+        String vhostID = virtualHost.getVhostId();
+        String instanceName = getInstanceName(vhostName);
+
+        Map<String, String> proxyList = new Hashtable<String, String>();
+        if (virtualHost.getProxypassDirectives() != null) {
+            proxyList.putAll(virtualHost.getProxypassDirectives());
+        }
+        // the pushed vhosts created with a balancer get members, the others get ProxyPass directives
+        String balancerName = BalancerConfiguration.hasBalancer(proxyList)
+                ? BalancerConfiguration.getBalancerName(instanceName) : null;
+
+        Map<String, String> routerAddresses = runtime.getRouterResolver().resolve(targetRouterNameList);
+        Map<String, String> routes = frontendEntry.getRoutes(vhostName);
+        Map<String, String> addedRouters = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, String> router : routerAddresses.entrySet()) {
+            if (!routes.containsKey(router.getValue())) {
+                addedRouters.put(router.getKey(), router.getValue());
+            }
+        }
+        Map<String, String> removedRoutes = new HashMap<String, String>();
+        for (Map.Entry<String, String> route : routes.entrySet()) {
+            // the directives not targeting a router, like the ProxyPass to a balancer, are their own route
+            if (!route.getKey().equals(route.getValue()) && !routerAddresses.containsValue(route.getKey())) {
+                removedRoutes.put(route.getKey(), route.getValue());
             }
         }
-        if (!vhostExists) {
-            virtualHost = new VirtualHostVO(vhostName, vhostID);
-            paasFrontend.getVirtualHosts().add(virtualHost);
-            paasFrontend = srPaasFrontendFacade.updateFrontend(paasFrontend);
+        if (addedRouters.isEmpty() && removedRoutes.isEmpty()) {
+            return null;
+        }
 
-            /*        MultivaluedMap<String, String> params = new MultivaluedMapImpl();
-          params.add("address", "*:80");
-          params.add("servername", vhostName);
+        FrontendManagerBeanException error = null;
+        if (push || ConfigurationPusher.PUSH_VHOST_ID.equals(vhostID)) {
+            // the directives are only recorded, the whole configuration is pushed afterwards
+            proxyList.keySet().removeAll(removedRoutes.values());
+            recordRoutes(pusher, vhostName, instanceName, addedRouters, balancerName, proxyList);
+        } else {
+            Set<String> removed = new HashSet<String>();
+            try {
+                removeRoutes(agentClient, vhostID, removedRoutes, removed, deadline);
+            } catch (FrontendManagerBeanException e) {
+                error = e;
+            }
+            for (String routerAddress : removed) {
+                proxyList.remove(removedRoutes.get(routerAddress));
+            }
+            List<Callable<Void>> requests = new ArrayList<Callable<Void>>();
+            addRouteRequests(requests, agentClient, vhostID, instanceName, addedRouters, proxyList, deadline);
+            try {
+                sendRequests(requests);
+            } catch (FrontendManagerBeanException e) {
+                error = e;
+            }
+        }
 
-          Vhost vhost = sendRequestWithReply(
-                  REST_TYPE.POST,
-                  getUrl(apiUrl, "/vhostmanager/vhost"),
-                  params,
-                  Vhost.class);
+        // the routes changed so far are recorded, even if some requests failed
+        VirtualHostVO updatedVhost = new VirtualHostVO(vhostName, vhostID);
+        updatedVhost.setProxypassDirectives(proxyList);
+        writeFrontend(frontendName, Collections.singletonList(updatedVhost),
+                Collections.singleton(vhostName));
+        Future<Void> reload;
+        if (push) {
+            reload = pushConfiguration(frontendName, agentClient, deadline);
+        } else if (ConfigurationPusher.PUSH_VHOST_ID.equals(vhostID)) {
+            // left by the push mode: the recorded routes are created on the agent, the removed ones dropped
+            reload = runtime.getReconciler().reconcileLocked(frontendName, deadline);
+        } else {
+            reload = runtime.getReloadScheduler().requestReload(frontendName, agentClient);
+        }
+        if (error != null) {
+            throw error;
+        }
+        return reload;
+    }
 
-          VirtualHostVO virtualHostVO = new VirtualHostVO(vhostName, String.valueOf(vhost.getId()));
+    /**
+     * Create several vhosts on a frontend
+     *
+     * @param frontendName   Name of the Frontend
+     * @param vhostToRouters Target router list of each vhost to create
+     * @return the result of each vhost creation
+     * @throws org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException
+     *
+     */
+    @Override
+    public List<OperationResult> createVhosts(String frontendName, Map<String, List<String>> vhostToRouters)
+            throws FrontendManagerBeanException {
 
+        logger.info("Vhost(s) " + vhostToRouters.keySet() + " creating ....");
 
-          paasFrontend.getVirtualHosts().add(virtualHostVO);
-          paasFrontend = srPaasFrontendFacade.updateFrontend(paasFrontend);*/
+        List<OperationResult> results = new ArrayList<OperationResult>();
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            Deadline deadline = runtime.newDeadline();
+            Future<Void> reload;
+            Lock lock = runtime.getFrontendLocks().lock(frontendName);
+            try {
+                reload = doCreateVhosts(frontendName, vhostToRouters, results, deadline);
+            } finally {
+                lock.unlock();
+            }
+            // wait for the reload out of the lock so that it covers the concurrent changes
+            if (reload != null) {
+                runtime.getReloadScheduler().awaitIfRequired(frontendName, reload);
+            }
+            success = allSucceeded(results);
+        } finally {
+            runtime.getMetrics().record(OperationMetrics.Step.CREATE_VHOSTS, frontendName, start, success);
+        }
+        return results;
+    }
+
+    /**
+     * Create several vhosts on a locked frontend
+     *
+     * @param frontendName   Name of the Frontend
+     * @param vhostToRouters Target router list of each vhost to create
+     * @param results        List receiving the result of each vhost creation
+     * @param deadline       Deadline of the operation
+     * @return the reload covering the changes, null if nothing changed
+     * @throws FrontendManagerBeanException if the frontend cannot be updated
+     */
+    private Future<Void> doCreateVhosts(String frontendName, Map<String, List<String>> vhostToRouters,
+            List<OperationResult> results, Deadline deadline) throws FrontendManagerBeanException {
 
+        // get the Frontend from the SR topology view
+        TopologyView.FrontendEntry frontendEntry = runtime.getTopology().getFrontend(frontendName);
+        if (frontendEntry == null) {
+            throw new FrontendManagerBeanException("Frontend '" + frontendName + "' doesn't exist !");
+        }
+        PaasFrontendVO paasFrontend = frontendEntry.getFrontend();
+        // get the url of the Agent API
+        String apiUrl = paasFrontend.getApiUrl();
+        ApacheManagerClient agentClient = runtime.getAgentTransport().getClient(frontendName, apiUrl);
+        ConfigurationPusher pusher = runtime.getConfigurationPusher();
+        boolean push = pusher.isPushMode(frontendName);
+
+        List<VirtualHostVO> addedVhosts = new ArrayList<VirtualHostVO>();
+        String vhostID = push ? ConfigurationPusher.PUSH_VHOST_ID : null;
+        for (Map.Entry<String, List<String>> vhostEntry : vhostToRouters.entrySet()) {
+            String vhostName = vhostEntry.getKey();
+
+            //Do nothing if there is already a vhost with the same name
+            if (frontendEntry.getVhost(vhostName) != null) {
+                results.add(OperationResult.success(vhostName));
+                continue;
+            }
 
-            for (String routerName : targetRouterNameList) {
-                // get the router from SR
-                ApacheJkVO apacheJk = null;
-                List<ApacheJkVO> apacheJkVOList = srApacheJkEjb.findApacheJkRouters();
-                for (ApacheJkVO tmp : apacheJkVOList) {
-                    if (tmp.getName().equals(routerName)) {
-                        apacheJk = tmp;
-                        break;
+            Map<String, String> proxyList = new Hashtable<String, String>();
+            try {
+                if (vhostID == null) {
+                    vhostID = getVhostId(paasFrontend, agentClient, deadline);
+                }
+                String instanceName = getInstanceName(vhostName);
+
+                // resolve all the routers to their IP address in one pass
+                Map<String, String> routerAddresses = runtime.getRouterResolver().resolve(vhostEntry.getValue());
+
+                // in push mode, a single ProxyPass to a balancer having the routers as members; the agent API
+                // has no balancer resource, so the per-directive mode always gets one ProxyPass per router
+                BalancerConfiguration balancer = runtime.getBalancerConfiguration();
+                String balancerName = push && balancer.isEnabled()
+                        ? BalancerConfiguration.getBalancerName(instanceName) : null;
+                if (push) {
+                    // the directives are only recorded, the whole configuration is pushed afterwards
+                    if (balancerName != null) {
+                        proxyList.put(pusher.getDirectiveId(vhostName, BALANCER_ROUTE),
+                                getProxyPath(instanceName) + " " + balancer.getProxyUrl(instanceName));
                     }
+                    recordRoutes(pusher, vhostName, instanceName, routerAddresses, balancerName, proxyList);
+                } else {
+                    List<Callable<Void>> requests = new ArrayList<Callable<Void>>();
+                    addRouteRequests(requests, agentClient, vhostID, instanceName, routerAddresses, proxyList,
+                            deadline);
+                    sendRequests(requests);
                 }
-                if (apacheJk == null) {
-                    throw new FrontendManagerBeanException("Router '" + routerName + "' doesn't exist !");
+                logger.debug("proxyList : " + proxyList.size());
+            } catch (FrontendManagerBeanException e) {
+                logger.warn("Cannot create the vhost '" + vhostName + "': " + e.getMessage());
+                if (!push) {
+                    removeProxyDirectives(agentClient, vhostID, proxyList);
                 }
+                results.add(OperationResult.failure(vhostName, e.getMessage()));
+                continue;
+            }
 
-                IaasComputeVO iaasCompute = srPaasResourceIaasComputeLink.findIaasComputeByPaasResource(apacheJk.getId());
-                if (iaasCompute == null) {
-                    throw new FrontendManagerBeanException("Cannot find the IaaS Compute for the Router '" + routerName + "!");
-                }
+            VirtualHostVO virtualHost = new VirtualHostVO(vhostName, vhostID);
+            virtualHost.setProxypassDirectives(proxyList);
+            addedVhosts.add(virtualHost);
+            results.add(OperationResult.success(vhostName));
+        }
 
-                String[] splitName = vhostName.split(".jpaas.org");
-                if (splitName.length == 0) {
-                    throw new FrontendManagerBeanException("Error : cannot get the instance Name.");
-                }
-                String instanceName = splitName[0];
-                String proxyUrl = "http://" + iaasCompute.getIpAddress() + "/";
-                MultivaluedMap<String, String> params = new MultivaluedMapImpl();
-                params.add("path", "/" + instanceName + "/"); // Temporary. ToDo : use "/" instead of /instanceName.
-                params.add("url", proxyUrl);
+        if (addedVhosts.isEmpty()) {
+            return null;
+        }
+        writeFrontend(frontendName, addedVhosts, Collections.<String>emptySet());
+        if (push) {
+            return pushConfiguration(frontendName, agentClient, deadline);
+        }
+        // Ask for a reload
+        return runtime.getReloadScheduler().requestReload(frontendName, agentClient);
+    }
+
+    /**
+     * Remove several vhosts from a frontend
+     *
+     * @param frontendName Name of the Frontend
+     * @param vhostNames   Names of the vhosts to remove
+     * @return the result of each vhost removal
+     * @throws org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException
+     *
+     */
+    @Override
+    public List<OperationResult> removeVhosts(String frontendName, Collection<String> vhostNames)
+            throws FrontendManagerBeanException {
 
-                Directive proxyDirective = sendRequestWithReply(
-                        REST_TYPE.POST,
-                        getUrl(apiUrl, "/proxymanager/vhost/" + vhostID + "/proxypass"),
-                        params,
-                        Directive.class);
+        logger.info("Vhost(s) " + vhostNames + " deleting ....");
 
+        List<OperationResult> results = new ArrayList<OperationResult>();
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            Deadline deadline = runtime.newDeadline();
+            Future<Void> reload;
+            Lock lock = runtime.getFrontendLocks().lock(frontendName);
+            try {
+                reload = doRemoveVhosts(frontendName, vhostNames, results, deadline);
+            } finally {
+                lock.unlock();
+            }
+            // wait for the reload out of the lock so that it covers the concurrent changes
+            if (reload != null) {
+                runtime.getReloadScheduler().awaitIfRequired(frontendName, reload);
+            }
+            success = allSucceeded(results);
+        } finally {
+            runtime.getMetrics().record(OperationMetrics.Step.REMOVE_VHOSTS, frontendName, start, success);
+        }
+        return results;
+    }
 
-                Map<String,String> proxyList = new Hashtable<String, String>();
-                proxyList.put(String.valueOf(proxyDirective.getId()), proxyDirective.getValue());
-                logger.debug("proxyList : " + proxyList.size());
+    /**
+     * Create a vhost on several frontends in parallel
+     *
+     * @param frontendNames        Names of the Frontends
+     * @param vhostName            Name of the vhost to create
+     * @param targetRouterNameList Target router list
+     * @param quorum               Number of frontends which must succeed, 0 for a majority
+     * @return the result of each completed frontend and the frontends still in progress
+     * @throws org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException
+     *
+     */
+    @Override
+    public QuorumResult createVhostOnFrontends(Collection<String> frontendNames, final String vhostName,
+            List<String> targetRouterNameList, int quorum) throws FrontendManagerBeanException {
+
+        final Map<String, List<String>> vhostToRouters = new HashMap<String, List<String>>();
+        vhostToRouters.put(vhostName, targetRouterNameList);
+        // the per-frontend operations call the container, not this instance
+        final ILocalFrontendManager frontendManager = sessionContext.getBusinessObject(ILocalFrontendManager.class);
+        return applyOnFrontends(frontendManager, "creation of the vhost '" + vhostName + "'", frontendNames, quorum,
+                new QuorumProvisioner.FrontendOperation() {
+                    @Override
+                    public OperationResult apply(String frontendName) throws Exception {
+                        return frontendManager.createVhosts(frontendName, vhostToRouters).get(0);
+                    }
+                });
+    }
 
+    /**
+     * Remove a vhost from several frontends in parallel
+     *
+     * @param frontendNames Names of the Frontends
+     * @param vhostName     Name of the vhost to remove
+     * @param quorum        Number of frontends which must succeed, 0 for a majority
+     * @return the result of each completed frontend and the frontends still in progress
+     * @throws org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException
+     *
+     */
+    @Override
+    public QuorumResult removeVhostFromFrontends(Collection<String> frontendNames, final String vhostName, int quorum)
+            throws FrontendManagerBeanException {
 
-                virtualHostVOList = paasFrontend.getVirtualHosts();
-                for (VirtualHostVO tmp : virtualHostVOList) {
-                    if (tmp.getName().equals(vhostName)) {
-                        tmp.setProxypassDirectives(proxyList);
-                        break;
+        // the per-frontend operations call the container, not this instance
+        final ILocalFrontendManager frontendManager = sessionContext.getBusinessObject(ILocalFrontendManager.class);
+        return applyOnFrontends(frontendManager, "removal of the vhost '" + vhostName + "'", frontendNames, quorum,
+                new QuorumProvisioner.FrontendOperation() {
+                    @Override
+                    public OperationResult apply(String frontendName) throws Exception {
+                        return frontendManager.removeVhosts(frontendName, Collections.singletonList(vhostName))
+                                .get(0);
                     }
-                }
+                });
+    }
 
-            }
+    /**
+     * Apply an operation to several frontends in parallel, each one on an
+     * asynchronous invocation of the bean
+     * @param frontendManager Local business object of the bean
+     * @param description   Description of the operation
+     * @param frontendNames Names of the Frontends
+     * @param quorum        Number of frontends which must succeed, 0 for a majority
+     * @param operation     The operation
+     * @return the result of each completed frontend and the frontends still in progress
+     * @throws FrontendManagerBeanException if the frontend set or the quorum is not valid
+     */
+    private QuorumResult applyOnFrontends(final ILocalFrontendManager frontendManager, String description,
+            Collection<String> frontendNames, int quorum, QuorumProvisioner.FrontendOperation operation)
+            throws FrontendManagerBeanException {
+
+        logger.info("Frontends " + frontendNames + " : " + description + " ....");
 
-            paasFrontend = srPaasFrontendFacade.updateFrontend(paasFrontend);
-            // Ask for a reload
-            sendRequestWithReply(
-                    REST_TYPE.POST,
-                    getUrl(apiUrl, "apache-manager/server/action/reload"),
-                    null,
-                    null);
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            QuorumResult result = runtime.getQuorumProvisioner().apply(description, frontendNames, quorum, operation,
+                    new Executor() {
+                        @Override
+                        public void execute(Runnable task) {
+                            frontendManager.runAsynchronously(task);
+                        }
+                    });
+            success = result.isQuorumReached();
+            return result;
+        } finally {
+            runtime.getMetrics().record(OperationMetrics.Step.QUORUM, OperationMetrics.ALL_FRONTENDS, start, success);
         }
+    }
 
+    /**
+     * Run a task on a thread of the container
+     * @param task the task
+     */
+    @Asynchronous
+    @Override
+    public void runAsynchronously(Runnable task) {
+        task.run();
     }
 
     /**
-     * Remove a vhost
+     * Reconcile the proxypass directives of the frontend agent with SR
      *
-     * @param frontendName  Name of the Frontend
-     * @param vhostName     Name of the vhost to create
+     * @param frontendName Name of the Frontend
+     * @return the result of the reconciliation
      * @throws org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException
      *
      */
     @Override
-    public void removeVhost(String frontendName, String vhostName) throws FrontendManagerBeanException {
+    public OperationResult reconcileFrontend(String frontendName) throws FrontendManagerBeanException {
+        logger.info("Frontend '" + frontendName + "' reconciling ....");
+        return runtime.getReconciler().reconcile(frontendName);
+    }
 
-        logger.info("Vhost '" + vhostName + "' deleting ....");
+    /**
+     * List the frontends
+     *
+     * @return the frontends, in name order
+     * @throws org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException
+     *
+     */
+    @Override
+    public List<FrontendSummary> listFrontends() throws FrontendManagerBeanException {
+        List<String> frontendNames = runtime.getTopology().getFrontendNames();
+        Collections.sort(frontendNames);
+        List<FrontendSummary> frontendSummaries = new ArrayList<FrontendSummary>(frontendNames.size());
+        for (String frontendName : frontendNames) {
+            TopologyView.FrontendEntry frontendEntry = runtime.getTopology().getFrontend(frontendName);
+            if (frontendEntry != null) {
+                frontendSummaries.add(new FrontendSummary(frontendName, frontendEntry.getFrontend().getApiUrl(),
+                        frontendEntry.getVhostCount()));
+            }
+        }
+        return frontendSummaries;
+    }
 
-        // get the Frontend from SR
-        PaasFrontendVO paasFrontend = null;
-        List<PaasFrontendVO> frontendVOList = srPaasFrontendFacade.findFrontends();
-        for (PaasFrontendVO tmp : frontendVOList) {
-            if (tmp.getName().equals(frontendName)) {
-                paasFrontend = tmp;
-                break;
+    /**
+     * List the vhosts of a frontend, one page at a time
+     *
+     * @param frontendName Name of the Frontend
+     * @param cursor       Cursor returned with the previous page, null for the first page
+     * @param pageSize     Maximum number of vhosts of the page
+     * @return the page of vhost names
+     * @throws org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException
+     *
+     */
+    @Override
+    public VhostPage listVhosts(String frontendName, String cursor, int pageSize)
+            throws FrontendManagerBeanException {
+        if (pageSize <= 0) {
+            throw new FrontendManagerBeanException("Invalid page size " + pageSize);
+        }
+        TopologyView.FrontendEntry frontendEntry = runtime.getTopology().getFrontend(frontendName);
+        if (frontendEntry == null) {
+            throw new FrontendManagerBeanException("Frontend '" + frontendName + "' doesn't exist !");
+        }
+        // one more name tells whether there is a next page
+        List<String> vhostNames = frontendEntry.getVhostNames(cursor, pageSize + 1);
+        if (vhostNames.size() <= pageSize) {
+            return new VhostPage(vhostNames, null);
+        }
+        vhostNames = new ArrayList<String>(vhostNames.subList(0, pageSize));
+        return new VhostPage(vhostNames, vhostNames.get(pageSize - 1));
+    }
+
+    /**
+     * Get the routing of a vhost
+     *
+     * @param frontendName Name of the Frontend
+     * @param vhostName    Name of the vhost
+     * @return the routing of the vhost, null if the vhost doesn't exist
+     * @throws org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException
+     *
+     */
+    @Override
+    public VhostRouting getVhostRouting(String frontendName, String vhostName) throws FrontendManagerBeanException {
+        TopologyView.FrontendEntry frontendEntry = runtime.getTopology().getFrontend(frontendName);
+        if (frontendEntry == null) {
+            throw new FrontendManagerBeanException("Frontend '" + frontendName + "' doesn't exist !");
+        }
+        VirtualHostVO virtualHost = frontendEntry.getVhost(vhostName);
+        if (virtualHost == null) {
+            return null;
+        }
+        List<String> routerAddresses = new ArrayList<String>();
+        for (Map.Entry<String, String> route : frontendEntry.getRoutes(vhostName).entrySet()) {
+            // the directives not targeting a router, like the ProxyPass to a balancer, are their own route
+            if (!route.getKey().equals(route.getValue()) && !HealthMonitor.isEvicted(route.getValue())) {
+                routerAddresses.add(route.getKey());
             }
         }
-        if (paasFrontend == null) {
+        Collections.sort(routerAddresses);
+        List<String> proxyPasses = new ArrayList<String>();
+        Map<String, String> proxyList = virtualHost.getProxypassDirectives();
+        if (proxyList != null) {
+            // the directives of the vhost are a Hashtable, copied under its lock
+            for (Map.Entry<String, String> directive : new HashMap<String, String>(proxyList).entrySet()) {
+                if (!HealthMonitor.isEvicted(directive.getKey())) {
+                    proxyPasses.add(directive.getValue());
+                }
+            }
+            Collections.sort(proxyPasses);
+        }
+        return new VhostRouting(vhostName, routerAddresses, proxyPasses);
+    }
+
+    /**
+     * Remove several vhosts from a locked frontend
+     *
+     * @param frontendName Name of the Frontend
+     * @param vhostNames   Names of the vhosts to remove
+     * @param results      List receiving the result of each vhost removal
+     * @param deadline     Deadline of the operation
+     * @return the reload covering the changes, null if nothing changed
+     * @throws FrontendManagerBeanException if the frontend cannot be updated
+     */
+    private Future<Void> doRemoveVhosts(String frontendName, Collection<String> vhostNames,
+            List<OperationResult> results, Deadline deadline) throws FrontendManagerBeanException {
+
+        // get the Frontend from the SR topology view
+        TopologyView.FrontendEntry frontendEntry = runtime.getTopology().getFrontend(frontendName);
+        if (frontendEntry == null) {
             throw new FrontendManagerBeanException("Frontend '" + frontendName + "' doesn't exist !");
         }
+        PaasFrontendVO paasFrontend = frontendEntry.getFrontend();
         // get the url of the Agent API
         String apiUrl = paasFrontend.getApiUrl();
+        ApacheManagerClient agentClient = runtime.getAgentTransport().getClient(frontendName, apiUrl);
+        boolean push = runtime.getConfigurationPusher().isPushMode(frontendName);
+
+        Set<String> removedVhosts = new HashSet<String>();
+        List<VirtualHostVO> updatedVhosts = new ArrayList<VirtualHostVO>();
+        boolean pushedVhostRemoved = false;
+        for (String vhostName : vhostNames) {
+
+            // get the vhost
+            VirtualHostVO virtualHost = frontendEntry.getVhost(vhostName);
+            if (virtualHost == null) {
+                results.add(OperationResult.failure(vhostName, "Vhost '" + vhostName + "' doesn't exist !"));
+                continue;
+            }
+            if (push || ConfigurationPusher.PUSH_VHOST_ID.equals(virtualHost.getVhostId())) {
+                // no directive of its own on the agent, the next push leaves it out
+                pushedVhostRemoved = true;
+                removedVhosts.add(vhostName);
+                results.add(OperationResult.success(vhostName));
+                continue;
+            }
 
-        // get the vhost
-        VirtualHostVO virtualHost = null;
-        List<VirtualHostVO> virtualHostVOList = paasFrontend.getVirtualHosts();
-        for (VirtualHostVO tmp : virtualHostVOList) {
-            if (tmp.getName().equals(vhostName)) {
-                virtualHost = tmp;
-                break;
+            //Temporary : do not delete the vhost, delete the corresponding ProxyPass
+            /*agentClient.removeVhost(virtualHost.getVhostId());*/
+            Map<String, String> routes = frontendEntry.getRoutes(vhostName);
+            Set<String> removedRoutes = new HashSet<String>();
+            try {
+                // remove exactly the directive owned by the vhost on each router
+                removeRoutes(agentClient, virtualHost.getVhostId(), routes, removedRoutes, deadline);
+            } catch (FrontendManagerBeanException e) {
+                logger.warn("Cannot remove the vhost '" + vhostName + "': " + e.getMessage());
+                results.add(OperationResult.failure(vhostName, e.getMessage()));
+            }
+            if (removedRoutes.size() == routes.size()) {
+                removedVhosts.add(vhostName);
+                results.add(OperationResult.success(vhostName));
+            } else if (!removedRoutes.isEmpty()) {
+                // only forget the directives which were actually removed, the cached vhost is replaced
+                Map<String, String> proxyList = new Hashtable<String, String>(virtualHost.getProxypassDirectives());
+                for (String routerAddress : removedRoutes) {
+                    proxyList.remove(routes.get(routerAddress));
+                }
+                VirtualHostVO updatedVhost = new VirtualHostVO(vhostName, virtualHost.getVhostId());
+                updatedVhost.setProxypassDirectives(proxyList);
+                updatedVhosts.add(updatedVhost);
             }
         }
-        if (virtualHost == null) {
-            throw new FrontendManagerBeanException("Vhost '" + vhostName + "' doesn't exist !");
+
+        if (removedVhosts.isEmpty() && updatedVhosts.isEmpty()) {
+            return null;
+        }
+        if (removedVhosts.size() == 1 && updatedVhosts.isEmpty()) {
+            long start = System.nanoTime();
+            boolean success = false;
+            try {
+                srPaasFrontendFacade.removeVirtualHost(paasFrontend.getId(), removedVhosts.iterator().next());
+                success = true;
+            } catch (RuntimeException e) {
+                runtime.getTopology().invalidate(frontendName);
+                throw new FrontendManagerBeanException("Cannot update the Frontend " + frontendName + ".", e);
+            } finally {
+                runtime.getMetrics().record(OperationMetrics.Step.SR_REMOVE_VHOST, frontendName, start, success);
+            }
+            PaasFrontendVO updatedFrontend = frontendEntry.copyFrontend();
+            removeVhosts(updatedFrontend, removedVhosts);
+            runtime.getTopology().applyChanges(frontendEntry, updatedFrontend, Collections.<VirtualHostVO>emptyList(),
+                    removedVhosts);
+        } else {
+            // the partially removed vhosts are written with their remaining directives
+            Set<String> replacedVhosts = new HashSet<String>(removedVhosts);
+            for (VirtualHostVO virtualHost : updatedVhosts) {
+                replacedVhosts.add(virtualHost.getName());
+            }
+            writeFrontend(frontendName, updatedVhosts, replacedVhosts);
+        }
+        if (push) {
+            return pushConfiguration(frontendName, agentClient, deadline);
         }
+        if (pushedVhostRemoved) {
+            // left by the push mode: its directives, listed by the agent but no longer in SR, are removed
+            return runtime.getReconciler().reconcileLocked(frontendName, deadline);
+        }
+        // Ask for a reload
+        return runtime.getReloadScheduler().requestReload(frontendName, agentClient);
+    }
 
-        //Temporary : do not delete the vhost, delete the corresponding ProxyPass
-        /*sendRequestWithReply(
-                REST_TYPE.DELETE,
-                getUrl(apiUrl, "/vhostmanager/vhost/" + virtualHost.getVhostId()),
-                null,
-                null);*/
-        Map<String,String> proxyList = virtualHost.getProxypassDirectives();
+    /**
+     * Write vhost changes of a frontend to SR. The frontend is read again from
+     * SR under the lock of the frontend and the vhost changes are merged into
+     * a copy of it, which replaces the cached frontend once written: the
+     * vhosts written by another node, or missed by the cache, are kept. SR
+     * cannot reject a stale write, so a write of another node between the read
+     * and the write is still lost. When the write fails, the frontend is read
+     * again, the changes are merged again and the write is retried.
+     * @param frontendName Name of the frontend
+     * @param addedVhosts Vhosts added to the frontend
+     * @param removedVhosts Names of the vhosts removed from the frontend, a vhost both
+     *        removed and added is replaced
+     * @throws FrontendManagerBeanException if the frontend cannot be written
+     */
+    private void writeFrontend(String frontendName, List<VirtualHostVO> addedVhosts, Set<String> removedVhosts)
+            throws FrontendManagerBeanException {
+        for (int attempt = 1; ; attempt++) {
+            TopologyView.FrontendEntry frontendEntry = runtime.getTopology().refreshFrontend(frontendName);
+            if (frontendEntry == null) {
+                throw new FrontendManagerBeanException("Frontend '" + frontendName + "' doesn't exist !");
+            }
+            PaasFrontendVO paasFrontend = frontendEntry.copyFrontend();
+            removeVhosts(paasFrontend, removedVhosts);
+            // only the vhosts actually written are indexed
+            List<VirtualHostVO> writtenVhosts = new ArrayList<VirtualHostVO>(addedVhosts.size());
+            for (VirtualHostVO virtualHost : addedVhosts) {
+                if (removedVhosts.contains(virtualHost.getName())
+                        || frontendEntry.getVhost(virtualHost.getName()) == null) {
+                    paasFrontend.getVirtualHosts().add(virtualHost);
+                    writtenVhosts.add(virtualHost);
+                } else {
+                    logger.warn("Vhost '" + virtualHost.getName() + "' was created concurrently in the Frontend '"
+                            + frontendName + "', the existing one is kept");
+                }
+            }
+            long start = System.nanoTime();
+            try {
+                srPaasFrontendFacade.updateFrontend(paasFrontend);
+                runtime.getMetrics().record(OperationMetrics.Step.SR_UPDATE_FRONTEND, frontendName, start, true);
+                // the written frontend is cached, so that its indexes are updated incrementally
+                runtime.getTopology().applyChanges(frontendEntry, paasFrontend, writtenVhosts, removedVhosts);
+                return;
+            } catch (RuntimeException e) {
+                runtime.getMetrics().record(OperationMetrics.Step.SR_UPDATE_FRONTEND, frontendName, start, false);
+                // the cached frontend is stale
+                runtime.getTopology().invalidate(frontendName);
+                if (attempt >= SR_WRITE_ATTEMPTS) {
+                    throw new FrontendManagerBeanException("Cannot update the Frontend " + frontendName + ".", e);
+                }
+                logger.debug("Update of the Frontend '" + frontendName + "' failed, retrying: " + e.getMessage());
+            }
+        }
+    }
 
-        for(Iterator<Map.Entry<String, String>> it = proxyList.entrySet().iterator(); it.hasNext(); ) {
-            Map.Entry<String, String> entry = it.next();
-            if(entry.getValue().contains("/" + vhostName + "/ ")) {
-                it.remove();
+    /**
+     * Push the configuration of a frontend, as written to SR, to its agent
+     * @param frontendName Name of the frontend
+     * @param agentClient Client of the frontend agent
+     * @param deadline Deadline of the operation
+     * @return the reload covering the configuration, null if it was already applied
+     * @throws FrontendManagerBeanException if the configuration cannot be pushed
+     */
+    private Future<Void> pushConfiguration(String frontendName, ApacheManagerClient agentClient, Deadline deadline)
+            throws FrontendManagerBeanException {
+        TopologyView.FrontendEntry frontendEntry = runtime.getTopology().getFrontend(frontendName);
+        if (frontendEntry == null) {
+            throw new FrontendManagerBeanException("Frontend '" + frontendName + "' doesn't exist !");
+        }
+        ConfigurationPusher pusher = runtime.getConfigurationPusher();
+        try {
+            return pusher.push(frontendName, frontendEntry.getFrontend(), agentClient, runtime.getReloadScheduler(),
+                    deadline, false);
+        } catch (FrontendManagerBeanException e) {
+            if (pusher.isPushMode(frontendName)) {
+                throw e;
+            }
+            // the agent has no configuration resource: the recorded vhosts are created directive by directive
+            return runtime.getReconciler().reconcileLocked(frontendName, deadline);
+        }
+    }
 
-                sendRequestWithReply(
-                        REST_TYPE.DELETE,
-                        getUrl(apiUrl, "/proxymanager/vhost/" + virtualHost.getVhostId() + "/proxypass/" + entry.getKey()),
-                        null,
-                        null);
+    /**
+     * Remove vhosts from a frontend value object
+     * @param paasFrontend the frontend
+     * @param vhostNames Names of the vhosts to remove
+     */
+    private void removeVhosts(PaasFrontendVO paasFrontend, Set<String> vhostNames) {
+        if (vhostNames.isEmpty()) {
+            return;
+        }
+        for (Iterator<VirtualHostVO> it = paasFrontend.getVirtualHosts().iterator(); it.hasNext(); ) {
+            if (vhostNames.contains(it.next().getName())) {
+                it.remove();
             }
         }
+    }
 
-        srPaasFrontendFacade.removeVirtualHost(paasFrontend.getId(), vhostName);
+    /**
+     * Get the id of the Apache vhost hosting the vhosts of a frontend
+     * @param paasFrontend the frontend
+     * @param agentClient Client of the frontend agent
+     * @param deadline Deadline of the operation
+     * @return the Apache vhost id
+     * @throws FrontendManagerBeanException if the Apache vhost cannot be created
+     */
+    private String getVhostId(PaasFrontendVO paasFrontend, ApacheManagerClient agentClient, Deadline deadline)
+            throws FrontendManagerBeanException {
 
-        // Ask for a reload
-        sendRequestWithReply(
-                REST_TYPE.POST,
-                getUrl(apiUrl, "apache-manager/server/action/reload"),
-                null,
-                null);
+        //Temporary : Use the same vhost. Test if a vhost exists, use the same vhostID if it's the case,
+        // if not create the vhost on the Apache Server
+        for (VirtualHostVO virtualHost : paasFrontend.getVirtualHosts()) {
+            // the pushed vhosts have no Apache vhost of their own
+            if (!ConfigurationPusher.PUSH_VHOST_ID.equals(virtualHost.getVhostId())) {
+                return virtualHost.getVhostId();
+            }
+        }
+        logger.debug("No vhost on the machine: create one");
+        Vhost vhost = agentClient.createVhost("*:80", deadline);
 
+        return String.valueOf(vhost.getId());
     }
 
-
-
+    /**
+     * Record the routes of a pushed vhost to routers: one balancer member per
+     * router if the vhost has a balancer, one ProxyPass per router otherwise
+     * @param pusher the configuration pusher
+     * @param vhostName Name of the vhost
+     * @param instanceName Name of the instance served by the vhost
+     * @param routerAddresses IP address of each router, by router name
+     * @param balancerName Name of the balancer of the vhost, null if it has none
+     * @param proxyList Map receiving the value of each recorded directive by id
+     */
+    private void recordRoutes(ConfigurationPusher pusher, String vhostName, String instanceName,
+            Map<String, String> routerAddresses, String balancerName, Map<String, String> proxyList) {
+        for (Map.Entry<String, String> router : routerAddresses.entrySet()) {
+            String directiveId = pusher.getDirectiveId(vhostName, router.getValue());
+            if (balancerName != null) {
+                proxyList.put(BalancerConfiguration.MEMBER_PREFIX + directiveId,
+                        BalancerConfiguration.getMemberValue(balancerName, getProxyUrl(router.getValue()),
+                                runtime.getBalancerConfiguration().getWeight(router.getKey())));
+            } else {
+                proxyList.put(directiveId, getProxyPath(instanceName) + " " + getProxyUrl(router.getValue()));
+            }
+        }
+    }
 
     /**
-     * @param agentApi the api url
-     * @param path the path to add
-     * @return the HTTP URL
+     * Build the agent requests creating the routes of a vhost to routers,
+     * one ProxyPass per router
+     * @param requests List receiving the requests
+     * @param agentClient Client of the frontend agent
+     * @param vhostID Id of the Apache vhost
+     * @param instanceName Name of the instance served by the vhost
+     * @param routerAddresses IP address of each router, by router name
+     * @param proxyList Map receiving the value of each created directive by id
+     * @param deadline Deadline of the operation
      */
-    private String getUrl(final String agentApi, final String path) {
-        return agentApi + "/" + path;
+    private void addRouteRequests(List<Callable<Void>> requests, ApacheManagerClient agentClient, String vhostID,
+            String instanceName, Map<String, String> routerAddresses, Map<String, String> proxyList,
+            Deadline deadline) {
+        for (String routerAddress : routerAddresses.values()) {
+            requests.add(newProxyPassRequest(agentClient, vhostID, getProxyPath(instanceName),
+                    getProxyUrl(routerAddress), proxyList, deadline));
+        }
     }
 
     /**
-     * Send a REST request and get response
-     *
-     * @param type
-     *            Http type of the request
-     * @param url
-     *            request path
-     * @param params
-     *            XML content of the request
-     * @param responseClass
-     *            response class
-     * @return ResponseClass response class
+     * Build the agent request creating a proxypass directive
+     * @param agentClient Client of the frontend agent
+     * @param vhostID Id of the Apache vhost
+     * @param path Path of the directive
+     * @param url Target url of the directive
+     * @param proxyList Map receiving the value of the created directive by id
+     * @param deadline Deadline of the operation
+     * @return the request
      */
-    private <ResponseClass> ResponseClass sendRequestWithReply(REST_TYPE type,
-            String url, MultivaluedMap<String, String> params,
-            java.lang.Class<ResponseClass> responseClass)
-            throws org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException {
+    private Callable<Void> newProxyPassRequest(final ApacheManagerClient agentClient, final String vhostID,
+            final String path, final String url, final Map<String, String> proxyList, final Deadline deadline) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                Directive proxyDirective = agentClient.addProxyPass(vhostID, path, url, deadline);
+                proxyList.put(String.valueOf(proxyDirective.getId()), proxyDirective.getValue());
+                return null;
+            }
+        };
+    }
 
-        Client client = Client.create();
+    /**
+     * Send the agent requests creating the directives of a vhost. The
+     * directives are independent and are sent concurrently.
+     * @param requests the requests
+     * @throws FrontendManagerBeanException if a directive cannot be created,
+     *         the other requests are completed anyway
+     */
+    private void sendRequests(List<Callable<Void>> requests) throws FrontendManagerBeanException {
+
+        if (requests.size() == 1) {
+            // no need to hand the request over to another thread
+            try {
+                requests.get(0).call();
+            } catch (FrontendManagerBeanException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new FrontendManagerBeanException("Cannot create a proxy directive", e);
+            }
+            return;
+        }
 
-        WebResource webResource = client.resource(removeRedundantForwardSlash(url));
+        List<Future<Void>> responses;
+        try {
+            responses = runtime.getAgentExecutor().invokeAll(requests);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FrontendManagerBeanException("Interrupted while creating the proxy directives", e);
+        }
 
-        if (params != null) {
-            webResource = webResource.queryParams(params);
+        FrontendManagerBeanException error = null;
+        for (Future<Void> response : responses) {
+            try {
+                response.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof FrontendManagerBeanException) {
+                    error = (FrontendManagerBeanException) e.getCause();
+                } else {
+                    error = new FrontendManagerBeanException("Cannot create a proxy directive", e.getCause());
+                }
+            } catch (CancellationException e) {
+                error = new FrontendManagerBeanException("Proxy directive creation cancelled", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                error = new FrontendManagerBeanException("Interrupted while creating the proxy directives", e);
+            }
+        }
+        if (error != null) {
+            throw error;
         }
+    }
+
+    /**
+     * Remove the proxypass directives of a vhost. The directives of the
+     * different routers are independent and are removed concurrently, the
+     * requests in flight to the agent being bounded by its connection limit.
+     * All the outcomes are gathered before returning.
+     * @param agentClient Client of the frontend agent
+     * @param vhostID Id of the Apache vhost
+     * @param routes Id of the directive to remove by router address
+     * @param removedRoutes Set receiving the address of each router whose directive was removed
+     * @param deadline Deadline of the operation
+     * @throws FrontendManagerBeanException if a directive cannot be removed,
+     *         the directives removed anyway are in removedRoutes
+     */
+    private void removeRoutes(final ApacheManagerClient agentClient, final String vhostID,
+            Map<String, String> vhostRoutes, Set<String> removedRoutes, final Deadline deadline)
+            throws FrontendManagerBeanException {
 
-        ClientResponse clientResponse;
-        switch (type) {
-            case PUT:
-                clientResponse = webResource.put(ClientResponse.class);
-                break;
-            case GET:
-                clientResponse = webResource.get(ClientResponse.class);
-                break;
-            case POST:
-                clientResponse = webResource.post(ClientResponse.class);
-                break;
-            case DELETE:
-                clientResponse = webResource.delete(ClientResponse.class);
-                break;
-            default:// put
-                clientResponse = webResource.put(ClientResponse.class);
-                break;
+        // the evicted routes are no longer on the agent, they are only dropped from SR
+        Map<String, String> routes = new HashMap<String, String>();
+        for (Map.Entry<String, String> route : vhostRoutes.entrySet()) {
+            if (HealthMonitor.isEvicted(route.getValue())) {
+                removedRoutes.add(route.getKey());
+            } else {
+                routes.put(route.getKey(), route.getValue());
+            }
+        }
+        if (routes.isEmpty()) {
+            return;
+        }
+        if (routes.size() == 1) {
+            // no need to hand the request over to another thread
+            Map.Entry<String, String> route = routes.entrySet().iterator().next();
+            agentClient.removeProxyPass(vhostID, route.getValue(), deadline);
+            removedRoutes.add(route.getKey());
+            return;
         }
 
-        int status = clientResponse.getStatus();
+        List<String> routerAddresses = new ArrayList<String>();
+        List<Callable<Void>> requests = new ArrayList<Callable<Void>>();
+        for (Map.Entry<String, String> route : routes.entrySet()) {
+            final String directiveId = route.getValue();
+            routerAddresses.add(route.getKey());
+            requests.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    agentClient.removeProxyPass(vhostID, directiveId, deadline);
+                    return null;
+                }
+            });
+        }
 
-        if (status != HTTP_STATUS_ACCEPTED && status != HTTP_STATUS_OK
-                && status != HTTP_STATUS_NO_CONTENT && status != HTTP_STATUS_CREATED) {
-            throw new org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException(
-                    "Error on JOnAS agent request : " + status);
+        List<Future<Void>> responses;
+        try {
+            responses = runtime.getAgentExecutor().invokeAll(requests);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FrontendManagerBeanException("Interrupted while removing the proxypass directives", e);
         }
 
-        ResponseClass r = null;
+        FrontendManagerBeanException error = null;
+        for (int i = 0; i < responses.size(); i++) {
+            try {
+                responses.get(i).get();
+                removedRoutes.add(routerAddresses.get(i));
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof FrontendManagerBeanException) {
+                    error = (FrontendManagerBeanException) e.getCause();
+                } else {
+                    error = new FrontendManagerBeanException("Cannot remove a proxypass directive", e.getCause());
+                }
+            } catch (CancellationException e) {
+                error = new FrontendManagerBeanException("Proxypass directive removal cancelled", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                error = new FrontendManagerBeanException("Interrupted while removing the proxypass directives", e);
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
 
-        if (status != HTTP_STATUS_NO_CONTENT) {
-            //ToDo Apache-Manager REST interfaces need to be harmonized
-/*            if (clientResponse.getType() != MediaType.APPLICATION_XML_TYPE) {
-                throw new FrontendManagerBeanException(
-                        "Error on JOnAS agent response, unexpected type : "
-                                + clientResponse.getType());
-            }*/
+    /**
+     * Remove proxypass directives from the agent, ignoring errors. Used to
+     * roll back a partially created vhost.
+     * @param agentClient Client of the frontend agent
+     * @param vhostID Id of the Apache vhost
+     * @param directives Value of the directives by id
+     */
+    private void removeProxyDirectives(ApacheManagerClient agentClient, String vhostID,
+            Map<String, String> directives) {
+        for (Map.Entry<String, String> directive : directives.entrySet()) {
+            try {
+                // the rollback is not bound to the deadline of the failed operation
+                agentClient.removeProxyPass(vhostID, directive.getKey(), Deadline.NONE);
+            } catch (FrontendManagerBeanException e) {
+                logger.warn("Cannot remove the proxy directive " + directive.getKey() + ": " + e.getMessage());
+            }
+        }
+    }
 
-            if (responseClass != null)
-                r = clientResponse.getEntity(responseClass);
+    /**
+     * @param vhostName Name of the vhost
+     * @return Name of the instance served by the vhost
+     * @throws FrontendManagerBeanException if the name is not a valid vhost name
+     */
+    private String getInstanceName(String vhostName) throws FrontendManagerBeanException {
+        String[] splitName = vhostName.split(".jpaas.org");
+        if (splitName.length == 0) {
+            throw new FrontendManagerBeanException("Error : cannot get the instance Name.");
         }
+        return splitName[0];
+    }
 
-        client.destroy();
+    /**
+     * @param instanceName Name of the instance served by a vhost
+     * @return the path of the proxypass directives of the vhost
+     */
+    private static String getProxyPath(String instanceName) {
+        return "/" + instanceName + "/"; // Temporary. ToDo : use "/" instead of /instanceName.
+    }
 
-        return r;
+    /**
+     * @param routerAddress IP address of a router
+     * @return the target url of the proxypass directive to the router
+     */
+    private static String getProxyUrl(String routerAddress) {
+        return "http://" + routerAddress + "/";
+    }
 
+    /**
+     * @param results results of an operation
+     * @return true if all the results are successful
+     */
+    private boolean allSucceeded(List<OperationResult> results) {
+        for (OperationResult result : results) {
+            if (!result.isSuccess()) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
-     * Remove redundant forward slash in a String url
-     * @param s a String url
-     * @return The String url without redundant forward slash
+     * @param result result of an operation
+     * @throws FrontendManagerBeanException if the operation failed
      */
-    private String removeRedundantForwardSlash(String s) {
-        String tmp = s.replaceAll("/+", "/");
-        return tmp.replaceAll(":/", "://");
+    private void checkResult(OperationResult result) throws FrontendManagerBeanException {
+        if (!result.isSuccess()) {
+            throw new FrontendManagerBeanException(result.getMessage());
+        }
     }
 }
@@ -0,0 +1,290 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.bean;
+
+import org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException;
+import org.ow2.jonas.jpaas.frontend.manager.api.OperationResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JMX view of the frontend manager metrics
+ */
+public class FrontendMetrics implements FrontendMetricsMBean {
+
+    /**
+     * Name of the MBean
+     */
+    public static final String OBJECT_NAME = "org.ow2.jonas.jpaas.frontend.manager:type=Metrics";
+
+    /**
+     * The metrics
+     */
+    private final OperationMetrics metrics;
+
+    /**
+     * Apache reload scheduler
+     */
+    private final ReloadScheduler reloadScheduler;
+
+    /**
+     * REST clients of the Apache agents
+     */
+    private final AgentTransport agentTransport;
+
+    /**
+     * Apply mode and whole-configuration pushes of the frontends
+     */
+    private final ConfigurationPusher configurationPusher;
+
+    /**
+     * Reconciler of the frontends, moving a frontend to its new apply mode
+     */
+    private final Reconciler reconciler;
+
+    /**
+     * Provisioner of the operations applied to a quorum of frontends
+     */
+    private final QuorumProvisioner quorumProvisioner;
+
+    /**
+     * Health monitor of the routers
+     */
+    private final HealthMonitor healthMonitor;
+
+    /**
+     * Applier of the operation journal, null if the journal is disabled
+     */
+    private final JournalApplier journalApplier;
+
+    /**
+     * Constructor
+     * @param metrics the metrics
+     * @param reloadScheduler Apache reload scheduler
+     * @param agentTransport REST clients of the Apache agents
+     * @param configurationPusher Apply mode and whole-configuration pushes of the frontends
+     * @param reconciler Reconciler of the frontends
+     * @param quorumProvisioner Provisioner of the operations applied to a quorum of frontends
+     * @param healthMonitor Health monitor of the routers
+     * @param journalApplier Applier of the operation journal, null if the journal is disabled
+     */
+    public FrontendMetrics(OperationMetrics metrics, ReloadScheduler reloadScheduler, AgentTransport agentTransport,
+            ConfigurationPusher configurationPusher, Reconciler reconciler, QuorumProvisioner quorumProvisioner,
+            HealthMonitor healthMonitor, JournalApplier journalApplier) {
+        this.metrics = metrics;
+        this.reloadScheduler = reloadScheduler;
+        this.agentTransport = agentTransport;
+        this.configurationPusher = configurationPusher;
+        this.reconciler = reconciler;
+        this.quorumProvisioner = quorumProvisioner;
+        this.healthMonitor = healthMonitor;
+        this.journalApplier = journalApplier;
+    }
+
+    @Override
+    public String[] getSteps() {
+        OperationMetrics.Step[] steps = OperationMetrics.Step.values();
+        String[] names = new String[steps.length];
+        for (int i = 0; i < steps.length; i++) {
+            names[i] = steps[i].name();
+        }
+        return names;
+    }
+
+    @Override
+    public String[] getFrontends() {
+        List<String> frontendNames = metrics.getFrontendNames();
+        return frontendNames.toArray(new String[frontendNames.size()]);
+    }
+
+    @Override
+    public String[] getSummary() {
+        List<String> lines = new ArrayList<String>();
+        for (String frontendName : metrics.getFrontendNames()) {
+            for (OperationMetrics.Step step : OperationMetrics.Step.values()) {
+                LatencyHistogram histogram = metrics.getHistogram(step, frontendName);
+                if (histogram == null || histogram.getCount() == 0) {
+                    continue;
+                }
+                lines.add(String.format("%s %s calls=%d failures=%d mean=%.3fms p50=%.3fms p99=%.3fms max=%.3fms",
+                        step.name(), frontendName, histogram.getCount(), histogram.getFailures(),
+                        histogram.getMean(), histogram.getPercentile(50), histogram.getPercentile(99),
+                        histogram.getMax()));
+            }
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    @Override
+    public long getSuccessCount(String step, String frontendName) {
+        LatencyHistogram histogram = getHistogram(step, frontendName);
+        return histogram == null ? 0 : histogram.getSuccesses();
+    }
+
+    @Override
+    public long getFailureCount(String step, String frontendName) {
+        LatencyHistogram histogram = getHistogram(step, frontendName);
+        return histogram == null ? 0 : histogram.getFailures();
+    }
+
+    @Override
+    public double getLatencyPercentile(String step, String frontendName, double percentile) {
+        LatencyHistogram histogram = getHistogram(step, frontendName);
+        return histogram == null ? 0 : histogram.getPercentile(percentile);
+    }
+
+    @Override
+    public long getRequestedReloads() {
+        return reloadScheduler.getRequestedReloads();
+    }
+
+    @Override
+    public long getPerformedReloads() {
+        return reloadScheduler.getPerformedReloads();
+    }
+
+    @Override
+    public long getFailedReloads() {
+        return reloadScheduler.getFailedReloads();
+    }
+
+    @Override
+    public double getCoalescingRatio() {
+        return reloadScheduler.getCoalescingRatio();
+    }
+
+    @Override
+    public String[] getAgentStates() {
+        List<String> lines = new ArrayList<String>();
+        for (Map.Entry<String, CircuitBreaker> breaker : agentTransport.getBreakers().entrySet()) {
+            lines.add(breaker.getKey() + " " + breaker.getValue().getState() + " failures="
+                    + breaker.getValue().getFailures() + " rejected=" + breaker.getValue().getRejected());
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    @Override
+    public String[] getApplyModes() {
+        List<String> lines = new ArrayList<String>();
+        for (Map.Entry<String, Boolean> mode : configurationPusher.getModes().entrySet()) {
+            lines.add(mode.getKey() + " " + (mode.getValue() ? "push" : "rest"));
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    @Override
+    public String setPushMode(String frontendName, boolean push) {
+        OperationResult result;
+        try {
+            result = reconciler.switchMode(frontendName, push);
+        } catch (FrontendManagerBeanException e) {
+            return e.getMessage();
+        }
+        return result.isSuccess() ? "OK" : result.getMessage();
+    }
+
+    @Override
+    public long getPushedConfigurations() {
+        return configurationPusher.getPushedConfigurations();
+    }
+
+    @Override
+    public long getSkippedPushes() {
+        return configurationPusher.getSkippedPushes();
+    }
+
+    @Override
+    public long getStragglers() {
+        return quorumProvisioner.getStragglers();
+    }
+
+    @Override
+    public long getFailedStragglers() {
+        return quorumProvisioner.getFailedStragglers();
+    }
+
+    @Override
+    public String[] getStragglerHistory() {
+        List<String> lines = quorumProvisioner.getHistory();
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    @Override
+    public String[] getUnhealthyRouters() {
+        List<String> addresses = healthMonitor.getUnhealthyRouters();
+        return addresses.toArray(new String[addresses.size()]);
+    }
+
+    @Override
+    public long getEvictedRoutes() {
+        return healthMonitor.getEvictedRoutes();
+    }
+
+    @Override
+    public long getReadmittedRoutes() {
+        return healthMonitor.getReadmittedRoutes();
+    }
+
+    @Override
+    public long getFailedProbes() {
+        return healthMonitor.getFailedProbes();
+    }
+
+    @Override
+    public int getJournalPendingOperations() {
+        return journalApplier == null ? 0 : journalApplier.getPendingOperations();
+    }
+
+    @Override
+    public long getJournalAppliedOperations() {
+        return journalApplier == null ? 0 : journalApplier.getAppliedOperations();
+    }
+
+    @Override
+    public long getJournalFailedOperations() {
+        return journalApplier == null ? 0 : journalApplier.getFailedOperations();
+    }
+
+    @Override
+    public long getJournalReplayedOperations() {
+        return journalApplier == null ? 0 : journalApplier.getReplayedOperations();
+    }
+
+    @Override
+    public long getJournalForces() {
+        return journalApplier == null ? 0 : journalApplier.getJournal().getForces();
+    }
+
+    @Override
+    public void reset() {
+        metrics.reset();
+    }
+
+    /**
+     * @param step Name of the step
+     * @param frontendName Name of the frontend, null for all the frontends
+     * @return the histogram, null if there is none
+     */
+    private LatencyHistogram getHistogram(String step, String frontendName) {
+        OperationMetrics.Step value = OperationMetrics.Step.valueOf(step);
+        if (frontendName == null) {
+            return metrics.getHistogram(value);
+        }
+        return metrics.getHistogram(value, frontendName);
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.bean;
+
+/**
+ * JMX view of the frontend manager metrics, and selection of the apply
+ * mode of the frontends
+ */
+public interface FrontendMetricsMBean {
+
+    /**
+     * @return the names of the recorded steps
+     */
+    public String[] getSteps();
+
+    /**
+     * @return the names of the frontends having recorded calls, ALL_FRONTENDS
+     *         standing for the steps which are not bound to a frontend
+     */
+    public String[] getFrontends();
+
+    /**
+     * @return one line per step and frontend: calls, failures, mean, p50, p99 and max latencies
+     */
+    public String[] getSummary();
+
+    /**
+     * @param step Name of the step
+     * @param frontendName Name of the frontend, null for all the frontends
+     * @return the number of successful calls
+     */
+    public long getSuccessCount(String step, String frontendName);
+
+    /**
+     * @param step Name of the step
+     * @param frontendName Name of the frontend, null for all the frontends
+     * @return the number of failed calls
+     */
+    public long getFailureCount(String step, String frontendName);
+
+    /**
+     * @param step Name of the step
+     * @param frontendName Name of the frontend, null for all the frontends
+     * @param percentile the percentile, between 0 and 100
+     * @return an upper bound of the percentile of the latencies, in milliseconds
+     */
+    public double getLatencyPercentile(String step, String frontendName, double percentile);
+
+    /**
+     * @return the number of reload requests
+     */
+    public long getRequestedReloads();
+
+    /**
+     * @return the number of reloads sent to the agents
+     */
+    public long getPerformedReloads();
+
+    /**
+     * @return the number of failed reloads
+     */
+    public long getFailedReloads();
+
+    /**
+     * @return the average number of reload requests covered by one reload
+     */
+    public double getCoalescingRatio();
+
+    /**
+     * @return one line per agent: API url, circuit breaker state, consecutive
+     *         failures and requests rejected while the circuit was open
+     */
+    public String[] getAgentStates();
+
+    /**
+     * @return one line per frontend having an explicit apply mode: name and mode (push or rest)
+     */
+    public String[] getApplyModes();
+
+    /**
+     * Select the apply mode of a frontend and move the configuration of its
+     * agent to the new mode. The mode is kept across restarts if a modes file
+     * is configured.
+     * @param frontendName Name of the frontend
+     * @param push true to push the whole configuration, false to send one request per directive
+     * @return OK, or the reason why the configuration of the agent could not be moved
+     */
+    public String setPushMode(String frontendName, boolean push);
+
+    /**
+     * @return the number of configurations pushed to the agents
+     */
+    public long getPushedConfigurations();
+
+    /**
+     * @return the number of pushes skipped because the configuration was already applied
+     */
+    public long getSkippedPushes();
+
+    /**
+     * @return the number of frontends which completed a quorum operation after it returned
+     */
+    public long getStragglers();
+
+    /**
+     * @return the number of frontends which failed a quorum operation after it returned
+     */
+    public long getFailedStragglers();
+
+    /**
+     * @return the last outcomes of the frontends which completed a quorum operation after it returned
+     */
+    public String[] getStragglerHistory();
+
+    /**
+     * @return the addresses of the routers currently considered down
+     */
+    public String[] getUnhealthyRouters();
+
+    /**
+     * @return the number of routes evicted because their router was down
+     */
+    public long getEvictedRoutes();
+
+    /**
+     * @return the number of evicted routes re-admitted because their router was up again
+     */
+    public long getReadmittedRoutes();
+
+    /**
+     * @return the number of failed router probes
+     */
+    public long getFailedProbes();
+
+    /**
+     * @return the number of journaled operations not applied yet
+     */
+    public int getJournalPendingOperations();
+
+    /**
+     * @return the number of journaled operations applied
+     */
+    public long getJournalAppliedOperations();
+
+    /**
+     * @return the number of journaled operations which failed
+     */
+    public long getJournalFailedOperations();
+
+    /**
+     * @return the number of journaled operations replayed at startup
+     */
+    public long getJournalReplayedOperations();
+
+    /**
+     * @return the number of forces of the journal file, each covering one or more appended operations
+     */
+    public long getJournalForces();
+
+    /**
+     * Forget all the recorded calls
+     */
+    public void reset();
+}
@@ -0,0 +1,653 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.bean;
+
+import org.ow2.easybeans.osgi.annotation.OSGiResource;
+import org.ow2.jonas.jpaas.frontend.manager.common.FrontendLocks;
+import org.ow2.jonas.jpaas.frontend.manager.common.TopologyView;
+import org.ow2.jonas.jpaas.sr.facade.api.ISrPaasApacheJkRouterFacade;
+import org.ow2.jonas.jpaas.sr.facade.api.ISrPaasFrontendFacade;
+import org.ow2.jonas.jpaas.sr.facade.api.ISrPaasResourceIaasComputeLink;
+import org.ow2.util.log.Log;
+import org.ow2.util.log.LogFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.Local;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.xml.bind.JAXBException;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the components shared by the FrontendManagerBean instances. Their
+ * lifecycle follows the one of the bundle.
+ */
+@Singleton(mappedName = "FrontendRuntimeBean")
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@Local(IFrontendRuntime.class)
+public class FrontendRuntimeBean implements IFrontendRuntime {
+
+    /**
+     * The logger
+     */
+    private Log logger = LogFactory.getLog(FrontendRuntimeBean.class);
+
+    /**
+     * Default number of threads used for the SR lookups
+     */
+    private static final int SR_THREADS = 8;
+
+    /**
+     * Default number of threads used for the Apache reloads
+     */
+    private static final int RELOAD_THREADS = 4;
+
+    /**
+     * Default number of threads running the asynchronous operations
+     */
+    private static final int OPERATION_THREADS = 16;
+
+    /**
+     * Default maximum number of queued asynchronous operations
+     */
+    private static final int OPERATION_QUEUE = 1000;
+
+    /**
+     * Default number of threads sending the concurrent agent requests
+     */
+    private static final int AGENT_THREADS = 16;
+
+    /**
+     * Default deadline of the agent calls of an operation, in milliseconds
+     */
+    private static final long OPERATION_DEADLINE = 60000L;
+
+    /**
+     * Default number of threads probing the routers
+     */
+    private static final int HEALTH_THREADS = 8;
+
+    /**
+     * Default number of threads scheduling the drains of the journal, which run on the container threads
+     */
+    private static final int JOURNAL_THREADS = 1;
+
+    /**
+     * SR facade router
+     */
+    @OSGiResource
+    private ISrPaasApacheJkRouterFacade srApacheJkEjb;
+
+    /**
+     * SR facade paasResource - iaasCompute link
+     */
+    @OSGiResource
+    private ISrPaasResourceIaasComputeLink srPaasResourceIaasComputeLink;
+
+    /**
+     * SR facade Frontend
+     */
+    @OSGiResource
+    private ISrPaasFrontendFacade srPaasFrontendFacade;
+
+    /**
+     * Local view of the synchronous frontend manager, applying the journaled operations
+     */
+    @EJB(beanName = "FrontendManagerBean", beanInterface = ILocalFrontendManager.class)
+    private ILocalFrontendManager frontendManager;
+
+    /**
+     * Timer service of the container, starting the journal applier
+     */
+    @Resource
+    private TimerService timerService;
+
+    /**
+     * SR topology view
+     */
+    private TopologyView topology;
+
+    /**
+     * Executor of the SR lookups
+     */
+    private ExecutorService srExecutor;
+
+    /**
+     * Router to IP address resolver
+     */
+    private RouterResolver routerResolver;
+
+    /**
+     * REST clients of the Apache agents
+     */
+    private AgentTransport agentTransport;
+
+    /**
+     * Executor of the Apache reloads
+     */
+    private ScheduledExecutorService reloadExecutor;
+
+    /**
+     * Apache reload scheduler
+     */
+    private ReloadScheduler reloadScheduler;
+
+    /**
+     * Pool of the asynchronous operations
+     */
+    private ThreadPoolExecutor operationPool;
+
+    /**
+     * Timer of the asynchronous operations
+     */
+    private ScheduledExecutorService operationTimer;
+
+    /**
+     * Executor of the asynchronous operations
+     */
+    private OperationExecutor operationExecutor;
+
+    /**
+     * Executor of the concurrent agent requests of an operation
+     */
+    private ExecutorService agentExecutor;
+
+    /**
+     * Locks linearizing the operations on a frontend
+     */
+    private FrontendLocks frontendLocks;
+
+    /**
+     * Metrics of the operations and of the SR and agent calls
+     */
+    private OperationMetrics metrics;
+
+    /**
+     * Deadline of the agent calls of an operation in milliseconds, 0 for none
+     */
+    private long operationDeadline;
+
+    /**
+     * Apply mode and whole-configuration pushes of the frontends
+     */
+    private ConfigurationPusher configurationPusher;
+
+    /**
+     * Balancer layout of the vhosts
+     */
+    private BalancerConfiguration balancerConfiguration;
+
+    /**
+     * Reconciler of the frontends with their agent
+     */
+    private Reconciler reconciler;
+
+    /**
+     * Executor of the background reconciliations, null if disabled
+     */
+    private ScheduledExecutorService reconcileExecutor;
+
+    /**
+     * Provisioner of the operations applied to a quorum of frontends
+     */
+    private QuorumProvisioner quorumProvisioner;
+
+    /**
+     * Health monitor of the routers
+     */
+    private HealthMonitor healthMonitor;
+
+    /**
+     * Executor of the health probe rounds, null if disabled
+     */
+    private ScheduledExecutorService healthExecutor;
+
+    /**
+     * Executor of the health probes, null if disabled
+     */
+    private ExecutorService probeExecutor;
+
+    /**
+     * Scheduler of the journal drains, null if the journal is disabled
+     */
+    private ScheduledExecutorService journalExecutor;
+
+    /**
+     * Applier of the operation journal, null if the journal is disabled
+     */
+    private JournalApplier journalApplier;
+
+    /**
+     * Name of the registered metrics MBean, null if not registered
+     */
+    private ObjectName metricsName;
+
+    /**
+     * Constructor
+     */
+    public FrontendRuntimeBean() {
+    }
+
+    /**
+     * Create the shared components
+     */
+    @PostConstruct
+    public void start() {
+        metrics = new OperationMetrics();
+        operationDeadline = Long.getLong("frontend.manager.operation.deadline", OPERATION_DEADLINE);
+        frontendLocks = new FrontendLocks(Integer.getInteger("frontend.manager.lock.stripes",
+                FrontendLocks.DEFAULT_STRIPES));
+        topology = new TopologyView(srPaasFrontendFacade, srApacheJkEjb, srPaasResourceIaasComputeLink,
+                Long.getLong("frontend.manager.topology.ttl", TopologyView.DEFAULT_TTL),
+                Long.getLong("frontend.manager.topology.compute.ttl", TopologyView.DEFAULT_COMPUTE_TTL),
+                Long.getLong("frontend.manager.topology.miss.ttl", TopologyView.DEFAULT_MISS_TTL), metrics);
+        srExecutor = Executors.newFixedThreadPool(Integer.getInteger("frontend.manager.sr.threads", SR_THREADS),
+                new DaemonThreadFactory("frontend-manager-sr"));
+        routerResolver = new RouterResolver(topology, srExecutor);
+        agentTransport = new AgentTransport(
+                Integer.getInteger("frontend.manager.agent.connections", AgentTransport.DEFAULT_MAX_CONNECTIONS),
+                Integer.getInteger("frontend.manager.agent.connect.timeout", AgentTransport.DEFAULT_CONNECT_TIMEOUT),
+                Integer.getInteger("frontend.manager.agent.read.timeout", AgentTransport.DEFAULT_READ_TIMEOUT),
+                Integer.getInteger("frontend.manager.agent.breaker.failures",
+                        CircuitBreaker.DEFAULT_FAILURE_THRESHOLD),
+                Long.getLong("frontend.manager.agent.breaker.open", CircuitBreaker.DEFAULT_OPEN_DURATION),
+                metrics);
+        reloadExecutor = Executors.newScheduledThreadPool(
+                Integer.getInteger("frontend.manager.reload.threads", RELOAD_THREADS),
+                new DaemonThreadFactory("frontend-manager-reload"));
+        reloadScheduler = new ReloadScheduler(reloadExecutor,
+                Long.getLong("frontend.manager.reload.window", ReloadScheduler.DEFAULT_WINDOW),
+                Long.getLong("frontend.manager.reload.maxdelay", ReloadScheduler.DEFAULT_MAX_DELAY),
+                Long.getLong("frontend.manager.reload.timeout", ReloadScheduler.DEFAULT_TIMEOUT),
+                Boolean.valueOf(System.getProperty("frontend.manager.reload.wait", "true")));
+        int operationThreads = Integer.getInteger("frontend.manager.async.threads", OPERATION_THREADS);
+        operationPool = new ThreadPoolExecutor(operationThreads, operationThreads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(Integer.getInteger("frontend.manager.async.queue", OPERATION_QUEUE)),
+                new DaemonThreadFactory("frontend-manager-async"));
+        operationTimer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("frontend-manager-timer"));
+        operationExecutor = new OperationExecutor(operationPool, operationTimer,
+                Long.getLong("frontend.manager.async.timeout", OperationExecutor.DEFAULT_TIMEOUT));
+        agentExecutor = Executors.newFixedThreadPool(Integer.getInteger("frontend.manager.agent.threads", AGENT_THREADS),
+                new DaemonThreadFactory("frontend-manager-agent"));
+        // the explicit modes are kept with the journal unless a file is configured
+        String modesFile = System.getProperty("frontend.manager.push.modes.file");
+        String journalDirectory = System.getProperty("frontend.manager.journal.dir");
+        if (modesFile == null && journalDirectory != null) {
+            modesFile = new File(journalDirectory, ConfigurationPusher.MODES_FILE_NAME).getPath();
+        }
+        configurationPusher = new ConfigurationPusher(
+                System.getProperty("frontend.manager.push.path", ConfigurationPusher.DEFAULT_PUSH_PATH),
+                Boolean.getBoolean("frontend.manager.push.default"),
+                split(System.getProperty("frontend.manager.push.frontends", "")),
+                modesFile == null ? null : new File(modesFile));
+        balancerConfiguration = new BalancerConfiguration(
+                Boolean.valueOf(System.getProperty("frontend.manager.balancer", "true")),
+                System.getProperty("frontend.manager.balancer.lbmethod", BalancerConfiguration.DEFAULT_LBMETHOD),
+                BalancerConfiguration.parseWeights(System.getProperty("frontend.manager.balancer.weights", "")));
+        quorumProvisioner = new QuorumProvisioner(
+                Integer.getInteger("frontend.manager.quorum.history", QuorumProvisioner.DEFAULT_HISTORY));
+        reconciler = new Reconciler(this, srPaasFrontendFacade);
+        long reconcilePeriod = Long.getLong("frontend.manager.reconcile.period", Reconciler.DEFAULT_PERIOD);
+        if (reconcilePeriod > 0) {
+            reconcileExecutor = Executors.newSingleThreadScheduledExecutor(
+                    new DaemonThreadFactory("frontend-manager-reconcile"));
+            reconciler.start(reconcileExecutor, reconcilePeriod,
+                    Long.getLong("frontend.manager.reconcile.interval", Reconciler.DEFAULT_MIN_INTERVAL));
+        }
+        long healthPeriod = Long.getLong("frontend.manager.health.period", HealthMonitor.DEFAULT_PERIOD);
+        if (healthPeriod > 0) {
+            probeExecutor = Executors.newFixedThreadPool(
+                    Integer.getInteger("frontend.manager.health.threads", HEALTH_THREADS),
+                    new DaemonThreadFactory("frontend-manager-probe"));
+        }
+        healthMonitor = new HealthMonitor(this, srPaasFrontendFacade, probeExecutor,
+                Integer.getInteger("frontend.manager.health.port", HealthMonitor.DEFAULT_PORT),
+                Integer.getInteger("frontend.manager.health.timeout", HealthMonitor.DEFAULT_TIMEOUT),
+                Integer.getInteger("frontend.manager.health.fall", HealthMonitor.DEFAULT_FALL),
+                Integer.getInteger("frontend.manager.health.rise", HealthMonitor.DEFAULT_RISE));
+        if (healthPeriod > 0) {
+            healthExecutor = Executors.newSingleThreadScheduledExecutor(
+                    new DaemonThreadFactory("frontend-manager-health"));
+            healthMonitor.start(healthExecutor, healthPeriod);
+        }
+        if (journalDirectory != null) {
+            startJournal(new File(journalDirectory));
+        }
+        registerMetrics();
+        if (Boolean.getBoolean("frontend.manager.warmup.async")) {
+            new DaemonThreadFactory("frontend-manager-warmup").newThread(new Runnable() {
+                @Override
+                public void run() {
+                    warmUp();
+                }
+            }).start();
+        } else {
+            warmUp();
+        }
+        if (journalApplier != null) {
+            // a timer fires once the startup is over: no FrontendManagerBean call from the initializing singleton
+            timerService.createSingleActionTimer(0L, new TimerConfig(null, false));
+        }
+    }
+
+    /**
+     * Start applying the journaled operations, once the startup is over
+     * @param timer the timer created at the end of the startup
+     */
+    @Timeout
+    public void applyJournal(Timer timer) {
+        journalApplier.start();
+    }
+
+    /**
+     * Open the operation journal and queue the operations it holds. They are
+     * applied on asynchronous invocations of the frontend manager once the
+     * startup is over.
+     * @param directory Directory of the journal
+     */
+    private void startJournal(File directory) {
+        OperationJournal journal;
+        try {
+            journal = new OperationJournal(directory,
+                    Integer.getInteger("frontend.manager.journal.size", OperationJournal.DEFAULT_SIZE),
+                    Boolean.valueOf(System.getProperty("frontend.manager.journal.sync", "true")));
+        } catch (IOException e) {
+            // the asynchronous operations are run without the journal
+            logger.warn("Cannot open the operation journal in " + directory + ": " + e.getMessage());
+            return;
+        }
+        journalExecutor = Executors.newScheduledThreadPool(
+                Integer.getInteger("frontend.manager.journal.threads", JOURNAL_THREADS),
+                new DaemonThreadFactory("frontend-manager-journal"));
+        journalApplier = new JournalApplier(journal, frontendManager, this, journalExecutor,
+                Long.getLong("frontend.manager.journal.retry", JournalApplier.DEFAULT_RETRY_DELAY),
+                Integer.getInteger("frontend.manager.journal.retries", JournalApplier.DEFAULT_RETRIES));
+        journalApplier.replay();
+    }
+
+    /**
+     * Load the SR topology, bootstrap Jersey, build the JAXB context of the
+     * agent replies and create the clients of the known agents, so that the
+     * first operations run at steady-state latency. The cost is logged and
+     * recorded as the WARM_UP step.
+     */
+    private void warmUp() {
+        long start = System.nanoTime();
+        boolean success = true;
+        try {
+            topology.warm();
+        } catch (Exception e) {
+            // SR not reachable yet, the view will be loaded on first use
+            logger.warn("Cannot load the SR topology: " + e.getMessage());
+            success = false;
+        }
+        long topologyDate = System.nanoTime();
+        try {
+            agentTransport.warmUp();
+        } catch (JAXBException e) {
+            logger.warn("Cannot build the JAXB context of the agent replies: " + e.getMessage());
+            success = false;
+        } catch (RuntimeException e) {
+            logger.warn("Cannot bootstrap the agent clients: " + e.getMessage());
+            success = false;
+        }
+        long transportDate = System.nanoTime();
+        int agentClients = 0;
+        if (success) {
+            for (String frontendName : topology.getFrontendNames()) {
+                TopologyView.FrontendEntry frontendEntry = topology.getFrontend(frontendName);
+                if (frontendEntry != null) {
+                    agentTransport.getClient(frontendName, frontendEntry.getFrontend().getApiUrl());
+                    agentClients++;
+                }
+            }
+        }
+        metrics.record(OperationMetrics.Step.WARM_UP, OperationMetrics.ALL_FRONTENDS, start, success);
+        long end = System.nanoTime();
+        logger.info("Frontend manager warmed up in " + TimeUnit.NANOSECONDS.toMillis(end - start)
+                + " ms (SR topology " + TimeUnit.NANOSECONDS.toMillis(topologyDate - start)
+                + " ms, Jersey and JAXB " + TimeUnit.NANOSECONDS.toMillis(transportDate - topologyDate)
+                + " ms, " + agentClients + " agent client(s) " + TimeUnit.NANOSECONDS.toMillis(end - transportDate)
+                + " ms)");
+    }
+
+    /**
+     * Release the shared components
+     */
+    @PreDestroy
+    public void stop() {
+        unregisterMetrics();
+        reconciler.stop();
+        if (reconcileExecutor != null) {
+            reconcileExecutor.shutdownNow();
+        }
+        healthMonitor.stop();
+        if (journalApplier != null) {
+            journalApplier.stop();
+            journalExecutor.shutdownNow();
+        }
+        if (healthExecutor != null) {
+            healthExecutor.shutdownNow();
+            probeExecutor.shutdownNow();
+        }
+        srExecutor.shutdownNow();
+        operationPool.shutdownNow();
+        operationTimer.shutdownNow();
+        agentExecutor.shutdownNow();
+        // let the pending reloads complete before closing the agent clients
+        reloadExecutor.shutdown();
+        try {
+            reloadExecutor.awaitTermination(ReloadScheduler.DEFAULT_MAX_DELAY * 2, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        agentTransport.close();
+    }
+
+    /**
+     * @param list a comma separated list
+     * @return the non empty elements of the list
+     */
+    private static List<String> split(String list) {
+        List<String> elements = new ArrayList<String>();
+        for (String element : list.split(",")) {
+            if (element.trim().length() > 0) {
+                elements.add(element.trim());
+            }
+        }
+        return elements;
+    }
+
+    /**
+     * Register the metrics MBean in the platform MBean server
+     */
+    private void registerMetrics() {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(FrontendMetrics.OBJECT_NAME);
+            if (mBeanServer.isRegistered(name)) {
+                // left by a previous instance of the bundle
+                mBeanServer.unregisterMBean(name);
+            }
+            mBeanServer.registerMBean(new FrontendMetrics(metrics, reloadScheduler, agentTransport,
+                    configurationPusher, reconciler, quorumProvisioner, healthMonitor, journalApplier), name);
+            metricsName = name;
+        } catch (JMException e) {
+            logger.warn("Cannot register the metrics MBean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Unregister the metrics MBean
+     */
+    private void unregisterMetrics() {
+        if (metricsName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+        } catch (JMException e) {
+            logger.warn("Cannot unregister the metrics MBean: " + e.getMessage());
+        }
+        metricsName = null;
+    }
+
+    /**
+     * @return the SR topology view
+     */
+    @Override
+    public TopologyView getTopology() {
+        return topology;
+    }
+
+    /**
+     * @return the router to IP address resolver
+     */
+    @Override
+    public RouterResolver getRouterResolver() {
+        return routerResolver;
+    }
+
+    /**
+     * @return the REST clients of the Apache agents
+     */
+    @Override
+    public AgentTransport getAgentTransport() {
+        return agentTransport;
+    }
+
+    /**
+     * @return the Apache reload scheduler
+     */
+    @Override
+    public ReloadScheduler getReloadScheduler() {
+        return reloadScheduler;
+    }
+
+    /**
+     * @return the executor of the asynchronous operations
+     */
+    @Override
+    public OperationExecutor getOperationExecutor() {
+        return operationExecutor;
+    }
+
+    /**
+     * @return the executor of the concurrent agent requests of an operation
+     */
+    @Override
+    public ExecutorService getAgentExecutor() {
+        return agentExecutor;
+    }
+
+    /**
+     * @return the locks linearizing the operations on a frontend
+     */
+    @Override
+    public FrontendLocks getFrontendLocks() {
+        return frontendLocks;
+    }
+
+    /**
+     * @return the metrics of the operations and of the SR and agent calls
+     */
+    @Override
+    public OperationMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the apply mode and the whole-configuration pushes of the frontends
+     */
+    @Override
+    public ConfigurationPusher getConfigurationPusher() {
+        return configurationPusher;
+    }
+
+    /**
+     * @return the balancer layout of the vhosts
+     */
+    @Override
+    public BalancerConfiguration getBalancerConfiguration() {
+        return balancerConfiguration;
+    }
+
+    /**
+     * @return the reconciler of the frontends with their agent
+     */
+    @Override
+    public Reconciler getReconciler() {
+        return reconciler;
+    }
+
+    /**
+     * @return the provisioner of the operations applied to a quorum of frontends
+     */
+    @Override
+    public QuorumProvisioner getQuorumProvisioner() {
+        return quorumProvisioner;
+    }
+
+    /**
+     * @return the health monitor of the routers
+     */
+    @Override
+    public HealthMonitor getHealthMonitor() {
+        return healthMonitor;
+    }
+
+    /**
+     * @return the applier of the operation journal, null if the journal is disabled
+     */
+    @Override
+    public JournalApplier getJournalApplier() {
+        return journalApplier;
+    }
+
+    /**
+     * @return a new deadline for the agent calls of an operation
+     */
+    @Override
+    public Deadline newDeadline() {
+        return Deadline.after(operationDeadline);
+    }
+
+}
@@ -0,0 +1,689 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.bean;
+
+import org.ow2.jonas.jpaas.apache.manager.util.api.xml.Directive;
+import org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException;
+import org.ow2.jonas.jpaas.frontend.manager.common.TopologyView;
+import org.ow2.jonas.jpaas.sr.facade.api.ISrPaasFrontendFacade;
+import org.ow2.jonas.jpaas.sr.facade.vo.PaasFrontendVO;
+import org.ow2.jonas.jpaas.sr.facade.vo.VirtualHostVO;
+import org.ow2.util.log.Log;
+import org.ow2.util.log.LogFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Health-driven routing. The routers targeted by the vhosts are probed
+ * periodically with a TCP connection. A router failing several probes in a
+ * row is taken out of the routing of the vhosts: its ProxyPass directive is
+ * removed from the agent, or its balancer member from the pushed configuration, and kept in SR under an id
+ * prefixed with EVICTED_PREFIX, so that the eviction survives a restart of
+ * the frontend manager. The route is put back once the router passed several
+ * probes in a row.
+ *
+ * Only the frontends with a route to evict or to re-admit are locked. All the
+ * changes of a probe round on a frontend are applied under one lock, written
+ * to SR once and covered by one reload, so that many routers failing together
+ * don't cause a reload storm. The last route of a vhost is never evicted: a
+ * vhost with no route at all would fail every request anyway.
+ *
+ * The monitor is opt-in: the probe rounds only run with a positive period.
+ */
+public class HealthMonitor {
+
+    /**
+     * Default period of the probe rounds, in milliseconds. 0 disables the monitor.
+     */
+    public static final long DEFAULT_PERIOD = 0L;
+
+    /**
+     * Default port probed on the routers whose route has no port, the port of
+     * the http urls
+     */
+    public static final int DEFAULT_PORT = 80;
+
+    /**
+     * Default timeout of a probe, in milliseconds
+     */
+    public static final int DEFAULT_TIMEOUT = 2000;
+
+    /**
+     * Default number of failed probes in a row evicting a router
+     */
+    public static final int DEFAULT_FALL = 3;
+
+    /**
+     * Default number of successful probes in a row re-admitting a router
+     */
+    public static final int DEFAULT_RISE = 2;
+
+    /**
+     * Prefix of the ids of the evicted routes recorded in SR
+     */
+    public static final String EVICTED_PREFIX = "evicted:";
+
+    /**
+     * The logger
+     */
+    private Log logger = LogFactory.getLog(HealthMonitor.class);
+
+    /**
+     * Shared components of the frontend manager
+     */
+    private final IFrontendRuntime runtime;
+
+    /**
+     * SR facade Frontend
+     */
+    private final ISrPaasFrontendFacade srPaasFrontendFacade;
+
+    /**
+     * Executor of the probes
+     */
+    private final ExecutorService probeExecutor;
+
+    /**
+     * Port probed on the routers
+     */
+    private final int port;
+
+    /**
+     * Timeout of a probe, in milliseconds
+     */
+    private final int timeout;
+
+    /**
+     * Number of failed probes in a row evicting a router
+     */
+    private final int fall;
+
+    /**
+     * Number of successful probes in a row re-admitting a router
+     */
+    private final int rise;
+
+    /**
+     * Health of the probed routers, by address
+     */
+    private final ConcurrentMap<String, RouterHealth> routers = new ConcurrentHashMap<String, RouterHealth>();
+
+    /**
+     * Number of evicted routes
+     */
+    private final AtomicLong evictedRoutes = new AtomicLong();
+
+    /**
+     * Number of re-admitted routes
+     */
+    private final AtomicLong readmittedRoutes = new AtomicLong();
+
+    /**
+     * Number of failed probes
+     */
+    private final AtomicLong failedProbes = new AtomicLong();
+
+    /**
+     * Executor of the probe rounds, null if not started
+     */
+    private volatile ScheduledExecutorService executor;
+
+    /**
+     * Constructor
+     * @param runtime Shared components of the frontend manager
+     * @param srPaasFrontendFacade SR facade Frontend
+     * @param probeExecutor Executor of the probes
+     * @param port Port probed on the routers
+     * @param timeout Timeout of a probe, in milliseconds
+     * @param fall Number of failed probes in a row evicting a router
+     * @param rise Number of successful probes in a row re-admitting a router
+     */
+    public HealthMonitor(IFrontendRuntime runtime, ISrPaasFrontendFacade srPaasFrontendFacade,
+            ExecutorService probeExecutor, int port, int timeout, int fall, int rise) {
+        this.runtime = runtime;
+        this.srPaasFrontendFacade = srPaasFrontendFacade;
+        this.probeExecutor = probeExecutor;
+        this.port = port;
+        this.timeout = timeout;
+        this.fall = fall;
+        this.rise = rise;
+    }
+
+    /**
+     * Start the probe rounds
+     * @param executor Executor of the probe rounds
+     * @param period Period of the probe rounds, in milliseconds
+     */
+    public void start(ScheduledExecutorService executor, long period) {
+        this.executor = executor;
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    probeAll();
+                } catch (RuntimeException e) {
+                    logger.warn("Health probe round failed: " + e.getMessage());
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the probe rounds
+     */
+    public void stop() {
+        executor = null;
+    }
+
+    /**
+     * @param directiveId Id of a directive recorded in SR
+     * @return true if the directive is an evicted route
+     */
+    public static boolean isEvicted(String directiveId) {
+        return directiveId.startsWith(EVICTED_PREFIX);
+    }
+
+    /**
+     * @param directiveId Id of an evicted route recorded in SR
+     * @return the id of the route when it was evicted
+     */
+    public static String getEvictedId(String directiveId) {
+        return directiveId.substring(EVICTED_PREFIX.length());
+    }
+
+    /**
+     * @return the addresses of the routers currently considered down, in address order
+     */
+    public List<String> getUnhealthyRouters() {
+        List<String> addresses = new ArrayList<String>();
+        for (Map.Entry<String, RouterHealth> router : routers.entrySet()) {
+            if (!router.getValue().healthy) {
+                addresses.add(router.getKey());
+            }
+        }
+        Collections.sort(addresses);
+        return addresses;
+    }
+
+    /**
+     * @return the number of evicted routes
+     */
+    public long getEvictedRoutes() {
+        return evictedRoutes.get();
+    }
+
+    /**
+     * @return the number of re-admitted routes
+     */
+    public long getReadmittedRoutes() {
+        return readmittedRoutes.get();
+    }
+
+    /**
+     * @return the number of failed probes
+     */
+    public long getFailedProbes() {
+        return failedProbes.get();
+    }
+
+    /**
+     * Probe the routed and the evicted routers, then evict the routes to the
+     * routers which are down and re-admit the ones to the routers which are up.
+     * The evicted routes are recorded in SR, so they are routes of the cached
+     * frontends too.
+     */
+    void probeAll() {
+        if (executor == null) {
+            return;
+        }
+        TopologyView topology = runtime.getTopology();
+        List<String> frontendNames = topology.getFrontendNames();
+        Set<String> addresses = new TreeSet<String>();
+        for (String frontendName : frontendNames) {
+            TopologyView.FrontendEntry frontendEntry = topology.getFrontend(frontendName);
+            if (frontendEntry != null) {
+                addresses.addAll(frontendEntry.getRoutedAddresses());
+            }
+        }
+        routers.keySet().retainAll(addresses);
+
+        // all the probes of the round run concurrently
+        List<String> probedAddresses = new ArrayList<String>(addresses);
+        List<Callable<Boolean>> probes = new ArrayList<Callable<Boolean>>();
+        for (final String address : probedAddresses) {
+            probes.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return probe(address);
+                }
+            });
+        }
+        List<Future<Boolean>> responses;
+        try {
+            responses = probeExecutor.invokeAll(probes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        Set<String> down = new HashSet<String>();
+        Set<String> up = new HashSet<String>();
+        for (int i = 0; i < responses.size(); i++) {
+            String address = probedAddresses.get(i);
+            boolean success;
+            try {
+                success = responses.get(i).get();
+            } catch (ExecutionException e) {
+                success = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (getHealth(address).record(success)) {
+                up.add(address);
+            } else {
+                down.add(address);
+            }
+        }
+
+        for (String frontendName : frontendNames) {
+            // most rounds change nothing, the frontends are only locked to apply actual changes
+            TopologyView.FrontendEntry frontendEntry = topology.getFrontend(frontendName);
+            if (frontendEntry != null && needsApply(frontendEntry, down, up)) {
+                try {
+                    apply(frontendName, down, up);
+                } catch (Exception e) {
+                    logger.warn("Cannot apply the router health to the frontend '" + frontendName + "': "
+                            + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Probe a router
+     * @param address Address of the router
+     * @return true if a connection to the router can be opened
+     */
+    private boolean probe(String address) {
+        long start = System.nanoTime();
+        boolean success = false;
+        Socket socket = new Socket();
+        try {
+            // the address of a route keeps the port of its directive, an IPv6 host is bracketed
+            int separator = address.lastIndexOf(':');
+            if (separator > 0 && (address.indexOf(':') == separator || address.charAt(separator - 1) == ']')) {
+                socket.connect(new InetSocketAddress(address.substring(0, separator),
+                        Integer.parseInt(address.substring(separator + 1))), timeout);
+            } else {
+                socket.connect(new InetSocketAddress(address, port), timeout);
+            }
+            success = true;
+        } catch (IOException e) {
+            failedProbes.incrementAndGet();
+            logger.debug("Health probe of the router " + address + " failed: " + e.getMessage());
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing to release
+            }
+            runtime.getMetrics().record(OperationMetrics.Step.HEALTH_PROBE, OperationMetrics.ALL_FRONTENDS,
+                    start, success);
+        }
+        return success;
+    }
+
+    /**
+     * @param address Address of a router
+     * @return the health of the router, created if needed
+     */
+    private RouterHealth getHealth(String address) {
+        RouterHealth health = routers.get(address);
+        if (health == null) {
+            health = new RouterHealth();
+            RouterHealth existing = routers.putIfAbsent(address, health);
+            if (existing != null) {
+                health = existing;
+            }
+        }
+        return health;
+    }
+
+    /**
+     * @param frontendEntry a cached frontend
+     * @param down Addresses of the routers which are down
+     * @param up Addresses of the routers which are up
+     * @return true if the frontend has a route to evict or to re-admit
+     */
+    private static boolean needsApply(TopologyView.FrontendEntry frontendEntry, Set<String> down, Set<String> up) {
+        for (String address : down) {
+            for (String vhostName : frontendEntry.getRoutedVhosts(address)) {
+                Map<String, String> routes = frontendEntry.getRoutes(vhostName);
+                String directiveId = routes.get(address);
+                if (directiveId != null && !isEvicted(directiveId) && countRouterRoutes(routes) > 1) {
+                    return true;
+                }
+            }
+        }
+        for (String address : up) {
+            for (String vhostName : frontendEntry.getRoutedVhosts(address)) {
+                String directiveId = frontendEntry.getRoutes(vhostName).get(address);
+                if (directiveId != null && isEvicted(directiveId)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Evict and re-admit the routes of a frontend in one batch
+     * @param frontendName Name of the frontend
+     * @param down Addresses of the routers which are down
+     * @param up Addresses of the routers which are up
+     * @throws FrontendManagerBeanException if the frontend cannot be updated
+     */
+    private void apply(String frontendName, Set<String> down, Set<String> up) throws FrontendManagerBeanException {
+        // the probe round doesn't wait for the reload, a failure is logged by the reload scheduler
+        Lock lock = runtime.getFrontendLocks().lock(frontendName);
+        try {
+            doApply(frontendName, down, up, runtime.newDeadline());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Evict and re-admit the routes of a locked frontend
+     * @param frontendName Name of the frontend
+     * @param down Addresses of the routers which are down
+     * @param up Addresses of the routers which are up
+     * @param deadline Deadline of the agent calls
+     * @return the reload covering the changes, null if nothing changed
+     * @throws FrontendManagerBeanException if the frontend cannot be updated
+     */
+    private Future<Void> doApply(String frontendName, Set<String> down, Set<String> up, Deadline deadline)
+            throws FrontendManagerBeanException {
+
+        TopologyView.FrontendEntry frontendEntry = runtime.getTopology().getFrontend(frontendName);
+        if (frontendEntry == null) {
+            return null;
+        }
+        PaasFrontendVO paasFrontend = frontendEntry.getFrontend();
+        ApacheManagerClient agentClient = runtime.getAgentTransport().getClient(frontendName,
+                paasFrontend.getApiUrl());
+        ConfigurationPusher pusher = runtime.getConfigurationPusher();
+        boolean push = pusher.isPushMode(frontendName);
+
+        // the new directives of each examined vhost, and the vhosts which actually changed
+        Map<String, Map<String, String>> changes = new HashMap<String, Map<String, String>>();
+        Set<String> changedNames = new HashSet<String>();
+        int evicted = 0;
+        int readmitted = 0;
+
+        // the changes made before a failed agent call are still recorded
+        FrontendManagerBeanException error = null;
+        try {
+            for (String address : down) {
+                for (String vhostName : frontendEntry.getRoutedVhosts(address)) {
+                    VirtualHostVO virtualHost = frontendEntry.getVhost(vhostName);
+                    if (virtualHost == null) {
+                        continue;
+                    }
+                    Map<String, String> directives = getDirectives(changes, virtualHost);
+                    Map<String, String> routes = frontendEntry.getRoutes(vhostName);
+                    String directiveId = routes.get(address);
+                    if (directiveId == null || isEvicted(directiveId) || !directives.containsKey(directiveId)) {
+                        continue;
+                    }
+                    if (countRouterRoutes(directives, routes) <= 1) {
+                        logger.debug("Router " + address + " is down but is the last route of the vhost '"
+                                + vhostName + "'");
+                        continue;
+                    }
+                    String value = directives.get(directiveId);
+                    if (!push && !ConfigurationPusher.PUSH_VHOST_ID.equals(virtualHost.getVhostId())) {
+                        agentClient.removeProxyPass(virtualHost.getVhostId(), directiveId, deadline);
+                    }
+                    directives.remove(directiveId);
+                    directives.put(EVICTED_PREFIX + directiveId, value);
+                    changedNames.add(vhostName);
+                    evicted++;
+                }
+            }
+
+            for (String address : up) {
+                for (String vhostName : frontendEntry.getRoutedVhosts(address)) {
+                    VirtualHostVO virtualHost = frontendEntry.getVhost(vhostName);
+                    if (virtualHost == null) {
+                        continue;
+                    }
+                    Map<String, String> directives = getDirectives(changes, virtualHost);
+                    String directiveId = frontendEntry.getRoutes(vhostName).get(address);
+                    if (directiveId == null || !isEvicted(directiveId) || !directives.containsKey(directiveId)) {
+                        continue;
+                    }
+                    String value = directives.get(directiveId);
+                    if (push || ConfigurationPusher.PUSH_VHOST_ID.equals(virtualHost.getVhostId())) {
+                        directives.put(getEvictedId(directiveId), value);
+                    } else {
+                        readmit(agentClient, virtualHost.getVhostId(), getEvictedId(directiveId), value, directives,
+                                deadline);
+                    }
+                    directives.remove(directiveId);
+                    changedNames.add(vhostName);
+                    readmitted++;
+                }
+            }
+        } catch (FrontendManagerBeanException e) {
+            error = e;
+        }
+
+        if (changedNames.isEmpty()) {
+            if (error != null) {
+                throw error;
+            }
+            return null;
+        }
+        List<VirtualHostVO> changedVhosts = new ArrayList<VirtualHostVO>();
+        for (String vhostName : changedNames) {
+            VirtualHostVO updatedVhost = new VirtualHostVO(vhostName, frontendEntry.getVhost(vhostName).getVhostId());
+            updatedVhost.setProxypassDirectives(changes.get(vhostName));
+            changedVhosts.add(updatedVhost);
+        }
+        paasFrontend = writeChanges(frontendName, frontendEntry, changedVhosts, changedNames);
+        evictedRoutes.addAndGet(evicted);
+        readmittedRoutes.addAndGet(readmitted);
+        logger.info("Frontend '" + frontendName + "' routing updated for the router health: " + evicted
+                + " route(s) evicted, " + readmitted + " route(s) re-admitted");
+        Future<Void> reload;
+        if (push) {
+            try {
+                reload = pusher.push(frontendName, paasFrontend, agentClient, runtime.getReloadScheduler(),
+                        deadline, false);
+            } catch (FrontendManagerBeanException e) {
+                if (pusher.isPushMode(frontendName)) {
+                    throw e;
+                }
+                // the agent has no configuration resource: the recorded vhosts are created directive by directive
+                reload = runtime.getReconciler().reconcileLocked(frontendName, deadline);
+            }
+        } else {
+            reload = runtime.getReloadScheduler().requestReload(frontendName, agentClient);
+        }
+        if (error != null) {
+            throw error;
+        }
+        return reload;
+    }
+
+    /**
+     * Create an evicted route again on the agent
+     * @param agentClient Client of the frontend agent
+     * @param vhostID Id of the Apache vhost
+     * @param directiveId Id of the route when it was evicted
+     * @param value Value of the route recorded in SR
+     * @param directives Directives of the vhost, receiving the created route
+     * @param deadline Deadline of the agent calls
+     * @throws FrontendManagerBeanException if the route cannot be created
+     */
+    private void readmit(ApacheManagerClient agentClient, String vhostID, String directiveId, String value,
+            Map<String, String> directives, Deadline deadline) throws FrontendManagerBeanException {
+        int separator = value.indexOf(' ');
+        if (separator <= 0) {
+            throw new FrontendManagerBeanException("Cannot read the proxypass directive '" + value + "'");
+        }
+        Directive proxyDirective = agentClient.addProxyPass(vhostID, value.substring(0, separator),
+                value.substring(separator + 1).trim(), deadline);
+        directives.put(String.valueOf(proxyDirective.getId()), proxyDirective.getValue());
+    }
+
+    /**
+     * Write the changed vhosts to SR, on a copy of the cached frontend
+     * @param frontendName Name of the frontend
+     * @param frontendEntry the cached frontend
+     * @param changedVhosts the changed vhosts, replacing the ones with the same name
+     * @param changedNames Names of the changed vhosts
+     * @return the written frontend
+     * @throws FrontendManagerBeanException if the frontend cannot be written
+     */
+    private PaasFrontendVO writeChanges(String frontendName, TopologyView.FrontendEntry frontendEntry,
+            List<VirtualHostVO> changedVhosts, Set<String> changedNames) throws FrontendManagerBeanException {
+        PaasFrontendVO paasFrontend = frontendEntry.copyFrontend();
+        for (Iterator<VirtualHostVO> it = paasFrontend.getVirtualHosts().iterator(); it.hasNext(); ) {
+            if (changedNames.contains(it.next().getName())) {
+                it.remove();
+            }
+        }
+        paasFrontend.getVirtualHosts().addAll(changedVhosts);
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            srPaasFrontendFacade.updateFrontend(paasFrontend);
+            success = true;
+        } catch (RuntimeException e) {
+            // the agent and SR now differ, the reconciliation will converge them
+            runtime.getTopology().invalidate(frontendName);
+            throw new FrontendManagerBeanException("Cannot update the Frontend " + frontendName + ".", e);
+        } finally {
+            runtime.getMetrics().record(OperationMetrics.Step.SR_UPDATE_FRONTEND, frontendName, start, success);
+        }
+        runtime.getTopology().applyChanges(frontendEntry, paasFrontend, changedVhosts, changedNames);
+        return paasFrontend;
+    }
+
+    /**
+     * @param changes the new directives of each changed vhost
+     * @param virtualHost a vhost
+     * @return the new directives of the vhost, copied from the vhost on first use
+     */
+    private static Map<String, String> getDirectives(Map<String, Map<String, String>> changes,
+            VirtualHostVO virtualHost) {
+        Map<String, String> directives = changes.get(virtualHost.getName());
+        if (directives == null) {
+            directives = new Hashtable<String, String>();
+            if (virtualHost.getProxypassDirectives() != null) {
+                directives.putAll(virtualHost.getProxypassDirectives());
+            }
+            changes.put(virtualHost.getName(), directives);
+        }
+        return directives;
+    }
+
+    /**
+     * @param directives the directives of a vhost
+     * @param routes the routes of the vhost, directive id by router address
+     * @return the number of the directives of the vhost which target a router and are not evicted
+     */
+    private static int countRouterRoutes(Map<String, String> directives, Map<String, String> routes) {
+        int count = 0;
+        for (Map.Entry<String, String> route : routes.entrySet()) {
+            if (!route.getKey().equals(route.getValue()) && !isEvicted(route.getValue())
+                    && directives.containsKey(route.getValue())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param routes the routes of a vhost, directive id by router address
+     * @return the number of the routes of the vhost which target a router and are not evicted
+     */
+    private static int countRouterRoutes(Map<String, String> routes) {
+        int count = 0;
+        for (Map.Entry<String, String> route : routes.entrySet()) {
+            if (!route.getKey().equals(route.getValue()) && !isEvicted(route.getValue())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The probe history of a router
+     */
+    private class RouterHealth {
+
+        /**
+         * True if the router is considered up
+         */
+        private volatile boolean healthy = true;
+
+        /**
+         * Number of probes in a row contradicting the current state
+         */
+        private int streak;
+
+        /**
+         * Record the outcome of a probe
+         * @param success true if the probe succeeded
+         * @return true if the router is considered up
+         */
+        public synchronized boolean record(boolean success) {
+            if (success == healthy) {
+                streak = 0;
+            } else if (++streak >= (healthy ? fall : rise)) {
+                healthy = success;
+                streak = 0;
+            }
+            return healthy;
+        }
+    }
+}
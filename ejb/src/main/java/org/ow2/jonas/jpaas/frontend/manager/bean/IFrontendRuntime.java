@@ -0,0 +1,103 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.bean;
+
+import org.ow2.jonas.jpaas.frontend.manager.common.FrontendLocks;
+import org.ow2.jonas.jpaas.frontend.manager.common.TopologyView;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Components shared by all the FrontendManagerBean instances
+ */
+public interface IFrontendRuntime {
+
+    /**
+     * @return the SR topology view
+     */
+    public TopologyView getTopology();
+
+    /**
+     * @return the router to IP address resolver
+     */
+    public RouterResolver getRouterResolver();
+
+    /**
+     * @return the REST clients of the Apache agents
+     */
+    public AgentTransport getAgentTransport();
+
+    /**
+     * @return the Apache reload scheduler
+     */
+    public ReloadScheduler getReloadScheduler();
+
+    /**
+     * @return the executor of the asynchronous operations
+     */
+    public OperationExecutor getOperationExecutor();
+
+    /**
+     * @return the executor of the concurrent agent requests of an operation
+     */
+    public ExecutorService getAgentExecutor();
+
+    /**
+     * @return the locks linearizing the operations on a frontend
+     */
+    public FrontendLocks getFrontendLocks();
+
+    /**
+     * @return the metrics of the operations and of the SR and agent calls
+     */
+    public OperationMetrics getMetrics();
+
+    /**
+     * @return the apply mode and the whole-configuration pushes of the frontends
+     */
+    public ConfigurationPusher getConfigurationPusher();
+
+    /**
+     * @return the balancer layout of the vhosts
+     */
+    public BalancerConfiguration getBalancerConfiguration();
+
+    /**
+     * @return the reconciler of the frontends with their agent
+     */
+    public Reconciler getReconciler();
+
+    /**
+     * @return the provisioner of the operations applied to a quorum of frontends
+     */
+    public QuorumProvisioner getQuorumProvisioner();
+
+    /**
+     * @return the health monitor of the routers
+     */
+    public HealthMonitor getHealthMonitor();
+
+    /**
+     * @return the applier of the operation journal, null if the journal is disabled
+     */
+    public JournalApplier getJournalApplier();
+
+    /**
+     * @return a new deadline for the agent calls of an operation
+     */
+    public Deadline newDeadline();
+
+}
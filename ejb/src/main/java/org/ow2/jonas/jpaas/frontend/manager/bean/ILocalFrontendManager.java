@@ -0,0 +1,31 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.bean;
+
+import org.ow2.jonas.jpaas.frontend.manager.api.IFrontendManager;
+
+/**
+ * Local view of the FrontendManagerBean, used by the components of the
+ * frontend manager. The remote view is IFrontendManager.
+ */
+public interface ILocalFrontendManager extends IFrontendManager {
+
+    /**
+     * Run a task on a thread of the container
+     * @param task the task
+     */
+    public void runAsynchronously(Runnable task);
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.bean;
+
+import org.ow2.jonas.jpaas.apache.manager.util.api.xml.Directive;
+import org.ow2.jonas.jpaas.apache.manager.vhost.manager.api.xml.Vhost;
+
+import javax.ws.rs.ext.ContextResolver;
+import javax.ws.rs.ext.Provider;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * JAXB context of the agent replies, shared by the Jersey clients of all the
+ * agents. Without it, each client builds its own contexts on its first
+ * reply. The context is built once, possibly in advance by {@link #warmUp()}.
+ */
+@Provider
+public class JaxbContextResolver implements ContextResolver<JAXBContext> {
+
+    /**
+     * The context, null until built
+     */
+    private volatile JAXBContext context;
+
+    /**
+     * @param type a type to unmarshal
+     * @return the shared context if the type is an agent reply type, null otherwise
+     */
+    @Override
+    public JAXBContext getContext(Class<?> type) {
+        if (type != Vhost.class && type != Directive.class) {
+            return null;
+        }
+        try {
+            return getContext();
+        } catch (JAXBException e) {
+            // let Jersey build a context of its own
+            return null;
+        }
+    }
+
+    /**
+     * Build the context and run a marshalling round trip of the reply types,
+     * so that the first real reply is unmarshalled at steady-state cost
+     * @throws JAXBException if the context cannot be built
+     */
+    public void warmUp() throws JAXBException {
+        JAXBContext jaxbContext = getContext();
+        Marshaller marshaller = jaxbContext.createMarshaller();
+        for (Object reply : new Object[] {new Vhost(), new Directive()}) {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            marshaller.marshal(reply, content);
+            jaxbContext.createUnmarshaller().unmarshal(new ByteArrayInputStream(content.toByteArray()));
+        }
+    }
+
+    /**
+     * @return the context, built on first call
+     * @throws JAXBException if the context cannot be built
+     */
+    private JAXBContext getContext() throws JAXBException {
+        JAXBContext jaxbContext = context;
+        if (jaxbContext == null) {
+            synchronized (this) {
+                if (context == null) {
+                    context = JAXBContext.newInstance(Vhost.class, Directive.class);
+                }
+                jaxbContext = context;
+            }
+        }
+        return jaxbContext;
+    }
+}
@@ -0,0 +1,534 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.bean;
+
+import org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException;
+import org.ow2.jonas.jpaas.frontend.manager.common.TopologyView;
+import org.ow2.util.log.Log;
+import org.ow2.util.log.LogFactory;
+
+import javax.ejb.ConcurrentAccessException;
+import javax.ejb.NoSuchEJBException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Apply the operations of the journal. The operations of a frontend are
+ * applied one at a time, in journal order; the frontends are applied
+ * concurrently, each drain on an asynchronous invocation of the frontend
+ * manager. Nothing is applied before start is called, once the
+ * container finished starting the frontend manager. An operation failing
+ * with a FrontendManagerBeanException is completed as failed, any other
+ * failure is retried later without applying the next operations of the
+ * frontend, up to a maximum number of retries after which the operation is
+ * completed as failed too. The failures of a bean not available yet are
+ * retried without counting against the maximum. Once stopped, the queued
+ * operations are failed but stay in the journal.
+ *
+ * The operations found pending at startup may have been partially applied
+ * before the crash. They are replayed against the current state: an existing
+ * frontend or a removed vhost is not created or removed again, and an
+ * existing vhost is reconciled with its agent instead of being created.
+ */
+public class JournalApplier {
+
+    /**
+     * Default delay before retrying an operation, in milliseconds
+     */
+    public static final long DEFAULT_RETRY_DELAY = 5000L;
+
+    /**
+     * Default maximum number of retries of an operation
+     */
+    public static final int DEFAULT_RETRIES = 12;
+
+    /**
+     * The logger
+     */
+    private Log logger = LogFactory.getLog(JournalApplier.class);
+
+    /**
+     * The journal
+     */
+    private final OperationJournal journal;
+
+    /**
+     * Local view of the synchronous frontend manager
+     */
+    private final ILocalFrontendManager frontendManager;
+
+    /**
+     * Shared components of the frontend manager
+     */
+    private final IFrontendRuntime runtime;
+
+    /**
+     * Scheduler of the delayed drains
+     */
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Delay before retrying an operation, in milliseconds
+     */
+    private final long retryDelay;
+
+    /**
+     * Maximum number of retries of an operation
+     */
+    private final int maxRetries;
+
+    /**
+     * Queued operations by frontend name
+     */
+    private final Map<String, LinkedList<JournaledOperation>> queues =
+            new HashMap<String, LinkedList<JournaledOperation>>();
+
+    /**
+     * Number of applied operations
+     */
+    private final AtomicLong appliedOperations = new AtomicLong();
+
+    /**
+     * Number of failed operations
+     */
+    private final AtomicLong failedOperations = new AtomicLong();
+
+    /**
+     * Number of operations replayed at startup
+     */
+    private final AtomicLong replayedOperations = new AtomicLong();
+
+    /**
+     * Number of retried operations
+     */
+    private final AtomicLong retries = new AtomicLong();
+
+    /**
+     * True once started: the queued operations are applied, guarded by queues
+     */
+    private boolean started;
+
+    /**
+     * True once stopped: the running operations are not completed and will be replayed
+     */
+    private volatile boolean stopped;
+
+    /**
+     * Constructor
+     * @param journal the journal
+     * @param frontendManager Local view of the synchronous frontend manager
+     * @param runtime Shared components of the frontend manager
+     * @param executor Scheduler of the delayed drains
+     * @param retryDelay Delay before retrying an operation, in milliseconds
+     * @param maxRetries Maximum number of retries of an operation
+     */
+    public JournalApplier(OperationJournal journal, ILocalFrontendManager frontendManager, IFrontendRuntime runtime,
+            ScheduledExecutorService executor, long retryDelay, int maxRetries) {
+        this.journal = journal;
+        this.frontendManager = frontendManager;
+        this.runtime = runtime;
+        this.executor = executor;
+        this.retryDelay = retryDelay;
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Queue the operations which were pending when the journal was opened,
+     * they are applied once started
+     */
+    public void replay() {
+        List<OperationJournal.Entry> entries = journal.getPendingEntries();
+        for (OperationJournal.Entry entry : entries) {
+            logger.info("Replaying the journaled operation " + entry);
+            queue(new JournaledOperation(entry, true));
+        }
+        replayedOperations.addAndGet(entries.size());
+    }
+
+    /**
+     * Journal an operation and queue it. The operation is durable when the
+     * method returns, unless the returned Future already failed.
+     * @param type Type of the operation
+     * @param frontendName Name of the frontend
+     * @param argument Url of the agent API or name of the vhost, null if none
+     * @param routerNames Target router list, null if none
+     * @return the completion of the operation
+     */
+    public Future<Void> submit(OperationJournal.Type type, String frontendName, String argument,
+            List<String> routerNames) {
+        long start = System.nanoTime();
+        OperationJournal.Entry entry;
+        try {
+            entry = journal.append(type, frontendName, argument, routerNames);
+        } catch (IOException e) {
+            runtime.getMetrics().record(OperationMetrics.Step.JOURNAL_APPEND, frontendName, start, false);
+            JournaledOperation failed = new JournaledOperation(null, false);
+            failed.fail(new FrontendManagerBeanException("Cannot journal the operation " + type + " on '"
+                    + frontendName + "'", e));
+            return failed;
+        }
+        runtime.getMetrics().record(OperationMetrics.Step.JOURNAL_APPEND, frontendName, start, true);
+        JournaledOperation operation = new JournaledOperation(entry, false);
+        queue(operation);
+        return operation;
+    }
+
+    /**
+     * Start applying the queued operations and the next ones
+     */
+    public void start() {
+        List<String> frontendNames;
+        synchronized (queues) {
+            started = true;
+            frontendNames = new ArrayList<String>(queues.keySet());
+        }
+        for (String frontendName : frontendNames) {
+            schedule(frontendName, 0);
+        }
+    }
+
+    /**
+     * Stop applying the operations. The queued ones are failed and stay in
+     * the journal, they are replayed at the next start.
+     */
+    public void stop() {
+        stopped = true;
+        List<String> frontendNames;
+        synchronized (queues) {
+            frontendNames = new ArrayList<String>(queues.keySet());
+        }
+        for (String frontendName : frontendNames) {
+            abandon(frontendName);
+        }
+        journal.close();
+    }
+
+    /**
+     * @return the number of operations journaled but not applied yet
+     */
+    public int getPendingOperations() {
+        return journal.getPendingCount();
+    }
+
+    /**
+     * @return the number of applied operations
+     */
+    public long getAppliedOperations() {
+        return appliedOperations.get();
+    }
+
+    /**
+     * @return the number of failed operations
+     */
+    public long getFailedOperations() {
+        return failedOperations.get();
+    }
+
+    /**
+     * @return the number of operations replayed at startup
+     */
+    public long getReplayedOperations() {
+        return replayedOperations.get();
+    }
+
+    /**
+     * @return the number of retried operations
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * @return the journal
+     */
+    public OperationJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Queue an operation behind the other operations of its frontend
+     * @param operation the operation
+     */
+    private void queue(JournaledOperation operation) {
+        String frontendName = operation.entry.getFrontendName();
+        synchronized (queues) {
+            LinkedList<JournaledOperation> queue = queues.get(frontendName);
+            if (queue != null) {
+                // a drain of the frontend is running or scheduled
+                queue.add(operation);
+                return;
+            }
+            queue = new LinkedList<JournaledOperation>();
+            queue.add(operation);
+            queues.put(frontendName, queue);
+            if (!started) {
+                // drained by start
+                return;
+            }
+        }
+        schedule(frontendName, 0);
+    }
+
+    /**
+     * Schedule the drain of the queue of a frontend
+     * @param frontendName Name of the frontend
+     * @param delay Delay of the drain, in milliseconds
+     */
+    private void schedule(final String frontendName, long delay) {
+        if (delay == 0) {
+            dispatch(frontendName);
+            return;
+        }
+        try {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    dispatch(frontendName);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // stopped, the queued operations are replayed at the next start
+            logger.debug("Journal applier stopped, operations of '" + frontendName + "' left in the journal");
+            abandon(frontendName);
+        }
+    }
+
+    /**
+     * Start the drain of the queue of a frontend on a thread of the container
+     * @param frontendName Name of the frontend
+     */
+    private void dispatch(final String frontendName) {
+        if (stopped) {
+            abandon(frontendName);
+            return;
+        }
+        try {
+            frontendManager.runAsynchronously(new Runnable() {
+                @Override
+                public void run() {
+                    drain(frontendName);
+                }
+            });
+        } catch (RuntimeException e) {
+            // the container cannot run the drain now, nothing was applied
+            logger.debug("Cannot start the drain of '" + frontendName + "', retrying in " + retryDelay + " ms: "
+                    + e.getMessage());
+            schedule(frontendName, Math.max(1L, retryDelay));
+        }
+    }
+
+    /**
+     * Fail the queued operations of a frontend, left in the journal
+     * @param frontendName Name of the frontend
+     */
+    private void abandon(String frontendName) {
+        LinkedList<JournaledOperation> queue;
+        synchronized (queues) {
+            queue = queues.remove(frontendName);
+        }
+        if (queue == null) {
+            return;
+        }
+        for (JournaledOperation operation : queue) {
+            operation.fail(new FrontendManagerBeanException("Journal applier stopped, the operation "
+                    + operation.entry + " is left in the journal"));
+        }
+    }
+
+    /**
+     * Apply the queued operations of a frontend, in order
+     * @param frontendName Name of the frontend
+     */
+    private void drain(String frontendName) {
+        while (!stopped) {
+            JournaledOperation operation;
+            synchronized (queues) {
+                LinkedList<JournaledOperation> queue = queues.get(frontendName);
+                if (queue == null) {
+                    // abandoned by stop
+                    return;
+                }
+                operation = queue.peek();
+                if (operation == null) {
+                    queues.remove(frontendName);
+                    return;
+                }
+            }
+            try {
+                apply(operation.entry, operation.replayed);
+                appliedOperations.incrementAndGet();
+                operation.succeed();
+            } catch (FrontendManagerBeanException e) {
+                failedOperations.incrementAndGet();
+                logger.warn("Journaled operation " + operation.entry + " failed: " + e.getMessage());
+                operation.fail(e);
+            } catch (Exception e) {
+                if (stopped) {
+                    abandon(frontendName);
+                    return;
+                }
+                if (isNotReady(e)) {
+                    // the bean is not available yet, not a failure of the operation
+                    retries.incrementAndGet();
+                    logger.debug("Frontend manager not ready for " + operation.entry + ", retrying in " + retryDelay
+                            + " ms: " + e.getMessage());
+                    schedule(frontendName, retryDelay);
+                    return;
+                }
+                if (operation.retries >= maxRetries) {
+                    // given up, the next operations of the frontend are applied
+                    failedOperations.incrementAndGet();
+                    logger.warn("Journaled operation " + operation.entry + " failed after " + operation.retries
+                            + " retries: " + e.getMessage());
+                    operation.fail(new FrontendManagerBeanException("Journaled operation " + operation.entry
+                            + " failed after " + operation.retries + " retries", e));
+                } else {
+                    operation.retries++;
+                    retries.incrementAndGet();
+                    logger.warn("Journaled operation " + operation.entry + " failed, retrying in " + retryDelay
+                            + " ms: " + e.getMessage());
+                    schedule(frontendName, retryDelay);
+                    return;
+                }
+            }
+            if (stopped) {
+                abandon(frontendName);
+                return;
+            }
+            try {
+                journal.complete(operation.entry);
+            } catch (IOException e) {
+                // replayed at the next start, the replay is idempotent
+                logger.warn("Cannot record the completion of " + operation.entry + ": " + e.getMessage());
+            }
+            synchronized (queues) {
+                LinkedList<JournaledOperation> queue = queues.get(frontendName);
+                if (queue != null) {
+                    queue.poll();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param e failure of an operation
+     * @return true if the failure comes from a frontend manager not available yet
+     */
+    private static boolean isNotReady(Exception e) {
+        return e instanceof NoSuchEJBException || e instanceof ConcurrentAccessException;
+    }
+
+    /**
+     * Apply an operation
+     * @param entry the operation
+     * @param replayed true if the operation may have been partially applied before
+     * @throws Exception if the operation failed
+     */
+    private void apply(OperationJournal.Entry entry, boolean replayed) throws Exception {
+        String frontendName = entry.getFrontendName();
+        TopologyView.FrontendEntry frontendEntry = replayed ? runtime.getTopology().getFrontend(frontendName) : null;
+        switch (entry.getType()) {
+            case CREATE_FRONTEND:
+                if (frontendEntry == null) {
+                    frontendManager.createFrontend(frontendName, entry.getArgument());
+                }
+                break;
+            case REMOVE_FRONTEND:
+                if (!replayed || frontendEntry != null) {
+                    frontendManager.removeFrontend(frontendName);
+                }
+                break;
+            case CREATE_VHOST:
+                if (frontendEntry != null && frontendEntry.getVhost(entry.getArgument()) != null) {
+                    // recorded in SR, its directives may be missing on the agent
+                    frontendManager.reconcileFrontend(frontendName);
+                } else {
+                    frontendManager.createVhost(frontendName, entry.getArgument(), entry.getRouterNames());
+                }
+                break;
+            case REMOVE_VHOST:
+                if (!replayed || (frontendEntry != null && frontendEntry.getVhost(entry.getArgument()) != null)) {
+                    frontendManager.removeVhost(frontendName, entry.getArgument());
+                }
+                break;
+            default:
+                throw new FrontendManagerBeanException("Unexpected journaled operation " + entry);
+        }
+    }
+
+    /**
+     * The completion of a journaled operation
+     */
+    private static class JournaledOperation extends FutureTask<Void> {
+
+        /**
+         * The operation
+         */
+        private final OperationJournal.Entry entry;
+
+        /**
+         * True if the operation was pending when the journal was opened
+         */
+        private final boolean replayed;
+
+        /**
+         * Number of retries of the operation, only used by the drain of its frontend
+         */
+        private int retries;
+
+        /**
+         * Constructor
+         * @param entry the operation
+         * @param replayed true if the operation was pending when the journal was opened
+         */
+        public JournaledOperation(OperationJournal.Entry entry, boolean replayed) {
+            super(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    throw new IllegalStateException("Completed by the journal applier");
+                }
+            });
+            this.entry = entry;
+            this.replayed = replayed;
+        }
+
+        /**
+         * Complete the operation
+         */
+        public void succeed() {
+            set(null);
+        }
+
+        /**
+         * @param t the cause of the failure
+         */
+        public void fail(Throwable t) {
+            setException(t);
+        }
+    }
+}
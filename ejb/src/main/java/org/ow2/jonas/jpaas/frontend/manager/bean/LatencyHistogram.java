@@ -0,0 +1,178 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.bean;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram with success and failure counters. The latencies are
+ * counted in buckets of exponentially growing width (bucket i holds the
+ * latencies lower than 2^i microseconds), so that recording a value is a few
+ * atomic increments and never allocates.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Number of buckets, the last one holds the latencies above 2^(BUCKETS-2) microseconds
+     */
+    private static final int BUCKETS = 32;
+
+    /**
+     * Number of values by bucket
+     */
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Number of successful calls
+     */
+    private final AtomicLong successes = new AtomicLong();
+
+    /**
+     * Number of failed calls
+     */
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Sum of the latencies, in nanoseconds
+     */
+    private final AtomicLong totalTime = new AtomicLong();
+
+    /**
+     * Highest latency, in nanoseconds
+     */
+    private final AtomicLong maxTime = new AtomicLong();
+
+    /**
+     * Record a call
+     * @param nanos Latency of the call, in nanoseconds
+     * @param success True if the call succeeded
+     */
+    public void record(long nanos, boolean success) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        long micros = nanos / 1000L;
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        if (success) {
+            successes.incrementAndGet();
+        } else {
+            failures.incrementAndGet();
+        }
+        totalTime.addAndGet(nanos);
+        long max = maxTime.get();
+        while (nanos > max && !maxTime.compareAndSet(max, nanos)) {
+            max = maxTime.get();
+        }
+    }
+
+    /**
+     * @return the number of successful calls
+     */
+    public long getSuccesses() {
+        return successes.get();
+    }
+
+    /**
+     * @return the number of failed calls
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @return the number of calls
+     */
+    public long getCount() {
+        return successes.get() + failures.get();
+    }
+
+    /**
+     * @return the average latency in milliseconds, 0 if there was no call
+     */
+    public double getMean() {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        return totalTime.get() / 1000000.0 / count;
+    }
+
+    /**
+     * @return the highest latency in milliseconds
+     */
+    public double getMax() {
+        return maxTime.get() / 1000000.0;
+    }
+
+    /**
+     * Get an upper bound of a percentile of the latencies
+     * @param percentile the percentile, between 0 and 100
+     * @return the upper bound of the bucket holding the percentile, in
+     *         milliseconds. 0 if there was no call.
+     */
+    public double getPercentile(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * Math.min(100.0, Math.max(0.0, percentile)) / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return (1L << i) / 1000.0;
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Add the content of this histogram to another one
+     * @param other the histogram receiving the values
+     */
+    void addTo(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            other.buckets.addAndGet(i, buckets.get(i));
+        }
+        other.successes.addAndGet(successes.get());
+        other.failures.addAndGet(failures.get());
+        other.totalTime.addAndGet(totalTime.get());
+        long max = maxTime.get();
+        if (max > other.maxTime.get()) {
+            other.maxTime.set(max);
+        }
+    }
+
+    /**
+     * Forget all the recorded calls
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        successes.set(0);
+        failures.set(0);
+        totalTime.set(0);
+        maxTime.set(0);
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.bean;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Run the asynchronous frontend manager operations on a bounded pool. An
+ * operation is cancelled (and its thread interrupted) when it doesn't
+ * complete before the timeout. The interruption doesn't abort an agent
+ * request blocked in an HttpURLConnection read: the request is only bounded
+ * by the deadline of the operation, the cancelled operation completes the
+ * caller Future but keeps its thread until then.
+ */
+public class OperationExecutor {
+
+    /**
+     * Default timeout of an operation, in milliseconds
+     */
+    public static final long DEFAULT_TIMEOUT = 120000L;
+
+    /**
+     * Executor of the operations
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Timer cancelling the late operations
+     */
+    private final ScheduledExecutorService timer;
+
+    /**
+     * Timeout of an operation in milliseconds, 0 for no timeout
+     */
+    private final long timeout;
+
+    /**
+     * Constructor
+     * @param executor Executor of the operations, it should be bounded
+     * @param timer Timer cancelling the late operations
+     * @param timeout Timeout of an operation in milliseconds, 0 for no timeout
+     */
+    public OperationExecutor(ExecutorService executor, ScheduledExecutorService timer, long timeout) {
+        this.executor = executor;
+        this.timer = timer;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Submit an operation
+     * @param operation the operation
+     * @return the completion of the operation. It fails with a
+     *         RejectedExecutionException if the pool is saturated.
+     */
+    public <T> Future<T> submit(Callable<T> operation) {
+        final TimedTask<T> task = new TimedTask<T>(operation);
+        if (timeout > 0) {
+            // set before the task may run, its completion cancels the trigger
+            task.timeoutTrigger = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    task.cancel(true);
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.fail(e);
+        }
+        return task;
+    }
+
+    /**
+     * An operation cancelled on timeout
+     */
+    private static class TimedTask<T> extends FutureTask<T> {
+
+        /**
+         * Scheduled cancellation of the operation
+         */
+        private volatile ScheduledFuture<?> timeoutTrigger;
+
+        /**
+         * Constructor
+         * @param operation the operation
+         */
+        public TimedTask(Callable<T> operation) {
+            super(operation);
+        }
+
+        /**
+         * @param t the cause of the failure
+         */
+        public void fail(Throwable t) {
+            setException(t);
+        }
+
+        /**
+         * Forget the timeout once the operation is done
+         */
+        @Override
+        protected void done() {
+            ScheduledFuture<?> trigger = timeoutTrigger;
+            if (trigger != null) {
+                trigger.cancel(false);
+            }
+        }
+    }
+}
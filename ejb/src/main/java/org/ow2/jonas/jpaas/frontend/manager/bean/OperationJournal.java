@@ -0,0 +1,532 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.bean;
+
+import org.ow2.util.log.Log;
+import org.ow2.util.log.LogFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the frontend and vhost operations, stored in a
+ * memory-mapped file. An operation is durable once {@link #append} returns:
+ * the mapped pages are forced to the disk, and the appenders waiting at the
+ * same time share one force. A completed operation gets a completion record,
+ * which is not forced: an operation completed just before a crash is replayed,
+ * so the operations must be applied idempotently.
+ *
+ * Each record is its payload length, the CRC32 of the payload and the
+ * payload. The file is pre-allocated with zeros: reading stops at the first
+ * empty or corrupted (torn) record. When the file is full, and when it is
+ * opened, it is rewritten with the pending operations only.
+ */
+public class OperationJournal {
+
+    /**
+     * Default size of the journal file, in bytes
+     */
+    public static final int DEFAULT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Name of the journal file
+     */
+    static final String FILE_NAME = "operations.journal";
+
+    /**
+     * Size of the record header: payload length and CRC32
+     */
+    private static final int RECORD_HEADER = 8;
+
+    /**
+     * The journaled operations
+     */
+    public enum Type {
+        /** createFrontend */
+        CREATE_FRONTEND,
+        /** removeFrontend */
+        REMOVE_FRONTEND,
+        /** createVhost */
+        CREATE_VHOST,
+        /** removeVhost */
+        REMOVE_VHOST,
+        /** completion of an operation */
+        COMPLETE
+    }
+
+    /**
+     * The logger
+     */
+    private Log logger = LogFactory.getLog(OperationJournal.class);
+
+    /**
+     * The journal file
+     */
+    private final File file;
+
+    /**
+     * Minimum size of the journal file, in bytes
+     */
+    private final int size;
+
+    /**
+     * True if the appended operations are forced to the disk
+     */
+    private final boolean sync;
+
+    /**
+     * The mapped journal file
+     */
+    private MappedByteBuffer buffer;
+
+    /**
+     * Pending operations by sequence, in sequence order
+     */
+    private final Map<Long, Entry> pending = new LinkedHashMap<Long, Entry>();
+
+    /**
+     * Sequence of the next operation
+     */
+    private long nextSequence = 1;
+
+    /**
+     * Number of bytes appended since the journal was opened
+     */
+    private long appendedBytes;
+
+    /**
+     * Number of bytes forced to the disk since the journal was opened
+     */
+    private volatile long forcedBytes;
+
+    /**
+     * Lock of the forces, the journal lock is not held while forcing
+     */
+    private final Object forceLock = new Object();
+
+    /**
+     * Number of appended operations
+     */
+    private final AtomicLong appendedEntries = new AtomicLong();
+
+    /**
+     * Number of forces of the journal file
+     */
+    private final AtomicLong forces = new AtomicLong();
+
+    /**
+     * Number of rewrites of the journal file
+     */
+    private final AtomicLong compactions = new AtomicLong();
+
+    /**
+     * Open a journal, reading the operations which were not completed
+     * @param directory Directory of the journal file, created if needed
+     * @param size Minimum size of the journal file, in bytes
+     * @param sync True if the appended operations are forced to the disk
+     * @throws IOException if the journal cannot be read or written
+     */
+    public OperationJournal(File directory, int size, boolean sync) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create the journal directory " + directory);
+        }
+        this.file = new File(directory, FILE_NAME);
+        this.size = size;
+        this.sync = sync;
+        if (file.exists()) {
+            read();
+        }
+        synchronized (this) {
+            compact(0);
+        }
+        if (!pending.isEmpty()) {
+            logger.info("Journal " + file + " opened with " + pending.size() + " pending operation(s)");
+        }
+    }
+
+    /**
+     * @return the operations which were not completed when the journal was opened, in sequence order
+     */
+    public synchronized List<Entry> getPendingEntries() {
+        return new ArrayList<Entry>(pending.values());
+    }
+
+    /**
+     * Append an operation. The operation is on the disk when the method returns.
+     * @param type Type of the operation
+     * @param frontendName Name of the frontend
+     * @param argument Url of the agent API or name of the vhost, null if none
+     * @param routerNames Target router list, empty if none
+     * @return the journaled operation
+     * @throws IOException if the operation cannot be written
+     */
+    public Entry append(Type type, String frontendName, String argument, List<String> routerNames)
+            throws IOException {
+        Entry entry;
+        long position;
+        synchronized (this) {
+            entry = new Entry(nextSequence++, type, frontendName, argument, routerNames);
+            byte[] record = encode(entry);
+            if (buffer.remaining() < record.length + RECORD_HEADER) {
+                compact(record.length);
+            }
+            pending.put(entry.sequence, entry);
+            buffer.put(record);
+            appendedBytes += record.length;
+            position = appendedBytes;
+        }
+        appendedEntries.incrementAndGet();
+        if (sync) {
+            force(position);
+        }
+        return entry;
+    }
+
+    /**
+     * Record the completion of an operation. The record is not forced.
+     * @param entry the completed operation
+     * @throws IOException if the completion cannot be written
+     */
+    public synchronized void complete(Entry entry) throws IOException {
+        if (pending.remove(entry.sequence) == null) {
+            return;
+        }
+        byte[] record = encode(new Entry(entry.sequence, Type.COMPLETE, null, null, null));
+        if (buffer.remaining() < record.length + RECORD_HEADER) {
+            // the operation is no longer pending, it is left out of the rewritten file
+            compact(0);
+            return;
+        }
+        buffer.put(record);
+        appendedBytes += record.length;
+    }
+
+    /**
+     * Force the completions recorded so far
+     */
+    public void close() {
+        force(Long.MAX_VALUE);
+    }
+
+    /**
+     * @return the number of pending operations
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return the number of appended operations
+     */
+    public long getAppendedEntries() {
+        return appendedEntries.get();
+    }
+
+    /**
+     * @return the number of forces of the journal file
+     */
+    public long getForces() {
+        return forces.get();
+    }
+
+    /**
+     * @return the number of rewrites of the journal file
+     */
+    public long getCompactions() {
+        return compactions.get();
+    }
+
+    /**
+     * Force the journal up to a position. The appenders which wait while a
+     * force runs are covered by the next one.
+     * @param position Number of appended bytes which must be on the disk
+     */
+    private void force(long position) {
+        synchronized (forceLock) {
+            if (forcedBytes >= position) {
+                // forced by another appender
+                return;
+            }
+            MappedByteBuffer forced;
+            long target;
+            synchronized (this) {
+                forced = buffer;
+                target = appendedBytes;
+            }
+            forced.force();
+            forces.incrementAndGet();
+            forcedBytes = target;
+        }
+    }
+
+    /**
+     * Read the records of the journal file
+     * @throws IOException if the file cannot be read
+     */
+    private synchronized void read() throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            MappedByteBuffer existing = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32 crc = new CRC32();
+            while (existing.remaining() >= RECORD_HEADER) {
+                int length = existing.getInt();
+                int checksum = existing.getInt();
+                if (length <= 0 || length > existing.remaining()) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                existing.get(payload);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    logger.warn("Torn record at the end of the journal " + file + ", ignored");
+                    break;
+                }
+                Entry entry = decode(payload);
+                nextSequence = Math.max(nextSequence, entry.sequence + 1);
+                if (entry.type == Type.COMPLETE) {
+                    pending.remove(entry.sequence);
+                } else {
+                    pending.put(entry.sequence, entry);
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Cannot read the journal " + file, e);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Rewrite the journal file with the pending operations only. The new file
+     * is written aside, forced and renamed over the journal file.
+     * @param reserved Number of bytes which must be free after the rewrite
+     * @throws IOException if the file cannot be written
+     */
+    private void compact(int reserved) throws IOException {
+        List<byte[]> records = new ArrayList<byte[]>();
+        long used = 0;
+        for (Entry entry : pending.values()) {
+            byte[] record = encode(entry);
+            records.add(record);
+            used += record.length;
+        }
+        long fileSize = Math.max(size, 2 * (used + reserved + RECORD_HEADER));
+        if (fileSize > Integer.MAX_VALUE) {
+            throw new IOException("Journal " + file + " full: " + pending.size() + " pending operations");
+        }
+        File compacted = new File(file.getParentFile(), FILE_NAME + ".tmp");
+        RandomAccessFile randomAccessFile = new RandomAccessFile(compacted, "rw");
+        MappedByteBuffer rewritten;
+        try {
+            randomAccessFile.setLength(0);
+            randomAccessFile.setLength(fileSize);
+            rewritten = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            for (byte[] record : records) {
+                rewritten.put(record);
+            }
+            rewritten.force();
+        } finally {
+            // the mapping stays valid once the file is closed
+            randomAccessFile.close();
+        }
+        if (!compacted.renameTo(file) && !(file.delete() && compacted.renameTo(file))) {
+            throw new IOException("Cannot replace the journal " + file);
+        }
+        buffer = rewritten;
+        // every pending record is on the disk
+        appendedBytes += used;
+        forcedBytes = appendedBytes;
+        compactions.incrementAndGet();
+    }
+
+    /**
+     * @param entry an operation
+     * @return the record of the operation
+     * @throws IOException if the operation cannot be encoded
+     */
+    private static byte[] encode(Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        // room for the header
+        out.writeLong(0);
+        out.writeLong(entry.sequence);
+        out.writeByte(entry.type.ordinal());
+        if (entry.type != Type.COMPLETE) {
+            out.writeUTF(entry.frontendName);
+            out.writeBoolean(entry.argument != null);
+            if (entry.argument != null) {
+                out.writeUTF(entry.argument);
+            }
+            out.writeInt(entry.routerNames.size());
+            for (String routerName : entry.routerNames) {
+                out.writeUTF(routerName);
+            }
+        }
+        out.close();
+        byte[] record = bytes.toByteArray();
+        int length = record.length - RECORD_HEADER;
+        CRC32 crc = new CRC32();
+        crc.update(record, RECORD_HEADER, length);
+        writeInt(record, 0, length);
+        writeInt(record, 4, (int) crc.getValue());
+        return record;
+    }
+
+    /**
+     * @param payload the payload of a record
+     * @return the operation of the record
+     * @throws IOException if the payload cannot be decoded
+     */
+    private static Entry decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        long sequence = in.readLong();
+        int ordinal = in.readByte();
+        if (ordinal < 0 || ordinal >= Type.values().length) {
+            throw new IOException("Unknown journal record type " + ordinal);
+        }
+        Type type = Type.values()[ordinal];
+        if (type == Type.COMPLETE) {
+            return new Entry(sequence, type, null, null, null);
+        }
+        String frontendName = in.readUTF();
+        String argument = in.readBoolean() ? in.readUTF() : null;
+        int routerCount = in.readInt();
+        List<String> routerNames = new ArrayList<String>(routerCount);
+        for (int i = 0; i < routerCount; i++) {
+            routerNames.add(in.readUTF());
+        }
+        return new Entry(sequence, type, frontendName, argument, routerNames);
+    }
+
+    /**
+     * Write a big-endian int in an array
+     * @param bytes the array
+     * @param offset Offset of the int
+     * @param value the int
+     */
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    /**
+     * A journaled operation
+     */
+    public static class Entry {
+
+        /**
+         * Sequence of the operation in the journal
+         */
+        private final long sequence;
+
+        /**
+         * Type of the operation
+         */
+        private final Type type;
+
+        /**
+         * Name of the frontend
+         */
+        private final String frontendName;
+
+        /**
+         * Url of the agent API or name of the vhost, null if none
+         */
+        private final String argument;
+
+        /**
+         * Target router list, empty if none
+         */
+        private final List<String> routerNames;
+
+        /**
+         * Constructor
+         * @param sequence Sequence of the operation in the journal
+         * @param type Type of the operation
+         * @param frontendName Name of the frontend
+         * @param argument Url of the agent API or name of the vhost, null if none
+         * @param routerNames Target router list, null if none
+         */
+        Entry(long sequence, Type type, String frontendName, String argument, List<String> routerNames) {
+            this.sequence = sequence;
+            this.type = type;
+            this.frontendName = frontendName;
+            this.argument = argument;
+            this.routerNames = routerNames == null ? Collections.<String>emptyList()
+                    : Collections.unmodifiableList(new ArrayList<String>(routerNames));
+        }
+
+        /**
+         * @return the sequence of the operation in the journal
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return the type of the operation
+         */
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * @return the name of the frontend
+         */
+        public String getFrontendName() {
+            return frontendName;
+        }
+
+        /**
+         * @return the url of the agent API or the name of the vhost, null if none
+         */
+        public String getArgument() {
+            return argument;
+        }
+
+        /**
+         * @return the target router list, empty if none
+         */
+        public List<String> getRouterNames() {
+            return routerNames;
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + frontendName + (argument != null ? " " + argument : "")
+                    + (routerNames.isEmpty() ? "" : " " + routerNames) + " #" + sequence;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.bean;
+
+import org.ow2.jonas.jpaas.frontend.manager.common.TopologyView;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Latency and outcome of the frontend manager operations and of the SR and
+ * agent calls they are made of, by step and by frontend. The histograms of a
+ * frontend are created on its first call, recording a call afterwards doesn't
+ * allocate.
+ */
+public class OperationMetrics implements TopologyView.SrCallListener {
+
+    /**
+     * Tag of the steps which are not bound to a frontend, e.g. the SR listings
+     */
+    public static final String ALL_FRONTENDS = "*";
+
+    /**
+     * The recorded steps
+     */
+    public enum Step {
+        /** createFrontend operation */
+        CREATE_FRONTEND,
+        /** removeFrontend operation */
+        REMOVE_FRONTEND,
+        /** createVhost(s) operation */
+        CREATE_VHOSTS,
+        /** removeVhost(s) operation */
+        REMOVE_VHOSTS,
+        /** updateVhostRouters operation */
+        UPDATE_VHOST,
+        /** reconciliation of a frontend with its agent */
+        RECONCILE,
+        /** warm-up of the frontend manager at startup */
+        WARM_UP,
+        /** operation applied in parallel to a quorum of frontends */
+        QUORUM,
+        /** TCP probe of a router by the health monitor */
+        HEALTH_PROBE,
+        /** durable append of an operation to the journal */
+        JOURNAL_APPEND,
+        /** SR findFrontends */
+        SR_FIND_FRONTENDS,
+        /** SR findApacheJkRouters */
+        SR_FIND_ROUTERS,
+        /** SR findIaasComputeByPaasResource */
+        SR_FIND_COMPUTE,
+        /** SR createFrontend */
+        SR_CREATE_FRONTEND,
+        /** SR deleteFrontend */
+        SR_DELETE_FRONTEND,
+        /** SR updateFrontend */
+        SR_UPDATE_FRONTEND,
+        /** SR removeVirtualHost */
+        SR_REMOVE_VHOST,
+        /** agent vhost creation */
+        AGENT_CREATE_VHOST,
+        /** agent vhost removal */
+        AGENT_REMOVE_VHOST,
+        /** agent proxypass directive listing */
+        AGENT_LIST_PROXYPASS,
+        /** agent proxypass directive creation */
+        AGENT_ADD_PROXYPASS,
+        /** agent proxypass directive removal */
+        AGENT_REMOVE_PROXYPASS,
+        /** agent whole-configuration push */
+        AGENT_PUSH_CONFIGURATION,
+        /** agent Apache reload */
+        AGENT_RELOAD
+    }
+
+    /**
+     * Number of steps
+     */
+    private static final int STEPS = Step.values().length;
+
+    /**
+     * Histograms by frontend name, indexed by step
+     */
+    private final ConcurrentMap<String, LatencyHistogram[]> histograms =
+            new ConcurrentHashMap<String, LatencyHistogram[]>();
+
+    /**
+     * Record a call
+     * @param step the step
+     * @param frontendName Name of the frontend, ALL_FRONTENDS if the step is not bound to a frontend
+     * @param startTime Start of the call, as given by System.nanoTime()
+     * @param success True if the call succeeded
+     */
+    public void record(Step step, String frontendName, long startTime, boolean success) {
+        getHistograms(frontendName == null ? ALL_FRONTENDS : frontendName)[step.ordinal()]
+                .record(System.nanoTime() - startTime, success);
+    }
+
+    /**
+     * Record a SR call of the topology view
+     * @param call the SR call
+     * @param startTime Start of the call, as given by System.nanoTime()
+     * @param success True if the call succeeded
+     */
+    @Override
+    public void called(TopologyView.SrCall call, long startTime, boolean success) {
+        Step step;
+        switch (call) {
+            case FIND_FRONTENDS:
+                step = Step.SR_FIND_FRONTENDS;
+                break;
+            case FIND_ROUTERS:
+                step = Step.SR_FIND_ROUTERS;
+                break;
+            default:
+                step = Step.SR_FIND_COMPUTE;
+                break;
+        }
+        record(step, ALL_FRONTENDS, startTime, success);
+    }
+
+    /**
+     * @param step the step
+     * @param frontendName Name of the frontend
+     * @return the histogram of the step for the frontend, null if the frontend has no call
+     */
+    public LatencyHistogram getHistogram(Step step, String frontendName) {
+        LatencyHistogram[] frontendHistograms = histograms.get(frontendName);
+        if (frontendHistograms == null) {
+            return null;
+        }
+        return frontendHistograms[step.ordinal()];
+    }
+
+    /**
+     * @param step the step
+     * @return the histogram of the step merged over all the frontends
+     */
+    public LatencyHistogram getHistogram(Step step) {
+        LatencyHistogram merged = new LatencyHistogram();
+        for (LatencyHistogram[] frontendHistograms : histograms.values()) {
+            frontendHistograms[step.ordinal()].addTo(merged);
+        }
+        return merged;
+    }
+
+    /**
+     * @return the names of the frontends having recorded calls
+     */
+    public List<String> getFrontendNames() {
+        return new ArrayList<String>(histograms.keySet());
+    }
+
+    /**
+     * Forget the calls of a frontend
+     * @param frontendName Name of the frontend
+     */
+    public void remove(String frontendName) {
+        histograms.remove(frontendName);
+    }
+
+    /**
+     * Forget all the recorded calls
+     */
+    public void reset() {
+        histograms.clear();
+    }
+
+    /**
+     * @param frontendName Name of the frontend
+     * @return the histograms of the frontend, created on first use
+     */
+    private LatencyHistogram[] getHistograms(String frontendName) {
+        LatencyHistogram[] frontendHistograms = histograms.get(frontendName);
+        if (frontendHistograms == null) {
+            frontendHistograms = new LatencyHistogram[STEPS];
+            for (int i = 0; i < STEPS; i++) {
+                frontendHistograms[i] = new LatencyHistogram();
+            }
+            LatencyHistogram[] existing = histograms.putIfAbsent(frontendName, frontendHistograms);
+            if (existing != null) {
+                frontendHistograms = existing;
+            }
+        }
+        return frontendHistograms;
+    }
+}
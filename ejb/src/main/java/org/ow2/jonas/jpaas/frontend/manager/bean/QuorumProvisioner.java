@@ -0,0 +1,280 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.bean;
+
+import org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException;
+import org.ow2.jonas.jpaas.frontend.manager.api.OperationResult;
+import org.ow2.jonas.jpaas.frontend.manager.api.QuorumResult;
+import org.ow2.util.log.Log;
+import org.ow2.util.log.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Apply an operation to a set of frontends in parallel and complete once a
+ * quorum of them succeeded. The frontends which are still being updated when
+ * the operation completes (the stragglers) keep being updated in the
+ * background; their outcome is logged and kept for the metrics. The
+ * per-frontend operations run on the executor given by the caller, the
+ * asynchronous invocations of the bean in the container.
+ */
+public class QuorumProvisioner {
+
+    /**
+     * Default number of straggler outcomes kept for the metrics
+     */
+    public static final int DEFAULT_HISTORY = 100;
+
+    /**
+     * The logger
+     */
+    private Log logger = LogFactory.getLog(QuorumProvisioner.class);
+
+    /**
+     * Maximum number of straggler outcomes kept
+     */
+    private final int historySize;
+
+    /**
+     * Last straggler outcomes, oldest first
+     */
+    private final LinkedList<String> history = new LinkedList<String>();
+
+    /**
+     * Number of frontends completed after their operation returned
+     */
+    private final AtomicLong stragglers = new AtomicLong();
+
+    /**
+     * Number of stragglers which failed
+     */
+    private final AtomicLong failedStragglers = new AtomicLong();
+
+    /**
+     * Operation applied to one frontend
+     */
+    public interface FrontendOperation {
+
+        /**
+         * @param frontendName Name of the frontend
+         * @return the result of the operation on the frontend
+         * @throws Exception if the operation failed
+         */
+        OperationResult apply(String frontendName) throws Exception;
+    }
+
+    /**
+     * Constructor
+     * @param historySize Maximum number of straggler outcomes kept
+     */
+    public QuorumProvisioner(int historySize) {
+        this.historySize = historySize;
+    }
+
+    /**
+     * Apply an operation to several frontends in parallel
+     * @param description Description of the operation, for the logs
+     * @param frontendNames Names of the frontends
+     * @param quorum Number of frontends which must succeed, 0 or less for a majority
+     * @param operation The operation
+     * @param executor Executor of the per-frontend operations
+     * @return the result of each frontend completed before the quorum decision and the pending frontends
+     * @throws FrontendManagerBeanException if the frontend set or the quorum is not valid
+     */
+    public QuorumResult apply(String description, Collection<String> frontendNames, int quorum,
+            final FrontendOperation operation, Executor executor) throws FrontendManagerBeanException {
+        Set<String> frontends = new LinkedHashSet<String>(frontendNames);
+        if (frontends.isEmpty()) {
+            throw new FrontendManagerBeanException("No frontend given for " + description);
+        }
+        final int required = quorum > 0 ? quorum : frontends.size() / 2 + 1;
+        if (required > frontends.size()) {
+            throw new FrontendManagerBeanException("Quorum " + required + " cannot be reached with the frontends "
+                    + frontends);
+        }
+
+        final Round round = new Round(description, frontends, required);
+        for (final String frontendName : frontends) {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        OperationResult result;
+                        try {
+                            result = operation.apply(frontendName);
+                        } catch (Exception e) {
+                            result = OperationResult.failure(frontendName, e.getMessage());
+                        }
+                        round.complete(new OperationResult(frontendName, result.isSuccess(), result.getMessage()));
+                    }
+                });
+            } catch (RuntimeException e) {
+                // e.g. the container cannot run one more asynchronous invocation
+                round.complete(OperationResult.failure(frontendName, "Cannot start the operation: " + e.getMessage()));
+            }
+        }
+        return round.await();
+    }
+
+    /**
+     * @return the number of frontends completed after their operation returned
+     */
+    public long getStragglers() {
+        return stragglers.get();
+    }
+
+    /**
+     * @return the number of stragglers which failed
+     */
+    public long getFailedStragglers() {
+        return failedStragglers.get();
+    }
+
+    /**
+     * @return the last straggler outcomes, oldest first
+     */
+    public List<String> getHistory() {
+        synchronized (history) {
+            return new ArrayList<String>(history);
+        }
+    }
+
+    /**
+     * Record the outcome of a straggler
+     * @param description Description of the operation
+     * @param result Result of the straggler
+     */
+    private void reportStraggler(String description, OperationResult result) {
+        stragglers.incrementAndGet();
+        if (result.isSuccess()) {
+            logger.info("Late completion of " + description + " on " + result);
+        } else {
+            failedStragglers.incrementAndGet();
+            logger.warn("Late failure of " + description + " on " + result);
+        }
+        synchronized (history) {
+            history.addLast(description + " " + result);
+            while (history.size() > historySize) {
+                history.removeFirst();
+            }
+        }
+    }
+
+    /**
+     * The per-frontend results of one operation
+     */
+    private class Round {
+
+        /**
+         * Description of the operation
+         */
+        private final String description;
+
+        /**
+         * Frontends not completed yet
+         */
+        private final Set<String> pending;
+
+        /**
+         * Number of successful frontends required
+         */
+        private final int required;
+
+        /**
+         * Results of the completed frontends
+         */
+        private final List<OperationResult> results = new ArrayList<OperationResult>();
+
+        /**
+         * Number of successful frontends
+         */
+        private int successes;
+
+        /**
+         * True once the operation returned, the later results are stragglers
+         */
+        private boolean returned;
+
+        /**
+         * Constructor
+         * @param description Description of the operation
+         * @param frontends Names of the frontends
+         * @param required Number of successful frontends required
+         */
+        public Round(String description, Set<String> frontends, int required) {
+            this.description = description;
+            this.pending = new LinkedHashSet<String>(frontends);
+            this.required = required;
+        }
+
+        /**
+         * Record the result of a frontend
+         * @param result the result, named after the frontend
+         */
+        public void complete(OperationResult result) {
+            synchronized (this) {
+                pending.remove(result.getName());
+                if (!returned) {
+                    results.add(result);
+                    if (result.isSuccess()) {
+                        successes++;
+                    }
+                    notifyAll();
+                    return;
+                }
+            }
+            reportStraggler(description, result);
+        }
+
+        /**
+         * @return true if the quorum is reached or cannot be reached anymore
+         */
+        private boolean isDecided() {
+            return successes >= required || successes + pending.size() < required;
+        }
+
+        /**
+         * Wait for the quorum decision
+         * @return the result of the operation
+         * @throws FrontendManagerBeanException if interrupted
+         */
+        public synchronized QuorumResult await() throws FrontendManagerBeanException {
+            try {
+                while (!isDecided()) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new FrontendManagerBeanException("Interrupted while waiting for " + description, e);
+            } finally {
+                returned = true;
+            }
+            if (!pending.isEmpty()) {
+                logger.info(description + " returned with " + pending.size() + " frontend(s) in progress: "
+                        + pending);
+            }
+            return new QuorumResult(required, successes >= required, new ArrayList<OperationResult>(results),
+                    new ArrayList<String>(pending));
+        }
+    }
+}
@@ -0,0 +1,608 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.bean;
+
+import org.ow2.jonas.jpaas.apache.manager.util.api.xml.Directive;
+import org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException;
+import org.ow2.jonas.jpaas.frontend.manager.api.OperationResult;
+import org.ow2.jonas.jpaas.frontend.manager.common.TopologyView;
+import org.ow2.jonas.jpaas.sr.facade.api.ISrPaasFrontendFacade;
+import org.ow2.jonas.jpaas.sr.facade.vo.PaasFrontendVO;
+import org.ow2.jonas.jpaas.sr.facade.vo.VirtualHostVO;
+import org.ow2.util.log.Log;
+import org.ow2.util.log.LogFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Reconcile the proxypass directives recorded in SR with the ones the
+ * Apache agent really has. The directives of the agent are listed in one
+ * request per Apache vhost; the directives missing on the agent (or whose
+ * value differs) are created again and recorded in SR, the directives of the
+ * agent which are not recorded in SR are removed, and one reload covers all
+ * the changes.
+ *
+ * The frontends in push mode have their whole configuration pushed again.
+ * The frontends in the per-directive mode which still have vhosts applied by
+ * a push, because they were switched back from the push mode, get the
+ * directives of these vhosts created on the agent.
+ *
+ * A frontend reconciled on request is read again from SR, not from the
+ * topology view, before any directive of the agent is removed. The
+ * directives created again are recorded on copies of the vhosts, which
+ * replace the cached ones once written to SR.
+ *
+ * The frontends can also be reconciled in the background, one at a time:
+ * a full pass over the frontends is spread over a period so that the agents
+ * of a large fleet are not all queried at the same moment. The SR frontends
+ * are read once at the start of a pass and merged into the topology view,
+ * which the reconciliations of the pass then use. The background
+ * reconciliation is disabled unless a period is configured.
+ */
+public class Reconciler {
+
+    /**
+     * Default duration of a background pass over all the frontends, in
+     * milliseconds: 0, the background reconciliation is disabled
+     */
+    public static final long DEFAULT_PERIOD = 0L;
+
+    /**
+     * Default minimum time between two background reconciliations, in milliseconds
+     */
+    public static final long DEFAULT_MIN_INTERVAL = 1000L;
+
+    /**
+     * The logger
+     */
+    private Log logger = LogFactory.getLog(Reconciler.class);
+
+    /**
+     * Shared components of the frontend manager
+     */
+    private final IFrontendRuntime runtime;
+
+    /**
+     * SR facade Frontend
+     */
+    private final ISrPaasFrontendFacade srPaasFrontendFacade;
+
+    /**
+     * Number of reconciled frontends
+     */
+    private final AtomicLong reconciledFrontends = new AtomicLong();
+
+    /**
+     * Number of directives created again on the agents
+     */
+    private final AtomicLong createdDirectives = new AtomicLong();
+
+    /**
+     * Number of extra directives removed from the agents
+     */
+    private final AtomicLong removedDirectives = new AtomicLong();
+
+    /**
+     * Number of failed reconciliations
+     */
+    private final AtomicLong failedReconciliations = new AtomicLong();
+
+    /**
+     * Executor of the background reconciliations, null if not started
+     */
+    private volatile ScheduledExecutorService executor;
+
+    /**
+     * Duration of a background pass over all the frontends, in milliseconds
+     */
+    private long period;
+
+    /**
+     * Minimum time between two background reconciliations, in milliseconds
+     */
+    private long minInterval;
+
+    /**
+     * Frontends left to reconcile in the current background pass
+     */
+    private final List<String> pass = new ArrayList<String>();
+
+    /**
+     * Number of frontends of the current background pass, guarded by pass
+     */
+    private int passSize;
+
+    /**
+     * Constructor
+     * @param runtime Shared components of the frontend manager
+     * @param srPaasFrontendFacade SR facade Frontend
+     */
+    public Reconciler(IFrontendRuntime runtime, ISrPaasFrontendFacade srPaasFrontendFacade) {
+        this.runtime = runtime;
+        this.srPaasFrontendFacade = srPaasFrontendFacade;
+    }
+
+    /**
+     * Reconcile a frontend and, depending on the configuration, wait for the
+     * reload covering the changes
+     * @param frontendName Name of the frontend
+     * @return the result of the reconciliation
+     * @throws FrontendManagerBeanException if the frontend doesn't exist
+     */
+    public OperationResult reconcile(String frontendName) throws FrontendManagerBeanException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            int[] changes = new int[2];
+            Future<Void> reload;
+            Lock lock = runtime.getFrontendLocks().lock(frontendName);
+            try {
+                reload = doReconcile(readFrontend(frontendName), runtime.newDeadline(), changes);
+            } catch (FrontendManagerBeanException e) {
+                failedReconciliations.incrementAndGet();
+                logger.warn("Cannot reconcile the frontend '" + frontendName + "': " + e.getMessage());
+                return OperationResult.failure(frontendName, e.getMessage());
+            } finally {
+                lock.unlock();
+            }
+            if (reload != null) {
+                runtime.getReloadScheduler().awaitIfRequired(frontendName, reload);
+            }
+            success = true;
+            logChanges(frontendName, changes);
+            return OperationResult.success(frontendName);
+        } finally {
+            runtime.getMetrics().record(OperationMetrics.Step.RECONCILE, frontendName, start, success);
+        }
+    }
+
+    /**
+     * Select the apply mode of a frontend and move the configuration already
+     * applied to its agent to the new mode: the whole configuration is
+     * pushed, or the directives of the pushed vhosts are created on the agent
+     * @param frontendName Name of the frontend
+     * @param push true for the push mode, false for the per-directive mode
+     * @return the result of the reconciliation, or a success if the mode didn't change
+     * @throws FrontendManagerBeanException if the frontend doesn't exist
+     */
+    public OperationResult switchMode(String frontendName, boolean push) throws FrontendManagerBeanException {
+        if (!runtime.getConfigurationPusher().setPushMode(frontendName, push)) {
+            return OperationResult.success(frontendName);
+        }
+        return reconcile(frontendName);
+    }
+
+    /**
+     * Reconcile a frontend whose lock is held by the caller, for instance
+     * once its agent turned out to have no configuration resource
+     * @param frontendName Name of the frontend
+     * @param deadline Deadline of the agent calls
+     * @return the reload covering the changes, null if nothing changed
+     * @throws FrontendManagerBeanException if the frontend cannot be reconciled
+     */
+    Future<Void> reconcileLocked(String frontendName, Deadline deadline) throws FrontendManagerBeanException {
+        int[] changes = new int[2];
+        Future<Void> reload = doReconcile(readFrontend(frontendName), deadline, changes);
+        logChanges(frontendName, changes);
+        return reload;
+    }
+
+    /**
+     * Reconcile a locked frontend
+     * @param frontendEntry the frontend, as read from SR
+     * @param deadline Deadline of the agent calls
+     * @param changes receives the number of created and removed directives
+     * @return the reload covering the changes, null if nothing changed
+     * @throws FrontendManagerBeanException if the frontend cannot be reconciled
+     */
+    private Future<Void> doReconcile(TopologyView.FrontendEntry frontendEntry, Deadline deadline, int[] changes)
+            throws FrontendManagerBeanException {
+
+        PaasFrontendVO paasFrontend = frontendEntry.getFrontend();
+        String frontendName = paasFrontend.getName();
+        ApacheManagerClient agentClient = runtime.getAgentTransport().getClient(frontendName,
+                paasFrontend.getApiUrl());
+        ConfigurationPusher pusher = runtime.getConfigurationPusher();
+        if (pusher.isPushMode(frontendName)) {
+            try {
+                // the agent state is not listed, the whole configuration is pushed again
+                Future<Void> reload = pusher.push(frontendName, paasFrontend, agentClient,
+                        runtime.getReloadScheduler(), deadline, true);
+                reconciledFrontends.incrementAndGet();
+                return reload;
+            } catch (FrontendManagerBeanException e) {
+                if (pusher.isPushMode(frontendName)) {
+                    throw e;
+                }
+                // the agent has no configuration resource, the pushed vhosts are created directive by directive
+            }
+        }
+
+        // the pushed vhosts left by the push mode get their directives created on the agent
+        Map<String, VirtualHostVO> changedVhosts = new LinkedHashMap<String, VirtualHostVO>();
+        List<VirtualHostVO> virtualHostList = new ArrayList<VirtualHostVO>(paasFrontend.getVirtualHosts());
+        migratePushedVhosts(paasFrontend, agentClient, virtualHostList, changedVhosts, deadline, changes);
+
+        // the vhosts of the frontend by Apache vhost
+        Map<String, List<VirtualHostVO>> apacheVhosts = new LinkedHashMap<String, List<VirtualHostVO>>();
+        for (VirtualHostVO virtualHost : virtualHostList) {
+            List<VirtualHostVO> virtualHosts = apacheVhosts.get(virtualHost.getVhostId());
+            if (virtualHosts == null) {
+                virtualHosts = new ArrayList<VirtualHostVO>();
+                apacheVhosts.put(virtualHost.getVhostId(), virtualHosts);
+            }
+            virtualHosts.add(virtualHost);
+        }
+
+        for (Map.Entry<String, List<VirtualHostVO>> apacheVhost : apacheVhosts.entrySet()) {
+            String vhostID = apacheVhost.getKey();
+
+            // the state of the agent, in one request
+            Map<String, String> actual = new HashMap<String, String>();
+            for (Directive directive : agentClient.getProxyPasses(vhostID, deadline)) {
+                actual.put(String.valueOf(directive.getId()), directive.getValue());
+            }
+
+            Set<String> expected = new HashSet<String>();
+            for (VirtualHostVO virtualHost : apacheVhost.getValue()) {
+                Map<String, String> proxyList = virtualHost.getProxypassDirectives();
+                if (proxyList == null) {
+                    continue;
+                }
+                // the cached vhost is not modified, the changes are made on a copy of its directives
+                Map<String, String> updatedList = null;
+                for (Map.Entry<String, String> directive : new HashMap<String, String>(proxyList).entrySet()) {
+                    if (BalancerConfiguration.isMember(directive.getKey())
+                            || HealthMonitor.isEvicted(directive.getKey())) {
+                        // the balancer members are not listed with the proxypass directives,
+                        // the evicted routes are not on the agent until the health monitor re-admits them
+                        continue;
+                    }
+                    String actualValue = actual.get(directive.getKey());
+                    if (directive.getValue().equals(actualValue)) {
+                        expected.add(directive.getKey());
+                        continue;
+                    }
+                    // missing on the agent or holding another value: create it again
+                    if (actualValue != null) {
+                        agentClient.removeProxyPass(vhostID, directive.getKey(), deadline);
+                        actual.remove(directive.getKey());
+                        changes[1]++;
+                    }
+                    Directive created = createDirective(agentClient, vhostID, directive.getValue(), deadline);
+                    if (updatedList == null) {
+                        updatedList = new Hashtable<String, String>(proxyList);
+                    }
+                    updatedList.remove(directive.getKey());
+                    updatedList.put(String.valueOf(created.getId()), created.getValue());
+                    expected.add(String.valueOf(created.getId()));
+                    changes[0]++;
+                }
+                if (updatedList != null) {
+                    VirtualHostVO updatedVhost = new VirtualHostVO(virtualHost.getName(), virtualHost.getVhostId());
+                    updatedVhost.setProxypassDirectives(updatedList);
+                    changedVhosts.put(updatedVhost.getName(), updatedVhost);
+                }
+            }
+
+            // on the agent but not in SR
+            for (String directiveId : actual.keySet()) {
+                if (!expected.contains(directiveId)) {
+                    agentClient.removeProxyPass(vhostID, directiveId, deadline);
+                    changes[1]++;
+                }
+            }
+        }
+
+        reconciledFrontends.incrementAndGet();
+        createdDirectives.addAndGet(changes[0]);
+        removedDirectives.addAndGet(changes[1]);
+        if (!changedVhosts.isEmpty()) {
+            writeChanges(frontendName, frontendEntry, new ArrayList<VirtualHostVO>(changedVhosts.values()));
+        }
+        if (changes[0] == 0 && changes[1] == 0) {
+            return null;
+        }
+        return runtime.getReloadScheduler().requestReload(frontendName, agentClient);
+    }
+
+    /**
+     * Create on the agent the directives of the vhosts applied by a push,
+     * in the Apache vhost shared by the other vhosts of the frontend, so
+     * that a frontend switched back to the per-directive mode no longer
+     * depends on its last pushed configuration
+     * @param paasFrontend the frontend
+     * @param agentClient Client of the frontend agent
+     * @param virtualHosts Vhosts of the frontend, the pushed ones being replaced by their copies
+     * @param changedVhosts Map receiving the copies of the pushed vhosts, by name
+     * @param deadline Deadline of the agent calls
+     * @param changes receives the number of created directives
+     * @throws FrontendManagerBeanException if a directive cannot be created
+     */
+    private void migratePushedVhosts(PaasFrontendVO paasFrontend, ApacheManagerClient agentClient,
+            List<VirtualHostVO> virtualHosts, Map<String, VirtualHostVO> changedVhosts, Deadline deadline,
+            int[] changes) throws FrontendManagerBeanException {
+        String vhostID = null;
+        boolean pushed = false;
+        for (VirtualHostVO virtualHost : virtualHosts) {
+            if (ConfigurationPusher.PUSH_VHOST_ID.equals(virtualHost.getVhostId())) {
+                pushed = true;
+            } else if (vhostID == null) {
+                vhostID = virtualHost.getVhostId();
+            }
+        }
+        if (!pushed) {
+            return;
+        }
+        if (vhostID == null) {
+            vhostID = String.valueOf(agentClient.createVhost("*:80", deadline).getId());
+        }
+        for (int i = 0; i < virtualHosts.size(); i++) {
+            VirtualHostVO virtualHost = virtualHosts.get(i);
+            if (!ConfigurationPusher.PUSH_VHOST_ID.equals(virtualHost.getVhostId())) {
+                continue;
+            }
+            Map<String, String> proxyList = new Hashtable<String, String>();
+            if (virtualHost.getProxypassDirectives() != null) {
+                for (Map.Entry<String, String> directive : virtualHost.getProxypassDirectives().entrySet()) {
+                    String value = directive.getValue();
+                    if (HealthMonitor.isEvicted(directive.getKey())) {
+                        // created again by the health monitor once the router is back
+                        String evictedId = HealthMonitor.getEvictedId(directive.getKey());
+                        if (BalancerConfiguration.isMember(evictedId)) {
+                            proxyList.put(HealthMonitor.EVICTED_PREFIX + BalancerConfiguration.getMemberId(evictedId),
+                                    BalancerConfiguration.getMemberProxyPass(value));
+                        } else {
+                            proxyList.put(directive.getKey(), value);
+                        }
+                    } else if (BalancerConfiguration.isBalancerProxyPass(value)) {
+                        // the agent API has no balancer: the members become ProxyPass directives
+                        continue;
+                    } else if (BalancerConfiguration.isMember(directive.getKey())) {
+                        Directive created = createDirective(agentClient, vhostID,
+                                BalancerConfiguration.getMemberProxyPass(value), deadline);
+                        proxyList.put(String.valueOf(created.getId()), created.getValue());
+                        changes[0]++;
+                    } else {
+                        Directive created = createDirective(agentClient, vhostID, value, deadline);
+                        proxyList.put(String.valueOf(created.getId()), created.getValue());
+                        changes[0]++;
+                    }
+                }
+            }
+            VirtualHostVO migratedVhost = new VirtualHostVO(virtualHost.getName(), vhostID);
+            migratedVhost.setProxypassDirectives(proxyList);
+            virtualHosts.set(i, migratedVhost);
+            changedVhosts.put(migratedVhost.getName(), migratedVhost);
+        }
+    }
+
+    /**
+     * Read a frontend from SR and refresh the topology view with it
+     * @param frontendName Name of the frontend
+     * @return the refreshed frontend entry
+     * @throws FrontendManagerBeanException if the frontend cannot be read or doesn't exist
+     */
+    private TopologyView.FrontendEntry readFrontend(String frontendName) throws FrontendManagerBeanException {
+        TopologyView.FrontendEntry frontendEntry;
+        try {
+            // the directives of the agent are compared with SR, not with a possibly stale view
+            frontendEntry = runtime.getTopology().refreshFrontend(frontendName);
+        } catch (RuntimeException e) {
+            throw new FrontendManagerBeanException("Cannot read the Frontend " + frontendName + ".", e);
+        }
+        if (frontendEntry == null) {
+            throw new FrontendManagerBeanException("Frontend '" + frontendName + "' doesn't exist !");
+        }
+        return frontendEntry;
+    }
+
+    /**
+     * Create a proxypass directive again from its recorded value
+     * @param agentClient Client of the frontend agent
+     * @param vhostID Id of the Apache vhost
+     * @param value Recorded value of the directive, "path url"
+     * @param deadline Deadline of the agent calls
+     * @return the created directive
+     * @throws FrontendManagerBeanException if the directive cannot be created
+     */
+    private Directive createDirective(ApacheManagerClient agentClient, String vhostID, String value,
+            Deadline deadline) throws FrontendManagerBeanException {
+        int separator = value.indexOf(' ');
+        if (separator <= 0) {
+            throw new FrontendManagerBeanException("Cannot read the proxypass directive '" + value + "'");
+        }
+        return agentClient.addProxyPass(vhostID, value.substring(0, separator), value.substring(separator + 1).trim(),
+                deadline);
+    }
+
+    /**
+     * Record the directives created again in SR, on a copy of the cached frontend
+     * @param frontendName Name of the frontend
+     * @param frontendEntry the cached frontend
+     * @param changedVhosts Copies of the vhosts whose directives changed
+     * @throws FrontendManagerBeanException if the frontend cannot be written
+     */
+    private void writeChanges(String frontendName, TopologyView.FrontendEntry frontendEntry,
+            List<VirtualHostVO> changedVhosts) throws FrontendManagerBeanException {
+        Set<String> changedNames = new HashSet<String>();
+        for (VirtualHostVO virtualHost : changedVhosts) {
+            changedNames.add(virtualHost.getName());
+        }
+        PaasFrontendVO paasFrontend = frontendEntry.copyFrontend();
+        for (Iterator<VirtualHostVO> it = paasFrontend.getVirtualHosts().iterator(); it.hasNext(); ) {
+            if (changedNames.contains(it.next().getName())) {
+                it.remove();
+            }
+        }
+        paasFrontend.getVirtualHosts().addAll(changedVhosts);
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            srPaasFrontendFacade.updateFrontend(paasFrontend);
+            success = true;
+        } catch (RuntimeException e) {
+            // the next reconciliation will find the directives again
+            runtime.getTopology().invalidate(frontendName);
+            throw new FrontendManagerBeanException("Cannot update the Frontend " + frontendName + ".", e);
+        } finally {
+            runtime.getMetrics().record(OperationMetrics.Step.SR_UPDATE_FRONTEND, frontendName, start, success);
+        }
+        // the changed vhosts are indexed again
+        runtime.getTopology().applyChanges(frontendEntry, paasFrontend, changedVhosts, changedNames);
+    }
+
+    /**
+     * Log the changes made by a reconciliation
+     * @param frontendName Name of the frontend
+     * @param changes the number of created and removed directives
+     */
+    private void logChanges(String frontendName, int[] changes) {
+        if (changes[0] > 0 || changes[1] > 0) {
+            logger.info("Frontend '" + frontendName + "' reconciled: " + changes[0] + " directive(s) created, "
+                    + changes[1] + " directive(s) removed");
+        }
+    }
+
+    /**
+     * Start the background reconciliations
+     * @param executor Executor of the reconciliations
+     * @param period Duration of a pass over all the frontends, in milliseconds
+     * @param minInterval Minimum time between two reconciliations, in milliseconds
+     */
+    public void start(ScheduledExecutorService executor, long period, long minInterval) {
+        this.period = period;
+        this.minInterval = minInterval;
+        this.executor = executor;
+        schedule(period);
+    }
+
+    /**
+     * Stop the background reconciliations
+     */
+    public void stop() {
+        executor = null;
+    }
+
+    /**
+     * @return the number of reconciled frontends
+     */
+    public long getReconciledFrontends() {
+        return reconciledFrontends.get();
+    }
+
+    /**
+     * @return the number of directives created again on the agents
+     */
+    public long getCreatedDirectives() {
+        return createdDirectives.get();
+    }
+
+    /**
+     * @return the number of extra directives removed from the agents
+     */
+    public long getRemovedDirectives() {
+        return removedDirectives.get();
+    }
+
+    /**
+     * @return the number of failed reconciliations
+     */
+    public long getFailedReconciliations() {
+        return failedReconciliations.get();
+    }
+
+    /**
+     * Schedule the next background reconciliation
+     * @param delay delay of the reconciliation, in milliseconds
+     */
+    private void schedule(long delay) {
+        ScheduledExecutorService current = executor;
+        if (current == null) {
+            return;
+        }
+        current.schedule(new Runnable() {
+            @Override
+            public void run() {
+                schedule(reconcileNext());
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reconcile the next frontend of the background pass, without waiting for the reload
+     * @return the delay before the next reconciliation, in milliseconds
+     */
+    private long reconcileNext() {
+        String frontendName;
+        int frontendCount;
+        try {
+            synchronized (pass) {
+                if (pass.isEmpty()) {
+                    // SR is listed once per pass, the reconciliations of the pass use the merged view
+                    pass.addAll(runtime.getTopology().reloadFrontends());
+                    passSize = pass.size();
+                }
+                // the pace of the pass depends on its size when it started, not on what is left
+                frontendCount = Math.max(1, passSize);
+                if (pass.isEmpty()) {
+                    return period;
+                }
+                frontendName = pass.remove(pass.size() - 1);
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Cannot list the frontends to reconcile: " + e.getMessage());
+            return period;
+        }
+
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            int[] changes = new int[2];
+            Lock lock = runtime.getFrontendLocks().lock(frontendName);
+            try {
+                TopologyView.FrontendEntry frontendEntry = runtime.getTopology().getFrontend(frontendName);
+                if (frontendEntry != null) {
+                    doReconcile(frontendEntry, runtime.newDeadline(), changes);
+                }
+            } finally {
+                lock.unlock();
+            }
+            success = true;
+            logChanges(frontendName, changes);
+        } catch (Exception e) {
+            failedReconciliations.incrementAndGet();
+            logger.warn("Cannot reconcile the frontend '" + frontendName + "': " + e.getMessage());
+        } finally {
+            runtime.getMetrics().record(OperationMetrics.Step.RECONCILE, frontendName, start, success);
+        }
+        // spread the pass over the period
+        return Math.max(minInterval, period / frontendCount);
+    }
+}
@@ -0,0 +1,313 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.bean;
+
+import org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException;
+import org.ow2.util.log.Log;
+import org.ow2.util.log.LogFactory;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesce the Apache reloads of a frontend: the reload requests received
+ * within a window are merged into a single reload. The reload is delayed each
+ * time a new request arrives, but never more than a maximum delay after the
+ * first request of the batch. Reloads of the same frontend never overlap: a
+ * batch due while a reload of its frontend is running stays pending, and keeps
+ * coalescing, until that reload is over instead of holding a reload thread.
+ * A frontend whose agent circuit is open is not reloaded, its callers fail
+ * fast rather than wait for a connection held by the hung requests.
+ */
+public class ReloadScheduler {
+
+    /**
+     * Default coalescing window, in milliseconds
+     */
+    public static final long DEFAULT_WINDOW = 200L;
+
+    /**
+     * Default maximum delay of a reload, in milliseconds
+     */
+    public static final long DEFAULT_MAX_DELAY = 2000L;
+
+    /**
+     * Default timeout of a reload, in milliseconds
+     */
+    public static final long DEFAULT_TIMEOUT = 10000L;
+
+    /**
+     * The logger
+     */
+    private Log logger = LogFactory.getLog(ReloadScheduler.class);
+
+    /**
+     * Executor of the reloads
+     */
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Coalescing window, in milliseconds
+     */
+    private final long window;
+
+    /**
+     * Maximum delay of a reload, in milliseconds
+     */
+    private final long maxDelay;
+
+    /**
+     * Timeout of a reload, in milliseconds
+     */
+    private final long timeout;
+
+    /**
+     * True if the callers wait for the reload covering their change
+     */
+    private final boolean waitForReload;
+
+    /**
+     * Pending reloads by frontend name
+     */
+    private final Map<String, PendingReload> pending = new HashMap<String, PendingReload>();
+
+    /**
+     * Frontends whose reload is running, guarded by pending
+     */
+    private final Set<String> reloading = new HashSet<String>();
+
+    /**
+     * Number of reload requests
+     */
+    private final AtomicLong requestedReloads = new AtomicLong();
+
+    /**
+     * Number of reloads sent to the agents
+     */
+    private final AtomicLong performedReloads = new AtomicLong();
+
+    /**
+     * Number of failed reloads
+     */
+    private final AtomicLong failedReloads = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param executor Executor of the reloads
+     * @param window Coalescing window, in milliseconds
+     * @param maxDelay Maximum delay of a reload, in milliseconds
+     * @param timeout Timeout of a reload, in milliseconds
+     * @param waitForReload True if the callers wait for the reload covering their change
+     */
+    public ReloadScheduler(ScheduledExecutorService executor, long window, long maxDelay, long timeout,
+            boolean waitForReload) {
+        this.executor = executor;
+        this.window = window;
+        this.maxDelay = maxDelay;
+        this.timeout = timeout;
+        this.waitForReload = waitForReload;
+    }
+
+    /**
+     * Ask for a reload of a frontend and, depending on the configuration,
+     * wait for the reload covering the caller change.
+     * @param frontendName Name of the frontend
+     * @param agentClient Client of the frontend agent
+     * @throws FrontendManagerBeanException if the reload failed
+     */
+    public void reload(String frontendName, ApacheManagerClient agentClient) throws FrontendManagerBeanException {
+        awaitIfRequired(frontendName, requestReload(frontendName, agentClient));
+    }
+
+    /**
+     * Ask for a reload of a frontend
+     * @param frontendName Name of the frontend
+     * @param agentClient Client of the frontend agent
+     * @return the reload which will cover the change of the caller
+     */
+    public Future<Void> requestReload(String frontendName, ApacheManagerClient agentClient) {
+        requestedReloads.incrementAndGet();
+        long now = System.currentTimeMillis();
+        synchronized (pending) {
+            PendingReload pendingReload = pending.get(frontendName);
+            if (pendingReload != null && !pendingReload.trigger.cancel(false)) {
+                // the reload is starting, changes made now may not be covered
+                pendingReload = null;
+            }
+            if (pendingReload == null) {
+                pendingReload = new PendingReload(frontendName, agentClient, now);
+                pending.put(frontendName, pendingReload);
+            }
+            long delay = Math.max(0, Math.min(window, pendingReload.firstRequestDate + maxDelay - now));
+            pendingReload.trigger = executor.schedule(pendingReload, delay, TimeUnit.MILLISECONDS);
+            return pendingReload.task;
+        }
+    }
+
+    /**
+     * Wait for a reload if the callers are configured to wait for the reload
+     * covering their change
+     * @param frontendName Name of the frontend
+     * @param reload the reload
+     * @throws FrontendManagerBeanException if the reload failed
+     */
+    public void awaitIfRequired(String frontendName, Future<Void> reload) throws FrontendManagerBeanException {
+        if (waitForReload) {
+            await(frontendName, reload);
+        }
+    }
+
+    /**
+     * Wait for a reload
+     * @param frontendName Name of the frontend
+     * @param reload the reload
+     * @throws FrontendManagerBeanException if the reload failed
+     */
+    public void await(String frontendName, Future<Void> reload) throws FrontendManagerBeanException {
+        try {
+            reload.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FrontendManagerBeanException("Interrupted while waiting for the reload of '"
+                    + frontendName + "'", e);
+        } catch (ExecutionException e) {
+            throw new FrontendManagerBeanException("Cannot reload the frontend '" + frontendName + "'", e.getCause());
+        }
+    }
+
+    /**
+     * @return the number of reload requests
+     */
+    public long getRequestedReloads() {
+        return requestedReloads.get();
+    }
+
+    /**
+     * @return the number of reloads sent to the agents
+     */
+    public long getPerformedReloads() {
+        return performedReloads.get();
+    }
+
+    /**
+     * @return the number of failed reloads
+     */
+    public long getFailedReloads() {
+        return failedReloads.get();
+    }
+
+    /**
+     * @return the average number of reload requests covered by one reload
+     */
+    public double getCoalescingRatio() {
+        long performed = performedReloads.get();
+        if (performed == 0) {
+            return 0;
+        }
+        return (double) requestedReloads.get() / performed;
+    }
+
+    /**
+     * A batch of reload requests of one frontend
+     */
+    private class PendingReload implements Runnable {
+
+        /**
+         * Name of the frontend
+         */
+        private final String frontendName;
+
+        /**
+         * Date of the first request of the batch
+         */
+        private final long firstRequestDate;
+
+        /**
+         * The reload
+         */
+        private final FutureTask<Void> task;
+
+        /**
+         * Scheduled start of the reload
+         */
+        private ScheduledFuture<?> trigger;
+
+        /**
+         * Constructor
+         * @param frontendName Name of the frontend
+         * @param agentClient Client of the frontend agent
+         * @param firstRequestDate Date of the first request of the batch
+         */
+        public PendingReload(final String frontendName, final ApacheManagerClient agentClient, long firstRequestDate) {
+            this.frontendName = frontendName;
+            this.firstRequestDate = firstRequestDate;
+            this.task = new FutureTask<Void>(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    if (agentClient.getBreaker().getState() == CircuitBreaker.State.OPEN) {
+                        throw new FrontendManagerBeanException("Reload of the frontend '" + frontendName
+                                + "' skipped, its agent is unavailable (circuit open)");
+                    }
+                    // a reload doesn't hold a reload thread beyond its timeout
+                    agentClient.reload(Deadline.after(timeout));
+                    return null;
+                }
+            });
+        }
+
+        /**
+         * Close the batch and reload the frontend
+         */
+        @Override
+        public void run() {
+            synchronized (pending) {
+                if (reloading.contains(frontendName)) {
+                    // retried once the running reload is over, the batch still takes new requests meanwhile
+                    trigger = executor.schedule(this, window, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                if (pending.get(frontendName) == this) {
+                    pending.remove(frontendName);
+                }
+                reloading.add(frontendName);
+            }
+            try {
+                performedReloads.incrementAndGet();
+                task.run();
+            } finally {
+                synchronized (pending) {
+                    reloading.remove(frontendName);
+                }
+            }
+            try {
+                task.get();
+            } catch (Exception e) {
+                failedReloads.incrementAndGet();
+                logger.warn("Reload of the frontend '" + frontendName + "' failed: " + e.getMessage());
+            }
+        }
+    }
+}
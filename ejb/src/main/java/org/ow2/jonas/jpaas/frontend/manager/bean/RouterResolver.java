@@ -0,0 +1,125 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.bean;
+
+import org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException;
+import org.ow2.jonas.jpaas.frontend.manager.common.TopologyView;
+import org.ow2.jonas.jpaas.sr.facade.vo.ApacheJkVO;
+import org.ow2.jonas.jpaas.sr.facade.vo.IaasComputeVO;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Resolve a list of routers to the IP addresses of their IaaS computes in one
+ * pass: the router list is read once and the computes which are not in the
+ * resolution cache are looked up concurrently.
+ */
+public class RouterResolver {
+
+    /**
+     * SR topology view
+     */
+    private final TopologyView topology;
+
+    /**
+     * Executor used for the concurrent compute lookups
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Constructor
+     * @param topology SR topology view
+     * @param executor Executor used for the concurrent compute lookups
+     */
+    public RouterResolver(TopologyView topology, ExecutorService executor) {
+        this.topology = topology;
+        this.executor = executor;
+    }
+
+    /**
+     * Resolve routers to IP addresses
+     * @param routerNameList Names of the routers
+     * @return the IP address of each router, by router name and in the order of the list
+     * @throws FrontendManagerBeanException if a router or its compute doesn't exist, or if two routers
+     * resolve to the same address
+     */
+    public Map<String, String> resolve(List<String> routerNameList) throws FrontendManagerBeanException {
+
+        Map<String, ApacheJkVO> apacheJks = topology.getRouters(routerNameList);
+
+        Map<String, String> addresses = new LinkedHashMap<String, String>();
+        Map<String, Future<IaasComputeVO>> lookups = new LinkedHashMap<String, Future<IaasComputeVO>>();
+        for (String routerName : routerNameList) {
+            final ApacheJkVO apacheJk = apacheJks.get(routerName);
+            if (apacheJk == null) {
+                throw new FrontendManagerBeanException("Router '" + routerName + "' doesn't exist !");
+            }
+            IaasComputeVO iaasCompute = topology.getCachedCompute(apacheJk.getId());
+            if (iaasCompute != null) {
+                addresses.put(routerName, iaasCompute.getIpAddress());
+            } else {
+                // keep the order of the list
+                addresses.put(routerName, null);
+                if (!lookups.containsKey(routerName)) {
+                    lookups.put(routerName, executor.submit(new Callable<IaasComputeVO>() {
+                        @Override
+                        public IaasComputeVO call() throws Exception {
+                            return topology.loadCompute(apacheJk.getId());
+                        }
+                    }));
+                }
+            }
+        }
+
+        try {
+            for (Map.Entry<String, Future<IaasComputeVO>> lookup : lookups.entrySet()) {
+                IaasComputeVO iaasCompute = lookup.getValue().get();
+                if (iaasCompute == null) {
+                    throw new FrontendManagerBeanException("Cannot find the IaaS Compute for the Router '"
+                            + lookup.getKey() + "!");
+                }
+                addresses.put(lookup.getKey(), iaasCompute.getIpAddress());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FrontendManagerBeanException("Interrupted while resolving the routers " + routerNameList, e);
+        } catch (ExecutionException e) {
+            throw new FrontendManagerBeanException("Cannot resolve the routers " + routerNameList, e.getCause());
+        } finally {
+            for (Future<IaasComputeVO> lookup : lookups.values()) {
+                lookup.cancel(true);
+            }
+        }
+        // a vhost has one route per router address
+        Map<String, String> routerNames = new HashMap<String, String>();
+        for (Map.Entry<String, String> address : addresses.entrySet()) {
+            String routerName = routerNames.put(address.getValue(), address.getKey());
+            if (routerName != null) {
+                throw new FrontendManagerBeanException("Routers '" + routerName + "' and '" + address.getKey()
+                        + "' have the same address " + address.getValue());
+            }
+        }
+        return addresses;
+    }
+
+}
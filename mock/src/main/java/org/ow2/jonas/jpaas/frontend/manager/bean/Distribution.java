@@ -0,0 +1,107 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.bean;
+
+import java.util.Random;
+
+/**
+ * A latency distribution of a simulated step, in milliseconds. A distribution
+ * is written "kind:parameters":
+ * <ul>
+ * <li>fixed:m - always m</li>
+ * <li>uniform:a:b - uniform between a and b</li>
+ * <li>exp:m - exponential of mean m</li>
+ * <li>normal:m:s - normal of mean m and standard deviation s, truncated at 0</li>
+ * <li>pareto:m:a - Pareto of minimum m and shape a, a heavy tail</li>
+ * </ul>
+ */
+public abstract class Distribution {
+
+    /**
+     * A distribution always giving 0
+     */
+    public static final Distribution NONE = new Distribution() {
+        @Override
+        public double sample(Random random) {
+            return 0;
+        }
+    };
+
+    /**
+     * @param random the random generator
+     * @return a value of the distribution, never negative
+     */
+    public abstract double sample(Random random);
+
+    /**
+     * Parse a distribution
+     * @param spec the distribution, "kind:parameters"
+     * @return the distribution
+     * @throws IllegalArgumentException if the distribution cannot be read
+     */
+    public static Distribution parse(String spec) {
+        String[] parts = spec.trim().split(":");
+        try {
+            if ("fixed".equals(parts[0]) && parts.length == 2) {
+                final double value = Double.parseDouble(parts[1]);
+                return new Distribution() {
+                    @Override
+                    public double sample(Random random) {
+                        return value;
+                    }
+                };
+            } else if ("uniform".equals(parts[0]) && parts.length == 3) {
+                final double min = Double.parseDouble(parts[1]);
+                final double max = Double.parseDouble(parts[2]);
+                return new Distribution() {
+                    @Override
+                    public double sample(Random random) {
+                        return min + random.nextDouble() * (max - min);
+                    }
+                };
+            } else if ("exp".equals(parts[0]) && parts.length == 2) {
+                final double mean = Double.parseDouble(parts[1]);
+                return new Distribution() {
+                    @Override
+                    public double sample(Random random) {
+                        return -mean * Math.log(1 - random.nextDouble());
+                    }
+                };
+            } else if ("normal".equals(parts[0]) && parts.length == 3) {
+                final double mean = Double.parseDouble(parts[1]);
+                final double deviation = Double.parseDouble(parts[2]);
+                return new Distribution() {
+                    @Override
+                    public double sample(Random random) {
+                        return Math.max(0, mean + deviation * random.nextGaussian());
+                    }
+                };
+            } else if ("pareto".equals(parts[0]) && parts.length == 3) {
+                final double min = Double.parseDouble(parts[1]);
+                final double shape = Double.parseDouble(parts[2]);
+                return new Distribution() {
+                    @Override
+                    public double sample(Random random) {
+                        return min / Math.pow(1 - random.nextDouble(), 1 / shape);
+                    }
+                };
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid distribution '" + spec + "'", e);
+        }
+        throw new IllegalArgumentException("Invalid distribution '" + spec + "'");
+    }
+}
@@ -17,9 +17,19 @@ package org.ow2.jonas.jpaas.frontend.manager.bean;
 
 import org.apache.felix.ipojo.annotations.Component;
 import org.apache.felix.ipojo.annotations.Instantiate;
+import org.apache.felix.ipojo.annotations.Invalidate;
+import org.apache.felix.ipojo.annotations.Property;
 import org.apache.felix.ipojo.annotations.Provides;
 import org.apache.felix.ipojo.annotations.Requires;
+import org.apache.felix.ipojo.annotations.Validate;
 import org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException;
+import org.ow2.jonas.jpaas.frontend.manager.api.FrontendSummary;
+import org.ow2.jonas.jpaas.frontend.manager.api.OperationResult;
+import org.ow2.jonas.jpaas.frontend.manager.api.QuorumResult;
+import org.ow2.jonas.jpaas.frontend.manager.api.VhostPage;
+import org.ow2.jonas.jpaas.frontend.manager.api.VhostRouting;
+import org.ow2.jonas.jpaas.frontend.manager.common.FrontendLocks;
+import org.ow2.jonas.jpaas.frontend.manager.common.TopologyView;
 import org.ow2.jonas.jpaas.sr.facade.api.ISrPaasApacheJkRouterFacade;
 import org.ow2.jonas.jpaas.sr.facade.api.ISrPaasFrontendFacade;
 import org.ow2.jonas.jpaas.sr.facade.api.ISrPaasResourceIaasComputeLink;
@@ -31,6 +41,7 @@ import org.ow2.util.log.Log;
 import org.ow2.util.log.LogFactory;
 
 import java.util.*;
+import java.util.concurrent.locks.Lock;
 
 
 @Component
@@ -43,30 +54,136 @@ public class FrontendManagerBean implements org.ow2.jonas.jpaas.frontend.manager
      */
     private Log logger = LogFactory.getLog(org.ow2.jonas.jpaas.frontend.manager.bean.FrontendManagerBean.class);
 
+    /**
+     * Number of attempts of a SR frontend write
+     */
+    private static final int SR_WRITE_ATTEMPTS = 3;
+
     /**
      * SR facade router
      */
-    @Requires
+    @Requires(optional = true, nullable = false)
     private ISrPaasApacheJkRouterFacade srApacheJkEjb;
 
     /**
      * SR facade paasResource - iaasCompute link
      */
-    @Requires
+    @Requires(optional = true, nullable = false)
     private ISrPaasResourceIaasComputeLink srPaasResourceIaasComputeLink;
 
     /**
      * SR facade Frontend
      */
-    @Requires
+    @Requires(optional = true, nullable = false)
     private ISrPaasFrontendFacade srPaasFrontendFacade;
 
+    /**
+     * SR topology view, created on first use
+     */
+    private volatile TopologyView topology;
+
+    /**
+     * True to simulate the SR and the agent instead of using them
+     */
+    @Property(name = "simulation", value = "false")
+    private boolean simulation;
+
+    /**
+     * Latency distribution of the simulated steps, "STEP=distribution;..."
+     */
+    @Property(name = "simulation.latencies", value = "")
+    private String simulationLatencies;
+
+    /**
+     * Failure probability of the simulated steps, "STEP=probability;..."
+     */
+    @Property(name = "simulation.failures", value = "")
+    private String simulationFailures;
+
+    /**
+     * Maximum number of simulated vhosts
+     */
+    @Property(name = "simulation.max.vhosts", value = "5000000")
+    private long simulationMaxVhosts;
+
+    /**
+     * Seed of the simulation, 0 for a random seed
+     */
+    @Property(name = "simulation.seed", value = "0")
+    private long simulationSeed;
+
+    /**
+     * The simulation, null if the SR and the agent are used
+     */
+    private volatile SimulationEngine engine;
+
+    /**
+     * Locks linearizing the operations on a frontend
+     */
+    private final FrontendLocks frontendLocks = new FrontendLocks(Integer.getInteger("frontend.manager.lock.stripes",
+            FrontendLocks.DEFAULT_STRIPES));
+
     /**
      * Constructor
      */
     public FrontendManagerBean() {
     }
 
+    /**
+     * Start the simulation or load the SR topology view
+     */
+    @Validate
+    public void start() {
+        if (simulation) {
+            engine = new SimulationEngine(simulationLatencies, simulationFailures, simulationMaxVhosts,
+                    simulationSeed, frontendLocks);
+            logger.info("Frontend manager simulation started, latencies '" + simulationLatencies
+                    + "', failures '" + simulationFailures + "'");
+            return;
+        }
+        try {
+            getTopology().warm();
+        } catch (Exception e) {
+            // SR not reachable yet, the view will be loaded on first use
+            logger.warn("Cannot load the SR topology: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Release the simulation or the SR topology view
+     */
+    @Invalidate
+    public void stop() {
+        engine = null;
+        topology = null;
+    }
+
+    /**
+     * @return the SR topology view
+     * @throws FrontendManagerBeanException if the SR is not available
+     */
+    private TopologyView getTopology() throws FrontendManagerBeanException {
+        TopologyView view = topology;
+        if (view == null) {
+            synchronized (this) {
+                if (topology == null) {
+                    if (srPaasFrontendFacade == null || srApacheJkEjb == null
+                            || srPaasResourceIaasComputeLink == null) {
+                        throw new FrontendManagerBeanException("The System Representation is not available");
+                    }
+                    topology = new TopologyView(srPaasFrontendFacade, srApacheJkEjb, srPaasResourceIaasComputeLink,
+                            Long.getLong("frontend.manager.topology.ttl", TopologyView.DEFAULT_TTL),
+                            Long.getLong("frontend.manager.topology.compute.ttl",
+                                    TopologyView.DEFAULT_COMPUTE_TTL),
+                            Long.getLong("frontend.manager.topology.miss.ttl", TopologyView.DEFAULT_MISS_TTL),
+                            null);
+                }
+                view = topology;
+            }
+        }
+        return view;
+    }
+
 
     /**
      * Create a PaasFrontend
@@ -80,12 +197,18 @@ public class FrontendManagerBean implements org.ow2.jonas.jpaas.frontend.manager
     public void createFrontend(String frontendName, String apiUrl) throws FrontendManagerBeanException {
 
         logger.info("Frontend '" + frontendName + "' creating ....");
+        SimulationEngine simulation = engine;
+        if (simulation != null) {
+            simulation.createFrontend(frontendName, apiUrl);
+            return;
+        }
         PaasFrontendVO paasFrontendVO = new PaasFrontendVO(frontendName, apiUrl, new LinkedList<VirtualHostVO>());
         try {
             srPaasFrontendFacade.createFrontend(paasFrontendVO);
         } catch (Exception e) {
             throw new FrontendManagerBeanException("Cannot create the Frontend " + frontendName + ".", e);
         }
+        getTopology().invalidate(frontendName);
     }
 
     /**
@@ -99,25 +222,41 @@ public class FrontendManagerBean implements org.ow2.jonas.jpaas.frontend.manager
     public void removeFrontend(String frontendName) throws FrontendManagerBeanException {
 
         logger.info("Frontend '" + frontendName + "' deleting ....");
+        SimulationEngine simulation = engine;
+        if (simulation != null) {
+            simulation.removeFrontend(frontendName);
+            return;
+        }
 
-        // get the Frontend from SR
-        PaasFrontendVO paasFrontend = null;
-        List<PaasFrontendVO> frontendVOList = srPaasFrontendFacade.findFrontends();
-        for (PaasFrontendVO tmp : frontendVOList) {
-            if (tmp.getName().equals(frontendName)) {
-                paasFrontend = tmp;
-                break;
-            }
+        Lock lock = frontendLocks.lock(frontendName);
+        try {
+            doRemoveFrontend(frontendName);
+        } finally {
+            lock.unlock();
         }
-        if (paasFrontend == null) {
+    }
+
+    /**
+     * Remove a locked PaasFrontend
+     *
+     * @param frontendName Name of the frontend to remove
+     * @throws FrontendManagerBeanException if the frontend cannot be removed
+     */
+    private void doRemoveFrontend(String frontendName) throws FrontendManagerBeanException {
+
+        // get the Frontend from the SR topology view
+        TopologyView.FrontendEntry frontendEntry = getTopology().getFrontend(frontendName);
+        if (frontendEntry == null) {
             throw new FrontendManagerBeanException("Frontend '" + frontendName + "' doesn't exist !");
         }
+        PaasFrontendVO paasFrontend = frontendEntry.getFrontend();
 
         try {
             srPaasFrontendFacade.deleteFrontend(paasFrontend.getId());
         } catch (Exception e) {
             throw new FrontendManagerBeanException("Cannot delete the Frontend " + frontendName + ".", e);
         }
+        getTopology().removeFrontend(frontendName);
     }
 
     /**
@@ -133,25 +272,108 @@ public class FrontendManagerBean implements org.ow2.jonas.jpaas.frontend.manager
     public void createVhost(String frontendName, String vhostName, List<String> targetRouterNameList)
             throws FrontendManagerBeanException {
 
-        logger.info("Vhost '" + vhostName + "' creating ....");
+        Map<String, List<String>> vhostToRouters = new HashMap<String, List<String>>();
+        vhostToRouters.put(vhostName, targetRouterNameList);
+        checkResult(createVhosts(frontendName, vhostToRouters).get(0));
+    }
 
-        // get the Frontend from SR
-        PaasFrontendVO paasFrontend = null;
-        List<PaasFrontendVO> frontendVOList = srPaasFrontendFacade.findFrontends();
-        for (PaasFrontendVO tmp : frontendVOList) {
-            if (tmp.getName().equals(frontendName)) {
-                paasFrontend = tmp;
-                break;
-            }
+    /**
+     * Remove a vhost
+     *
+     * @param frontendName  Name of the Frontend
+     * @param vhostName     Name of the vhost to create
+     * @throws org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException
+     *
+     */
+    @Override
+    public void removeVhost(String frontendName, String vhostName) throws FrontendManagerBeanException {
+
+        checkResult(removeVhosts(frontendName, Collections.singletonList(vhostName)).get(0));
+    }
+
+    /**
+     * Change the routers of a vhost. The mock doesn't record the routing of
+     * the vhosts, the vhost and the routers are only checked.
+     *
+     * @param frontendName         Name of the Frontend
+     * @param vhostName            Name of the vhost
+     * @param targetRouterNameList New target router list
+     * @throws org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException
+     *
+     */
+    @Override
+    public void updateVhostRouters(String frontendName, String vhostName, List<String> targetRouterNameList)
+            throws FrontendManagerBeanException {
+
+        logger.info("Vhost '" + vhostName + "' routing to " + targetRouterNameList + " ....");
+        SimulationEngine simulation = engine;
+        if (simulation != null) {
+            simulation.updateVhostRouters(frontendName, vhostName, targetRouterNameList);
+            return;
         }
-        if (paasFrontend == null) {
+
+        TopologyView.FrontendEntry frontendEntry = getTopology().getFrontend(frontendName);
+        if (frontendEntry == null) {
             throw new FrontendManagerBeanException("Frontend '" + frontendName + "' doesn't exist !");
         }
-        // get the url of the Agent API
-        String apiUrl = paasFrontend.getApiUrl();
+        if (frontendEntry.getVhost(vhostName) == null) {
+            throw new FrontendManagerBeanException("Vhost '" + vhostName + "' doesn't exist !");
+        }
+        for (String routerName : targetRouterNameList) {
+            if (getTopology().getRouter(routerName) == null) {
+                throw new FrontendManagerBeanException("Router '" + routerName + "' doesn't exist !");
+            }
+        }
+    }
 
+    /**
+     * Create several vhosts on a frontend
+     *
+     * @param frontendName   Name of the Frontend
+     * @param vhostToRouters Target router list of each vhost to create
+     * @return the result of each vhost creation
+     * @throws org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException
+     *
+     */
+    @Override
+    public List<OperationResult> createVhosts(String frontendName, Map<String, List<String>> vhostToRouters)
+            throws FrontendManagerBeanException {
 
-        VirtualHostVO virtualHost = null;
+        logger.info("Vhost(s) " + vhostToRouters.keySet() + " creating ....");
+        SimulationEngine simulation = engine;
+        if (simulation != null) {
+            return simulation.createVhosts(frontendName, vhostToRouters);
+        }
+
+        List<OperationResult> results = new ArrayList<OperationResult>();
+        Lock lock = frontendLocks.lock(frontendName);
+        try {
+            doCreateVhosts(frontendName, vhostToRouters, results);
+        } finally {
+            lock.unlock();
+        }
+        return results;
+    }
+
+    /**
+     * Create several vhosts on a locked frontend
+     *
+     * @param frontendName   Name of the Frontend
+     * @param vhostToRouters Target router list of each vhost to create
+     * @param results        List receiving the result of each vhost creation
+     * @throws FrontendManagerBeanException if the frontend cannot be updated
+     */
+    private void doCreateVhosts(String frontendName, Map<String, List<String>> vhostToRouters,
+            List<OperationResult> results) throws FrontendManagerBeanException {
+
+        // get the Frontend from the SR topology view
+        TopologyView.FrontendEntry frontendEntry = getTopology().getFrontend(frontendName);
+        if (frontendEntry == null) {
+            throw new FrontendManagerBeanException("Frontend '" + frontendName + "' doesn't exist !");
+        }
+        PaasFrontendVO paasFrontend = frontendEntry.getFrontend();
+
+        List<VirtualHostVO> addedVhosts = new ArrayList<VirtualHostVO>();
         String vhostID;
         //Temporary : Use the same vhost. Test if a vhost exists, use the same vhostID if it's the case,
         // if not create the vhost on the Apache Server
@@ -164,95 +386,407 @@ public class FrontendManagerBean implements org.ow2.jonas.jpaas.frontend.manager
             vhostID = String.valueOf((new Random()).nextLong());
         }
 
-        //Do nothing if there is already a vhost with the same name
-        boolean vhostExists = false;
-        for (VirtualHostVO vhostTmp : virtualHostVOList) {
-            if (vhostTmp.getName().equals(vhostName)) {
-                vhostExists = true;
-                break;
+        for (Map.Entry<String, List<String>> vhostEntry : vhostToRouters.entrySet()) {
+            String vhostName = vhostEntry.getKey();
+
+            //Do nothing if there is already a vhost with the same name
+            if (frontendEntry.getVhost(vhostName) != null) {
+                results.add(OperationResult.success(vhostName));
+                continue;
             }
-        }
-        if (!vhostExists) {
-            virtualHost = new VirtualHostVO(vhostName, vhostID);
-            paasFrontend.getVirtualHosts().add(virtualHost);
-            paasFrontend = srPaasFrontendFacade.updateFrontend(paasFrontend);
 
+            try {
+                for (String routerName : vhostEntry.getValue()) {
+                    // get the router from the SR topology view
+                    ApacheJkVO apacheJk = getTopology().getRouter(routerName);
+                    if (apacheJk == null) {
+                        throw new FrontendManagerBeanException("Router '" + routerName + "' doesn't exist !");
+                    }
 
-            for (String routerName : targetRouterNameList) {
-                // get the router from SR
-                ApacheJkVO apacheJk = null;
-                List<ApacheJkVO> apacheJkVOList = srApacheJkEjb.findApacheJkRouters();
-                for (ApacheJkVO tmp : apacheJkVOList) {
-                    if (tmp.getName().equals(routerName)) {
-                        apacheJk = tmp;
-                        break;
+                    IaasComputeVO iaasCompute = getTopology().getCompute(apacheJk.getId());
+                    if (iaasCompute == null) {
+                        throw new FrontendManagerBeanException("Cannot find the IaaS Compute for the Router '" + routerName + "!");
                     }
-                }
-                if (apacheJk == null) {
-                    throw new FrontendManagerBeanException("Router '" + routerName + "' doesn't exist !");
-                }
 
-                IaasComputeVO iaasCompute = srPaasResourceIaasComputeLink.findIaasComputeByPaasResource(apacheJk.getId());
-                if (iaasCompute == null) {
-                    throw new FrontendManagerBeanException("Cannot find the IaaS Compute for the Router '" + routerName + "!");
+                    String[] splitName = vhostName.split(".jpaas.org");
+                    if (splitName.length == 0) {
+                        throw new FrontendManagerBeanException("Error : cannot get the instance Name.");
+                    }
                 }
+            } catch (FrontendManagerBeanException e) {
+                results.add(OperationResult.failure(vhostName, e.getMessage()));
+                continue;
+            }
 
-                String[] splitName = vhostName.split(".jpaas.org");
-                if (splitName.length == 0) {
-                    throw new FrontendManagerBeanException("Error : cannot get the instance Name.");
-                }
+            VirtualHostVO virtualHost = new VirtualHostVO(vhostName, vhostID);
+            addedVhosts.add(virtualHost);
+            results.add(OperationResult.success(vhostName));
+        }
 
-            }
+        if (!addedVhosts.isEmpty()) {
+            writeFrontend(frontendName, addedVhosts, Collections.<String>emptySet());
+        }
+    }
 
-            paasFrontend = srPaasFrontendFacade.updateFrontend(paasFrontend);
+    /**
+     * Remove several vhosts from a frontend
+     *
+     * @param frontendName Name of the Frontend
+     * @param vhostNames   Names of the vhosts to remove
+     * @return the result of each vhost removal
+     * @throws org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException
+     *
+     */
+    @Override
+    public List<OperationResult> removeVhosts(String frontendName, Collection<String> vhostNames)
+            throws FrontendManagerBeanException {
 
+        logger.info("Vhost(s) " + vhostNames + " deleting ....");
+        SimulationEngine simulation = engine;
+        if (simulation != null) {
+            return simulation.removeVhosts(frontendName, vhostNames);
         }
 
+        List<OperationResult> results = new ArrayList<OperationResult>();
+        Lock lock = frontendLocks.lock(frontendName);
+        try {
+            doRemoveVhosts(frontendName, vhostNames, results);
+        } finally {
+            lock.unlock();
+        }
+        return results;
     }
 
     /**
-     * Remove a vhost
+     * Create a vhost on several frontends. The mock applies the frontends one
+     * after the other and returns once all of them completed.
      *
-     * @param frontendName  Name of the Frontend
-     * @param vhostName     Name of the vhost to create
+     * @param frontendNames        Names of the Frontends
+     * @param vhostName            Name of the vhost to create
+     * @param targetRouterNameList Target router list
+     * @param quorum               Number of frontends which must succeed, 0 for a majority
+     * @return the result of each frontend
      * @throws org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException
      *
      */
     @Override
-    public void removeVhost(String frontendName, String vhostName) throws FrontendManagerBeanException {
+    public QuorumResult createVhostOnFrontends(Collection<String> frontendNames, String vhostName,
+            List<String> targetRouterNameList, int quorum) throws FrontendManagerBeanException {
+
+        Set<String> frontends = new LinkedHashSet<String>(frontendNames);
+        int required = getQuorum(frontends, quorum);
+        List<OperationResult> results = new ArrayList<OperationResult>();
+        for (String frontendName : frontends) {
+            try {
+                createVhost(frontendName, vhostName, targetRouterNameList);
+                results.add(OperationResult.success(frontendName));
+            } catch (FrontendManagerBeanException e) {
+                results.add(OperationResult.failure(frontendName, e.getMessage()));
+            }
+        }
+        return getQuorumResult(required, results);
+    }
+
+    /**
+     * Remove a vhost from several frontends. The mock applies the frontends
+     * one after the other and returns once all of them completed.
+     *
+     * @param frontendNames Names of the Frontends
+     * @param vhostName     Name of the vhost to remove
+     * @param quorum        Number of frontends which must succeed, 0 for a majority
+     * @return the result of each frontend
+     * @throws org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException
+     *
+     */
+    @Override
+    public QuorumResult removeVhostFromFrontends(Collection<String> frontendNames, String vhostName, int quorum)
+            throws FrontendManagerBeanException {
+
+        Set<String> frontends = new LinkedHashSet<String>(frontendNames);
+        int required = getQuorum(frontends, quorum);
+        List<OperationResult> results = new ArrayList<OperationResult>();
+        for (String frontendName : frontends) {
+            try {
+                removeVhost(frontendName, vhostName);
+                results.add(OperationResult.success(frontendName));
+            } catch (FrontendManagerBeanException e) {
+                results.add(OperationResult.failure(frontendName, e.getMessage()));
+            }
+        }
+        return getQuorumResult(required, results);
+    }
 
-        logger.info("Vhost '" + vhostName + "' deleting ....");
+    /**
+     * @param frontends Names of the Frontends
+     * @param quorum    Number of frontends which must succeed, 0 for a majority
+     * @return the number of frontends which must succeed
+     * @throws FrontendManagerBeanException if the quorum cannot be reached
+     */
+    private int getQuorum(Set<String> frontends, int quorum) throws FrontendManagerBeanException {
+        if (frontends.isEmpty()) {
+            throw new FrontendManagerBeanException("No frontend given");
+        }
+        int required = quorum > 0 ? quorum : frontends.size() / 2 + 1;
+        if (required > frontends.size()) {
+            throw new FrontendManagerBeanException("Quorum " + required + " cannot be reached with the frontends "
+                    + frontends);
+        }
+        return required;
+    }
 
-        // get the Frontend from SR
-        PaasFrontendVO paasFrontend = null;
-        List<PaasFrontendVO> frontendVOList = srPaasFrontendFacade.findFrontends();
-        for (PaasFrontendVO tmp : frontendVOList) {
-            if (tmp.getName().equals(frontendName)) {
-                paasFrontend = tmp;
-                break;
+    /**
+     * @param required Number of frontends which must succeed
+     * @param results  Result of each frontend
+     * @return the result of the quorum operation
+     */
+    private QuorumResult getQuorumResult(int required, List<OperationResult> results) {
+        int successes = 0;
+        for (OperationResult result : results) {
+            if (result.isSuccess()) {
+                successes++;
             }
         }
-        if (paasFrontend == null) {
+        return new QuorumResult(required, successes >= required, results, Collections.<String>emptyList());
+    }
+
+    /**
+     * Reconcile the proxypass directives of the frontend agent with SR.
+     * There is no agent in the mock, the frontend only has to exist.
+     *
+     * @param frontendName Name of the Frontend
+     * @return the result of the reconciliation
+     * @throws org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException
+     *
+     */
+    @Override
+    public OperationResult reconcileFrontend(String frontendName) throws FrontendManagerBeanException {
+        SimulationEngine simulation = engine;
+        if (simulation != null) {
+            return simulation.reconcile(frontendName);
+        }
+        if (getTopology().getFrontend(frontendName) == null) {
             throw new FrontendManagerBeanException("Frontend '" + frontendName + "' doesn't exist !");
         }
-        // get the url of the Agent API
-        String apiUrl = paasFrontend.getApiUrl();
+        return OperationResult.success(frontendName);
+    }
 
-        // get the vhost
-        VirtualHostVO virtualHost = null;
-        List<VirtualHostVO> virtualHostVOList = paasFrontend.getVirtualHosts();
-        for (VirtualHostVO tmp : virtualHostVOList) {
-            if (tmp.getName().equals(vhostName)) {
-                virtualHost = tmp;
-                break;
+    /**
+     * List the frontends
+     *
+     * @return the frontends, in name order
+     * @throws org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException
+     *
+     */
+    @Override
+    public List<FrontendSummary> listFrontends() throws FrontendManagerBeanException {
+        SimulationEngine simulation = engine;
+        if (simulation != null) {
+            return simulation.listFrontends();
+        }
+        List<String> frontendNames = getTopology().getFrontendNames();
+        Collections.sort(frontendNames);
+        List<FrontendSummary> frontendSummaries = new ArrayList<FrontendSummary>(frontendNames.size());
+        for (String frontendName : frontendNames) {
+            TopologyView.FrontendEntry frontendEntry = getTopology().getFrontend(frontendName);
+            if (frontendEntry != null) {
+                frontendSummaries.add(new FrontendSummary(frontendName, frontendEntry.getFrontend().getApiUrl(),
+                        frontendEntry.getVhostCount()));
             }
         }
+        return frontendSummaries;
+    }
+
+    /**
+     * List the vhosts of a frontend, one page at a time
+     *
+     * @param frontendName Name of the Frontend
+     * @param cursor       Cursor returned with the previous page, null for the first page
+     * @param pageSize     Maximum number of vhosts of the page
+     * @return the page of vhost names
+     * @throws org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException
+     *
+     */
+    @Override
+    public VhostPage listVhosts(String frontendName, String cursor, int pageSize)
+            throws FrontendManagerBeanException {
+        SimulationEngine simulation = engine;
+        if (simulation != null) {
+            return simulation.listVhosts(frontendName, cursor, pageSize);
+        }
+        if (pageSize <= 0) {
+            throw new FrontendManagerBeanException("Invalid page size " + pageSize);
+        }
+        TopologyView.FrontendEntry frontendEntry = getTopology().getFrontend(frontendName);
+        if (frontendEntry == null) {
+            throw new FrontendManagerBeanException("Frontend '" + frontendName + "' doesn't exist !");
+        }
+        // one more name tells whether there is a next page
+        List<String> vhostNames = frontendEntry.getVhostNames(cursor, pageSize + 1);
+        if (vhostNames.size() <= pageSize) {
+            return new VhostPage(vhostNames, null);
+        }
+        vhostNames = new ArrayList<String>(vhostNames.subList(0, pageSize));
+        return new VhostPage(vhostNames, vhostNames.get(pageSize - 1));
+    }
+
+    /**
+     * Get the routing of a vhost
+     *
+     * @param frontendName Name of the Frontend
+     * @param vhostName    Name of the vhost
+     * @return the routing of the vhost, null if the vhost doesn't exist
+     * @throws org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException
+     *
+     */
+    @Override
+    public VhostRouting getVhostRouting(String frontendName, String vhostName) throws FrontendManagerBeanException {
+        SimulationEngine simulation = engine;
+        if (simulation != null) {
+            return simulation.getVhostRouting(frontendName, vhostName);
+        }
+        TopologyView.FrontendEntry frontendEntry = getTopology().getFrontend(frontendName);
+        if (frontendEntry == null) {
+            throw new FrontendManagerBeanException("Frontend '" + frontendName + "' doesn't exist !");
+        }
+        VirtualHostVO virtualHost = frontendEntry.getVhost(vhostName);
         if (virtualHost == null) {
-            throw new FrontendManagerBeanException("Vhost '" + vhostName + "' doesn't exist !");
+            return null;
         }
+        List<String> routerAddresses = new ArrayList<String>(frontendEntry.getRoutes(vhostName).keySet());
+        Collections.sort(routerAddresses);
+        List<String> proxyPasses = new ArrayList<String>();
+        Map<String, String> proxyList = virtualHost.getProxypassDirectives();
+        if (proxyList != null) {
+            // the directives of the vhost are a Hashtable, copied under its lock
+            proxyPasses.addAll(proxyList.values());
+            Collections.sort(proxyPasses);
+        }
+        return new VhostRouting(vhostName, routerAddresses, proxyPasses);
+    }
 
-        srPaasFrontendFacade.removeVirtualHost(paasFrontend.getId(), vhostName);
+    /**
+     * Remove several vhosts from a locked frontend
+     *
+     * @param frontendName Name of the Frontend
+     * @param vhostNames   Names of the vhosts to remove
+     * @param results      List receiving the result of each vhost removal
+     * @throws FrontendManagerBeanException if the frontend cannot be updated
+     */
+    private void doRemoveVhosts(String frontendName, Collection<String> vhostNames, List<OperationResult> results)
+            throws FrontendManagerBeanException {
 
+        // get the Frontend from the SR topology view
+        TopologyView.FrontendEntry frontendEntry = getTopology().getFrontend(frontendName);
+        if (frontendEntry == null) {
+            throw new FrontendManagerBeanException("Frontend '" + frontendName + "' doesn't exist !");
+        }
+        PaasFrontendVO paasFrontend = frontendEntry.getFrontend();
+
+        Set<String> removedVhosts = new HashSet<String>();
+        for (String vhostName : vhostNames) {
+            // get the vhost
+            if (frontendEntry.getVhost(vhostName) == null) {
+                results.add(OperationResult.failure(vhostName, "Vhost '" + vhostName + "' doesn't exist !"));
+                continue;
+            }
+            removedVhosts.add(vhostName);
+            results.add(OperationResult.success(vhostName));
+        }
+
+        if (removedVhosts.isEmpty()) {
+            return;
+        }
+        if (removedVhosts.size() == 1) {
+            try {
+                srPaasFrontendFacade.removeVirtualHost(paasFrontend.getId(), removedVhosts.iterator().next());
+            } catch (RuntimeException e) {
+                getTopology().invalidate(frontendName);
+                throw new FrontendManagerBeanException("Cannot update the Frontend " + frontendName + ".", e);
+            }
+            PaasFrontendVO updatedFrontend = frontendEntry.copyFrontend();
+            removeVhosts(updatedFrontend, removedVhosts);
+            getTopology().applyChanges(frontendEntry, updatedFrontend, Collections.<VirtualHostVO>emptyList(),
+                    removedVhosts);
+        } else {
+            writeFrontend(frontendName, Collections.<VirtualHostVO>emptyList(), removedVhosts);
+        }
+    }
+
+    /**
+     * Write vhost changes of a frontend to SR. The frontend is read again from
+     * SR under the lock of the frontend and the vhost changes are merged into
+     * a copy of it, which replaces the cached frontend once written: the
+     * vhosts written by another node, or missed by the cache, are kept. SR
+     * cannot reject a stale write, so a write of another node between the read
+     * and the write is still lost. When the write fails, the frontend is read
+     * again, the changes are merged again and the write is retried.
+     * @param frontendName Name of the frontend
+     * @param addedVhosts Vhosts added to the frontend
+     * @param removedVhosts Names of the vhosts removed from the frontend, a vhost both
+     *        removed and added is replaced
+     * @throws FrontendManagerBeanException if the frontend cannot be written
+     */
+    private void writeFrontend(String frontendName, List<VirtualHostVO> addedVhosts, Set<String> removedVhosts)
+            throws FrontendManagerBeanException {
+        for (int attempt = 1; ; attempt++) {
+            TopologyView.FrontendEntry frontendEntry = getTopology().refreshFrontend(frontendName);
+            if (frontendEntry == null) {
+                throw new FrontendManagerBeanException("Frontend '" + frontendName + "' doesn't exist !");
+            }
+            PaasFrontendVO paasFrontend = frontendEntry.copyFrontend();
+            removeVhosts(paasFrontend, removedVhosts);
+            // only the vhosts actually written are indexed
+            List<VirtualHostVO> writtenVhosts = new ArrayList<VirtualHostVO>(addedVhosts.size());
+            for (VirtualHostVO virtualHost : addedVhosts) {
+                if (removedVhosts.contains(virtualHost.getName())
+                        || frontendEntry.getVhost(virtualHost.getName()) == null) {
+                    paasFrontend.getVirtualHosts().add(virtualHost);
+                    writtenVhosts.add(virtualHost);
+                } else {
+                    logger.warn("Vhost '" + virtualHost.getName() + "' was created concurrently in the Frontend '"
+                            + frontendName + "', the existing one is kept");
+                }
+            }
+            try {
+                srPaasFrontendFacade.updateFrontend(paasFrontend);
+                // the written frontend is cached, so that its indexes are updated incrementally
+                getTopology().applyChanges(frontendEntry, paasFrontend, writtenVhosts, removedVhosts);
+                return;
+            } catch (RuntimeException e) {
+                // the cached frontend is stale
+                getTopology().invalidate(frontendName);
+                if (attempt >= SR_WRITE_ATTEMPTS) {
+                    throw new FrontendManagerBeanException("Cannot update the Frontend " + frontendName + ".", e);
+                }
+                logger.debug("Update of the Frontend '" + frontendName + "' failed, retrying: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Remove vhosts from a frontend value object
+     * @param paasFrontend the frontend
+     * @param vhostNames Names of the vhosts to remove
+     */
+    private void removeVhosts(PaasFrontendVO paasFrontend, Set<String> vhostNames) {
+        if (vhostNames.isEmpty()) {
+            return;
+        }
+        for (Iterator<VirtualHostVO> it = paasFrontend.getVirtualHosts().iterator(); it.hasNext(); ) {
+            if (vhostNames.contains(it.next().getName())) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @param result result of an operation
+     * @throws FrontendManagerBeanException if the operation failed
+     */
+    private void checkResult(OperationResult result) throws FrontendManagerBeanException {
+        if (!result.isSuccess()) {
+            throw new FrontendManagerBeanException(result.getMessage());
+        }
     }
 
 }
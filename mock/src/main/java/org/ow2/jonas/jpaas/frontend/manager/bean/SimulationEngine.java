@@ -0,0 +1,555 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.bean;
+
+import org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException;
+import org.ow2.jonas.jpaas.frontend.manager.api.FrontendSummary;
+import org.ow2.jonas.jpaas.frontend.manager.api.OperationResult;
+import org.ow2.jonas.jpaas.frontend.manager.api.VhostPage;
+import org.ow2.jonas.jpaas.frontend.manager.api.VhostRouting;
+import org.ow2.jonas.jpaas.frontend.manager.common.FrontendLocks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Simulated frontend manager. The frontends are kept in memory, without SR
+ * nor Apache agent; each SR and agent step of an operation takes a latency
+ * and may fail, both drawn from the distributions configured for the step.
+ *
+ * A vhost only costs its name and the shared names of its routers, and the
+ * total number of vhosts is capped, so that the simulation can hold millions
+ * of vhosts in a bounded memory.
+ */
+public class SimulationEngine {
+
+    /**
+     * Default maximum number of simulated vhosts
+     */
+    public static final long DEFAULT_MAX_VHOSTS = 5000000L;
+
+    /**
+     * The simulated steps
+     */
+    public enum Step {
+        /** SR read, e.g. a router resolution */
+        SR_READ,
+        /** SR write of a frontend */
+        SR_WRITE,
+        /** agent vhost creation */
+        AGENT_CREATE_VHOST,
+        /** agent proxypass directive creation */
+        AGENT_ADD_PROXYPASS,
+        /** agent proxypass directive removal */
+        AGENT_REMOVE_PROXYPASS,
+        /** agent Apache reload */
+        AGENT_RELOAD
+    }
+
+    /**
+     * Latency distribution of each step, in milliseconds
+     */
+    private final Distribution[] latencies = new Distribution[Step.values().length];
+
+    /**
+     * Failure probability of each step
+     */
+    private final double[] failureRates = new double[Step.values().length];
+
+    /**
+     * Seed of the random generators, 0 for a random seed
+     */
+    private final long seed;
+
+    /**
+     * Number of random generators created, making the seed of each thread different
+     */
+    private final AtomicLong generators = new AtomicLong();
+
+    /**
+     * Random generator of each thread
+     */
+    private final ThreadLocal<Random> randoms = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return seed == 0 ? new Random() : new Random(seed + generators.incrementAndGet());
+        }
+    };
+
+    /**
+     * Maximum number of simulated vhosts
+     */
+    private final long maxVhosts;
+
+    /**
+     * Number of simulated vhosts
+     */
+    private final AtomicLong vhostCount = new AtomicLong();
+
+    /**
+     * Number of injected failures
+     */
+    private final AtomicLong injectedFailures = new AtomicLong();
+
+    /**
+     * Simulated frontends by name
+     */
+    private final ConcurrentMap<String, SimulatedFrontend> frontends =
+            new ConcurrentHashMap<String, SimulatedFrontend>();
+
+    /**
+     * Shared router names, so that each vhost only references them
+     */
+    private final ConcurrentMap<String, String> routerNames = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Locks linearizing the operations on a frontend
+     */
+    private final FrontendLocks frontendLocks;
+
+    /**
+     * Constructor
+     * @param latencies Latency distribution of the steps, "STEP=distribution;..." ("*" for all the steps)
+     * @param failures Failure probability of the steps, "STEP=probability;..." ("*" for all the steps)
+     * @param maxVhosts Maximum number of simulated vhosts
+     * @param seed Seed of the random generators, 0 for a random seed
+     * @param frontendLocks Locks linearizing the operations on a frontend
+     * @throws IllegalArgumentException if the configuration cannot be read
+     */
+    public SimulationEngine(String latencies, String failures, long maxVhosts, long seed,
+            FrontendLocks frontendLocks) {
+        this.maxVhosts = maxVhosts;
+        this.seed = seed;
+        this.frontendLocks = frontendLocks;
+        Arrays.fill(this.latencies, Distribution.NONE);
+        for (Map.Entry<String, String> latency : parse(latencies).entrySet()) {
+            Distribution distribution = Distribution.parse(latency.getValue());
+            for (Step step : getSteps(latency.getKey())) {
+                this.latencies[step.ordinal()] = distribution;
+            }
+        }
+        for (Map.Entry<String, String> failure : parse(failures).entrySet()) {
+            double rate = Double.parseDouble(failure.getValue());
+            for (Step step : getSteps(failure.getKey())) {
+                this.failureRates[step.ordinal()] = rate;
+            }
+        }
+    }
+
+    /**
+     * Create a frontend
+     * @param frontendName Name of the frontend
+     * @param apiUrl Url of the agent API
+     * @throws FrontendManagerBeanException if the frontend exists or if the SR write fails
+     */
+    public void createFrontend(String frontendName, String apiUrl) throws FrontendManagerBeanException {
+        step(Step.SR_WRITE, frontendName);
+        if (frontends.putIfAbsent(frontendName, new SimulatedFrontend(apiUrl)) != null) {
+            throw new FrontendManagerBeanException("Cannot create the Frontend " + frontendName
+                    + ": it already exists");
+        }
+    }
+
+    /**
+     * Remove a frontend
+     * @param frontendName Name of the frontend
+     * @throws FrontendManagerBeanException if the frontend doesn't exist or if the SR write fails
+     */
+    public void removeFrontend(String frontendName) throws FrontendManagerBeanException {
+        Lock lock = frontendLocks.lock(frontendName);
+        try {
+            getFrontend(frontendName);
+            step(Step.SR_WRITE, frontendName);
+            SimulatedFrontend frontend = frontends.remove(frontendName);
+            if (frontend != null) {
+                vhostCount.addAndGet(-frontend.vhostCount.get());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Create vhosts on a frontend
+     * @param frontendName Name of the frontend
+     * @param vhostToRouters Target router list of each vhost to create
+     * @return the result of each vhost creation
+     * @throws FrontendManagerBeanException if the frontend doesn't exist, or if the SR write or the reload fails
+     */
+    public List<OperationResult> createVhosts(String frontendName, Map<String, List<String>> vhostToRouters)
+            throws FrontendManagerBeanException {
+        List<OperationResult> results = new ArrayList<OperationResult>();
+        Lock lock = frontendLocks.lock(frontendName);
+        try {
+            SimulatedFrontend frontend = getFrontend(frontendName);
+            Map<String, String[]> addedVhosts = new LinkedHashMap<String, String[]>();
+            for (Map.Entry<String, List<String>> vhostEntry : vhostToRouters.entrySet()) {
+                String vhostName = vhostEntry.getKey();
+                if (frontend.vhosts.containsKey(vhostName) || addedVhosts.containsKey(vhostName)) {
+                    results.add(OperationResult.success(vhostName));
+                    continue;
+                }
+                if (vhostCount.get() + addedVhosts.size() >= maxVhosts) {
+                    results.add(OperationResult.failure(vhostName, "Capacity of the simulation reached ("
+                            + maxVhosts + " vhosts)"));
+                    continue;
+                }
+                try {
+                    if (frontend.vhosts.isEmpty() && addedVhosts.isEmpty()) {
+                        step(Step.AGENT_CREATE_VHOST, frontendName);
+                    }
+                    // resolution of the routers
+                    step(Step.SR_READ, frontendName);
+                    String[] routers = new String[vhostEntry.getValue().size()];
+                    for (int i = 0; i < routers.length; i++) {
+                        routers[i] = share(vhostEntry.getValue().get(i));
+                        step(Step.AGENT_ADD_PROXYPASS, frontendName);
+                    }
+                    addedVhosts.put(vhostName, routers);
+                    results.add(OperationResult.success(vhostName));
+                } catch (FrontendManagerBeanException e) {
+                    results.add(OperationResult.failure(vhostName, e.getMessage()));
+                }
+            }
+            if (addedVhosts.isEmpty()) {
+                return results;
+            }
+            step(Step.SR_WRITE, frontendName);
+            frontend.vhosts.putAll(addedVhosts);
+            frontend.vhostCount.addAndGet(addedVhosts.size());
+            vhostCount.addAndGet(addedVhosts.size());
+        } finally {
+            lock.unlock();
+        }
+        step(Step.AGENT_RELOAD, frontendName);
+        return results;
+    }
+
+    /**
+     * Remove vhosts from a frontend
+     * @param frontendName Name of the frontend
+     * @param vhostNames Names of the vhosts to remove
+     * @return the result of each vhost removal
+     * @throws FrontendManagerBeanException if the frontend doesn't exist, or if the SR write or the reload fails
+     */
+    public List<OperationResult> removeVhosts(String frontendName, Collection<String> vhostNames)
+            throws FrontendManagerBeanException {
+        List<OperationResult> results = new ArrayList<OperationResult>();
+        Lock lock = frontendLocks.lock(frontendName);
+        try {
+            SimulatedFrontend frontend = getFrontend(frontendName);
+            List<String> removedVhosts = new ArrayList<String>();
+            for (String vhostName : vhostNames) {
+                String[] routers = frontend.vhosts.get(vhostName);
+                if (routers == null) {
+                    results.add(OperationResult.failure(vhostName, "Vhost '" + vhostName + "' doesn't exist !"));
+                    continue;
+                }
+                try {
+                    for (int i = 0; i < routers.length; i++) {
+                        step(Step.AGENT_REMOVE_PROXYPASS, frontendName);
+                    }
+                    removedVhosts.add(vhostName);
+                    results.add(OperationResult.success(vhostName));
+                } catch (FrontendManagerBeanException e) {
+                    results.add(OperationResult.failure(vhostName, e.getMessage()));
+                }
+            }
+            if (removedVhosts.isEmpty()) {
+                return results;
+            }
+            step(Step.SR_WRITE, frontendName);
+            for (String vhostName : removedVhosts) {
+                if (frontend.vhosts.remove(vhostName) != null) {
+                    frontend.vhostCount.decrementAndGet();
+                    vhostCount.decrementAndGet();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        step(Step.AGENT_RELOAD, frontendName);
+        return results;
+    }
+
+    /**
+     * Change the routers of a vhost: only the routes to the added and
+     * removed routers cost an agent step
+     * @param frontendName Name of the frontend
+     * @param vhostName Name of the vhost
+     * @param routerNames New target router list
+     * @throws FrontendManagerBeanException if the vhost doesn't exist, or if a step fails
+     */
+    public void updateVhostRouters(String frontendName, String vhostName, List<String> routerNames)
+            throws FrontendManagerBeanException {
+        Lock lock = frontendLocks.lock(frontendName);
+        try {
+            SimulatedFrontend frontend = getFrontend(frontendName);
+            String[] current = frontend.vhosts.get(vhostName);
+            if (current == null) {
+                throw new FrontendManagerBeanException("Vhost '" + vhostName + "' doesn't exist !");
+            }
+            // resolution of the routers
+            step(Step.SR_READ, frontendName);
+            List<String> currentNames = Arrays.asList(current);
+            boolean changed = false;
+            for (String routerName : routerNames) {
+                if (!currentNames.contains(routerName)) {
+                    step(Step.AGENT_ADD_PROXYPASS, frontendName);
+                    changed = true;
+                }
+            }
+            for (String routerName : current) {
+                if (!routerNames.contains(routerName)) {
+                    step(Step.AGENT_REMOVE_PROXYPASS, frontendName);
+                    changed = true;
+                }
+            }
+            if (!changed) {
+                return;
+            }
+            String[] routers = new String[routerNames.size()];
+            for (int i = 0; i < routers.length; i++) {
+                routers[i] = share(routerNames.get(i));
+            }
+            step(Step.SR_WRITE, frontendName);
+            frontend.vhosts.put(vhostName, routers);
+        } finally {
+            lock.unlock();
+        }
+        step(Step.AGENT_RELOAD, frontendName);
+    }
+
+    /**
+     * Reconcile a frontend: the simulated agent never drifts from SR
+     * @param frontendName Name of the frontend
+     * @return the result of the reconciliation
+     * @throws FrontendManagerBeanException if the frontend doesn't exist
+     */
+    public OperationResult reconcile(String frontendName) throws FrontendManagerBeanException {
+        getFrontend(frontendName);
+        try {
+            step(Step.SR_READ, frontendName);
+        } catch (FrontendManagerBeanException e) {
+            return OperationResult.failure(frontendName, e.getMessage());
+        }
+        return OperationResult.success(frontendName);
+    }
+
+    /**
+     * @return the frontends, in name order
+     */
+    public List<FrontendSummary> listFrontends() {
+        List<String> frontendNames = new ArrayList<String>(frontends.keySet());
+        Collections.sort(frontendNames);
+        List<FrontendSummary> frontendSummaries = new ArrayList<FrontendSummary>(frontendNames.size());
+        for (String frontendName : frontendNames) {
+            SimulatedFrontend frontend = frontends.get(frontendName);
+            if (frontend != null) {
+                frontendSummaries.add(new FrontendSummary(frontendName, frontend.apiUrl,
+                        frontend.vhostCount.get()));
+            }
+        }
+        return frontendSummaries;
+    }
+
+    /**
+     * List the vhosts of a frontend, one page at a time
+     * @param frontendName Name of the frontend
+     * @param cursor Cursor returned with the previous page, null for the first page
+     * @param pageSize Maximum number of vhosts of the page
+     * @return the page of vhost names
+     * @throws FrontendManagerBeanException if the frontend doesn't exist
+     */
+    public VhostPage listVhosts(String frontendName, String cursor, int pageSize)
+            throws FrontendManagerBeanException {
+        if (pageSize <= 0) {
+            throw new FrontendManagerBeanException("Invalid page size " + pageSize);
+        }
+        SimulatedFrontend frontend = getFrontend(frontendName);
+        Collection<String> names = cursor == null ? frontend.vhosts.keySet()
+                : frontend.vhosts.tailMap(cursor, false).keySet();
+        List<String> vhostNames = new ArrayList<String>(Math.min(pageSize, 1024));
+        for (String vhostName : names) {
+            if (vhostNames.size() == pageSize) {
+                return new VhostPage(vhostNames, vhostNames.get(pageSize - 1));
+            }
+            vhostNames.add(vhostName);
+        }
+        return new VhostPage(vhostNames, null);
+    }
+
+    /**
+     * Get the routing of a vhost, the routers being addressed by name
+     * @param frontendName Name of the frontend
+     * @param vhostName Name of the vhost
+     * @return the routing of the vhost, null if the vhost doesn't exist
+     * @throws FrontendManagerBeanException if the frontend doesn't exist
+     */
+    public VhostRouting getVhostRouting(String frontendName, String vhostName) throws FrontendManagerBeanException {
+        String[] routers = getFrontend(frontendName).vhosts.get(vhostName);
+        if (routers == null) {
+            return null;
+        }
+        List<String> routerAddresses = new ArrayList<String>(Arrays.asList(routers));
+        Collections.sort(routerAddresses);
+        String path = "/" + vhostName.split(".jpaas.org")[0] + "/";
+        List<String> proxyPasses = new ArrayList<String>(routerAddresses.size());
+        for (String routerAddress : routerAddresses) {
+            proxyPasses.add(path + " http://" + routerAddress + "/");
+        }
+        return new VhostRouting(vhostName, routerAddresses, proxyPasses);
+    }
+
+    /**
+     * @return the number of simulated vhosts
+     */
+    public long getVhostCount() {
+        return vhostCount.get();
+    }
+
+    /**
+     * @return the number of injected failures
+     */
+    public long getInjectedFailures() {
+        return injectedFailures.get();
+    }
+
+    /**
+     * @param frontendName Name of the frontend
+     * @return the frontend
+     * @throws FrontendManagerBeanException if the frontend doesn't exist
+     */
+    private SimulatedFrontend getFrontend(String frontendName) throws FrontendManagerBeanException {
+        SimulatedFrontend frontend = frontends.get(frontendName);
+        if (frontend == null) {
+            throw new FrontendManagerBeanException("Frontend '" + frontendName + "' doesn't exist !");
+        }
+        return frontend;
+    }
+
+    /**
+     * Simulate a step: wait for its latency and fail with its failure probability
+     * @param step the step
+     * @param frontendName Name of the frontend
+     * @throws FrontendManagerBeanException if the step fails
+     */
+    private void step(Step step, String frontendName) throws FrontendManagerBeanException {
+        Random random = randoms.get();
+        double latency = latencies[step.ordinal()].sample(random);
+        if (latency > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep((long) (latency * 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new FrontendManagerBeanException("Interrupted during the simulated step " + step, e);
+            }
+        }
+        double failureRate = failureRates[step.ordinal()];
+        if (failureRate > 0 && random.nextDouble() < failureRate) {
+            injectedFailures.incrementAndGet();
+            throw new FrontendManagerBeanException("Simulated failure of " + step + " on the Frontend '"
+                    + frontendName + "'");
+        }
+    }
+
+    /**
+     * @param routerName Name of a router
+     * @return the shared instance of the name
+     */
+    private String share(String routerName) {
+        String shared = routerNames.putIfAbsent(routerName, routerName);
+        return shared == null ? routerName : shared;
+    }
+
+    /**
+     * @param name a step name, "*" for all the steps
+     * @return the steps
+     * @throws IllegalArgumentException if the step doesn't exist
+     */
+    private static List<Step> getSteps(String name) {
+        if ("*".equals(name)) {
+            return Arrays.asList(Step.values());
+        }
+        return Collections.singletonList(Step.valueOf(name));
+    }
+
+    /**
+     * @param settings settings of the steps, "STEP=value;..."
+     * @return the value of each step, in the order of the settings
+     * @throws IllegalArgumentException if a setting cannot be read
+     */
+    private static Map<String, String> parse(String settings) {
+        Map<String, String> values = new LinkedHashMap<String, String>();
+        if (settings == null) {
+            return values;
+        }
+        for (String setting : settings.split(";")) {
+            if (setting.trim().length() == 0) {
+                continue;
+            }
+            int separator = setting.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Invalid simulation setting '" + setting + "'");
+            }
+            values.put(setting.substring(0, separator).trim(), setting.substring(separator + 1).trim());
+        }
+        return values;
+    }
+
+    /**
+     * A simulated frontend
+     */
+    private static class SimulatedFrontend {
+
+        /**
+         * Url of the agent API
+         */
+        private final String apiUrl;
+
+        /**
+         * Routers of each vhost, by vhost name in name order
+         */
+        private final ConcurrentNavigableMap<String, String[]> vhosts = new ConcurrentSkipListMap<String, String[]>();
+
+        /**
+         * Number of vhosts
+         */
+        private final AtomicInteger vhostCount = new AtomicInteger();
+
+        /**
+         * Constructor
+         * @param apiUrl Url of the agent API
+         */
+        public SimulatedFrontend(String apiUrl) {
+            this.apiUrl = apiUrl;
+        }
+    }
+}
@@ -0,0 +1,478 @@
+/**
+ * Copyright 2012 Bull S.A.S.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.jonas.jpaas.frontend.manager.bean;
+
+import org.ow2.jonas.jpaas.frontend.manager.api.FrontendManagerBeanException;
+import org.ow2.jonas.jpaas.frontend.manager.api.OperationResult;
+import org.ow2.jonas.jpaas.sr.facade.api.ISrPaasApacheJkRouterFacade;
+import org.ow2.jonas.jpaas.sr.facade.api.ISrPaasFrontendFacade;
+import org.ow2.jonas.jpaas.sr.facade.api.ISrPaasResourceIaasComputeLink;
+import org.ow2.jonas.jpaas.sr.facade.vo.ApacheJkVO;
+import org.ow2.jonas.jpaas.sr.facade.vo.IaasComputeVO;
+import org.ow2.jonas.jpaas.sr.facade.vo.PaasFrontendVO;
+import org.ow2.jonas.jpaas.sr.facade.vo.VirtualHostVO;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrency stress test of the mock frontend manager against an in-memory
+ * SR: many threads create and remove vhosts on a few frontends at once, and
+ * every vhost created and not removed must be in SR at the end. The SR fails
+ * some frontend writes, as a conflicting write would, so that the retries of
+ * the writes are stressed too.
+ */
+public class FrontendManagerStressTest {
+
+    /**
+     * Number of frontends
+     */
+    private static final int FRONTENDS = 4;
+
+    /**
+     * Number of concurrent callers
+     */
+    private static final int THREADS = 32;
+
+    /**
+     * Number of vhosts created by a caller
+     */
+    private static final int VHOSTS_PER_THREAD = 40;
+
+    /**
+     * Routers of the vhosts
+     */
+    private static final List<String> ROUTERS = Arrays.asList("router-0", "router-1");
+
+    /**
+     * The in-memory SR
+     */
+    private InMemorySr sr;
+
+    /**
+     * The tested frontend manager
+     */
+    private FrontendManagerBean frontendManager;
+
+    /**
+     * The concurrent callers
+     */
+    private ExecutorService executor;
+
+    /**
+     * Start a frontend manager on an in-memory SR with a few frontends
+     * @throws Exception if the frontend manager cannot start
+     */
+    @Before
+    public void setUp() throws Exception {
+        sr = new InMemorySr();
+        for (int i = 0; i < ROUTERS.size(); i++) {
+            sr.addRouter(ROUTERS.get(i), "10.0.0." + (i + 1));
+        }
+        frontendManager = new FrontendManagerBean();
+        inject(frontendManager, "srPaasFrontendFacade", sr.newFacade(ISrPaasFrontendFacade.class));
+        inject(frontendManager, "srApacheJkEjb", sr.newFacade(ISrPaasApacheJkRouterFacade.class));
+        inject(frontendManager, "srPaasResourceIaasComputeLink", sr.newFacade(ISrPaasResourceIaasComputeLink.class));
+        frontendManager.start();
+        for (int i = 0; i < FRONTENDS; i++) {
+            frontendManager.createFrontend(getFrontendName(i), "http://10.0.1." + (i + 1) + ":9000");
+        }
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    /**
+     * Stop the frontend manager and the callers
+     */
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        frontendManager.stop();
+    }
+
+    /**
+     * Concurrent single and batch creations must not lose any vhost
+     * @throws Exception if a creation fails
+     */
+    @Test(timeout = 120000L)
+    public void testConcurrentCreationsLoseNoVhost() throws Exception {
+        final Map<String, Set<String>> expected = newExpectedVhosts();
+        runConcurrently(new Caller() {
+            @Override
+            public void call(int thread) throws Exception {
+                for (int i = 0; i < VHOSTS_PER_THREAD; i += 2) {
+                    String frontendName = getFrontendName((thread + i) % FRONTENDS);
+                    String vhostName = getVhostName(thread, i);
+                    String batchedName = getVhostName(thread, i + 1);
+                    if (i % 4 == 0) {
+                        frontendManager.createVhost(frontendName, vhostName, ROUTERS);
+                        frontendManager.createVhost(frontendName, batchedName, ROUTERS);
+                    } else {
+                        Map<String, List<String>> vhostToRouters = new HashMap<String, List<String>>();
+                        vhostToRouters.put(vhostName, ROUTERS);
+                        vhostToRouters.put(batchedName, ROUTERS);
+                        checkResults(frontendManager.createVhosts(frontendName, vhostToRouters));
+                    }
+                    expected.get(frontendName).add(vhostName);
+                    expected.get(frontendName).add(batchedName);
+                }
+            }
+        });
+        assertVhosts(expected);
+    }
+
+    /**
+     * Concurrent creations and removals must leave exactly the vhosts which
+     * were created and not removed
+     * @throws Exception if an operation fails
+     */
+    @Test(timeout = 120000L)
+    public void testConcurrentCreationsAndRemovalsLoseNoVhost() throws Exception {
+        final Map<String, Set<String>> expected = newExpectedVhosts();
+        runConcurrently(new Caller() {
+            @Override
+            public void call(int thread) throws Exception {
+                for (int i = 0; i < VHOSTS_PER_THREAD; i++) {
+                    String frontendName = getFrontendName((thread + i) % FRONTENDS);
+                    String vhostName = getVhostName(thread, i);
+                    frontendManager.createVhost(frontendName, vhostName, ROUTERS);
+                    if (i % 3 == 0) {
+                        frontendManager.removeVhost(frontendName, vhostName);
+                    } else {
+                        expected.get(frontendName).add(vhostName);
+                    }
+                }
+            }
+        });
+        assertVhosts(expected);
+    }
+
+    /**
+     * @return an empty set of expected vhosts per frontend
+     */
+    private Map<String, Set<String>> newExpectedVhosts() {
+        Map<String, Set<String>> expected = new HashMap<String, Set<String>>();
+        for (int i = 0; i < FRONTENDS; i++) {
+            expected.put(getFrontendName(i), Collections.synchronizedSet(new TreeSet<String>()));
+        }
+        return expected;
+    }
+
+    /**
+     * Run a caller on all the threads at once and wait for them
+     * @param caller the caller
+     * @throws Exception if a caller fails
+     */
+    private void runConcurrently(final Caller caller) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    caller.call(thread);
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<Void> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Check the vhosts stored in SR and listed by the frontend manager
+     * @param expected the expected vhosts of each frontend
+     * @throws FrontendManagerBeanException if the vhosts cannot be listed
+     */
+    private void assertVhosts(Map<String, Set<String>> expected) throws FrontendManagerBeanException {
+        Assert.assertTrue("Failed SR writes were not retried", sr.getFailedWrites() > 0);
+        for (Map.Entry<String, Set<String>> entry : expected.entrySet()) {
+            String frontendName = entry.getKey();
+            Assert.assertEquals("Vhosts of " + frontendName + " in SR", entry.getValue(),
+                    sr.getVhostNames(frontendName));
+            Set<String> listed = new TreeSet<String>(frontendManager.listVhosts(frontendName, null,
+                    THREADS * VHOSTS_PER_THREAD).getVhostNames());
+            Assert.assertEquals("Vhosts of " + frontendName + " listed", entry.getValue(), listed);
+        }
+    }
+
+    /**
+     * @param results results of a batch operation
+     * @throws FrontendManagerBeanException if an operation failed
+     */
+    private static void checkResults(List<OperationResult> results) throws FrontendManagerBeanException {
+        for (OperationResult result : results) {
+            if (!result.isSuccess()) {
+                throw new FrontendManagerBeanException(result.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @param index index of a frontend
+     * @return the name of the frontend
+     */
+    private static String getFrontendName(int index) {
+        return "frontend-" + index;
+    }
+
+    /**
+     * @param thread index of the caller
+     * @param index index of the vhost
+     * @return the name of the vhost
+     */
+    private static String getVhostName(int thread, int index) {
+        return "app-" + thread + "-" + index + ".jpaas.org";
+    }
+
+    /**
+     * Set a field of the frontend manager, as the iPOJO container does
+     * @param target the frontend manager
+     * @param fieldName Name of the field
+     * @param value value of the field
+     * @throws Exception if the field cannot be set
+     */
+    private static void inject(Object target, String fieldName, Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(fieldName);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    /**
+     * Operations of a concurrent caller
+     */
+    private interface Caller {
+
+        /**
+         * @param thread index of the caller
+         * @throws Exception if an operation fails
+         */
+        void call(int thread) throws Exception;
+    }
+
+    /**
+     * In-memory implementation of the SR facades used by the mock. The
+     * frontends are copied when they are read or written, and every third
+     * update of a frontend fails, as a write conflicting with another SR
+     * client would; vhost removals don't fail.
+     */
+    private static class InMemorySr {
+
+        /**
+         * Frontends by id
+         */
+        private final Map<String, PaasFrontendVO> frontends = new HashMap<String, PaasFrontendVO>();
+
+        /**
+         * Number of updates of each frontend
+         */
+        private final Map<String, Integer> frontendWrites = new HashMap<String, Integer>();
+
+        /**
+         * Routers by name
+         */
+        private final Map<String, ApacheJkVO> routers = new ConcurrentHashMap<String, ApacheJkVO>();
+
+        /**
+         * IaaS computes by paas resource id
+         */
+        private final Map<String, IaasComputeVO> computes = new ConcurrentHashMap<String, IaasComputeVO>();
+
+        /**
+         * Id generator
+         */
+        private final AtomicLong ids = new AtomicLong();
+
+        /**
+         * Number of failed writes
+         */
+        private final AtomicLong failedWrites = new AtomicLong();
+
+        /**
+         * Add a router hosted by a compute
+         * @param routerName Name of the router
+         * @param ipAddress IP address of the compute
+         */
+        void addRouter(String routerName, String ipAddress) {
+            ApacheJkVO apacheJk = new ApacheJkVO();
+            apacheJk.setId(String.valueOf(ids.incrementAndGet()));
+            apacheJk.setName(routerName);
+            IaasComputeVO iaasCompute = new IaasComputeVO();
+            iaasCompute.setIpAddress(ipAddress);
+            routers.put(routerName, apacheJk);
+            computes.put(apacheJk.getId(), iaasCompute);
+        }
+
+        /**
+         * @return the number of failed writes
+         */
+        long getFailedWrites() {
+            return failedWrites.get();
+        }
+
+        /**
+         * @param frontendName Name of a frontend
+         * @return the names of the stored vhosts of the frontend
+         */
+        synchronized Set<String> getVhostNames(String frontendName) {
+            Set<String> vhostNames = new TreeSet<String>();
+            for (PaasFrontendVO paasFrontend : frontends.values()) {
+                if (paasFrontend.getName().equals(frontendName)) {
+                    for (VirtualHostVO virtualHost : paasFrontend.getVirtualHosts()) {
+                        vhostNames.add(virtualHost.getName());
+                    }
+                }
+            }
+            return vhostNames;
+        }
+
+        /**
+         * @param facadeClass Interface of the facade
+         * @return a facade backed by this SR
+         */
+        <T> T newFacade(Class<T> facadeClass) {
+            return facadeClass.cast(Proxy.newProxyInstance(facadeClass.getClassLoader(),
+                    new Class<?>[] {facadeClass}, new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                            if (method.getDeclaringClass() == Object.class) {
+                                return method.invoke(this, args);
+                            }
+                            return dispatch(method.getName(), args);
+                        }
+                    }));
+        }
+
+        /**
+         * Run a facade method
+         * @param methodName Name of the method
+         * @param args Arguments of the method
+         * @return the result of the method
+         */
+        private synchronized Object dispatch(String methodName, Object[] args) {
+            if ("findFrontends".equals(methodName)) {
+                List<PaasFrontendVO> result = new ArrayList<PaasFrontendVO>();
+                for (PaasFrontendVO paasFrontend : frontends.values()) {
+                    result.add(copy(paasFrontend));
+                }
+                return result;
+            } else if ("createFrontend".equals(methodName)) {
+                PaasFrontendVO stored = copy((PaasFrontendVO) args[0]);
+                stored.setId(String.valueOf(ids.incrementAndGet()));
+                frontends.put(stored.getId(), stored);
+                return copy(stored);
+            } else if ("updateFrontend".equals(methodName)) {
+                PaasFrontendVO paasFrontend = (PaasFrontendVO) args[0];
+                checkWrite(paasFrontend.getId());
+                PaasFrontendVO stored = copy(paasFrontend);
+                frontends.put(stored.getId(), stored);
+                return copy(stored);
+            } else if ("deleteFrontend".equals(methodName)) {
+                frontends.remove((String) args[0]);
+                return null;
+            } else if ("removeVirtualHost".equals(methodName)) {
+                for (Iterator<VirtualHostVO> it = getStoredFrontend((String) args[0]).getVirtualHosts().iterator();
+                     it.hasNext(); ) {
+                    if (it.next().getName().equals(args[1])) {
+                        it.remove();
+                    }
+                }
+                return null;
+            } else if ("findApacheJkRouters".equals(methodName)) {
+                return new ArrayList<ApacheJkVO>(routers.values());
+            } else if ("findIaasComputeByPaasResource".equals(methodName)) {
+                return computes.get((String) args[0]);
+            }
+            throw new UnsupportedOperationException(methodName + " is not implemented by the in-memory SR");
+        }
+
+        /**
+         * Fail every third update of a frontend
+         * @param frontendId Id of the written frontend
+         */
+        private void checkWrite(String frontendId) {
+            Integer count = frontendWrites.get(frontendId);
+            int writes = count == null ? 1 : count + 1;
+            frontendWrites.put(frontendId, writes);
+            if (writes % 3 == 0) {
+                failedWrites.incrementAndGet();
+                throw new IllegalStateException("Frontend " + frontendId + " was concurrently modified");
+            }
+        }
+
+        /**
+         * @param frontendId Id of a frontend
+         * @return the stored frontend
+         */
+        private PaasFrontendVO getStoredFrontend(String frontendId) {
+            PaasFrontendVO stored = frontends.get(frontendId);
+            if (stored == null) {
+                throw new IllegalArgumentException("Frontend " + frontendId + " doesn't exist");
+            }
+            return stored;
+        }
+
+        /**
+         * @param paasFrontend a frontend
+         * @return a copy of the frontend and of its vhosts, as a remote SR would return
+         */
+        private static PaasFrontendVO copy(PaasFrontendVO paasFrontend) {
+            List<VirtualHostVO> virtualHosts = new LinkedList<VirtualHostVO>();
+            for (VirtualHostVO virtualHost : paasFrontend.getVirtualHosts()) {
+                virtualHosts.add(copy(virtualHost));
+            }
+            PaasFrontendVO copy = new PaasFrontendVO(paasFrontend.getName(), paasFrontend.getApiUrl(), virtualHosts);
+            copy.setId(paasFrontend.getId());
+            return copy;
+        }
+
+        /**
+         * @param virtualHost a vhost
+         * @return a copy of the vhost
+         */
+        private static VirtualHostVO copy(VirtualHostVO virtualHost) {
+            return new VirtualHostVO(virtualHost.getName(), virtualHost.getVhostId());
+        }
+    }
+}